@@ -0,0 +1,119 @@
+package com.p2p.bench;
+
+import com.p2p.chunking.Chunker;
+import com.p2p.chunking.FastCdcChunker;
+import com.p2p.chunking.FileChunker;
+import com.p2p.core.ChunkInfo;
+import com.p2p.core.ChunkingMode;
+import com.p2p.core.Hash;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// Chunking throughput of fixed-size vs. content-defined chunking, and how many bytes of a lightly
+// edited file are found in the original's chunks (printed once per trial as the reuse ratio)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChunkingBenchmark {
+
+    @Param({"FIXED", "FASTCDC"})
+    public ChunkingMode chunking;
+
+    @Param({"33554432"})
+    public int fileSize;
+
+    private Chunker chunker;
+    private File original;
+    private File edited;
+
+    // Reports processed bytes per second next to chunked files per second
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long bytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        chunker = chunking == ChunkingMode.FASTCDC ? new FastCdcChunker() : new FileChunker();
+
+        byte[] data = new byte[fileSize];
+        new Random(42).nextBytes(data);
+        original = File.createTempFile("chunking-original", ".bin");
+        Files.write(original.toPath(), data);
+
+        edited = File.createTempFile("chunking-edited", ".bin");
+        Files.write(edited.toPath(), edit(data));
+
+        List<ChunkInfo> before = chunker.chunkFile(original);
+        List<ChunkInfo> after = chunker.chunkFile(edited);
+        Set<Hash> known = new HashSet<>();
+        for (ChunkInfo chunk : before) {
+            known.add(chunk.getHash());
+        }
+        long reused = 0;
+        long total = 0;
+        for (ChunkInfo chunk : after) {
+            total += chunk.getSize();
+            if (known.contains(chunk.getHash())) {
+                reused += chunk.getSize();
+            }
+        }
+        System.out.printf("%n%s: %d -> %d chunks, reuse ratio after edits %.1f%% (%d of %d bytes)%n",
+                chunking, before.size(), after.size(), 100.0 * reused / total, reused, total);
+    }
+
+    // Inserts a byte near the start, deletes a run in the middle and overwrites a block near the end
+    private static byte[] edit(byte[] data) {
+        int insertAt = 1000;
+        int deleteAt = data.length / 2;
+        int deleteLength = 100;
+        int overwriteAt = data.length - data.length / 8;
+
+        byte[] result = new byte[data.length + 1 - deleteLength];
+        System.arraycopy(data, 0, result, 0, insertAt);
+        result[insertAt] = 0x5A;
+        System.arraycopy(data, insertAt, result, insertAt + 1, deleteAt - insertAt);
+        System.arraycopy(data, deleteAt + deleteLength, result, deleteAt + 1, data.length - deleteAt - deleteLength);
+        for (int i = 0; i < 4096; i++) {
+            result[overwriteAt + i] ^= (byte) 0xFF;
+        }
+        return result;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        original.delete();
+        edited.delete();
+    }
+
+    @Benchmark
+    public List<ChunkInfo> chunkFile(Bytes counter) throws IOException {
+        counter.bytes += fileSize;
+        return chunker.chunkFile(original);
+    }
+}
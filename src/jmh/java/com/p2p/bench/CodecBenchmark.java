@@ -0,0 +1,176 @@
+package com.p2p.bench;
+
+import com.p2p.chunking.FileChunker;
+import com.p2p.core.ChunkInfo;
+import com.p2p.core.ChunkingMode;
+import com.p2p.core.Hash;
+import com.p2p.core.Manifest;
+import com.p2p.core.MerkleTree;
+import com.p2p.core.PeerInfo;
+import com.p2p.network.MessageCodec;
+import com.p2p.network.NetworkConfig;
+import com.p2p.network.WireFormat;
+import com.p2p.protocol.AnnounceMessage;
+import com.p2p.protocol.ChunkBlockMessage;
+import com.p2p.protocol.ChunkRejectMessage;
+import com.p2p.protocol.ChunkRequestMessage;
+import com.p2p.protocol.ChunkResponseMessage;
+import com.p2p.protocol.HeartbeatMessage;
+import com.p2p.protocol.HelloMessage;
+import com.p2p.protocol.ManifestRequestMessage;
+import com.p2p.protocol.ManifestResponseMessage;
+import com.p2p.protocol.ManifestSegmentRequestMessage;
+import com.p2p.protocol.ManifestSegmentResponseMessage;
+import com.p2p.protocol.Message;
+import com.p2p.protocol.MessageType;
+import com.p2p.protocol.PeerListRequestMessage;
+import com.p2p.protocol.PeerListResponseMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// MessageCodec encode and decode of every message type in each wire format, each built the size it has on the wire:
+// full 256 KiB chunk responses, a manifest of a 1 GiB file, a full Merkle manifest segment, a 50-peer list. The codec runs in an
+// EmbeddedChannel, so the numbers include the pipeline hop but no socket.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({"HELLO", "MANIFEST_REQUEST", "MANIFEST_RESPONSE", "CHUNK_REQUEST", "CHUNK_RESPONSE",
+            "PEER_LIST_REQUEST", "PEER_LIST_RESPONSE", "HEARTBEAT", "CHUNK_REJECT", "ANNOUNCE",
+            "MANIFEST_SEGMENT_REQUEST", "MANIFEST_SEGMENT_RESPONSE", "CHUNK_BLOCK"})
+    public MessageType type;
+
+    @Param({"JSON", "BINARY"})
+    public WireFormat format;
+
+    private EmbeddedChannel channel;
+    private Message message;
+
+    // Encoded frame without its length prefix, as the frame decoder hands it to the codec
+    private ByteBuf frame;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        channel = new EmbeddedChannel(new MessageCodec(null, format));
+        message = build(type);
+
+        channel.writeOutbound(message);
+        ByteBuf encoded = channel.readOutbound();
+        frame = encoded.slice(4, encoded.readableBytes() - 4).copy();
+        encoded.release();
+        System.out.printf("%n%s in %s: %d bytes%n", type, format, frame.readableBytes());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        frame.release();
+        channel.finishAndReleaseAll();
+    }
+
+    @Benchmark
+    public int encode() {
+        channel.writeOutbound(message);
+        ByteBuf encoded = channel.readOutbound();
+        int length = encoded.readableBytes();
+        encoded.release();
+        return length;
+    }
+
+    @Benchmark
+    public Message decode() {
+        channel.writeInbound(frame.retainedDuplicate());
+        return channel.readInbound();
+    }
+
+    static Message build(MessageType type) {
+        Random random = new Random(42);
+        String fileId = randomHash(random).toHex();
+        switch (type) {
+            case HELLO:
+                return new HelloMessage("peer-1", fileIds(random, 20), 6881);
+            case MANIFEST_REQUEST:
+                return new ManifestRequestMessage(fileId);
+            case MANIFEST_RESPONSE:
+                return new ManifestResponseMessage(manifest(random, fileId, 4096));
+            case CHUNK_REQUEST:
+                return new ChunkRequestMessage(fileId, 17);
+            case CHUNK_RESPONSE:
+                byte[] data = new byte[FileChunker.DEFAULT_CHUNK_SIZE];
+                random.nextBytes(data);
+                return new ChunkResponseMessage(fileId, 17, data, Hash.sha256(data));
+            case PEER_LIST_REQUEST:
+                return new PeerListRequestMessage();
+            case PEER_LIST_RESPONSE:
+                List<PeerInfo> peers = new ArrayList<>();
+                for (int i = 0; i < 50; i++) {
+                    peers.add(new PeerInfo("peer-" + i, "10.0.0." + i, 6881, fileIds(random, 5)));
+                }
+                return new PeerListResponseMessage(peers);
+            case HEARTBEAT:
+                return new HeartbeatMessage();
+            case CHUNK_REJECT:
+                return new ChunkRejectMessage(fileId, 17, ChunkRejectMessage.Reason.BUSY, 200);
+            case ANNOUNCE:
+                return new AnnounceMessage("peer-1", fileIds(random, 5), fileIds(random, 1));
+            case MANIFEST_SEGMENT_REQUEST:
+                return new ManifestSegmentRequestMessage(fileId, 3);
+            case MANIFEST_SEGMENT_RESPONSE:
+                return new ManifestSegmentResponseMessage(fileId, 0,
+                        manifest(random, fileId, MerkleTree.SEGMENT_CHUNKS).getChunks());
+            case CHUNK_BLOCK:
+                byte[] block = new byte[new NetworkConfig().getBlockSize()];
+                random.nextBytes(block);
+                return new ChunkBlockMessage(fileId, 17, 2L * block.length, block, null);
+            default:
+                throw new IllegalArgumentException("Unknown message type: " + type);
+        }
+    }
+
+    // Manifest of a file split into the given number of default-size chunks
+    static Manifest manifest(Random random, String fileId, int chunkCount) {
+        List<ChunkInfo> chunks = new ArrayList<>();
+        for (int i = 0; i < chunkCount; i++) {
+            long offset = (long) i * FileChunker.DEFAULT_CHUNK_SIZE;
+            chunks.add(new ChunkInfo(i, offset, randomHash(random), random.nextInt(),
+                    FileChunker.DEFAULT_CHUNK_SIZE));
+        }
+        return new Manifest(fileId, "data.bin", (long) chunkCount * FileChunker.DEFAULT_CHUNK_SIZE,
+                FileChunker.DEFAULT_CHUNK_SIZE, ChunkingMode.FIXED, chunks);
+    }
+
+    static List<String> fileIds(Random random, int count) {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ids.add(randomHash(random).toHex());
+        }
+        return ids;
+    }
+
+    static Hash randomHash(Random random) {
+        byte[] digest = new byte[Hash.BYTES];
+        random.nextBytes(digest);
+        return Hash.of(digest);
+    }
+}
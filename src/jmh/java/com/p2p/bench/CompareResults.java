@@ -0,0 +1,116 @@
+package com.p2p.bench;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Compares two JMH JSON result files, benchmark by benchmark, and exits with status 1 if any got
+// slower by more than the threshold (in percent) and by more than both runs' error margins together.
+// Usage: CompareResults <current.json> <threshold-percent> [<baseline.json>]; without a baseline
+// there is nothing to compare and it succeeds.
+public class CompareResults {
+
+    private static final double DEFAULT_THRESHOLD = 10.0;
+
+    private static class Score {
+        private final String mode;
+        private final double value;
+        private final double error;
+        private final String unit;
+
+        private Score(String mode, double value, double error, String unit) {
+            this.mode = mode;
+            this.value = value;
+            this.error = error;
+            this.unit = unit;
+        }
+
+        // Throughput and operation counts go up when things improve; times go down
+        private boolean higherIsBetter() {
+            return mode.equals("thrpt");
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: CompareResults <current.json> <threshold-percent> [<baseline.json>]");
+            System.exit(2);
+        }
+        double threshold = args[1].isBlank() ? DEFAULT_THRESHOLD : Double.parseDouble(args[1]);
+        if (args.length < 3 || args[2].isBlank()) {
+            System.out.println("No baseline given, results are in " + args[0]);
+            return;
+        }
+        File baselineFile = new File(args[2]);
+        if (!baselineFile.isFile()) {
+            System.out.println("Baseline " + baselineFile + " not found, nothing to compare");
+            return;
+        }
+
+        Map<String, Score> current = load(new File(args[0]));
+        Map<String, Score> baseline = load(baselineFile);
+
+        int regressions = 0;
+        System.out.printf("%-70s %14s %14s %9s%n", "Benchmark", "Baseline", "Current", "Change");
+        for (Map.Entry<String, Score> entry : current.entrySet()) {
+            Score now = entry.getValue();
+            Score before = baseline.get(entry.getKey());
+            if (before == null || !before.unit.equals(now.unit)) {
+                System.out.printf("%-70s %14s %14.3f %9s%n", entry.getKey(), "-", now.value, "new");
+                continue;
+            }
+
+            double change = (now.value - before.value) / before.value * 100;
+            double worse = now.higherIsBetter() ? -change : change;
+            boolean significant = Math.abs(now.value - before.value) > before.error + now.error;
+            boolean regressed = worse > threshold && significant;
+            if (regressed) {
+                regressions++;
+            }
+            System.out.printf("%-70s %14.3f %14.3f %+8.1f%% %s%s%n", entry.getKey(), before.value, now.value,
+                    change, now.unit, regressed ? "  REGRESSION" : "");
+        }
+        for (String missing : baseline.keySet()) {
+            if (!current.containsKey(missing)) {
+                System.out.printf("%-70s %14s%n", missing, "not run");
+            }
+        }
+
+        if (regressions > 0) {
+            System.out.printf("%d benchmark(s) regressed by more than %.1f%%%n", regressions, threshold);
+            System.exit(1);
+        }
+        System.out.printf("No regressions beyond %.1f%%%n", threshold);
+    }
+
+    // Scores keyed by benchmark name and parameters, e.g. "CodecBenchmark.encode{type=CHUNK_RESPONSE}"
+    private static Map<String, Score> load(File file) throws IOException {
+        Map<String, Score> scores = new LinkedHashMap<>();
+        for (JsonNode run : new ObjectMapper().readTree(file)) {
+            StringBuilder key = new StringBuilder(run.path("benchmark").asText().replace("com.p2p.bench.", ""));
+            JsonNode params = run.path("params");
+            if (params.size() > 0) {
+                key.append('{');
+                Iterator<Map.Entry<String, JsonNode>> fields = params.fields();
+                while (fields.hasNext()) {
+                    Map.Entry<String, JsonNode> param = fields.next();
+                    key.append(param.getKey()).append('=').append(param.getValue().asText());
+                    if (fields.hasNext()) {
+                        key.append(',');
+                    }
+                }
+                key.append('}');
+            }
+            JsonNode metric = run.path("primaryMetric");
+            double error = metric.path("scoreError").asDouble(0);
+            scores.put(key.toString(), new Score(run.path("mode").asText(), metric.path("score").asDouble(),
+                    Double.isNaN(error) ? 0 : error, metric.path("scoreUnit").asText()));
+        }
+        return scores;
+    }
+}
@@ -0,0 +1,112 @@
+package com.p2p.bench;
+
+import com.p2p.core.Hash;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Chunk hash keys as 64-character hex strings (the old representation) vs. the compact Hash type:
+// building a key from a digest, comparing two equal keys and looking keys up in a store-sized map.
+// Lookups use freshly built keys, as a decoded message or a new digest would be, so string hash codes
+// are not cached. Run with -prof gc for the allocation per operation.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HashBenchmark {
+
+    @Param({"100000"})
+    public int keys;
+
+    private byte[][] digests;
+    private Map<String, Integer> stringIndex;
+    private Map<Hash, Integer> hashIndex;
+    private String stringKey;
+    private String stringCopy;
+    private Hash hashKey;
+    private Hash hashCopy;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+        digests = new byte[keys][Hash.BYTES];
+        stringIndex = new HashMap<>();
+        hashIndex = new HashMap<>();
+        for (int i = 0; i < keys; i++) {
+            random.nextBytes(digests[i]);
+            stringIndex.put(legacyHex(digests[i]), i);
+            hashIndex.put(Hash.of(digests[i]), i);
+        }
+        stringKey = legacyHex(digests[0]);
+        stringCopy = legacyHex(digests[0]);
+        hashKey = Hash.of(digests[0]);
+        hashCopy = Hash.of(digests[0]);
+    }
+
+    private byte[] nextDigest() {
+        next = next + 1 == keys ? 0 : next + 1;
+        return digests[next];
+    }
+
+    @Benchmark
+    public String createString() {
+        return legacyHex(nextDigest());
+    }
+
+    @Benchmark
+    public Hash createHash() {
+        return Hash.of(nextDigest());
+    }
+
+    @Benchmark
+    public boolean equalsString() {
+        return stringKey.equals(stringCopy);
+    }
+
+    @Benchmark
+    public boolean equalsHash() {
+        return hashKey.equals(hashCopy);
+    }
+
+    @Benchmark
+    public Integer lookupString() {
+        return stringIndex.get(legacyHex(nextDigest()));
+    }
+
+    @Benchmark
+    public Integer lookupHash() {
+        return hashIndex.get(Hash.of(nextDigest()));
+    }
+
+    // Parsing the hex form, as done for every hash in a JSON manifest or chunk response
+    @Benchmark
+    public Hash parseHex() {
+        return Hash.parse(stringKey);
+    }
+
+    // The per-byte String.format conversion the chunkers and stores used before
+    private static String legacyHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
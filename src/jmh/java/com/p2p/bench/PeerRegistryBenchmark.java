@@ -0,0 +1,99 @@
+package com.p2p.bench;
+
+import com.p2p.core.PeerInfo;
+import com.p2p.discovery.PeerRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// PeerRegistry as a busy bootstrap peer uses it: HELLOs from known peers, ANNOUNCE updates,
+// provider lookups for a download and the full peer list. Each peer shares 20 of 5000 files.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PeerRegistryBenchmark {
+
+    private static final int FILES = 5000;
+    private static final int FILES_PER_PEER = 20;
+
+    @Param({"1000"})
+    public int peerCount;
+
+    private PeerRegistry registry;
+    private List<PeerInfo> peers;
+    private List<String> fileIds;
+    private List<String> newFileIds;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+        fileIds = CodecBenchmark.fileIds(random, FILES);
+        newFileIds = CodecBenchmark.fileIds(random, FILES_PER_PEER);
+        registry = new PeerRegistry();
+        peers = new ArrayList<>();
+        for (int i = 0; i < peerCount; i++) {
+            List<String> shared = new ArrayList<>();
+            for (int j = 0; j < FILES_PER_PEER; j++) {
+                shared.add(fileIds.get(random.nextInt(FILES)));
+            }
+            PeerInfo peer = new PeerInfo("peer-" + i, "10.0." + i / 256 + "." + i % 256, 6881, shared);
+            peers.add(peer);
+            registry.addPeer(peer);
+        }
+    }
+
+    private int nextIndex(int bound) {
+        next = next + 1 >= bound ? 0 : next + 1;
+        return next;
+    }
+
+    // A HELLO from a peer that is already known
+    @Benchmark
+    public PeerRegistry addKnownPeer() {
+        registry.addPeer(peers.get(nextIndex(peerCount)));
+        return registry;
+    }
+
+    // ANNOUNCEs adding and then removing a file nobody shared, so the registry ends as it started
+    @Benchmark
+    public PeerRegistry announce() {
+        PeerInfo peer = peers.get(nextIndex(peerCount));
+        List<String> file = List.of(newFileIds.get(next % FILES_PER_PEER));
+        registry.updateFiles(peer.getPeerId(), file, List.of());
+        registry.updateFiles(peer.getPeerId(), List.of(), file);
+        return registry;
+    }
+
+    @Benchmark
+    public List<PeerInfo> peersWithFile() {
+        return registry.getPeersWithFile(fileIds.get(nextIndex(FILES)));
+    }
+
+    @Benchmark
+    public int providerCount() {
+        return registry.getProviderCount(fileIds.get(nextIndex(FILES)));
+    }
+
+    @Benchmark
+    public List<PeerInfo> allPeers() {
+        return registry.getAllPeers();
+    }
+}
@@ -0,0 +1,133 @@
+package com.p2p.bench;
+
+import com.p2p.chunking.FileChunker;
+import com.p2p.core.Hash;
+import com.p2p.core.Manifest;
+import com.p2p.storage.ChunkStorage;
+import com.p2p.storage.ManifestStorage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// The disk side of serving and receiving chunks: FileChunker.readChunk from a shared file, ChunkStorage
+// store (verified and unverified) and retrieve, and loading a manifest from disk and from the cache.
+// Files live in a temp directory, so results depend on its filesystem and the page cache.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StorageBenchmark {
+
+    private static final int CHUNKS = 64;
+
+    private Path root;
+    private File file;
+    private FileChunker chunker;
+    private ChunkStorage chunkStorage;
+    private ManifestStorage manifestStorage;
+    private Path manifestRoot;
+    private String fileId;
+
+    private byte[][] chunks;
+    private Hash[] hashes;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("storage-bench");
+        chunker = new FileChunker();
+
+        Random random = new Random(42);
+        chunks = new byte[CHUNKS][FileChunker.DEFAULT_CHUNK_SIZE];
+        hashes = new Hash[CHUNKS];
+        file = root.resolve("data.bin").toFile();
+        try (OutputStream out = Files.newOutputStream(file.toPath())) {
+            for (int i = 0; i < CHUNKS; i++) {
+                random.nextBytes(chunks[i]);
+                hashes[i] = Hash.sha256(chunks[i]);
+                out.write(chunks[i]);
+            }
+        }
+
+        chunkStorage = new ChunkStorage(root.resolve("chunks"));
+        for (int i = 0; i < CHUNKS; i++) {
+            chunkStorage.storeVerifiedChunk(hashes[i], chunks[i]);
+        }
+
+        manifestRoot = root.resolve("manifests");
+        manifestStorage = new ManifestStorage(manifestRoot);
+        fileId = CodecBenchmark.randomHash(random).toHex();
+        manifestStorage.storeManifest(CodecBenchmark.manifest(random, fileId, 4096));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private int nextIndex() {
+        next = next + 1 == CHUNKS ? 0 : next + 1;
+        return next;
+    }
+
+    @Benchmark
+    public byte[] readChunkFromFile() throws IOException {
+        return chunker.readChunk(file, nextIndex());
+    }
+
+    // Hashes the data first, as for a chunk of unknown origin
+    @Benchmark
+    public int storeChunk() throws IOException {
+        int index = nextIndex();
+        chunkStorage.storeChunk(hashes[index], chunks[index]);
+        return index;
+    }
+
+    // As a download stores chunks it has already checked
+    @Benchmark
+    public int storeVerifiedChunk() throws IOException {
+        int index = nextIndex();
+        chunkStorage.storeVerifiedChunk(hashes[index], chunks[index]);
+        return index;
+    }
+
+    // Read and hash check, as for every uploaded chunk
+    @Benchmark
+    public byte[] retrieveChunk() throws IOException {
+        return chunkStorage.retrieveChunk(hashes[nextIndex()]);
+    }
+
+    // A manifest of a 1 GiB file parsed from disk, as on the first request after a restart
+    @Benchmark
+    public Manifest loadManifest() throws IOException {
+        return new ManifestStorage(manifestRoot).retrieveManifest(fileId);
+    }
+
+    @Benchmark
+    public Manifest cachedManifest() throws IOException {
+        return manifestStorage.retrieveManifest(fileId);
+    }
+}
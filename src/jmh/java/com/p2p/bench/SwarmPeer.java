@@ -0,0 +1,183 @@
+package com.p2p.bench;
+
+import com.p2p.chunking.ManifestGenerator;
+import com.p2p.core.Manifest;
+import com.p2p.network.DownloadManager;
+import com.p2p.network.NetworkConfig;
+import com.p2p.network.PeerServer;
+import com.p2p.storage.ChunkStorage;
+import com.p2p.storage.FileIndexer;
+import com.p2p.storage.ManifestStorage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// One peer of a simulated swarm: a PeerServer on a free loopback port and the DownloadManager it downloads
+// and announces with, each peer over its own chunk and manifest directories. A restart, as churn does,
+// brings the peer back under a new ID and port with the chunks it already had.
+class SwarmPeer {
+    private static final Logger logger = LoggerFactory.getLogger(SwarmPeer.class);
+
+    static final String HOST = "127.0.0.1";
+
+    private static final long START_TIMEOUT_MILLIS = 10_000;
+
+    private final String name;
+    private final NetworkConfig config;
+    private final ChunkStorage chunkStorage;
+    private final ManifestStorage manifestStorage;
+
+    // File IDs this peer shares, kept across restarts
+    private final List<String> files = new ArrayList<>();
+
+    private PeerServer server;
+    private DownloadManager downloads;
+    private Thread serverThread;
+
+    // Upload bytes of earlier incarnations
+    private long servedBefore;
+    private int restarts;
+
+    SwarmPeer(String name, Path directory, NetworkConfig config) {
+        this.name = name;
+        this.config = config;
+        this.chunkStorage = new ChunkStorage(directory.resolve("chunks"));
+        this.manifestStorage = new ManifestStorage(directory.resolve("manifests"));
+    }
+
+    synchronized void start() throws IOException, InterruptedException {
+        int port = freePort();
+        PeerServer started = new PeerServer(port, manifestStorage, chunkStorage, config);
+        for (String fileId : files) {
+            started.addAvailableFile(fileId);
+        }
+        serverThread = new Thread(() -> {
+            try {
+                started.start();
+            } catch (InterruptedException e) {
+                logger.warn("Peer {} interrupted", name);
+            }
+        }, "swarm-" + name);
+        serverThread.setDaemon(true);
+        serverThread.start();
+        awaitListening(port);
+
+        server = started;
+        downloads = new DownloadManager(server.getPeerId(), port, chunkStorage, config);
+        downloads.setUploadScheduler(server.getUploadScheduler());
+        downloads.setBandwidthManager(server.getBandwidthManager());
+        downloads.setMemoryBudget(server.getMemoryBudget());
+        downloads.setTransferMetrics(server.getTransferMetrics());
+    }
+
+    synchronized void stop() {
+        if (server == null) {
+            return;
+        }
+        servedBefore = bytesServed();
+        downloads.shutdown();
+        server.shutdown();
+        server = null;
+        downloads = null;
+    }
+
+    // Leaves the swarm and joins again as a new peer with the same data, announcing itself to the bootstrap peer
+    void restart(int bootstrapPort) throws Exception {
+        stop();
+        start();
+        synchronized (this) {
+            restarts++;
+        }
+        announce(bootstrapPort);
+    }
+
+    // Chunks and indexes a file so this peer serves it
+    Manifest seed(File file, ManifestGenerator generator) throws IOException {
+        Manifest manifest = new FileIndexer(generator, chunkStorage, manifestStorage).index(file);
+        share(manifest.getFileId());
+        return manifest;
+    }
+
+    Manifest download(String fileId, int bootstrapPort, File outputFile) throws Exception {
+        DownloadManager manager;
+        synchronized (this) {
+            manager = downloads;
+        }
+        Manifest manifest = manager.downloadFile(fileId, HOST, bootstrapPort, outputFile);
+        manifestStorage.storeManifest(manifest);
+        share(fileId);
+        return manifest;
+    }
+
+    // Tells the bootstrap peer which files this peer has, so downloads starting later use it
+    void announce(int bootstrapPort) throws Exception {
+        DownloadManager manager;
+        List<String> shared;
+        synchronized (this) {
+            manager = downloads;
+            shared = new ArrayList<>(files);
+        }
+        if (manager != null && getPort() != bootstrapPort) {
+            manager.announce(HOST, bootstrapPort, shared);
+        }
+    }
+
+    private synchronized void share(String fileId) {
+        if (!files.contains(fileId)) {
+            files.add(fileId);
+        }
+        server.addAvailableFile(fileId);
+    }
+
+    // Chunk bytes uploaded by this peer, over all its incarnations
+    synchronized long bytesServed() {
+        long served = servedBefore;
+        if (server != null) {
+            for (String fileId : files) {
+                served += server.getTransferMetrics().file(fileId).getBytesSent();
+            }
+        }
+        return served;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    synchronized int getPort() {
+        return server != null ? server.getPort() : -1;
+    }
+
+    synchronized int getRestarts() {
+        return restarts;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void awaitListening(int port) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(HOST, port), 100);
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("Peer did not start listening on port " + port, e);
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+}
@@ -0,0 +1,485 @@
+package com.p2p.bench;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.p2p.chunking.ManifestGenerator;
+import com.p2p.cli.CLIParser;
+import com.p2p.core.ChunkingMode;
+import com.p2p.core.Manifest;
+import com.p2p.network.NetworkConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+// End-to-end swarm benchmark: seeders and leechers as PeerServer/DownloadManager pairs in this JVM, talking
+// over loopback. Seeder 0 is the bootstrap peer; the other seeders announce themselves to it, and every
+// leecher does too once its download completes, so later leechers can use it. With churn, a random seeder
+// other than the bootstrap peer leaves and rejoins at every interval. Reports aggregate throughput,
+// time-to-complete percentiles, bytes served per peer and process CPU time per GB delivered, and with
+// --result writes them in the JMH JSON format so CompareResults can diff two runs.
+public class SwarmSimulator {
+
+    private static final int WRITE_BLOCK = 1024 * 1024;
+
+    private int seeders = 2;
+    private int leechers = 8;
+    private List<Long> fileSizes = List.of(64L * 1024 * 1024);
+    private long staggerMillis = 0;
+    private long churnMillis = 0;
+    private int workerThreads = 2;
+    private int maxPeers = 8;
+    private int requestsPerPeer = 4;
+    private long timeoutSeconds = 600;
+    private int latencyMillis = 0;
+    private int jitterMillis = 0;
+    private long bandwidth = 0;
+    private double lossPercent = 0;
+    private boolean compression = true;
+    private boolean binaryMessages = true;
+    private int chunkSize = 0;
+    private int blockSize = new NetworkConfig().getBlockSize();
+    private File result;
+    private boolean keep;
+
+    private Path root;
+    private final List<SwarmPeer> seederPeers = new ArrayList<>();
+    private final List<SwarmPeer> leecherPeers = new ArrayList<>();
+    private final AtomicInteger churnEvents = new AtomicInteger();
+
+    // Outcome of one leecher's download
+    private static class Completion {
+        private final String peer;
+        private final long bytes;
+        private final long millis;
+        private final String error;
+
+        private Completion(String peer, long bytes, long millis, String error) {
+            this.peer = peer;
+            this.bytes = bytes;
+            this.millis = millis;
+            this.error = error;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        SwarmSimulator simulator = new SwarmSimulator();
+        try {
+            simulator.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            printUsage();
+            System.exit(2);
+        }
+        boolean ok = simulator.run();
+        // Netty event loops of stopped peers wind down in the background
+        System.exit(ok ? 0 : 1);
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (option.equals("--help")) {
+                printUsage();
+                System.exit(0);
+            }
+            if (option.equals("--keep")) {
+                keep = true;
+                continue;
+            }
+            if (option.equals("--no-compression")) {
+                compression = false;
+                continue;
+            }
+            if (option.equals("--json-messages")) {
+                binaryMessages = false;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException(option + " requires a value");
+            }
+            String value = args[++i];
+            switch (option) {
+                case "--seeders":
+                    seeders = parseCount(option, value, 1);
+                    break;
+                case "--leechers":
+                    leechers = parseCount(option, value, 1);
+                    break;
+                case "--file-size":
+                    List<Long> sizes = new ArrayList<>();
+                    for (String size : value.split(",")) {
+                        sizes.add(CLIParser.parseSize(size));
+                    }
+                    fileSizes = sizes;
+                    break;
+                case "--stagger":
+                    staggerMillis = parseCount(option, value, 0);
+                    break;
+                case "--churn-interval":
+                    churnMillis = parseCount(option, value, 0);
+                    break;
+                case "--worker-threads":
+                    workerThreads = parseCount(option, value, 0);
+                    break;
+                case "--max-peers":
+                    maxPeers = parseCount(option, value, 1);
+                    break;
+                case "--requests-per-peer":
+                    requestsPerPeer = parseCount(option, value, 1);
+                    break;
+                case "--timeout":
+                    timeoutSeconds = parseCount(option, value, 1);
+                    break;
+                case "--latency":
+                    latencyMillis = parseCount(option, value, 0);
+                    break;
+                case "--jitter":
+                    jitterMillis = parseCount(option, value, 0);
+                    break;
+                case "--bandwidth":
+                    bandwidth = CLIParser.parseSize(value);
+                    break;
+                case "--loss":
+                    try {
+                        lossPercent = Double.parseDouble(value);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid percentage for --loss: " + value);
+                    }
+                    break;
+                case "--chunk-size":
+                    chunkSize = (int) CLIParser.parseSize(value);
+                    break;
+                case "--block-size":
+                    blockSize = (int) CLIParser.parseSize(value);
+                    break;
+                case "--result":
+                    result = new File(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + option);
+            }
+        }
+        for (long size : fileSizes) {
+            if (size <= 0) {
+                throw new IllegalArgumentException("File sizes must be positive");
+            }
+        }
+    }
+
+    private static int parseCount(String option, String value, int min) {
+        int count;
+        try {
+            count = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number for " + option + ": " + value);
+        }
+        if (count < min) {
+            throw new IllegalArgumentException(option + " must be at least " + min);
+        }
+        return count;
+    }
+
+    private static void printUsage() {
+        System.out.println("Swarm simulator - Usage: SwarmSimulator [options]");
+        System.out.println("  --seeders <n>           : Peers holding every file at the start, the first is the bootstrap peer (default: 2)");
+        System.out.println("  --leechers <n>          : Peers downloading a file, spread round-robin over the files (default: 8)");
+        System.out.println("  --file-size <sizes>     : Comma-separated sizes of the shared files (default: 64M)");
+        System.out.println("  --stagger <ms>          : Delay between leecher starts (default: 0)");
+        System.out.println("  --churn-interval <ms>   : Restart a random non-bootstrap seeder this often (default: 0 = no churn)");
+        System.out.println("  --worker-threads <n>    : Netty worker threads per peer (default: 2)");
+        System.out.println("  --max-peers <n>         : Providers one download is spread across (default: 8)");
+        System.out.println("  --requests-per-peer <n> : Chunk requests in flight per provider (default: 4)");
+        System.out.println("  --timeout <seconds>     : Give up on downloads after this long (default: 600)");
+        System.out.println("  --latency <ms>          : One-way delay of every link, in each direction (default: 0)");
+        System.out.println("  --jitter <ms>           : Random extra delay of up to this much per write (default: 0)");
+        System.out.println("  --bandwidth <rate>      : Sending rate cap of every connection, e.g. 10M (default: unlimited)");
+        System.out.println("  --loss <percent>        : Lost segments, each stalling its connection for 200 ms (default: 0)");
+        System.out.println("  --no-compression        : Send every chunk as it is, as peers without compression do");
+        System.out.println("  --json-messages         : Send every message as JSON instead of the binary format");
+        System.out.println("  --chunk-size <size>     : Chunk size of the shared files (default: picked per file, 256K up to 16M)");
+        System.out.println("  --block-size <size>     : Stream larger chunks in blocks of this size (default: 1M, 0 = whole chunks)");
+        System.out.println("  --result <file>         : Write the results as JMH-format JSON");
+        System.out.println("  --keep                  : Keep the peers' directories instead of deleting them");
+    }
+
+    // Returns false if any download failed
+    private boolean run() throws Exception {
+        root = Files.createTempDirectory("swarm");
+        System.out.printf("Swarm: %d seeder(s), %d leecher(s), files %s, stagger %d ms, churn %s in %s%n",
+                seeders, leechers, fileSizes, staggerMillis, churnMillis > 0 ? churnMillis + " ms" : "off", root);
+        if (latencyMillis > 0 || jitterMillis > 0 || bandwidth > 0 || lossPercent > 0) {
+            System.out.printf("Links: latency %d ms, jitter %d ms, bandwidth %s, loss %.2f%%%n", latencyMillis,
+                    jitterMillis, bandwidth > 0 ? bandwidth + " bytes/s" : "unlimited", lossPercent);
+        }
+
+        ScheduledExecutorService churner = null;
+        try {
+            List<Manifest> manifests = startSeeders(createFiles());
+            int bootstrapPort = seederPeers.get(0).getPort();
+
+            if (churnMillis > 0 && seeders > 1) {
+                churner = Executors.newSingleThreadScheduledExecutor();
+                churner.scheduleWithFixedDelay(() -> churn(bootstrapPort), churnMillis, churnMillis,
+                        TimeUnit.MILLISECONDS);
+            }
+
+            long cpuStart = processCpuNanos();
+            long start = System.nanoTime();
+            List<Completion> completions = runLeechers(manifests, bootstrapPort);
+            long elapsedNanos = System.nanoTime() - start;
+            long cpuNanos = processCpuNanos() - cpuStart;
+
+            if (churner != null) {
+                churner.shutdownNow();
+                churner.awaitTermination(10, TimeUnit.SECONDS);
+            }
+            return report(completions, elapsedNanos, cpuNanos);
+        } finally {
+            if (churner != null) {
+                churner.shutdownNow();
+            }
+            for (SwarmPeer peer : leecherPeers) {
+                peer.stop();
+            }
+            for (SwarmPeer peer : seederPeers) {
+                peer.stop();
+            }
+            if (!keep) {
+                delete(root);
+            }
+        }
+    }
+
+    // Random files of the configured sizes, each with its own seed so they share no chunks
+    private List<File> createFiles() throws IOException {
+        Path directory = Files.createDirectories(root.resolve("files"));
+        List<File> files = new ArrayList<>();
+        byte[] block = new byte[WRITE_BLOCK];
+        for (int i = 0; i < fileSizes.size(); i++) {
+            File file = directory.resolve("file-" + i + ".bin").toFile();
+            Random random = new Random(42 + i);
+            try (OutputStream out = Files.newOutputStream(file.toPath())) {
+                for (long left = fileSizes.get(i); left > 0; left -= WRITE_BLOCK) {
+                    random.nextBytes(block);
+                    out.write(block, 0, (int) Math.min(WRITE_BLOCK, left));
+                }
+            }
+            files.add(file);
+        }
+        return files;
+    }
+
+    private List<Manifest> startSeeders(List<File> files) throws Exception {
+        List<Manifest> manifests = new ArrayList<>();
+        ManifestGenerator generator = chunkSize > 0
+                ? new ManifestGenerator(ManifestGenerator.createChunker(ChunkingMode.FIXED, chunkSize), false)
+                : new ManifestGenerator(ChunkingMode.FIXED, false);
+        for (int i = 0; i < seeders; i++) {
+            SwarmPeer peer = new SwarmPeer("seeder-" + i, root.resolve("seeder-" + i), networkConfig());
+            peer.start();
+            seederPeers.add(peer);
+            for (File file : files) {
+                Manifest manifest = peer.seed(file, generator);
+                if (i == 0) {
+                    manifests.add(manifest);
+                }
+            }
+            peer.announce(seederPeers.get(0).getPort());
+        }
+        return manifests;
+    }
+
+    private List<Completion> runLeechers(List<Manifest> manifests, int bootstrapPort) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(leechers);
+        List<Future<Completion>> futures = new ArrayList<>();
+        for (int i = 0; i < leechers; i++) {
+            SwarmPeer peer = new SwarmPeer("leecher-" + i, root.resolve("leecher-" + i), networkConfig());
+            leecherPeers.add(peer);
+            Manifest manifest = manifests.get(i % manifests.size());
+            long delay = staggerMillis * i;
+            futures.add(pool.submit(() -> leech(peer, manifest, bootstrapPort, delay)));
+        }
+        pool.shutdown();
+
+        List<Completion> completions = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        for (int i = 0; i < futures.size(); i++) {
+            Future<Completion> future = futures.get(i);
+            try {
+                completions.add(future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+            } catch (Exception e) {
+                future.cancel(true);
+                completions.add(new Completion(leecherPeers.get(i).getName(), 0, 0, "timed out"));
+            }
+        }
+        pool.shutdownNow();
+        return completions;
+    }
+
+    private Completion leech(SwarmPeer peer, Manifest manifest, int bootstrapPort, long delayMillis) {
+        try {
+            Thread.sleep(delayMillis);
+            peer.start();
+            File output = root.resolve(peer.getName()).resolve(manifest.getFilename()).toFile();
+
+            long start = System.nanoTime();
+            peer.download(manifest.getFileId(), bootstrapPort, output);
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            if (output.length() != manifest.getFileSize()) {
+                return new Completion(peer.getName(), 0, millis, "wrong size " + output.length());
+            }
+            peer.announce(bootstrapPort);
+            return new Completion(peer.getName(), manifest.getFileSize(), millis, null);
+        } catch (Exception e) {
+            return new Completion(peer.getName(), 0, 0, e.getMessage() != null ? e.getMessage() : e.toString());
+        }
+    }
+
+    private void churn(int bootstrapPort) {
+        SwarmPeer peer = seederPeers.get(1 + new Random().nextInt(seeders - 1));
+        try {
+            peer.restart(bootstrapPort);
+            churnEvents.incrementAndGet();
+        } catch (Exception e) {
+            System.err.printf("Could not restart %s: %s%n", peer.getName(), e.getMessage());
+        }
+    }
+
+    private NetworkConfig networkConfig() {
+        NetworkConfig config = new NetworkConfig();
+        config.setWorkerThreads(workerThreads);
+        config.setMaxPeersPerDownload(maxPeers);
+        config.setRequestsPerPeer(requestsPerPeer);
+        config.setEmulatedLatencyMillis(latencyMillis);
+        config.setEmulatedJitterMillis(jitterMillis);
+        config.setEmulatedBandwidth(bandwidth);
+        config.setEmulatedLossPercent(lossPercent);
+        config.setCompression(compression);
+        config.setBinaryMessages(binaryMessages);
+        config.setBlockSize(blockSize);
+        return config;
+    }
+
+    private boolean report(List<Completion> completions, long elapsedNanos, long cpuNanos) throws IOException {
+        List<Long> times = new ArrayList<>();
+        long bytes = 0;
+        int failed = 0;
+        for (Completion completion : completions) {
+            if (completion.error != null) {
+                failed++;
+                System.out.printf("  %-12s FAILED: %s%n", completion.peer, completion.error);
+                continue;
+            }
+            times.add(completion.millis);
+            bytes += completion.bytes;
+        }
+        Collections.sort(times);
+
+        double seconds = elapsedNanos / 1e9;
+        double throughput = bytes / seconds / (1024 * 1024);
+        double cpuPerGb = bytes > 0 ? cpuNanos / 1e9 / (bytes / 1e9) : 0;
+
+        System.out.println();
+        System.out.printf("Completed:       %d/%d downloads, %d churn event(s)%n",
+                completions.size() - failed, completions.size(), churnEvents.get());
+        System.out.printf("Throughput:      %.1f MiB/s aggregate (%d bytes in %.2f s)%n", throughput, bytes, seconds);
+        if (!times.isEmpty()) {
+            System.out.printf("Time to complete: p50 %d ms, p90 %d ms, p99 %d ms, max %d ms%n",
+                    percentile(times, 50), percentile(times, 90), percentile(times, 99), times.get(times.size() - 1));
+        }
+        System.out.printf("CPU:             %.2f s per GB delivered (%.2f s process CPU)%n", cpuPerGb, cpuNanos / 1e9);
+        System.out.println("Bytes served:");
+        for (SwarmPeer peer : seederPeers) {
+            System.out.printf("  %-12s %,15d%s%n", peer.getName(), peer.bytesServed(),
+                    peer.getRestarts() > 0 ? " (" + peer.getRestarts() + " restarts)" : "");
+        }
+        for (SwarmPeer peer : leecherPeers) {
+            System.out.printf("  %-12s %,15d%n", peer.getName(), peer.bytesServed());
+        }
+
+        if (result != null && !times.isEmpty()) {
+            writeResult(throughput, times, cpuPerGb);
+            System.out.println("Results written to " + result);
+        }
+        return failed == 0;
+    }
+
+    private void writeResult(double throughput, List<Long> times, double cpuPerGb) throws IOException {
+        Map<String, String> params = new LinkedHashMap<>();
+        params.put("seeders", String.valueOf(seeders));
+        params.put("leechers", String.valueOf(leechers));
+        params.put("fileSizes", fileSizes.toString());
+        params.put("churnInterval", String.valueOf(churnMillis));
+        params.put("latency", String.valueOf(latencyMillis));
+        params.put("bandwidth", String.valueOf(bandwidth));
+        params.put("loss", String.valueOf(lossPercent));
+        params.put("compression", String.valueOf(compression));
+        params.put("binaryMessages", String.valueOf(binaryMessages));
+
+        List<Map<String, Object>> runs = new ArrayList<>();
+        runs.add(score("throughput", "thrpt", params, throughput, "MiB/s"));
+        runs.add(score("completeP50", "avgt", params, percentile(times, 50), "ms"));
+        runs.add(score("completeP90", "avgt", params, percentile(times, 90), "ms"));
+        runs.add(score("completeP99", "avgt", params, percentile(times, 99), "ms"));
+        runs.add(score("cpuPerGb", "avgt", params, cpuPerGb, "s/GB"));
+
+        File parent = result.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(result, runs);
+    }
+
+    private static Map<String, Object> score(String name, String mode, Map<String, String> params, double value,
+                                             String unit) {
+        Map<String, Object> metric = new LinkedHashMap<>();
+        metric.put("score", value);
+        metric.put("scoreError", 0.0);
+        metric.put("scoreUnit", unit);
+
+        Map<String, Object> run = new LinkedHashMap<>();
+        run.put("benchmark", "SwarmSimulator." + name);
+        run.put("mode", mode);
+        run.put("params", params);
+        run.put("primaryMetric", metric);
+        return run;
+    }
+
+    // Nearest-rank percentile of sorted values
+    private static long percentile(List<Long> sorted, double percent) {
+        int rank = (int) Math.ceil(percent / 100 * sorted.size());
+        return sorted.get(Math.max(0, rank - 1));
+    }
+
+    private static long processCpuNanos() {
+        java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return 0;
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.p2p.chunking;
+
+import com.p2p.core.ChunkInfo;
+import com.p2p.core.ChunkingMode;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+// Strategy for splitting a file into hashed chunks
+public interface Chunker {
+
+    // Splits a file into chunks and returns metadata about each chunk
+    default List<ChunkInfo> chunkFile(File file) throws IOException {
+        return chunkFile(file, 0, 0);
+    }
+
+    // Chunks the file from a chunk boundary onwards, numbering chunks from firstIndex
+    default List<ChunkInfo> chunkFile(File file, long offset, int firstIndex) throws IOException {
+        if (!file.exists()) {
+            throw new IOException("File not found: " + file.getAbsolutePath());
+        }
+
+        if (!file.isFile()) {
+            throw new IOException("Not a file: " + file.getAbsolutePath());
+        }
+
+        try (FileInputStream in = new FileInputStream(file)) {
+            in.getChannel().position(offset);
+            return chunkStream(in, offset, firstIndex);
+        }
+    }
+
+    // Chunks everything left in the stream, whose first byte is at the given chunk boundary
+    List<ChunkInfo> chunkStream(InputStream in, long offset, int firstIndex) throws IOException;
+
+    // Fixed chunk size, or the largest chunk a content-defined chunker produces
+    int getChunkSize();
+
+    ChunkingMode getMode();
+}
@@ -0,0 +1,174 @@
+package com.p2p.chunking;
+
+import com.p2p.core.ChunkInfo;
+import com.p2p.core.ChunkingMode;
+import com.p2p.core.Hash;
+import com.p2p.core.Manifest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Finds the chunks of a new manifest inside an older local copy of the file, rsync-style: a rolling
+// weak checksum is slid over the old file byte by byte and SHA-256 confirms each weak hit, so blocks
+// are found at any offset even after insertions or deletions
+public class DeltaScanner {
+    private static final Logger logger = LoggerFactory.getLogger(DeltaScanner.class);
+
+    private static final int READ_BUFFER_SIZE = 8 * 1024 * 1024;
+
+    // Returns chunk index -> offset in the old file for every wanted chunk found there
+    public Map<Integer, Long> findMatches(Manifest manifest, File basis, BitSet wanted) throws IOException {
+        if (!basis.isFile()) {
+            throw new IOException("Not a file: " + basis.getAbsolutePath());
+        }
+
+        Map<Integer, Long> matches = new TreeMap<>();
+        if (manifest.getChunking() == ChunkingMode.FASTCDC) {
+            matchContentDefined(manifest, basis, wanted, matches);
+        } else {
+            // Fixed-size manifests have at most two chunk sizes: the regular one and a shorter last chunk
+            Map<Long, List<ChunkInfo>> bySize = new HashMap<>();
+            for (int i = wanted.nextSetBit(0); i >= 0; i = wanted.nextSetBit(i + 1)) {
+                ChunkInfo chunk = manifest.getChunk(i);
+                bySize.computeIfAbsent(chunk.getSize(), size -> new ArrayList<>()).add(chunk);
+            }
+            for (Map.Entry<Long, List<ChunkInfo>> entry : bySize.entrySet()) {
+                if (entry.getKey() > 0 && entry.getKey() <= basis.length()) {
+                    scanWindow(basis, entry.getKey().intValue(), entry.getValue(), matches);
+                }
+            }
+        }
+
+        logger.info("Found {}/{} wanted chunks in {}", matches.size(), wanted.cardinality(), basis.getName());
+        return matches;
+    }
+
+    // Content-defined boundaries resynchronize after an edit, so re-chunking the old file with the
+    // same parameters finds the unchanged chunks without a byte-by-byte scan
+    private void matchContentDefined(Manifest manifest, File basis, BitSet wanted, Map<Integer, Long> matches)
+            throws IOException {
+        Map<Hash, List<Integer>> byHash = new HashMap<>();
+        for (int i = wanted.nextSetBit(0); i >= 0; i = wanted.nextSetBit(i + 1)) {
+            byHash.computeIfAbsent(manifest.getChunk(i).getHash(), hash -> new ArrayList<>()).add(i);
+        }
+
+        FastCdcChunker chunker = new FastCdcChunker(manifest.getChunkSize() / 4);
+        for (ChunkInfo old : chunker.chunkFile(basis)) {
+            List<Integer> indices = byHash.remove(old.getHash());
+            if (indices != null) {
+                for (int index : indices) {
+                    matches.put(index, old.getOffset());
+                }
+            }
+        }
+    }
+
+    // Slides a window of the given size over the old file looking for any of the chunks
+    private void scanWindow(File basis, int window, List<ChunkInfo> chunks, Map<Integer, Long> matches)
+            throws IOException {
+        Map<Integer, List<ChunkInfo>> byWeak = new HashMap<>();
+        // Cheap first-level filter so the map is only consulted for plausible windows
+        boolean[] tags = new boolean[1 << 16];
+        for (ChunkInfo chunk : chunks) {
+            byWeak.computeIfAbsent(chunk.getWeakHash(), weak -> new ArrayList<>()).add(chunk);
+            tags[tag(chunk.getWeakHash())] = true;
+        }
+
+        MessageDigest digest = Hash.newDigest();
+        RollingChecksum checksum = new RollingChecksum(window);
+        byte[] buffer = new byte[Math.max(READ_BUFFER_SIZE, window * 2)];
+        long bufferOffset = 0;
+        int pos = 0;
+        int end;
+
+        try (InputStream in = new FileInputStream(basis)) {
+            end = fill(in, buffer, 0);
+            if (end < window) {
+                return;
+            }
+            checksum.reset(buffer, 0);
+
+            while (!byWeak.isEmpty()) {
+                int weak = checksum.value();
+                if (tags[tag(weak)] && byWeak.containsKey(weak)
+                        && confirm(digest, buffer, pos, window, weak, byWeak, bufferOffset + pos, matches)) {
+                    // Matched blocks do not overlap, so continue right after this one
+                    pos += window;
+                    if (pos + window > end) {
+                        end = compact(in, buffer, pos, end);
+                        bufferOffset += pos;
+                        pos = 0;
+                        if (window > end) {
+                            break;
+                        }
+                    }
+                    checksum.reset(buffer, pos);
+                    continue;
+                }
+
+                if (pos + window >= end) {
+                    end = compact(in, buffer, pos, end);
+                    bufferOffset += pos;
+                    pos = 0;
+                    if (window >= end) {
+                        break;
+                    }
+                }
+                checksum.roll(buffer[pos], buffer[pos + window]);
+                pos++;
+            }
+        }
+    }
+
+    // Checks a weak hit against SHA-256 and records every chunk with that content
+    private boolean confirm(MessageDigest digest, byte[] buffer, int pos, int window, int weak,
+                            Map<Integer, List<ChunkInfo>> byWeak, long fileOffset, Map<Integer, Long> matches) {
+        digest.update(buffer, pos, window);
+        Hash hash = Hash.of(digest.digest());
+
+        List<ChunkInfo> candidates = byWeak.get(weak);
+        boolean found = candidates.removeIf(chunk -> {
+            if (!chunk.getHash().equals(hash)) {
+                return false;
+            }
+            matches.put(chunk.getIndex(), fileOffset);
+            return true;
+        });
+        if (candidates.isEmpty()) {
+            byWeak.remove(weak);
+        }
+        return found;
+    }
+
+    private static int tag(int weak) {
+        return (weak ^ (weak >>> 16)) & 0xFFFF;
+    }
+
+    // Moves the unread tail to the front of the buffer and refills it; returns the new end
+    private static int compact(InputStream in, byte[] buffer, int pos, int end) throws IOException {
+        System.arraycopy(buffer, pos, buffer, 0, end - pos);
+        return fill(in, buffer, end - pos);
+    }
+
+    private static int fill(InputStream in, byte[] buffer, int end) throws IOException {
+        while (end < buffer.length) {
+            int read = in.read(buffer, end, buffer.length - end);
+            if (read == -1) {
+                break;
+            }
+            end += read;
+        }
+        return end;
+    }
+}
@@ -0,0 +1,169 @@
+package com.p2p.chunking;
+
+import com.p2p.core.ChunkInfo;
+import com.p2p.core.ChunkingMode;
+import com.p2p.core.Hash;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+// Splits files at content-defined boundaries (FastCDC) so an insertion or deletion only changes the
+// chunks around the edit instead of shifting every later chunk
+public class FastCdcChunker implements Chunker {
+    private static final Logger logger = LoggerFactory.getLogger(FastCdcChunker.class);
+
+    public static final int DEFAULT_AVG_SIZE = 256 * 1024;
+
+    // Random 64-bit value per byte value; fixed so every peer finds the same boundaries
+    private static final long[] GEAR = new long[256];
+
+    static {
+        long state = 0x2545F4914F6CDD1DL;
+        for (int i = 0; i < GEAR.length; i++) {
+            state += 0x9E3779B97F4A7C15L;
+            long z = state;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    private final int minSize;
+    private final int avgSize;
+    private final int maxSize;
+
+    // Stricter mask before the average size and looser after it (normalized chunking)
+    private final long maskSmall;
+    private final long maskLarge;
+
+    public FastCdcChunker() {
+        this(DEFAULT_AVG_SIZE);
+    }
+
+    // Uses a quarter of the average as minimum and four times it as maximum chunk size
+    public FastCdcChunker(int avgSize) {
+        this(avgSize / 4, avgSize, avgSize * 4);
+    }
+
+    public FastCdcChunker(int minSize, int avgSize, int maxSize) {
+        if (Integer.bitCount(avgSize) != 1 || avgSize < 256) {
+            throw new IllegalArgumentException("Average chunk size must be a power of two of at least 256 bytes");
+        }
+        if (minSize <= 0 || minSize > avgSize || maxSize < avgSize) {
+            throw new IllegalArgumentException("Chunk sizes must satisfy 0 < min <= avg <= max");
+        }
+        this.minSize = minSize;
+        this.avgSize = avgSize;
+        this.maxSize = maxSize;
+
+        int bits = Integer.numberOfTrailingZeros(avgSize);
+        this.maskSmall = topBits(bits + 2);
+        this.maskLarge = topBits(bits - 2);
+    }
+
+    // Mask over the high bits of the gear fingerprint, which depend on the most recent 64 bytes
+    private static long topBits(int count) {
+        return -1L << (64 - count);
+    }
+
+    @Override
+    public List<ChunkInfo> chunkStream(InputStream in, long startOffset, int firstIndex) throws IOException {
+        logger.info("Chunking from offset {} (content-defined {}/{}/{} bytes)", startOffset, minSize, avgSize, maxSize);
+
+        List<ChunkInfo> chunks = new ArrayList<>();
+        MessageDigest digest = Hash.newDigest();
+
+        // Room for two maximum-size chunks so a full one is always available after a refill
+        byte[] buffer = new byte[maxSize * 2];
+        int start = 0;
+        int end = 0;
+        long offset = startOffset;
+        boolean eof = false;
+
+        while (true) {
+            if (!eof && end - start < maxSize) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+                while (end < buffer.length) {
+                    int read = in.read(buffer, end, buffer.length - end);
+                    if (read == -1) {
+                        eof = true;
+                        break;
+                    }
+                    end += read;
+                }
+            }
+            if (start == end) {
+                break;
+            }
+
+            int length = nextBoundary(buffer, start, end - start);
+            digest.update(buffer, start, length);
+            Hash hash = Hash.of(digest.digest());
+            int weakHash = RollingChecksum.of(buffer, start, length);
+            int index = firstIndex + chunks.size();
+            chunks.add(new ChunkInfo(index, offset, hash, weakHash, length));
+
+            logger.debug("Chunk {}: {} bytes at {}, hash: {}", index, length, offset,
+                    hash.toShortHex() + "...");
+            start += length;
+            offset += length;
+        }
+
+        logger.info("File chunked into {} pieces", chunks.size());
+        return chunks;
+    }
+
+    // Length of the chunk starting at data[offset], given that length bytes are available
+    public int nextBoundary(byte[] data, int offset, int length) {
+        if (length <= minSize) {
+            return length;
+        }
+        int limit = Math.min(length, maxSize);
+        int normal = Math.min(limit, avgSize);
+
+        long fingerprint = 0;
+        int i = minSize;
+        for (; i < normal; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[data[offset + i] & 0xFF];
+            if ((fingerprint & maskSmall) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < limit; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[data[offset + i] & 0xFF];
+            if ((fingerprint & maskLarge) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+
+    @Override
+    public int getChunkSize() {
+        return maxSize;
+    }
+
+    @Override
+    public ChunkingMode getMode() {
+        return ChunkingMode.FASTCDC;
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getAvgSize() {
+        return avgSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+}
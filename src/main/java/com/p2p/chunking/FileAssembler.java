@@ -1,5 +1,6 @@
 package com.p2p.chunking;
 
+import com.p2p.core.Hash;
 import com.p2p.core.Manifest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -7,8 +8,6 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 // Assembles downloaded chunks back into the original file
 public class FileAssembler {
@@ -25,8 +24,8 @@ public class FileAssembler {
         }
 
         for (int i = 0; i < chunks.length; i++) {
-            String expectedHash = manifest.getChunk(i).getHash();
-            String actualHash = calculateHash(chunks[i]);
+            Hash expectedHash = manifest.getChunk(i).getHash();
+            Hash actualHash = Hash.sha256(chunks[i]);
 
             if (!actualHash.equals(expectedHash)) {
                 throw new IllegalArgumentException(
@@ -55,24 +54,4 @@ public class FileAssembler {
             );
         }
     }
-
-    // Calculates SHA-256 hash of data
-    private String calculateHash(byte[] data) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] hash = digest.digest(data);
-            return bytesToHex(hash);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("SHA-256 not available", e);
-        }
-    }
-
-    // Converts bytes to hexadecimal string
-    private String bytesToHex(byte[] bytes) {
-        StringBuilder sb = new StringBuilder();
-        for (byte b : bytes) {
-            sb.append(String.format("%02x", b));
-        }
-        return sb.toString();
-    }
 }
@@ -1,19 +1,21 @@
 package com.p2p.chunking;
 
 import com.p2p.core.ChunkInfo;
+import com.p2p.core.ChunkingMode;
+import com.p2p.core.Hash;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.List;
 
 // Splits files into fixed-size chunks and generates hashes for each chunk
-public class FileChunker {
+public class FileChunker implements Chunker {
     private static final Logger logger = LoggerFactory.getLogger(FileChunker.class);
 
     // Default chunk size: 256 KiB
@@ -32,33 +34,28 @@ public class FileChunker {
         this.chunkSize = chunkSize;
     }
 
-    // Splits a file into chunks and returns metadata about each chunk
-    public List<ChunkInfo> chunkFile(File file) throws IOException {
-        if (!file.exists()) {
-            throw new IOException("File not found: " + file.getAbsolutePath());
+    // Splits a stream into chunks from a chunk-aligned offset and returns metadata about each chunk
+    @Override
+    public List<ChunkInfo> chunkStream(InputStream in, long offset, int firstIndex) throws IOException {
+        if (offset % chunkSize != 0 || offset != (long) firstIndex * chunkSize) {
+            throw new IllegalArgumentException("Offset must be the start of chunk " + firstIndex);
         }
 
-        if (!file.isFile()) {
-            throw new IOException("Not a file: " + file.getAbsolutePath());
-        }
-
-        logger.info("Chunking file: {} ({} bytes, chunk size: {} bytes)",
-                file.getName(), file.length(), chunkSize);
+        logger.info("Chunking from offset {} (chunk size: {} bytes)", offset, chunkSize);
 
         List<ChunkInfo> chunks = new ArrayList<>();
         byte[] buffer = new byte[chunkSize];
-        int chunkIndex = 0;
+        int chunkIndex = firstIndex;
 
-        try (FileInputStream fis = new FileInputStream(file)) {
-            int bytesRead;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                String hash = calculateHash(buffer, bytesRead);
-                ChunkInfo chunkInfo = new ChunkInfo(chunkIndex, hash, bytesRead);
-                chunks.add(chunkInfo);
+        int bytesRead;
+        while ((bytesRead = in.readNBytes(buffer, 0, chunkSize)) > 0) {
+            Hash hash = Hash.sha256(buffer, 0, bytesRead);
+            int weakHash = RollingChecksum.of(buffer, 0, bytesRead);
+            ChunkInfo chunkInfo = new ChunkInfo(chunkIndex, (long) chunkIndex * chunkSize, hash, weakHash, bytesRead);
+            chunks.add(chunkInfo);
 
-                logger.debug("Chunk {}: {} bytes, hash: {}", chunkIndex, bytesRead, hash.substring(0, 8) + "...");
-                chunkIndex++;
-            }
+            logger.debug("Chunk {}: {} bytes, hash: {}", chunkIndex, bytesRead, hash.toShortHex() + "...");
+            chunkIndex++;
         }
 
         logger.info("File chunked into {} pieces", chunks.size());
@@ -77,51 +74,34 @@ public class FileChunker {
             throw new IllegalArgumentException("Chunk index out of bounds");
         }
 
-        try (FileInputStream fis = new FileInputStream(file)) {
-            long skipped = fis.skip(offset);
-            if (skipped != offset) {
-                throw new IOException("Failed to skip to chunk position");
-            }
-
-            byte[] buffer = new byte[chunkSize];
-            int bytesRead = fis.read(buffer);
+        return readChunk(file, offset, (int) Math.min(chunkSize, file.length() - offset));
+    }
 
-            if (bytesRead == -1) {
-                throw new IOException("Failed to read chunk");
+    // Reads a chunk at an explicit offset, as recorded for variable-size chunks
+    public static byte[] readChunk(File file, long offset, int size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (offset < 0 || offset + size > raf.length()) {
+                throw new IllegalArgumentException("Chunk range out of bounds");
             }
-
-            byte[] chunk = new byte[bytesRead];
-            System.arraycopy(buffer, 0, chunk, 0, bytesRead);
+            byte[] chunk = new byte[size];
+            raf.seek(offset);
+            raf.readFully(chunk);
             return chunk;
         }
     }
 
-    // Calculates SHA-256 hash of data
-    private String calculateHash(byte[] data, int length) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] hash = digest.digest(java.util.Arrays.copyOf(data, length));
-            return bytesToHex(hash);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("SHA-256 not available", e);
-        }
-    }
-
-    // Converts bytes to hexadecimal string
-    private String bytesToHex(byte[] bytes) {
-        StringBuilder sb = new StringBuilder();
-        for (byte b : bytes) {
-            sb.append(String.format("%02x", b));
-        }
-        return sb.toString();
-    }
-
     // Calculates the number of chunks for a file of given size
     public int calculateChunkCount(long fileSize) {
         return (int) ((fileSize + chunkSize - 1) / chunkSize);
     }
 
+    @Override
     public int getChunkSize() {
         return chunkSize;
     }
+
+    @Override
+    public ChunkingMode getMode() {
+        return ChunkingMode.FIXED;
+    }
 }
@@ -1,67 +1,261 @@
 package com.p2p.chunking;
 
 import com.p2p.core.ChunkInfo;
+import com.p2p.core.ChunkingMode;
+import com.p2p.core.FileEntry;
+import com.p2p.core.Hash;
 import com.p2p.core.Manifest;
+import com.p2p.core.ManifestOutline;
+import com.p2p.core.MerkleTree;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Enumeration;
 import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 // Generates manifests for files
 public class ManifestGenerator {
     private static final Logger logger = LoggerFactory.getLogger(ManifestGenerator.class);
 
-    private final FileChunker chunker;
+    // Chunk sizes picked per file double from the default until the file has at most this many chunks
+    private static final long TARGET_CHUNKS = 16384;
+
+    // Largest chunk a picked size produces; transfers stream chunks above their block size, so this bounds
+    // the hashing buffers and how much a failed chunk costs to fetch again
+    public static final int MAX_AUTO_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    // Chunker used for every file, or null to pick a chunk size per file
+    private final Chunker chunker;
+    private final ChunkingMode mode;
+
+    // Whether file IDs commit to a Merkle root, so downloads can fetch the chunk list in segments
+    private final boolean merkle;
 
     public ManifestGenerator() {
-        this.chunker = new FileChunker();
+        this(new FileChunker());
+    }
+
+    public ManifestGenerator(Chunker chunker) {
+        this(chunker, false);
     }
 
-    public ManifestGenerator(FileChunker chunker) {
+    public ManifestGenerator(Chunker chunker, boolean merkle) {
         this.chunker = chunker;
+        this.mode = chunker.getMode();
+        this.merkle = merkle;
+    }
+
+    // Picks the chunk size of each file from its size
+    public ManifestGenerator(ChunkingMode mode, boolean merkle) {
+        this.chunker = null;
+        this.mode = mode;
+        this.merkle = merkle;
+    }
+
+    // Chunker for a file or collection of the given total size
+    public Chunker chunkerFor(long size) {
+        return chunker != null ? chunker : createChunker(mode, chunkSizeFor(mode, size));
+    }
+
+    // Fixed chunk size, or average size for FASTCDC, that keeps a file of the given size near TARGET_CHUNKS
+    // chunks. Files up to 4 GiB keep the default size, so their file IDs do not change.
+    public static int chunkSizeFor(ChunkingMode mode, long size) {
+        boolean cdc = mode == ChunkingMode.FASTCDC;
+        int chunkSize = cdc ? FastCdcChunker.DEFAULT_AVG_SIZE : FileChunker.DEFAULT_CHUNK_SIZE;
+        int largest = cdc ? MAX_AUTO_CHUNK_SIZE / 4 : MAX_AUTO_CHUNK_SIZE;
+        while (chunkSize < largest && size / chunkSize > TARGET_CHUNKS) {
+            chunkSize *= 2;
+        }
+        return chunkSize;
+    }
+
+    public static Chunker createChunker(ChunkingMode mode, int chunkSize) {
+        return mode == ChunkingMode.FASTCDC ? new FastCdcChunker(chunkSize) : new FileChunker(chunkSize);
+    }
+
+    public boolean isMerkle() {
+        return merkle;
     }
 
     // Generates a manifest for a file
     public Manifest generateManifest(File file) throws IOException {
         logger.info("Generating manifest for file: {}", file.getName());
+        Chunker chunker = chunkerFor(file.length());
+        return buildManifest(file, chunker, chunker.chunkFile(file));
+    }
+
+    // Generates a manifest for a file that only grew since the previous manifest: every chunk but the
+    // last is kept and hashing resumes at the old last chunk, whose boundary may move
+    public Manifest extendManifest(File file, Manifest previous) throws IOException {
+        int keep = previous.getChunkCount() - 1;
+        if (keep < 0) {
+            return generateManifest(file);
+        }
+        logger.info("Extending manifest for file: {} from chunk {}", file.getName(), keep);
+
+        Chunker chunker = chunkerFor(file.length());
+        if (chunker.getMode() != previous.getChunking() || chunker.getChunkSize() != previous.getChunkSize()) {
+            return generateManifest(file);
+        }
+        List<ChunkInfo> chunks = new ArrayList<>(previous.getChunks().subList(0, keep));
+        chunks.addAll(chunker.chunkFile(file, previous.getChunkOffset(keep), keep));
+        return buildManifest(file, chunker, chunks);
+    }
 
-        List<ChunkInfo> chunks = chunker.chunkFile(file);
-        String fileId = generateFileId(file, chunks);
+    // Generates one manifest for every regular file below a directory. The files are chunked as a single
+    // byte range in path order, so small files share full-size chunks instead of each getting its own.
+    public Manifest generateCollectionManifest(File directory) throws IOException {
+        logger.info("Generating collection manifest for directory: {}", directory.getName());
+
+        Path root = directory.toPath().toAbsolutePath().normalize();
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(root)) {
+            paths = walk.filter(path -> Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS))
+                    .sorted(Comparator.comparing(path -> relativePath(root, path)))
+                    .collect(Collectors.toList());
+        }
 
-        Manifest manifest = new Manifest(
-                fileId,
-                file.getName(),
-                file.length(),
-                chunker.getChunkSize(),
-                chunks
-        );
+        List<FileEntry> files = new ArrayList<>(paths.size());
+        long totalSize = 0;
+        for (Path path : paths) {
+            long size = Files.size(path);
+            files.add(new FileEntry(relativePath(root, path), totalSize, size));
+            totalSize += size;
+        }
+
+        Chunker chunker = chunkerFor(totalSize);
+        List<ChunkInfo> chunks;
+        try (InputStream in = new SequenceInputStream(new CollectionFiles(paths, files))) {
+            chunks = chunker.chunkStream(in, 0, 0);
+        }
+
+        Manifest manifest = createManifest(directory.getName(), totalSize, chunker, chunks, files);
+        String fileId = manifest.getFileId();
+
+        logger.info("Collection manifest generated: fileId={}, files={}, chunks={}",
+                fileId.substring(0, 8) + "...", files.size(), chunks.size());
+        return manifest;
+    }
+
+    private static String relativePath(Path root, Path path) {
+        return root.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    private Manifest buildManifest(File file, Chunker chunker, List<ChunkInfo> chunks) {
+        Manifest manifest = createManifest(file.getName(), file.length(), chunker, chunks, null);
 
         logger.info("Manifest generated: fileId={}, chunks={}",
-                fileId.substring(0, 8) + "...", chunks.size());
+                manifest.getFileId().substring(0, 8) + "...", chunks.size());
 
         return manifest;
     }
 
-    // Generates a unique file ID based on file metadata and chunk hashes
-    private String generateFileId(File file, List<ChunkInfo> chunks) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+    private Manifest createManifest(String name, long size, Chunker chunker, List<ChunkInfo> chunks,
+                                    List<FileEntry> files) {
+        if (!merkle) {
+            return new Manifest(generateFileId(name, size, chunks, files), name, size, chunker.getChunkSize(),
+                    chunker.getMode(), chunks, files);
+        }
+        Hash root = MerkleTree.root(MerkleTree.segmentRoots(chunks));
+        String fileId = ManifestOutline.fileId(name, size, chunker.getChunkSize(), chunker.getMode(), chunks.size(),
+                root, files);
+        return new Manifest(fileId, name, size, chunker.getChunkSize(), chunker.getMode(), chunks, files, root);
+    }
+
+    // Generates a unique file ID based on file metadata, chunk hashes and, for collections, the file list
+    private String generateFileId(String name, long size, List<ChunkInfo> chunks, List<FileEntry> files) {
+        MessageDigest digest = Hash.newDigest();
+
+        digest.update(name.getBytes());
+        digest.update(longToBytes(size));
+
+        // Hashes the hex form, as before the compact hash type, so file IDs stay the same
+        for (ChunkInfo chunk : chunks) {
+            digest.update(chunk.getHash().toHex().getBytes(StandardCharsets.US_ASCII));
+        }
+
+        if (files != null) {
+            for (FileEntry entry : files) {
+                digest.update(entry.getPath().getBytes(StandardCharsets.UTF_8));
+                digest.update(longToBytes(entry.getSize()));
+            }
+        }
+
+        return Hash.toHex(digest.digest());
+    }
+
+    // Opens the files of a collection one after another, each limited to the size recorded in the manifest
+    private static class CollectionFiles implements Enumeration<InputStream> {
+        private final List<Path> paths;
+        private final List<FileEntry> entries;
+        private int next;
 
-            digest.update(file.getName().getBytes());
-            digest.update(longToBytes(file.length()));
+        private CollectionFiles(List<Path> paths, List<FileEntry> entries) {
+            this.paths = paths;
+            this.entries = entries;
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            return next < paths.size();
+        }
 
-            for (ChunkInfo chunk : chunks) {
-                digest.update(chunk.getHash().getBytes());
+        @Override
+        public InputStream nextElement() {
+            Path path = paths.get(next);
+            long size = entries.get(next).getSize();
+            next++;
+            try {
+                return new ExactLengthInputStream(Files.newInputStream(path), size, path);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
+        }
+    }
+
+    // Fails instead of silently producing a wrong manifest when a file changes size while being hashed
+    private static class ExactLengthInputStream extends FilterInputStream {
+        private final Path path;
+        private long remaining;
+
+        private ExactLengthInputStream(InputStream in, long size, Path path) {
+            super(in);
+            this.remaining = size;
+            this.path = path;
+        }
 
-            byte[] hash = digest.digest();
-            return bytesToHex(hash);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("SHA-256 not available", e);
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read == -1) {
+                throw new IOException("File shrank while hashing: " + path);
+            }
+            remaining -= read;
+            return read;
         }
     }
 
@@ -74,13 +268,4 @@ public class ManifestGenerator {
         }
         return result;
     }
-
-    // Converts bytes to hexadecimal string
-    private String bytesToHex(byte[] bytes) {
-        StringBuilder sb = new StringBuilder();
-        for (byte b : bytes) {
-            sb.append(String.format("%02x", b));
-        }
-        return sb.toString();
-    }
 }
@@ -0,0 +1,47 @@
+package com.p2p.chunking;
+
+// rsync-style weak checksum over a fixed-size window that can slide one byte at a time in O(1)
+public class RollingChecksum {
+    private final int window;
+    private int a;
+    private int b;
+
+    public RollingChecksum(int window) {
+        this.window = window;
+    }
+
+    // Weak checksum of a whole block, as recorded in ChunkInfo
+    public static int of(byte[] data, int offset, int length) {
+        RollingChecksum checksum = new RollingChecksum(length);
+        checksum.reset(data, offset);
+        return checksum.value();
+    }
+
+    // Starts over with the window at data[offset, offset + window)
+    public void reset(byte[] data, int offset) {
+        int sumA = 0;
+        int sumB = 0;
+        for (int i = 0; i < window; i++) {
+            int value = data[offset + i] & 0xFF;
+            sumA += value;
+            sumB += (window - i) * value;
+        }
+        a = sumA & 0xFFFF;
+        b = sumB & 0xFFFF;
+    }
+
+    // Slides the window one byte forward, dropping out and appending in
+    public void roll(byte out, byte in) {
+        int outValue = out & 0xFF;
+        a = (a - outValue + (in & 0xFF)) & 0xFFFF;
+        b = (b - window * outValue + a) & 0xFFFF;
+    }
+
+    public int value() {
+        return (b << 16) | a;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+}
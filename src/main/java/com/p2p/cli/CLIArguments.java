@@ -1,31 +1,164 @@
 package com.p2p.cli;
 
+import com.p2p.core.ChunkingMode;
+import com.p2p.network.NetworkConfig;
+import com.p2p.network.Transport;
 import lombok.Data;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
 // Holds parsed command-line arguments
 @Data
 public class CLIArguments {
+    // Largest chunk that still fits a CHUNK_RESPONSE frame once Base64-encoded, for peers that do not take blocks
+    private static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
     private Mode mode;
     private int port = 6881;
     private String seedFile;
     private String downloadFileId;
     private String bootstrap;
+    private String basisFile;
+    private int readIdleSeconds = 60;
+    private int writeIdleSeconds = 15;
+    private Transport.Type transport = Transport.Type.AUTO;
+    private int bossThreads = 1;
+    private int workerThreads = 0;
+    private int verifyThreads = 0;
+    private int sendBufferSize = 0;
+    private int receiveBufferSize = 0;
+    private int notSentLowat = 0;
+    private int uploadSlots = 4;
+    private long uploadLimit = 0;
+    private long downloadLimit = 0;
+    private long peerUploadLimit = 0;
+    private long peerDownloadLimit = 0;
+    private long fileUploadLimit = 0;
+    private long fileDownloadLimit = 0;
+    private long memoryBudget = 256L * 1024 * 1024;
+    private int metricsPort = 0;
+    private int maxPeers = 8;
+    private int requestsPerPeer = 4;
+    private int emulatedLatencyMillis = 0;
+    private int emulatedJitterMillis = 0;
+    private long emulatedBandwidth = 0;
+    private double emulatedLossPercent = 0;
+    private boolean binaryMessages = true;
+    private boolean compression = true;
+    private long compressionCacheSize = 32L * 1024 * 1024;
+    private int blockSize = 1024 * 1024;
+    private ChunkingMode chunking = ChunkingMode.FIXED;
+    private int chunkSize = 0;
+    private boolean merkle = false;
+    private boolean rehash = false;
+    private List<String> seedDirectories = new ArrayList<>();
+    private int hashThreads = 2;
+    private int controlPort = 0;
+    private int maxActive = 4;
 
     public enum Mode {
         SEED,
-        DOWNLOAD
+        DOWNLOAD,
+        DAEMON
     }
 
     // Validates that required arguments are present for the selected mode
     public void validate() throws IllegalArgumentException {
+        // A control API alone keeps the peer running to take downloads at runtime
+        if (mode == null && controlPort > 0) {
+            mode = Mode.DAEMON;
+        }
+
         if (mode == null) {
-            throw new IllegalArgumentException("Mode must be specified (--seed or --download)");
+            throw new IllegalArgumentException("Mode must be specified (--seed, --download, --daemon or --control-port)");
         }
 
         if (port < 1024 || port > 65535) {
             throw new IllegalArgumentException("Port must be between 1024 and 65535");
         }
 
+        if (readIdleSeconds < 0 || writeIdleSeconds < 0) {
+            throw new IllegalArgumentException("Idle timeouts must not be negative");
+        }
+
+        if (readIdleSeconds > 0 && writeIdleSeconds >= readIdleSeconds) {
+            throw new IllegalArgumentException("--write-idle must be shorter than --read-idle so heartbeats keep connections alive");
+        }
+
+        if (bossThreads < 1 || workerThreads < 0) {
+            throw new IllegalArgumentException("--boss-threads must be at least 1 and --worker-threads not negative");
+        }
+
+        if (verifyThreads < 0) {
+            throw new IllegalArgumentException("--verify-threads must not be negative");
+        }
+
+        if (sendBufferSize < 0 || receiveBufferSize < 0 || notSentLowat < 0) {
+            throw new IllegalArgumentException("Socket buffer sizes must not be negative");
+        }
+
+        if (uploadSlots < 1) {
+            throw new IllegalArgumentException("--upload-slots must be at least 1");
+        }
+
+        if (uploadLimit < 0 || downloadLimit < 0 || peerUploadLimit < 0 || peerDownloadLimit < 0
+                || fileUploadLimit < 0 || fileDownloadLimit < 0) {
+            throw new IllegalArgumentException("Bandwidth limits must not be negative");
+        }
+
+        if (metricsPort < 0 || metricsPort > 65535) {
+            throw new IllegalArgumentException("Invalid metrics port: " + metricsPort);
+        }
+
+        if (memoryBudget < 0) {
+            throw new IllegalArgumentException("--memory-budget must not be negative");
+        }
+
+        if (maxPeers < 1 || requestsPerPeer < 1) {
+            throw new IllegalArgumentException("--max-peers and --requests-per-peer must be at least 1");
+        }
+
+        if (emulatedLatencyMillis < 0 || emulatedJitterMillis < 0 || emulatedBandwidth < 0) {
+            throw new IllegalArgumentException("Emulated latency, jitter and bandwidth must not be negative");
+        }
+
+        if (emulatedLossPercent < 0 || emulatedLossPercent >= 100) {
+            throw new IllegalArgumentException("--emulate-loss must be a percentage from 0 to below 100");
+        }
+
+        if (compressionCacheSize < 0) {
+            throw new IllegalArgumentException("--compression-cache must not be negative");
+        }
+
+        if (blockSize != 0 && (blockSize < NetworkConfig.MIN_BLOCK_SIZE || blockSize > NetworkConfig.MAX_BLOCK_SIZE)) {
+            throw new IllegalArgumentException("--block-size must be 0 or from 16K to 16M");
+        }
+
+        if (chunkSize != 0) {
+            int largestChunk = chunking == ChunkingMode.FASTCDC ? chunkSize * 4 : chunkSize;
+            if (chunkSize < 4096 || largestChunk > MAX_CHUNK_SIZE) {
+                throw new IllegalArgumentException("--chunk-size must be at least 4K and chunks at most 16M"
+                        + (chunking == ChunkingMode.FASTCDC ? " (four times the average for fastcdc)" : ""));
+            }
+            if (chunking == ChunkingMode.FASTCDC && Integer.bitCount(chunkSize) != 1) {
+                throw new IllegalArgumentException("--chunk-size must be a power of two for fastcdc");
+            }
+        }
+
+        if (hashThreads < 1) {
+            throw new IllegalArgumentException("--hash-threads must be at least 1");
+        }
+
+        if (controlPort < 0 || controlPort > 65535 || (controlPort > 0 && controlPort == port)) {
+            throw new IllegalArgumentException("--control-port must be a free port other than --port");
+        }
+
+        if (maxActive < 1) {
+            throw new IllegalArgumentException("--max-active must be at least 1");
+        }
+
         if (mode == Mode.SEED) {
             if (seedFile == null || seedFile.isEmpty()) {
                 throw new IllegalArgumentException("Seed mode requires --seed <filepath>");
@@ -37,6 +170,15 @@ public class CLIArguments {
             if (bootstrap == null || bootstrap.isEmpty()) {
                 throw new IllegalArgumentException("Download mode requires --bootstrap <host:port>");
             }
+            if (basisFile != null && !new File(basisFile).isFile()) {
+                throw new IllegalArgumentException("Basis file not found: " + basisFile);
+            }
+        } else if (mode == Mode.DAEMON) {
+            for (String directory : seedDirectories) {
+                if (!new File(directory).isDirectory()) {
+                    throw new IllegalArgumentException("Not a directory: " + directory);
+                }
+            }
         }
     }
 }
@@ -1,5 +1,8 @@
 package com.p2p.cli;
 
+import com.p2p.core.ChunkingMode;
+import com.p2p.network.Transport;
+
 // Parses command-line arguments into a CLIArguments object
 public class CLIParser {
 
@@ -26,6 +29,14 @@ public class CLIParser {
                     cliArgs.setDownloadFileId(args[++i]);
                     break;
 
+                case "--daemon":
+                    if (i + 1 >= args.length) {
+                        throw new IllegalArgumentException("--daemon requires a directory");
+                    }
+                    cliArgs.setMode(CLIArguments.Mode.DAEMON);
+                    cliArgs.getSeedDirectories().add(args[++i]);
+                    break;
+
                 case "--port":
                     if (i + 1 >= args.length) {
                         throw new IllegalArgumentException("--port requires a port number");
@@ -44,6 +55,174 @@ public class CLIParser {
                     cliArgs.setBootstrap(args[++i]);
                     break;
 
+                case "--basis":
+                    if (i + 1 >= args.length) {
+                        throw new IllegalArgumentException("--basis requires a file path");
+                    }
+                    cliArgs.setBasisFile(args[++i]);
+                    break;
+
+                case "--read-idle":
+                    cliArgs.setReadIdleSeconds(parseInt(args, ++i, "--read-idle requires a number of seconds"));
+                    break;
+
+                case "--write-idle":
+                    cliArgs.setWriteIdleSeconds(parseInt(args, ++i, "--write-idle requires a number of seconds"));
+                    break;
+
+                case "--transport":
+                    if (i + 1 >= args.length) {
+                        throw new IllegalArgumentException("--transport requires auto, nio or epoll");
+                    }
+                    try {
+                        cliArgs.setTransport(Transport.Type.valueOf(args[++i].toUpperCase()));
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("Invalid transport: " + args[i]);
+                    }
+                    break;
+
+                case "--boss-threads":
+                    cliArgs.setBossThreads(parseInt(args, ++i, "--boss-threads requires a thread count"));
+                    break;
+
+                case "--worker-threads":
+                    cliArgs.setWorkerThreads(parseInt(args, ++i, "--worker-threads requires a thread count"));
+                    break;
+
+                case "--verify-threads":
+                    cliArgs.setVerifyThreads(parseInt(args, ++i, "--verify-threads requires a thread count"));
+                    break;
+
+                case "--sndbuf":
+                    cliArgs.setSendBufferSize(parseIntSize(args, ++i, "--sndbuf requires a size"));
+                    break;
+
+                case "--rcvbuf":
+                    cliArgs.setReceiveBufferSize(parseIntSize(args, ++i, "--rcvbuf requires a size"));
+                    break;
+
+                case "--notsent-lowat":
+                    cliArgs.setNotSentLowat(parseIntSize(args, ++i, "--notsent-lowat requires a size"));
+                    break;
+
+                case "--upload-slots":
+                    cliArgs.setUploadSlots(parseInt(args, ++i, "--upload-slots requires a slot count"));
+                    break;
+
+                case "--upload-limit":
+                    cliArgs.setUploadLimit(parseSize(args, ++i, "--upload-limit requires bytes per second"));
+                    break;
+
+                case "--download-limit":
+                    cliArgs.setDownloadLimit(parseSize(args, ++i, "--download-limit requires bytes per second"));
+                    break;
+
+                case "--peer-upload-limit":
+                    cliArgs.setPeerUploadLimit(parseSize(args, ++i, "--peer-upload-limit requires bytes per second"));
+                    break;
+
+                case "--peer-download-limit":
+                    cliArgs.setPeerDownloadLimit(parseSize(args, ++i, "--peer-download-limit requires bytes per second"));
+                    break;
+
+                case "--file-upload-limit":
+                    cliArgs.setFileUploadLimit(parseSize(args, ++i, "--file-upload-limit requires bytes per second"));
+                    break;
+
+                case "--file-download-limit":
+                    cliArgs.setFileDownloadLimit(parseSize(args, ++i, "--file-download-limit requires bytes per second"));
+                    break;
+
+                case "--metrics-port":
+                    cliArgs.setMetricsPort(parseInt(args, ++i, "--metrics-port requires a port number"));
+                    break;
+
+                case "--memory-budget":
+                    cliArgs.setMemoryBudget(parseSize(args, ++i, "--memory-budget requires a size"));
+                    break;
+
+                case "--max-peers":
+                    cliArgs.setMaxPeers(parseInt(args, ++i, "--max-peers requires a peer count"));
+                    break;
+
+                case "--requests-per-peer":
+                    cliArgs.setRequestsPerPeer(parseInt(args, ++i, "--requests-per-peer requires a request count"));
+                    break;
+
+                case "--emulate-latency":
+                    cliArgs.setEmulatedLatencyMillis(parseInt(args, ++i, "--emulate-latency requires milliseconds"));
+                    break;
+
+                case "--emulate-jitter":
+                    cliArgs.setEmulatedJitterMillis(parseInt(args, ++i, "--emulate-jitter requires milliseconds"));
+                    break;
+
+                case "--emulate-bandwidth":
+                    cliArgs.setEmulatedBandwidth(parseSize(args, ++i, "--emulate-bandwidth requires a rate"));
+                    break;
+
+                case "--emulate-loss":
+                    if (i + 1 >= args.length) {
+                        throw new IllegalArgumentException("--emulate-loss requires a percentage");
+                    }
+                    try {
+                        cliArgs.setEmulatedLossPercent(Double.parseDouble(args[++i]));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid percentage: " + args[i]);
+                    }
+                    break;
+
+                case "--json-messages":
+                    cliArgs.setBinaryMessages(false);
+                    break;
+
+                case "--no-compression":
+                    cliArgs.setCompression(false);
+                    break;
+
+                case "--compression-cache":
+                    cliArgs.setCompressionCacheSize(parseSize(args, ++i, "--compression-cache requires a size"));
+                    break;
+
+                case "--block-size":
+                    cliArgs.setBlockSize(parseIntSize(args, ++i, "--block-size requires a size"));
+                    break;
+
+                case "--chunking":
+                    if (i + 1 >= args.length) {
+                        throw new IllegalArgumentException("--chunking requires fixed or fastcdc");
+                    }
+                    try {
+                        cliArgs.setChunking(ChunkingMode.valueOf(args[++i].toUpperCase()));
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("Invalid chunking mode: " + args[i]);
+                    }
+                    break;
+
+                case "--chunk-size":
+                    cliArgs.setChunkSize(parseIntSize(args, ++i, "--chunk-size requires a size"));
+                    break;
+
+                case "--merkle":
+                    cliArgs.setMerkle(true);
+                    break;
+
+                case "--rehash":
+                    cliArgs.setRehash(true);
+                    break;
+
+                case "--control-port":
+                    cliArgs.setControlPort(parseInt(args, ++i, "--control-port requires a port number"));
+                    break;
+
+                case "--max-active":
+                    cliArgs.setMaxActive(parseInt(args, ++i, "--max-active requires a transfer count"));
+                    break;
+
+                case "--hash-threads":
+                    cliArgs.setHashThreads(parseInt(args, ++i, "--hash-threads requires a thread count"));
+                    break;
+
                 case "--help":
                 case "-h":
                     printUsage();
@@ -59,6 +238,58 @@ public class CLIParser {
         return cliArgs;
     }
 
+    // Parses the integer value at the given position
+    private static int parseInt(String[] args, int index, String missingMessage) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException(missingMessage);
+        }
+        try {
+            return Integer.parseInt(args[index]);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number: " + args[index]);
+        }
+    }
+
+    // Parses the byte size at the given position
+    private static long parseSize(String[] args, int index, String missingMessage) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException(missingMessage);
+        }
+        return parseSize(args[index]);
+    }
+
+    // Parses a byte size at the given position that has to fit an int, e.g. a socket option
+    private static int parseIntSize(String[] args, int index, String missingMessage) {
+        long size = parseSize(args, index, missingMessage);
+        try {
+            return Math.toIntExact(size);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Size too large: " + args[index] + " (at most " + Integer.MAX_VALUE
+                    + " bytes)");
+        }
+    }
+
+    // Parses a byte size with an optional K, M or G suffix (e.g. 256K, 4M)
+    public static long parseSize(String text) {
+        String value = text.trim().toUpperCase();
+        long multiplier = 1;
+        if (value.endsWith("K")) {
+            multiplier = 1024L;
+        } else if (value.endsWith("M")) {
+            multiplier = 1024L * 1024;
+        } else if (value.endsWith("G")) {
+            multiplier = 1024L * 1024 * 1024;
+        }
+        if (multiplier > 1) {
+            value = value.substring(0, value.length() - 1);
+        }
+        try {
+            return Math.multiplyExact(Long.parseLong(value), multiplier);
+        } catch (NumberFormatException | ArithmeticException e) {
+            throw new IllegalArgumentException("Invalid size: " + text);
+        }
+    }
+
     private static void printUsage() {
         System.out.println("P2P File Sharing Network - Usage:");
         System.out.println();
@@ -68,11 +299,53 @@ public class CLIParser {
         System.out.println("Download a file:");
         System.out.println("  java -jar peer.jar --download <fileId> --bootstrap <host:port> --port <port>");
         System.out.println();
+        System.out.println("Seed every file in directories and follow changes:");
+        System.out.println("  java -jar peer.jar --daemon <dir> [--daemon <dir> ...] --port <port> [--bootstrap <host:port>]");
+        System.out.println();
+        System.out.println("Run a long-lived peer controlled over HTTP on localhost:");
+        System.out.println("  java -jar peer.jar --control-port <port> --port <port> [--daemon <dir> ...]");
+        System.out.println("  Requests need \"Authorization: Bearer <token>\" with the token from ./control-token");
+        System.out.println();
         System.out.println("Arguments:");
-        System.out.println("  --seed <filepath>       : Path to file to share");
+        System.out.println("  --seed <path>           : Path to file, or directory shared as one collection");
         System.out.println("  --download <fileId>     : File ID to download");
+        System.out.println("  --daemon <dir>          : Seed each file below the directory, watching for changes (repeatable)");
         System.out.println("  --port <port>           : Port to listen on (default: 6881)");
         System.out.println("  --bootstrap <host:port> : Bootstrap peer address");
+        System.out.println("  --basis <filepath>      : Older local version of the download; matching blocks are copied, not fetched");
+        System.out.println("  --read-idle <seconds>   : Close connections silent for this long (default: 60, 0 = off)");
+        System.out.println("  --write-idle <seconds>  : Send heartbeats after this long without writes (default: 15, 0 = off)");
+        System.out.println("  --transport <type>      : auto, nio or epoll (default: auto, falls back to nio)");
+        System.out.println("  --boss-threads <n>      : Acceptor threads, one SO_REUSEPORT listener each on epoll (default: 1)");
+        System.out.println("  --worker-threads <n>    : I/O worker threads (default: 0 = 2 * cores)");
+        System.out.println("  --verify-threads <n>    : Threads hashing and storing received chunks (default: 0 = one per core)");
+        System.out.println("  --sndbuf <size>         : Socket send buffer, e.g. 512K (default: OS)");
+        System.out.println("  --rcvbuf <size>         : Socket receive buffer, e.g. 512K (default: OS)");
+        System.out.println("  --notsent-lowat <size>  : TCP_NOTSENT_LOWAT on epoll, e.g. 128K (default: off)");
+        System.out.println("  --upload-slots <n>      : Concurrent chunk uploads shared fairly between peers (default: 4)");
+        System.out.println("  --upload-limit <rate>   : Total upload bytes/s, e.g. 10M (default: unlimited)");
+        System.out.println("  --download-limit <rate> : Total download bytes/s (default: unlimited)");
+        System.out.println("  --peer-upload-limit <rate>, --peer-download-limit <rate> : Per-peer bytes/s");
+        System.out.println("  --file-upload-limit <rate>, --file-download-limit <rate> : Per-file bytes/s");
+        System.out.println("  --metrics-port <port>   : Serve Prometheus metrics on 127.0.0.1:<port>/metrics (default: off)");
+        System.out.println("  --memory-budget <size>  : Chunk data all transfers may hold in memory at once (default: 256M, 0 = unlimited)");
+        System.out.println("  --max-peers <n>         : Providers one download is spread across (default: 8)");
+        System.out.println("  --requests-per-peer <n> : Chunk requests in flight per provider (default: 4)");
+        System.out.println("  --emulate-latency <ms>  : Delay everything this peer sends, to test WAN behavior locally (default: off)");
+        System.out.println("  --emulate-jitter <ms>   : Random extra delay of up to this much per write (default: off)");
+        System.out.println("  --emulate-bandwidth <rate> : Cap each connection's sending rate, e.g. 1M (default: off)");
+        System.out.println("  --emulate-loss <percent>: Lost segments, each stalling the connection for 200 ms (default: off)");
+        System.out.println("  --json-messages         : Send every message as JSON, e.g. to read captures (default: binary when both peers support it)");
+        System.out.println("  --no-compression        : Neither send nor accept compressed chunks (default: deflate when both peers support it)");
+        System.out.println("  --compression-cache <size> : Compressed chunks kept for repeated uploads (default: 32M, 0 = none)");
+        System.out.println("  --block-size <size>     : Stream larger chunks in blocks of this size (default: 1M, 0 = whole chunks)");
+        System.out.println("  --chunking <mode>       : fixed or fastcdc (content-defined) chunk boundaries when seeding (default: fixed)");
+        System.out.println("  --chunk-size <size>     : Chunk size, or average size for fastcdc (default: picked per file, 256K up to 16M)");
+        System.out.println("  --merkle                : Seed Merkle manifests, whose chunk lists downloads fetch in segments (default: flat)");
+        System.out.println("  --rehash                : Hash seeded files again instead of trusting the hash cache");
+        System.out.println("  --hash-threads <n>      : Files hashed at once in daemon mode (default: 2)");
+        System.out.println("  --control-port <port>   : Serve the control API on 127.0.0.1 (daemon mode; default: off)");
+        System.out.println("  --max-active <n>        : Downloads started through the control API that run at once (default: 4)");
         System.out.println("  --help, -h              : Show this help message");
         System.out.println();
         System.out.println("Examples:");
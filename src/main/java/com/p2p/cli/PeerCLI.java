@@ -1,17 +1,27 @@
 package com.p2p.cli;
 
-import com.p2p.chunking.FileChunker;
 import com.p2p.chunking.ManifestGenerator;
+import com.p2p.control.ControlServer;
+import com.p2p.control.TransferService;
 import com.p2p.core.Manifest;
+import com.p2p.daemon.SeedDaemon;
 import com.p2p.network.DownloadManager;
+import com.p2p.network.NetworkConfig;
 import com.p2p.network.PeerServer;
 import com.p2p.storage.ChunkStorage;
+import com.p2p.storage.FileIndexer;
 import com.p2p.storage.ManifestStorage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 // Main entry point for the P2P file sharing application
 public class PeerCLI {
@@ -26,6 +36,8 @@ public class PeerCLI {
 
             if (cliArgs.getMode() == CLIArguments.Mode.SEED) {
                 runSeedMode(cliArgs);
+            } else if (cliArgs.getMode() == CLIArguments.Mode.DAEMON) {
+                runDaemonMode(cliArgs);
             } else {
                 runDownloadMode(cliArgs);
             }
@@ -42,7 +54,7 @@ public class PeerCLI {
         }
     }
 
-    // Runs in SEED mode: shares a file with the network
+    // Runs in SEED mode: shares a file, or a directory as one collection, with the network
     private static void runSeedMode(CLIArguments args) throws Exception {
         logger.info("Running in SEED mode for file: {}", args.getSeedFile());
 
@@ -55,24 +67,11 @@ public class PeerCLI {
         ManifestStorage manifestStorage = new ManifestStorage();
 
         logger.info("Generating manifest and chunking file...");
-        ManifestGenerator manifestGenerator = new ManifestGenerator();
-        Manifest manifest = manifestGenerator.generateManifest(file);
-
-        manifestStorage.storeManifest(manifest);
+        FileIndexer indexer = new FileIndexer(createGenerator(args), chunkStorage, manifestStorage);
+        indexer.setRehash(args.isRehash());
+        Manifest manifest = indexer.index(file);
         logger.info("Manifest stored: {}", manifest.getFileId());
 
-        logger.info("Storing {} chunks...", manifest.getChunkCount());
-        FileChunker chunker = new FileChunker();
-        for (int i = 0; i < manifest.getChunkCount(); i++) {
-            byte[] chunkData = chunker.readChunk(file, i);
-            String chunkHash = manifest.getChunk(i).getHash();
-            chunkStorage.storeChunk(chunkHash, chunkData);
-
-            if ((i + 1) % 10 == 0 || i == manifest.getChunkCount() - 1) {
-                logger.info("Stored {}/{} chunks", i + 1, manifest.getChunkCount());
-            }
-        }
-
         logger.info("File ready for sharing!");
         logger.info("File ID: {}", manifest.getFileId());
         logger.info("Filename: {}", manifest.getFilename());
@@ -83,7 +82,7 @@ public class PeerCLI {
         System.out.println("Share this File ID with others to let them download!");
         System.out.println("================================\n");
 
-        PeerServer server = new PeerServer(args.getPort(), manifestStorage, chunkStorage);
+        PeerServer server = new PeerServer(args.getPort(), manifestStorage, chunkStorage, buildNetworkConfig(args));
         server.addAvailableFile(manifest.getFileId());
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -94,6 +93,100 @@ public class PeerCLI {
         server.start();
     }
 
+    // Runs in DAEMON mode: seeds every file below the given directories, follows changes to them and,
+    // with --control-port, takes downloads at runtime
+    private static void runDaemonMode(CLIArguments args) throws Exception {
+        logger.info("Running in DAEMON mode for: {}", args.getSeedDirectories());
+
+        ChunkStorage chunkStorage = new ChunkStorage();
+        ManifestStorage manifestStorage = new ManifestStorage();
+        NetworkConfig networkConfig = buildNetworkConfig(args);
+
+        FileIndexer indexer = new FileIndexer(createGenerator(args), chunkStorage, manifestStorage);
+        indexer.setRehash(args.isRehash());
+
+        PeerServer server = new PeerServer(args.getPort(), manifestStorage, chunkStorage, networkConfig);
+        File downloadDir = Paths.get("downloads").toFile();
+
+        List<Path> directories = new ArrayList<>();
+        for (String directory : args.getSeedDirectories()) {
+            directories.add(Paths.get(directory));
+        }
+        SeedDaemon daemon = null;
+        if (!directories.isEmpty()) {
+            daemon = new SeedDaemon(indexer, server, directories, args.getHashThreads());
+            daemon.exclude(manifestStorage.getStorageRoot());
+            daemon.exclude(downloadDir.toPath());
+        }
+
+        // One download manager, and so one connection pool, for announcements and every download
+        DownloadManager downloadManager = new DownloadManager(server.getPeerId(), args.getPort(), chunkStorage,
+                networkConfig);
+        downloadManager.setUploadScheduler(server.getUploadScheduler());
+        downloadManager.setBandwidthManager(server.getBandwidthManager());
+        downloadManager.setMemoryBudget(server.getMemoryBudget());
+        downloadManager.setTransferMetrics(server.getTransferMetrics());
+
+        if (args.getBootstrap() != null) {
+            String[] parts = args.getBootstrap().split(":");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid bootstrap format. Use host:port");
+            }
+            String bootstrapHost = parts[0];
+            int bootstrapPort = Integer.parseInt(parts[1]);
+
+            // Forward file set changes to the bootstrap peer so it can point downloaders here
+            ExecutorService announcer = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "announce-forwarder");
+                thread.setDaemon(true);
+                return thread;
+            });
+            server.addAnnounceListener(changes -> announcer.execute(() -> {
+                try {
+                    downloadManager.announce(bootstrapHost, bootstrapPort, changes);
+                } catch (Exception e) {
+                    logger.warn("Could not announce changes to bootstrap peer: {}", e.getMessage());
+                }
+            }));
+        }
+
+        TransferService transfers = null;
+        ControlServer control = null;
+        if (args.getControlPort() > 0) {
+            transfers = new TransferService(downloadManager, server, manifestStorage, args.getMaxActive());
+            control = new ControlServer(args.getControlPort(), transfers, server, manifestStorage, indexer, downloadDir,
+                    directories);
+        }
+
+        SeedDaemon shutdownDaemon = daemon;
+        TransferService shutdownTransfers = transfers;
+        ControlServer shutdownControl = control;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            logger.info("Shutdown signal received");
+            if (shutdownControl != null) {
+                shutdownControl.close();
+                shutdownTransfers.close();
+            }
+            if (shutdownDaemon != null) {
+                try {
+                    shutdownDaemon.close();
+                } catch (IOException e) {
+                    logger.warn("Could not stop directory watcher: {}", e.getMessage());
+                }
+            }
+            downloadManager.shutdown();
+            server.shutdown();
+        }));
+
+        if (daemon != null) {
+            daemon.start();
+        }
+        if (control != null) {
+            control.start();
+        }
+        server.start();
+    }
+
     // Runs in DOWNLOAD mode: downloads a file from the network
     private static void runDownloadMode(CLIArguments args) throws Exception {
         logger.info("Running in DOWNLOAD mode for file: {}", args.getDownloadFileId());
@@ -109,7 +202,8 @@ public class PeerCLI {
         ChunkStorage chunkStorage = new ChunkStorage();
         ManifestStorage manifestStorage = new ManifestStorage();
 
-        PeerServer server = new PeerServer(args.getPort(), manifestStorage, chunkStorage);
+        NetworkConfig networkConfig = buildNetworkConfig(args);
+        PeerServer server = new PeerServer(args.getPort(), manifestStorage, chunkStorage, networkConfig);
         Thread serverThread = new Thread(() -> {
             try {
                 server.start();
@@ -128,23 +222,34 @@ public class PeerCLI {
         DownloadManager downloadManager = new DownloadManager(
                 server.getPeerId(),
                 args.getPort(),
-                chunkStorage
+                chunkStorage,
+                networkConfig
         );
+        downloadManager.setUploadScheduler(server.getUploadScheduler());
+        downloadManager.setBandwidthManager(server.getBandwidthManager());
+        downloadManager.setMemoryBudget(server.getMemoryBudget());
+        downloadManager.setTransferMetrics(server.getTransferMetrics());
 
         File tempFile = new File(downloadDir, args.getDownloadFileId().substring(0, 8) + ".tmp");
 
         logger.info("Downloading file to temporary location: {}", tempFile.getAbsolutePath());
 
         try {
+            File basisFile = args.getBasisFile() != null ? new File(args.getBasisFile()) : null;
             Manifest manifest = downloadManager.downloadFile(
                     args.getDownloadFileId(),
                     bootstrapHost,
                     bootstrapPort,
-                    tempFile
+                    tempFile,
+                    basisFile
             );
 
-            File finalFile = new File(downloadDir, manifest.getFilename());
-            if (finalFile.exists()) {
+            File finalFile = new File(downloadDir, new File(manifest.getFilename()).getName());
+            if (finalFile.isDirectory()) {
+                // Never delete a whole directory tree; keep the new copy next to it instead
+                finalFile = new File(downloadDir, finalFile.getName() + "-" + args.getDownloadFileId().substring(0, 8));
+                logger.warn("Directory already exists, saving collection as: {}", finalFile.getName());
+            } else if (finalFile.exists()) {
                 logger.warn("File already exists, will overwrite: {}", finalFile.getName());
                 finalFile.delete();
             }
@@ -152,16 +257,26 @@ public class PeerCLI {
 
             manifestStorage.storeManifest(manifest);
 
+            // Advertise the file so the bootstrap peer can send other downloaders our way
+            server.addAvailableFile(args.getDownloadFileId());
+            try {
+                downloadManager.announce(bootstrapHost, bootstrapPort, server.getAvailableFiles());
+            } catch (Exception e) {
+                logger.warn("Could not announce file to bootstrap peer: {}", e.getMessage());
+            }
+            downloadManager.shutdown();
+
             logger.info("Download complete!");
             System.out.println("\n=== DOWNLOAD COMPLETE ===");
             System.out.println("File saved to: " + finalFile.getAbsolutePath());
             System.out.println("Original filename: " + manifest.getFilename());
-            System.out.println("File size: " + finalFile.length() + " bytes");
+            if (manifest.isCollection()) {
+                System.out.println("Files: " + manifest.getFiles().size());
+            }
+            System.out.println("File size: " + manifest.getFileSize() + " bytes");
             System.out.println("You can now share this file with others!");
             System.out.println("=========================\n");
 
-            server.addAvailableFile(args.getDownloadFileId());
-
             logger.info("Server will continue running to share the downloaded file...");
             logger.info("Press Ctrl+C to stop");
 
@@ -171,7 +286,52 @@ public class PeerCLI {
             logger.error("Download failed", e);
             throw e;
         } finally {
+            downloadManager.shutdown();
             server.shutdown();
         }
     }
+
+    // Creates the chunker selected by --chunking and --chunk-size
+    // Without --chunk-size, each file's chunk size is picked from its size
+    private static ManifestGenerator createGenerator(CLIArguments args) {
+        if (args.getChunkSize() > 0) {
+            return new ManifestGenerator(ManifestGenerator.createChunker(args.getChunking(), args.getChunkSize()),
+                    args.isMerkle());
+        }
+        return new ManifestGenerator(args.getChunking(), args.isMerkle());
+    }
+
+    // Builds the network settings shared by the server and downloader from CLI arguments
+    private static NetworkConfig buildNetworkConfig(CLIArguments args) {
+        NetworkConfig config = new NetworkConfig();
+        config.setReadIdleSeconds(args.getReadIdleSeconds());
+        config.setWriteIdleSeconds(args.getWriteIdleSeconds());
+        config.setTransport(args.getTransport());
+        config.setBossThreads(args.getBossThreads());
+        config.setWorkerThreads(args.getWorkerThreads());
+        config.setVerifyThreads(args.getVerifyThreads());
+        config.setSendBufferSize(args.getSendBufferSize());
+        config.setReceiveBufferSize(args.getReceiveBufferSize());
+        config.setNotSentLowat(args.getNotSentLowat());
+        config.setUploadSlots(args.getUploadSlots());
+        config.setUploadLimit(args.getUploadLimit());
+        config.setDownloadLimit(args.getDownloadLimit());
+        config.setPeerUploadLimit(args.getPeerUploadLimit());
+        config.setPeerDownloadLimit(args.getPeerDownloadLimit());
+        config.setFileUploadLimit(args.getFileUploadLimit());
+        config.setFileDownloadLimit(args.getFileDownloadLimit());
+        config.setMemoryBudget(args.getMemoryBudget());
+        config.setMetricsPort(args.getMetricsPort());
+        config.setMaxPeersPerDownload(args.getMaxPeers());
+        config.setRequestsPerPeer(args.getRequestsPerPeer());
+        config.setEmulatedLatencyMillis(args.getEmulatedLatencyMillis());
+        config.setEmulatedJitterMillis(args.getEmulatedJitterMillis());
+        config.setEmulatedBandwidth(args.getEmulatedBandwidth());
+        config.setEmulatedLossPercent(args.getEmulatedLossPercent());
+        config.setBinaryMessages(args.isBinaryMessages());
+        config.setCompression(args.isCompression());
+        config.setCompressionCacheSize(args.getCompressionCacheSize());
+        config.setBlockSize(args.getBlockSize());
+        return config;
+    }
 }
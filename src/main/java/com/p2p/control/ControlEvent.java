@@ -0,0 +1,12 @@
+package com.p2p.control;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+// Change pushed to control API subscribers, e.g. "state" or "progress" of a transfer
+@Data
+@AllArgsConstructor
+public class ControlEvent {
+    private final String type;
+    private final Object data;
+}
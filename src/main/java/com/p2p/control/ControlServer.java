@@ -0,0 +1,639 @@
+package com.p2p.control;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.p2p.core.Manifest;
+import com.p2p.metrics.MetricsServer;
+import com.p2p.network.BandwidthManager;
+import com.p2p.network.DownloadStream;
+import com.p2p.network.MemoryBudget;
+import com.p2p.network.PeerServer;
+import com.p2p.storage.FileIndexer;
+import com.p2p.storage.ManifestStorage;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.Data;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// JSON-over-HTTP control endpoint bound to the loopback interface only. Loopback alone does not keep out
+// web pages open in the user's browser, so every request must also:
+//   - name this server in its Host header (127.0.0.1:<port> or localhost:<port>), against DNS rebinding;
+//   - carry the token from the control-token file, as "Authorization: Bearer <token>" or, for GET requests
+//     from players and EventSource that cannot set headers, as a "token" query parameter;
+//   - send JSON bodies as Content-Type application/json, so they cannot be posted as a simple cross-site form.
+// Downloads may only write below the download directory, and only it and the seed directories may be seeded.
+//   GET  /transfers                    list downloads
+//   POST /transfers                    {"fileId", "bootstrap": "host:port", "output"?, "basis"?, "priority"?}
+//   GET  /transfers/{id}
+//   POST /transfers/{id}/pause|resume|cancel
+//   POST /transfers/{id}/priority      {"priority"}
+//   GET  /transfers/{id}/content       file bytes with Range support, readable while downloading
+//   GET  /seeds                        files this peer serves
+//   POST /seeds                        {"path"} starts seeding a file or directory
+//   GET  /memory                       chunk data held in memory by all transfers, against the budget
+//   GET  /limits                       bandwidth limits per direction, in bytes per second (0 = unlimited)
+//   POST /limits                       {"direction": "upload"|"download", "global"?, "peer"?, "file"?, "files"?}
+//   GET  /metrics                      transfer metrics in Prometheus text format
+//   GET  /events                       server-sent events with "state" and "progress" of transfers
+public class ControlServer implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ControlServer.class);
+
+    // Comment line sent to idle event streams so closed clients are noticed
+    private static final long EVENT_KEEPALIVE_SECONDS = 15;
+
+    // Events buffered per subscriber before a slow one is dropped
+    private static final int EVENT_QUEUE_LIMIT = 10_000;
+
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    // Written at startup, readable by the owner only; local clients read the token from here
+    public static final String TOKEN_FILE = "control-token";
+
+    private static final int TOKEN_BYTES = 32;
+
+    private final TransferService transfers;
+    private final PeerServer server;
+    private final ManifestStorage manifestStorage;
+    private final FileIndexer indexer;
+    private final File downloadDirectory;
+    // Download directory and seed directories; the only places requests may seed or read a basis from
+    private final List<Path> seedRoots = new ArrayList<>();
+    private final byte[] token;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final HttpServer http;
+    private final ExecutorService executor;
+
+    @Data
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    private static class TransferRequest {
+        private String fileId;
+        private String bootstrap;
+        private String output;
+        private String basis;
+        private int priority;
+    }
+
+    @Data
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    private static class PriorityRequest {
+        private int priority;
+    }
+
+    @Data
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    private static class SeedRequest {
+        private String path;
+    }
+
+    // Limits left out are kept as they are
+    @Data
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    private static class LimitsRequest {
+        private String direction;
+        private Long global;
+        private Long peer;
+        private Long file;                  // Default for files without a limit of their own
+        private Map<String, Long> files;    // Limits of single files, by file ID
+    }
+
+    public ControlServer(int port, TransferService transfers, PeerServer server, ManifestStorage manifestStorage,
+                         FileIndexer indexer, File downloadDirectory, List<Path> seedDirectories) throws IOException {
+        this.transfers = transfers;
+        this.server = server;
+        this.manifestStorage = manifestStorage;
+        this.indexer = indexer;
+        this.downloadDirectory = downloadDirectory;
+        this.seedRoots.add(canonical(downloadDirectory));
+        for (Path directory : seedDirectories) {
+            this.seedRoots.add(canonical(directory.toFile()));
+        }
+        this.token = writeToken(Paths.get(TOKEN_FILE));
+
+        // Not reachable from other hosts; anyone who can connect may read and write local files
+        this.http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        // Event streams hold a thread each for as long as the client listens
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "control-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        http.setExecutor(executor);
+        List<HttpContext> contexts = new ArrayList<>();
+        contexts.add(http.createContext("/transfers", this::handleTransfers));
+        contexts.add(http.createContext("/seeds", this::handleSeeds));
+        contexts.add(http.createContext("/memory", this::handleMemory));
+        contexts.add(http.createContext("/limits", this::handleLimits));
+        contexts.add(http.createContext("/metrics", this::handleMetrics));
+        contexts.add(http.createContext("/events", this::handleEvents));
+        Filter guard = new AccessFilter();
+        for (HttpContext context : contexts) {
+            context.getFilters().add(guard);
+        }
+    }
+
+    // New random token per start, written so that only the owner can read it
+    private static byte[] writeToken(Path file) throws IOException {
+        byte[] token = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(token);
+        String hex = HexFormat.of().formatHex(token);
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.deleteIfExists(temp);
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(temp, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            Files.createFile(temp);
+        }
+        Files.writeString(temp, hex + "\n");
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return hex.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Rejects requests from other origins before any handler runs
+    private class AccessFilter extends Filter {
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            if (!isAllowedHost(exchange.getRequestHeaders().getFirst("Host"))) {
+                sendError(exchange, 403, "Forbidden host");
+            } else if (!hasToken(exchange)) {
+                exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+                sendError(exchange, 401, "Missing or wrong token, see " + TOKEN_FILE);
+            } else {
+                chain.doFilter(exchange);
+            }
+        }
+
+        @Override
+        public String description() {
+            return "Host and token check";
+        }
+    }
+
+    private boolean isAllowedHost(String host) {
+        int port = getPort();
+        return host != null && (host.equalsIgnoreCase("127.0.0.1:" + port) || host.equalsIgnoreCase("localhost:" + port)
+                || host.equalsIgnoreCase("[::1]:" + port));
+    }
+
+    private boolean hasToken(HttpExchange exchange) {
+        String presented = null;
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization != null && authorization.startsWith("Bearer ")) {
+            presented = authorization.substring(7).trim();
+        } else if (exchange.getRequestMethod().equals("GET")) {
+            presented = queryParameter(exchange, "token");
+        }
+        return presented != null
+                && MessageDigest.isEqual(token, presented.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static String queryParameter(HttpExchange exchange, String name) {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String parameter : query.split("&")) {
+            if (parameter.startsWith(name + "=")) {
+                return parameter.substring(name.length() + 1);
+            }
+        }
+        return null;
+    }
+
+    public void start() {
+        http.start();
+        logger.info("Control API listening on http://{}:{}/", http.getAddress().getHostString(),
+                http.getAddress().getPort());
+    }
+
+    public int getPort() {
+        return http.getAddress().getPort();
+    }
+
+    private void handleTransfers(HttpExchange exchange) throws IOException {
+        String[] parts = exchange.getRequestURI().getPath().split("/");
+        String method = exchange.getRequestMethod();
+        try {
+            // parts: "", "transfers", id?, action?
+            if (parts.length == 2 && method.equals("GET")) {
+                sendJson(exchange, 200, transfers.list());
+            } else if (parts.length == 2 && method.equals("POST")) {
+                sendJson(exchange, 201, startTransfer(readJson(exchange, TransferRequest.class)));
+            } else if (parts.length == 3 && method.equals("GET")) {
+                sendJson(exchange, 200, transfers.get(parts[2]));
+            } else if (parts.length == 4 && parts[3].equals("content") && method.equals("GET")) {
+                sendContent(exchange, parts[2]);
+            } else if (parts.length == 4 && method.equals("POST")) {
+                sendJson(exchange, 200, applyAction(exchange, parts[2], parts[3]));
+            } else {
+                sendError(exchange, 404, "Not found");
+            }
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage());
+        } catch (NoSuchElementException e) {
+            sendError(exchange, 404, e.getMessage());
+        } catch (IllegalStateException e) {
+            sendError(exchange, 409, e.getMessage());
+        }
+    }
+
+    // Serves a byte range; a range ahead of the download moves its fetching there, so players can seek
+    private void sendContent(HttpExchange exchange, String id) throws IOException {
+        try (DownloadStream content = transfers.openContent(id)) {
+            long size = content.size();
+            long start = 0;
+            long end = size - 1;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range != null) {
+                long[] bounds = parseRange(range, size);
+                if (bounds == null) {
+                    exchange.getResponseHeaders().set("Content-Range", "bytes */" + size);
+                    sendError(exchange, 416, "Unsatisfiable range: " + range);
+                    return;
+                }
+                start = bounds[0];
+                end = bounds[1];
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + size);
+            }
+
+            long length = end - start + 1;
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            // Zero-length bodies must be announced as -1 to this server
+            exchange.sendResponseHeaders(range != null ? 206 : 200, length > 0 ? length : -1);
+            if (length <= 0) {
+                return;
+            }
+
+            content.seek(start);
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            try (OutputStream out = exchange.getResponseBody()) {
+                long left = length;
+                while (left > 0) {
+                    int read = content.read(buffer, 0, (int) Math.min(buffer.length, left));
+                    if (read < 0) {
+                        throw new IOException("Content ended early");
+                    }
+                    out.write(buffer, 0, read);
+                    // Flush per read so bytes reach the client as soon as their chunk is verified
+                    out.flush();
+                    left -= read;
+                }
+            }
+        } catch (IOException e) {
+            logger.debug("Content stream of transfer {} ended: {}", id, e.getMessage());
+            exchange.close();
+        }
+    }
+
+    // Single "bytes=start-end", "bytes=start-" or "bytes=-suffix" range as inclusive bounds; null if unsatisfiable
+    private static long[] parseRange(String header, long size) {
+        if (!header.startsWith("bytes=") || header.contains(",")) {
+            return null;
+        }
+        String[] bounds = header.substring(6).trim().split("-", -1);
+        if (bounds.length != 2) {
+            return null;
+        }
+        try {
+            long start;
+            long end;
+            if (bounds[0].isEmpty()) {
+                long suffix = Long.parseLong(bounds[1]);
+                start = Math.max(0, size - suffix);
+                end = size - 1;
+            } else {
+                start = Long.parseLong(bounds[0]);
+                end = bounds[1].isEmpty() ? size - 1 : Math.min(Long.parseLong(bounds[1]), size - 1);
+            }
+            return start <= end && start < size ? new long[]{start, end} : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private Transfer startTransfer(TransferRequest request) throws IOException {
+        if (request.getBootstrap() == null) {
+            throw new IllegalArgumentException("bootstrap is required");
+        }
+        String[] address = request.getBootstrap().split(":");
+        if (address.length != 2) {
+            throw new IllegalArgumentException("Invalid bootstrap format. Use host:port");
+        }
+        int port;
+        try {
+            port = Integer.parseInt(address[1]);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid bootstrap port: " + address[1]);
+        }
+
+        File output = downloadDirectory;
+        if (request.getOutput() != null) {
+            output = new File(request.getOutput());
+            requireInside(output, List.of(canonical(downloadDirectory)), "output");
+        }
+        File basis = null;
+        if (request.getBasis() != null) {
+            basis = new File(request.getBasis());
+            requireInside(basis, seedRoots, "basis");
+        }
+        return transfers.add(request.getFileId(), address[0], port, output, basis, request.getPriority());
+    }
+
+    private Transfer applyAction(HttpExchange exchange, String id, String action) throws IOException {
+        switch (action) {
+            case "pause":
+                return transfers.pause(id);
+            case "resume":
+                return transfers.resume(id);
+            case "cancel":
+                return transfers.cancel(id);
+            case "priority":
+                return transfers.setPriority(id, readJson(exchange, PriorityRequest.class).getPriority());
+            default:
+                throw new NoSuchElementException("Unknown action: " + action);
+        }
+    }
+
+    private void handleSeeds(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestURI().getPath().equals("/seeds")) {
+                sendError(exchange, 404, "Not found");
+            } else if (exchange.getRequestMethod().equals("GET")) {
+                sendJson(exchange, 200, listSeeds());
+            } else if (exchange.getRequestMethod().equals("POST")) {
+                sendJson(exchange, 201, seed(readJson(exchange, SeedRequest.class)));
+            } else {
+                sendError(exchange, 405, "Method not allowed");
+            }
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage());
+        }
+    }
+
+    private void handleMemory(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestURI().getPath().equals("/memory")) {
+            sendError(exchange, 404, "Not found");
+        } else if (!exchange.getRequestMethod().equals("GET")) {
+            sendError(exchange, 405, "Method not allowed");
+        } else {
+            MemoryBudget budget = server.getMemoryBudget();
+            Map<String, Object> memory = new LinkedHashMap<>();
+            memory.put("used", budget.getUsed());
+            memory.put("peak", budget.getPeak());
+            memory.put("limit", budget.getLimit() == Long.MAX_VALUE ? 0 : budget.getLimit());
+            memory.put("denied", budget.getDenied());
+            memory.put("overdrafts", budget.getOverdrafts());
+            memory.put("readPauses", budget.getReadPauses());
+            sendJson(exchange, 200, memory);
+        }
+    }
+
+    private void handleLimits(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestURI().getPath().equals("/limits")) {
+                sendError(exchange, 404, "Not found");
+            } else if (exchange.getRequestMethod().equals("GET")) {
+                sendJson(exchange, 200, describeLimits());
+            } else if (exchange.getRequestMethod().equals("POST")) {
+                setLimits(readJson(exchange, LimitsRequest.class));
+                sendJson(exchange, 200, describeLimits());
+            } else {
+                sendError(exchange, 405, "Method not allowed");
+            }
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage());
+        }
+    }
+
+    // Applies new limits at once, to transfers already running too
+    private void setLimits(LimitsRequest request) {
+        BandwidthManager.Direction direction;
+        try {
+            direction = BandwidthManager.Direction.valueOf(String.valueOf(request.getDirection()).toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("direction must be upload or download");
+        }
+        List<Long> values = new ArrayList<>();
+        values.add(request.getGlobal());
+        values.add(request.getPeer());
+        values.add(request.getFile());
+        if (request.getFiles() != null) {
+            values.addAll(request.getFiles().values());
+        }
+        for (Long value : values) {
+            if (value != null && value < 0) {
+                throw new IllegalArgumentException("Limits must not be negative");
+            }
+        }
+
+        BandwidthManager bandwidth = server.getBandwidthManager();
+        if (request.getGlobal() != null) {
+            bandwidth.setGlobalLimit(direction, request.getGlobal());
+        }
+        if (request.getPeer() != null) {
+            bandwidth.setPeerLimit(direction, request.getPeer());
+        }
+        if (request.getFile() != null) {
+            bandwidth.setDefaultFileLimit(direction, request.getFile());
+        }
+        if (request.getFiles() != null) {
+            request.getFiles().forEach((fileId, limit) -> bandwidth.setFileLimit(direction, fileId, limit));
+        }
+    }
+
+    private Map<String, Object> describeLimits() {
+        BandwidthManager bandwidth = server.getBandwidthManager();
+        Map<String, Object> limits = new LinkedHashMap<>();
+        for (BandwidthManager.Direction direction : BandwidthManager.Direction.values()) {
+            Map<String, Object> scope = new LinkedHashMap<>();
+            scope.put("global", bandwidth.getGlobalLimit(direction));
+            scope.put("peer", bandwidth.getPeerLimit(direction));
+            scope.put("file", bandwidth.getDefaultFileLimit(direction));
+            scope.put("files", bandwidth.getFileLimits(direction));
+            scope.put("totalBytes", bandwidth.getTotalBytes(direction));
+            limits.put(direction.name().toLowerCase(), scope);
+        }
+        return limits;
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestURI().getPath().equals("/metrics")) {
+            sendError(exchange, 404, "Not found");
+        } else if (!exchange.getRequestMethod().equals("GET")) {
+            sendError(exchange, 405, "Method not allowed");
+        } else {
+            byte[] body = server.getTransferMetrics().toPrometheusText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", MetricsServer.CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    private List<Map<String, Object>> listSeeds() throws IOException {
+        List<Map<String, Object>> seeds = new ArrayList<>();
+        for (String fileId : server.getAvailableFiles()) {
+            Manifest manifest = manifestStorage.retrieveManifest(fileId);
+            seeds.add(describe(fileId, manifest));
+        }
+        return seeds;
+    }
+
+    private Map<String, Object> seed(SeedRequest request) throws IOException {
+        if (request.getPath() == null || !new File(request.getPath()).exists()) {
+            throw new IllegalArgumentException("File not found: " + request.getPath());
+        }
+        requireInside(new File(request.getPath()), seedRoots, "path");
+        Manifest manifest = indexer.index(new File(request.getPath()));
+        server.addAvailableFile(manifest.getFileId());
+        return describe(manifest.getFileId(), manifest);
+    }
+
+    // Paths from requests are resolved, symlinks and ".." included, before they are compared
+    private static void requireInside(File file, List<Path> directories, String field) throws IOException {
+        Path path = canonical(file);
+        for (Path directory : directories) {
+            if (path.startsWith(directory)) {
+                return;
+            }
+        }
+        throw new IllegalArgumentException(field + " must be inside " + directories);
+    }
+
+    private static Path canonical(File file) throws IOException {
+        return file.getCanonicalFile().toPath();
+    }
+
+    private static Map<String, Object> describe(String fileId, Manifest manifest) {
+        Map<String, Object> seed = new LinkedHashMap<>();
+        seed.put("fileId", fileId);
+        if (manifest != null) {
+            seed.put("filename", manifest.getFilename());
+            seed.put("fileSize", manifest.getFileSize());
+            seed.put("chunks", manifest.getChunkCount());
+            seed.put("files", manifest.isCollection() ? manifest.getFiles().size() : 1);
+        }
+        return seed;
+    }
+
+    // Streams events until the client disconnects
+    private void handleEvents(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            sendError(exchange, 405, "Method not allowed");
+            return;
+        }
+        BlockingQueue<ControlEvent> queue = new LinkedBlockingQueue<>(EVENT_QUEUE_LIMIT);
+        Consumer<ControlEvent> subscriber = queue::offer;
+
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+        transfers.addListener(subscriber);
+        try (OutputStream out = exchange.getResponseBody()) {
+            // Current state first, so a client needs no separate request to catch up
+            for (Transfer transfer : transfers.list()) {
+                writeEvent(out, new ControlEvent("state", transfer));
+            }
+            while (true) {
+                ControlEvent event = queue.poll(EVENT_KEEPALIVE_SECONDS, TimeUnit.SECONDS);
+                if (event == null) {
+                    out.write(": keepalive\n\n".getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                } else {
+                    writeEvent(out, event);
+                }
+            }
+        } catch (IOException e) {
+            logger.debug("Event stream closed: {}", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            transfers.removeListener(subscriber);
+            exchange.close();
+        }
+    }
+
+    private void writeEvent(OutputStream out, ControlEvent event) throws IOException {
+        String frame = "event: " + event.getType() + "\ndata: " + objectMapper.writeValueAsString(event.getData())
+                + "\n\n";
+        out.write(frame.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private <T> T readJson(HttpExchange exchange, Class<T> type) throws IOException {
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (contentType == null || !contentType.split(";")[0].trim().equalsIgnoreCase("application/json")) {
+            throw new IllegalArgumentException("Content-Type must be application/json");
+        }
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] body = in.readAllBytes();
+            if (body.length == 0) {
+                throw new IllegalArgumentException("Request body required");
+            }
+            return objectMapper.readValue(body, type);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Invalid JSON: " + e.getOriginalMessage());
+        }
+    }
+
+    private void sendJson(HttpExchange exchange, int status, Object body) throws IOException {
+        byte[] bytes = objectMapper.writeValueAsBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        Map<String, String> body = new LinkedHashMap<>();
+        body.put("error", message);
+        sendJson(exchange, status, body);
+    }
+
+    @Override
+    public void close() {
+        http.stop(0);
+        executor.shutdownNow();
+        try {
+            Files.deleteIfExists(Paths.get(TOKEN_FILE));
+        } catch (IOException e) {
+            logger.warn("Could not remove {}: {}", TOKEN_FILE, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.p2p.control;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.p2p.core.Manifest;
+import com.p2p.network.DownloadSession;
+import lombok.Getter;
+
+import java.io.File;
+
+// One download managed through the control API. Mutable fields are guarded by the TransferService.
+@Getter
+public class Transfer {
+
+    public enum State {
+        QUEUED,
+        RUNNING,
+        PAUSED,
+        COMPLETED,
+        FAILED,
+        CANCELLED
+    }
+
+    private final String id;
+    private final String fileId;
+    private final String bootstrap;
+    private final long createdAt = System.currentTimeMillis();
+
+    @JsonIgnore
+    private final String bootstrapHost;
+    @JsonIgnore
+    private final int bootstrapPort;
+    @JsonIgnore
+    private final File outputDirectory;
+    @JsonIgnore
+    private final File basisFile;
+
+    private State state = State.QUEUED;
+    private int priority;
+    private String filename;
+    private long fileSize;
+    private volatile String savedTo;
+    private String error;
+
+    @JsonIgnore
+    private volatile DownloadSession session;
+
+    // Progress of the last finished session, kept once the session is gone
+    private int totalChunks;
+    private int completedChunks;
+    private long completedBytes;
+
+    Transfer(String id, String fileId, String bootstrapHost, int bootstrapPort, File outputDirectory,
+             File basisFile, int priority) {
+        this.id = id;
+        this.fileId = fileId;
+        this.bootstrap = bootstrapHost + ":" + bootstrapPort;
+        this.bootstrapHost = bootstrapHost;
+        this.bootstrapPort = bootstrapPort;
+        this.outputDirectory = outputDirectory;
+        this.basisFile = basisFile;
+        this.priority = priority;
+    }
+
+    public boolean isActive() {
+        return state == State.QUEUED || state == State.RUNNING;
+    }
+
+    public long getCompletedBytes() {
+        DownloadSession current = session;
+        return current != null ? current.getCompletedBytes() : completedBytes;
+    }
+
+    // Live counts while a session runs
+    public int getTotalChunks() {
+        DownloadSession current = session;
+        return current != null && current.getTotalChunks() > 0 ? current.getTotalChunks() : totalChunks;
+    }
+
+    public int getCompletedChunks() {
+        DownloadSession current = session;
+        return current != null && current.getTotalChunks() > 0 ? current.getCompletedChunks() : completedChunks;
+    }
+
+    void setState(State state) {
+        this.state = state;
+    }
+
+    void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    void setError(String error) {
+        this.error = error;
+    }
+
+    void setSavedTo(String savedTo) {
+        this.savedTo = savedTo;
+    }
+
+    void setManifest(Manifest manifest) {
+        this.filename = manifest.getFilename();
+        this.fileSize = manifest.getFileSize();
+    }
+
+    void setSession(DownloadSession session) {
+        if (this.session != null && session == null) {
+            totalChunks = this.session.getTotalChunks();
+            completedChunks = this.session.getCompletedChunks();
+            completedBytes = this.session.getCompletedBytes();
+        }
+        this.session = session;
+    }
+}
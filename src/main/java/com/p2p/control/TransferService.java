@@ -0,0 +1,350 @@
+package com.p2p.control;
+
+import com.p2p.core.Manifest;
+import com.p2p.network.DownloadManager;
+import com.p2p.network.DownloadSession;
+import com.p2p.network.DownloadStream;
+import com.p2p.network.PeerServer;
+import com.p2p.protocol.AnnounceMessage;
+import com.p2p.storage.ManifestStorage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+// Runs many downloads in one process over the shared download manager, chunk store and connection pool.
+// At most maxActive downloads run at once; queued ones start highest priority first, oldest first on ties.
+// Pausing stops the session; fetched chunks stay in the chunk store, so resuming rebuilds them locally.
+public class TransferService implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(TransferService.class);
+
+    private static final long PROGRESS_INTERVAL_MILLIS = 1000;
+
+    private final DownloadManager downloadManager;
+    private final PeerServer server;
+    private final ManifestStorage manifestStorage;
+    private final int maxActive;
+
+    // Guarded by this; in creation order
+    private final Map<String, Transfer> transfers = new LinkedHashMap<>();
+    private int running;
+
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final List<Consumer<ControlEvent>> listeners = new CopyOnWriteArrayList<>();
+    private final ExecutorService runners;
+    private final ScheduledExecutorService ticker;
+
+    // Last progress sent per transfer; ticker thread only
+    private final Map<String, Integer> reportedProgress = new HashMap<>();
+
+    public TransferService(DownloadManager downloadManager, PeerServer server, ManifestStorage manifestStorage,
+                           int maxActive) {
+        this.downloadManager = downloadManager;
+        this.server = server;
+        this.manifestStorage = manifestStorage;
+        this.maxActive = maxActive;
+        this.runners = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "transfer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "transfer-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.ticker.scheduleWithFixedDelay(this::reportProgress, PROGRESS_INTERVAL_MILLIS, PROGRESS_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    public void addListener(Consumer<ControlEvent> listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Consumer<ControlEvent> listener) {
+        listeners.remove(listener);
+    }
+
+    // Queues a download into outputDirectory; basisFile may be null
+    public synchronized Transfer add(String fileId, String host, int port, File outputDirectory, File basisFile,
+                                     int priority) {
+        if (fileId == null || !fileId.matches("[0-9a-f]{64}")) {
+            throw new IllegalArgumentException("Invalid file ID: " + fileId);
+        }
+        if (basisFile != null && !basisFile.isFile()) {
+            throw new IllegalArgumentException("Basis file not found: " + basisFile);
+        }
+        for (Transfer transfer : transfers.values()) {
+            if (transfer.getFileId().equals(fileId)
+                    && (transfer.isActive() || transfer.getState() == Transfer.State.PAUSED)) {
+                throw new IllegalStateException("File " + fileId + " is already transfer " + transfer.getId());
+            }
+        }
+
+        Transfer transfer = new Transfer(String.valueOf(nextId.getAndIncrement()), fileId, host, port,
+                outputDirectory, basisFile, priority);
+        transfers.put(transfer.getId(), transfer);
+        logger.info("Queued transfer {} for file {} from {}", transfer.getId(), fileId, transfer.getBootstrap());
+        publish("state", transfer);
+        startQueued();
+        return transfer;
+    }
+
+    public synchronized List<Transfer> list() {
+        return new ArrayList<>(transfers.values());
+    }
+
+    public synchronized Transfer get(String id) {
+        Transfer transfer = transfers.get(id);
+        if (transfer == null) {
+            throw new NoSuchElementException("No transfer " + id);
+        }
+        return transfer;
+    }
+
+    public synchronized Transfer pause(String id) {
+        Transfer transfer = get(id);
+        if (!transfer.isActive()) {
+            throw new IllegalStateException("Transfer " + id + " is " + transfer.getState());
+        }
+        transfer.setState(Transfer.State.PAUSED);
+        if (transfer.getSession() != null) {
+            transfer.getSession().cancel();
+        }
+        publish("state", transfer);
+        return transfer;
+    }
+
+    // Queues a paused or failed transfer again
+    public synchronized Transfer resume(String id) {
+        Transfer transfer = get(id);
+        if (transfer.getState() != Transfer.State.PAUSED && transfer.getState() != Transfer.State.FAILED) {
+            throw new IllegalStateException("Transfer " + id + " is " + transfer.getState());
+        }
+        if (transfer.getSession() != null) {
+            // Still winding down after a pause; it is queued again once its session has exited
+            throw new IllegalStateException("Transfer " + id + " is still stopping");
+        }
+        transfer.setState(Transfer.State.QUEUED);
+        transfer.setError(null);
+        publish("state", transfer);
+        startQueued();
+        return transfer;
+    }
+
+    public synchronized Transfer cancel(String id) {
+        Transfer transfer = get(id);
+        if (transfer.getState() == Transfer.State.COMPLETED || transfer.getState() == Transfer.State.CANCELLED) {
+            throw new IllegalStateException("Transfer " + id + " is " + transfer.getState());
+        }
+        transfer.setState(Transfer.State.CANCELLED);
+        if (transfer.getSession() != null) {
+            transfer.getSession().cancel();
+        } else {
+            deletePartial(transfer);
+        }
+        publish("state", transfer);
+        return transfer;
+    }
+
+    public synchronized Transfer setPriority(String id, int priority) {
+        Transfer transfer = get(id);
+        transfer.setPriority(priority);
+        publish("state", transfer);
+        startQueued();
+        return transfer;
+    }
+
+    // Reader over a transfer's content: in order while it downloads, or from disk once complete
+    public synchronized DownloadStream openContent(String id) throws IOException {
+        Transfer transfer = get(id);
+        if (transfer.getSession() != null) {
+            // The file is renamed when the download completes; readers look it up again then
+            return new DownloadStream(transfer.getSession(), () -> {
+                synchronized (this) {
+                    return transfer.getSavedTo() != null ? new File(transfer.getSavedTo()) : partialFile(transfer);
+                }
+            });
+        }
+        if (transfer.getState() == Transfer.State.COMPLETED) {
+            Manifest manifest = manifestStorage.retrieveManifest(transfer.getFileId());
+            if (manifest == null) {
+                throw new IOException("Manifest of " + transfer.getFileId() + " is missing");
+            }
+            return new DownloadStream(manifest, new File(transfer.getSavedTo()));
+        }
+        throw new IllegalStateException("Transfer " + id + " is " + transfer.getState());
+    }
+
+    // Starts queued transfers while there are free slots
+    private void startQueued() {
+        while (running < maxActive) {
+            Transfer next = transfers.values().stream()
+                    .filter(transfer -> transfer.getState() == Transfer.State.QUEUED && transfer.getSession() == null)
+                    .max(Comparator.comparingInt(Transfer::getPriority)
+                            .thenComparing(transfer -> -Long.parseLong(transfer.getId())))
+                    .orElse(null);
+            if (next == null) {
+                return;
+            }
+
+            DownloadSession session = downloadManager.newSession(next.getFileId(), next.getBootstrapHost(),
+                    next.getBootstrapPort(), partialFile(next));
+            session.setBasisFile(next.getBasisFile());
+            next.setSession(session);
+            next.setState(Transfer.State.RUNNING);
+            running++;
+            publish("state", next);
+            runners.execute(() -> run(next, session));
+        }
+    }
+
+    private void run(Transfer transfer, DownloadSession session) {
+        Manifest manifest = null;
+        File saved = null;
+        String error = null;
+        try {
+            manifest = session.run();
+        } catch (CancellationException e) {
+            logger.info("Transfer {} stopped", transfer.getId());
+        } catch (Exception e) {
+            logger.warn("Transfer {} failed: {}", transfer.getId(), e.getMessage());
+            error = e.getMessage() != null ? e.getMessage() : e.toString();
+        }
+
+        synchronized (this) {
+            // Under the lock so content readers resolve the file either before or after the move
+            if (manifest != null) {
+                try {
+                    saved = finish(transfer, manifest);
+                } catch (IOException e) {
+                    logger.warn("Transfer {} could not be saved: {}", transfer.getId(), e.getMessage());
+                    error = e.getMessage();
+                }
+            }
+
+            running--;
+            if (session.getManifest() != null) {
+                transfer.setManifest(session.getManifest());
+            }
+            transfer.setSession(null);
+
+            if (saved != null) {
+                transfer.setState(Transfer.State.COMPLETED);
+                transfer.setSavedTo(saved.getAbsolutePath());
+            } else if (transfer.getState() == Transfer.State.RUNNING) {
+                transfer.setState(Transfer.State.FAILED);
+                transfer.setError(error);
+            } else if (transfer.getState() == Transfer.State.CANCELLED) {
+                deletePartial(transfer);
+            }
+            publish("state", transfer);
+            startQueued();
+        }
+
+        if (saved != null) {
+            announce(transfer);
+        }
+    }
+
+    // Moves the finished download to its final name and starts seeding it
+    private File finish(Transfer transfer, Manifest manifest) throws IOException {
+        File outputDirectory = transfer.getOutputDirectory();
+        File finalFile = new File(outputDirectory, new File(manifest.getFilename()).getName());
+        if (finalFile.isDirectory()) {
+            // Never delete a whole directory tree; keep the new copy next to it instead
+            finalFile = new File(outputDirectory, finalFile.getName() + "-" + transfer.getFileId().substring(0, 8));
+        }
+        Files.move(partialFile(transfer).toPath(), finalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        manifestStorage.storeManifest(manifest);
+        server.addAvailableFile(manifest.getFileId());
+        logger.info("Transfer {} complete: {}", transfer.getId(), finalFile.getAbsolutePath());
+        return finalFile;
+    }
+
+    // Tells the peer we downloaded from that we now serve the file too
+    private void announce(Transfer transfer) {
+        try {
+            downloadManager.announce(transfer.getBootstrapHost(), transfer.getBootstrapPort(),
+                    new AnnounceMessage(server.getPeerId(), List.of(transfer.getFileId()), List.of()));
+        } catch (Exception e) {
+            logger.warn("Could not announce file to {}: {}", transfer.getBootstrap(), e.getMessage());
+        }
+    }
+
+    private static File partialFile(Transfer transfer) {
+        File outputDirectory = transfer.getOutputDirectory();
+        outputDirectory.mkdirs();
+        return new File(outputDirectory, transfer.getFileId().substring(0, 8) + ".tmp");
+    }
+
+    // Removes the partial output of a cancelled transfer; a collection's is a directory tree
+    private static void deletePartial(Transfer transfer) {
+        Path partial = partialFile(transfer).toPath();
+        if (!Files.exists(partial)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(partial)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            logger.warn("Could not delete {}: {}", partial, e.getMessage());
+        }
+    }
+
+    private void reportProgress() {
+        for (Transfer transfer : list()) {
+            if (transfer.getSession() == null) {
+                reportedProgress.remove(transfer.getId());
+                continue;
+            }
+            int completed = transfer.getCompletedChunks();
+            Integer previous = reportedProgress.put(transfer.getId(), completed);
+            if (previous == null || previous != completed) {
+                publish("progress", transfer);
+            }
+        }
+    }
+
+    private void publish(String type, Transfer transfer) {
+        ControlEvent event = new ControlEvent(type, transfer);
+        for (Consumer<ControlEvent> listener : listeners) {
+            listener.accept(event);
+        }
+    }
+
+    // Stops every running download; their partial files are kept
+    @Override
+    public void close() {
+        ticker.shutdownNow();
+        synchronized (this) {
+            for (Transfer transfer : transfers.values()) {
+                if (transfer.getSession() != null) {
+                    transfer.getSession().cancel();
+                }
+            }
+        }
+        runners.shutdown();
+    }
+}
@@ -4,12 +4,14 @@ import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
-// Metadata for a single file chunk (index, hash, size)
+// Metadata for a single file chunk (index, offset, hashes, size)
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
 public class ChunkInfo {
     private int index;       // Chunk index in file (0-based)
-    private String hash;     // SHA-256 hash for verification
+    private long offset;     // Byte offset of the chunk within the file
+    private Hash hash;       // SHA-256 hash for verification
+    private int weakHash;    // Rolling checksum for finding the chunk at any offset of an older file
     private long size;       // Chunk size in bytes
 }
@@ -0,0 +1,7 @@
+package com.p2p.core;
+
+// How a file was split into chunks
+public enum ChunkingMode {
+    FIXED,      // Equal-size chunks; offsets follow from the index
+    FASTCDC     // Content-defined boundaries; each chunk records its own offset
+}
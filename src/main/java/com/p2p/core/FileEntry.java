@@ -0,0 +1,15 @@
+package com.p2p.core;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+// One file of a collection manifest, located within the collection's concatenated byte range
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class FileEntry {
+    private String path;     // Relative path with '/' separators
+    private long offset;     // Offset of the file's first byte within the collection
+    private long size;       // File size in bytes
+}
@@ -0,0 +1,153 @@
+package com.p2p.core;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+// SHA-256 digest held as four longs. Comparing and hashing one is a few word compares instead of
+// walking a 64-character string; JSON, file names and logs still use the lowercase hex form.
+public final class Hash {
+    public static final int BYTES = 32;
+    public static final int HEX_LENGTH = BYTES * 2;
+
+    private static final HexFormat HEX = HexFormat.of();
+
+    // Digests are not thread-safe; one per thread avoids a provider lookup per chunk
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(Hash::newDigest);
+
+    private final long w0;
+    private final long w1;
+    private final long w2;
+    private final long w3;
+
+    private Hash(long w0, long w1, long w2, long w3) {
+        this.w0 = w0;
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+    }
+
+    public static Hash sha256(byte[] data) {
+        return sha256(data, 0, data.length);
+    }
+
+    public static Hash sha256(byte[] data, int offset, int length) {
+        MessageDigest digest = SHA256.get();
+        digest.update(data, offset, length);
+        return of(digest.digest());
+    }
+
+    // Wraps a finished 32-byte digest
+    public static Hash of(byte[] digest) {
+        if (digest.length != BYTES) {
+            throw new IllegalArgumentException("Expected " + BYTES + " digest bytes, got " + digest.length);
+        }
+        return new Hash(word(digest, 0), word(digest, 8), word(digest, 16), word(digest, 24));
+    }
+
+    // Rebuilds a digest from the four big-endian words of a binary encoding
+    public static Hash ofWords(long w0, long w1, long w2, long w3) {
+        return new Hash(w0, w1, w2, w3);
+    }
+
+    // Parses the 64-digit hex form, as found in manifests and chunk file names
+    @JsonCreator
+    public static Hash parse(String hex) {
+        if (hex == null || hex.length() != HEX_LENGTH) {
+            throw new IllegalArgumentException("Not a SHA-256 hex digest: " + hex);
+        }
+        return new Hash(HexFormat.fromHexDigitsToLong(hex, 0, 16), HexFormat.fromHexDigitsToLong(hex, 16, 32),
+                HexFormat.fromHexDigitsToLong(hex, 32, 48), HexFormat.fromHexDigitsToLong(hex, 48, 64));
+    }
+
+    // Like parse, but null for anything that is not a digest
+    public static Hash tryParse(String hex) {
+        try {
+            return parse(hex);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 not available", e);
+        }
+    }
+
+    // Lowercase hex of any byte array
+    public static String toHex(byte[] bytes) {
+        return HEX.formatHex(bytes);
+    }
+
+    @JsonValue
+    public String toHex() {
+        return HEX.toHexDigits(w0) + HEX.toHexDigits(w1) + HEX.toHexDigits(w2) + HEX.toHexDigits(w3);
+    }
+
+    // First 8 hex digits, for log lines
+    public String toShortHex() {
+        return HEX.toHexDigits((int) (w0 >>> 32));
+    }
+
+    // Word 0 to 3 of the digest, most significant first
+    public long word(int index) {
+        switch (index) {
+            case 0:
+                return w0;
+            case 1:
+                return w1;
+            case 2:
+                return w2;
+            case 3:
+                return w3;
+            default:
+                throw new IndexOutOfBoundsException("Hash word " + index);
+        }
+    }
+
+    public byte[] toBytes() {
+        byte[] bytes = new byte[BYTES];
+        long[] words = {w0, w1, w2, w3};
+        for (int i = 0; i < BYTES; i++) {
+            bytes[i] = (byte) (words[i / 8] >>> (56 - 8 * (i % 8)));
+        }
+        return bytes;
+    }
+
+    private static long word(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof Hash)) {
+            return false;
+        }
+        Hash hash = (Hash) other;
+        return w0 == hash.w0 && w1 == hash.w1 && w2 == hash.w2 && w3 == hash.w3;
+    }
+
+    // The digest is already uniformly distributed, so any of its bits make a good hash code
+    @Override
+    public int hashCode() {
+        return (int) w0;
+    }
+
+    @Override
+    public String toString() {
+        return toHex();
+    }
+}
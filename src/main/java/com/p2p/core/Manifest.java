@@ -1,7 +1,9 @@
 package com.p2p.core;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.Data;
 
@@ -12,23 +14,61 @@ import java.util.List;
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class Manifest {
     private final String fileId;           // Unique file identifier (SHA-256)
-    private final String filename;         // Original filename
-    private final long fileSize;           // Total file size in bytes
-    private final int chunkSize;           // Size of each chunk (last may be smaller)
+    private final String filename;         // Original filename, or the directory name of a collection
+    private final long fileSize;           // Total file size in bytes, summed over all files of a collection
+    private final int chunkSize;           // Size of each chunk (last may be smaller), or the maximum for FASTCDC
+    private final ChunkingMode chunking;   // How chunk boundaries were chosen
     private final List<ChunkInfo> chunks;  // List of all chunks with metadata
 
+    // Files of a collection, in the order they are concatenated; null for a single-file manifest
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private final List<FileEntry> files;
+
+    // Root of the Merkle tree over the chunks, which the file ID commits to; null for a flat manifest
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private final Hash merkleRoot;
+
     @JsonCreator
     public Manifest(
             @JsonProperty("fileId") String fileId,
             @JsonProperty("filename") String filename,
             @JsonProperty("fileSize") long fileSize,
             @JsonProperty("chunkSize") int chunkSize,
-            @JsonProperty("chunks") List<ChunkInfo> chunks) {
+            @JsonProperty("chunking") ChunkingMode chunking,
+            @JsonProperty("chunks") List<ChunkInfo> chunks,
+            @JsonProperty("files") List<FileEntry> files,
+            @JsonProperty("merkleRoot") Hash merkleRoot) {
         this.fileId = fileId;
         this.filename = filename;
         this.fileSize = fileSize;
         this.chunkSize = chunkSize;
+        this.chunking = chunking != null ? chunking : ChunkingMode.FIXED;
         this.chunks = chunks;
+        this.files = files;
+        this.merkleRoot = merkleRoot;
+    }
+
+    public Manifest(String fileId, String filename, long fileSize, int chunkSize, ChunkingMode chunking,
+                    List<ChunkInfo> chunks, List<FileEntry> files) {
+        this(fileId, filename, fileSize, chunkSize, chunking, chunks, files, null);
+    }
+
+    // Single-file manifest
+    public Manifest(String fileId, String filename, long fileSize, int chunkSize, ChunkingMode chunking,
+                    List<ChunkInfo> chunks) {
+        this(fileId, filename, fileSize, chunkSize, chunking, chunks, null);
+    }
+
+    // True if the file ID commits to a Merkle root, so the chunk list can be fetched and checked in segments
+    @JsonIgnore
+    public boolean isMerkle() {
+        return merkleRoot != null;
+    }
+
+    // True if this manifest describes a directory tree whose files are chunked as one byte range
+    @JsonIgnore
+    public boolean isCollection() {
+        return files != null;
     }
 
     // Returns total number of chunks
@@ -36,6 +76,35 @@ public class Manifest {
         return chunks.size();
     }
 
+    // Byte offset of a chunk within the file; manifests written before offsets were recorded are fixed-size
+    public long getChunkOffset(int index) {
+        if (chunking == ChunkingMode.FIXED) {
+            return (long) index * chunkSize;
+        }
+        return getChunk(index).getOffset();
+    }
+
+    // Index of the chunk holding the byte at the given offset
+    public int chunkIndexAt(long offset) {
+        if (offset < 0 || offset >= fileSize) {
+            throw new IllegalArgumentException("Offset outside the file: " + offset);
+        }
+        if (chunking == ChunkingMode.FIXED) {
+            return (int) (offset / chunkSize);
+        }
+        int low = 0;
+        int high = chunks.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (chunks.get(mid).getOffset() <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
     // Gets chunk metadata by index
     public ChunkInfo getChunk(int index) {
         if (index < 0 || index >= chunks.size()) {
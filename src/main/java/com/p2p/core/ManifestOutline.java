@@ -0,0 +1,124 @@
+package com.p2p.core;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// What a download of a Merkle manifest starts from: the file's metadata, the Merkle root its file ID
+// commits to and the segment layer of the tree. The chunk lists themselves are fetched one segment at a
+// time, each checked against its segment hash, so the outline stays about 1/1000 of the full manifest.
+@Data
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class ManifestOutline {
+    private final String fileId;           // SHA-256 over the metadata and the Merkle root
+    private final String filename;
+    private final long fileSize;
+    private final int chunkSize;
+    private final ChunkingMode chunking;
+    private final int chunkCount;
+    private final Hash root;               // Root of the tree over every chunk
+    private final List<Hash> segments;     // Root of each segment's subtree, in order
+
+    // Files of a collection, as in the manifest; null for a single file
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private final List<FileEntry> files;
+
+    @JsonCreator
+    public ManifestOutline(
+            @JsonProperty("fileId") String fileId,
+            @JsonProperty("filename") String filename,
+            @JsonProperty("fileSize") long fileSize,
+            @JsonProperty("chunkSize") int chunkSize,
+            @JsonProperty("chunking") ChunkingMode chunking,
+            @JsonProperty("chunkCount") int chunkCount,
+            @JsonProperty("root") Hash root,
+            @JsonProperty("segments") List<Hash> segments,
+            @JsonProperty("files") List<FileEntry> files) {
+        this.fileId = fileId;
+        this.filename = filename;
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
+        this.chunking = chunking != null ? chunking : ChunkingMode.FIXED;
+        this.chunkCount = chunkCount;
+        this.root = root;
+        this.segments = segments;
+        this.files = files;
+    }
+
+    // Outline of a complete Merkle manifest; hashes every chunk's leaf once
+    public static ManifestOutline of(Manifest manifest) {
+        return new ManifestOutline(manifest.getFileId(), manifest.getFilename(), manifest.getFileSize(),
+                manifest.getChunkSize(), manifest.getChunking(), manifest.getChunkCount(), manifest.getMerkleRoot(),
+                MerkleTree.segmentRoots(manifest.getChunks()), manifest.getFiles());
+    }
+
+    // File ID of a Merkle manifest: the metadata a download relies on and the root over the chunks
+    public static String fileId(String filename, long fileSize, int chunkSize, ChunkingMode chunking, int chunkCount,
+                                Hash root, List<FileEntry> files) {
+        MessageDigest digest = Hash.newDigest();
+        digest.update("merkle\0".getBytes(StandardCharsets.US_ASCII));
+        digest.update(filename.getBytes(StandardCharsets.UTF_8));
+        digest.update(ByteBuffer.allocate(25).put((byte) 0).putLong(fileSize).putInt(chunkSize)
+                .putInt(chunking.ordinal()).putInt(chunkCount).putInt(files == null ? -1 : files.size()).array());
+        digest.update(root.toBytes());
+        if (files != null) {
+            for (FileEntry entry : files) {
+                digest.update(entry.getPath().getBytes(StandardCharsets.UTF_8));
+                digest.update(ByteBuffer.allocate(17).put((byte) 0).putLong(entry.getOffset())
+                        .putLong(entry.getSize()).array());
+            }
+        }
+        return Hash.toHex(digest.digest());
+    }
+
+    // Checks that the outline is the one the file ID names: its metadata and root hash to the ID,
+    // and its segment layer hashes to the root
+    public void verify(String expectedFileId) throws IOException {
+        if (!expectedFileId.equals(fileId)) {
+            throw new IOException("Received manifest outline for a different file: " + fileId);
+        }
+        if (filename == null || root == null || segments == null || chunkCount < 0 || chunkSize <= 0
+                || segments.size() != MerkleTree.segmentCount(chunkCount) || segments.contains(null)) {
+            throw new IOException("Malformed manifest outline for " + fileId);
+        }
+        if (!fileId(filename, fileSize, chunkSize, chunking, chunkCount, root, files).equals(fileId)) {
+            throw new IOException("Manifest outline does not match file ID " + fileId);
+        }
+        if (!MerkleTree.root(segments).equals(root)) {
+            throw new IOException("Manifest outline segments do not match the Merkle root of " + fileId);
+        }
+    }
+
+    // Whether a segment's chunk list is the one the outline commits to
+    public boolean isValidSegment(int segment, List<ChunkInfo> chunks) {
+        if (segment < 0 || segment >= segments.size() || chunks == null
+                || chunks.size() != MerkleTree.segmentSize(chunkCount, segment)) {
+            return false;
+        }
+        int first = segment * MerkleTree.SEGMENT_CHUNKS;
+        for (int i = 0; i < chunks.size(); i++) {
+            ChunkInfo chunk = chunks.get(i);
+            if (chunk == null || chunk.getIndex() != first + i || chunk.getHash() == null || chunk.getSize() <= 0
+                    || chunk.getSize() > chunkSize || chunk.getOffset() < 0 || chunk.getOffset() + chunk.getSize() > fileSize) {
+                return false;
+            }
+        }
+        return MerkleTree.root(chunks, 0, chunks.size()).equals(segments.get(segment));
+    }
+
+    // Manifest to fill in segment by segment; chunks of segments not yet fetched are null
+    public Manifest toManifest() {
+        List<ChunkInfo> chunks = new ArrayList<>(Collections.nCopies(chunkCount, null));
+        return new Manifest(fileId, filename, fileSize, chunkSize, chunking, chunks, files, root);
+    }
+}
@@ -0,0 +1,106 @@
+package com.p2p.core;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+// Binary hash tree over a manifest's chunks. A leaf commits to everything a download trusts about a
+// chunk (hash, offset, size and weak hash); parents hash their two children, and an odd node at the end
+// of a layer moves up unchanged. Leaves are grouped into segments of SEGMENT_CHUNKS; as that is a power
+// of two, each segment's root is a node of the full tree, so a download can check one segment against
+// the segment layer and that layer against the root without having the other segments.
+public final class MerkleTree {
+
+    // Chunks per segment, the unit in which chunk lists are fetched
+    public static final int SEGMENT_CHUNKS = 1024;
+
+    // Prefixes keep a leaf from being passed off as a parent and vice versa
+    private static final byte LEAF = 0;
+    private static final byte PARENT = 1;
+
+    private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(Hash::newDigest);
+    private static final ThreadLocal<ByteBuffer> buffers =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(1 + 2 * Hash.BYTES));
+
+    private MerkleTree() {
+    }
+
+    public static int segmentCount(int chunkCount) {
+        return (chunkCount + SEGMENT_CHUNKS - 1) / SEGMENT_CHUNKS;
+    }
+
+    // Chunks in the given segment; only the last may have fewer than SEGMENT_CHUNKS
+    public static int segmentSize(int chunkCount, int segment) {
+        return Math.min(SEGMENT_CHUNKS, chunkCount - segment * SEGMENT_CHUNKS);
+    }
+
+    public static Hash leaf(ChunkInfo chunk) {
+        ByteBuffer buffer = buffers.get();
+        buffer.clear();
+        buffer.put(LEAF);
+        putHash(buffer, chunk.getHash());
+        MessageDigest digest = digests.get();
+        digest.update(buffer.array(), 0, buffer.position());
+        buffer.clear();
+        buffer.putLong(chunk.getOffset());
+        buffer.putLong(chunk.getSize());
+        buffer.putInt(chunk.getWeakHash());
+        digest.update(buffer.array(), 0, buffer.position());
+        return Hash.of(digest.digest());
+    }
+
+    public static Hash parent(Hash left, Hash right) {
+        ByteBuffer buffer = buffers.get();
+        buffer.clear();
+        buffer.put(PARENT);
+        putHash(buffer, left);
+        putHash(buffer, right);
+        MessageDigest digest = digests.get();
+        digest.update(buffer.array(), 0, buffer.position());
+        return Hash.of(digest.digest());
+    }
+
+    // Root over a layer of nodes; the root of no nodes is the hash of nothing
+    public static Hash root(List<Hash> layer) {
+        if (layer.isEmpty()) {
+            return Hash.sha256(new byte[0]);
+        }
+        List<Hash> nodes = new ArrayList<>(layer);
+        while (nodes.size() > 1) {
+            int parents = (nodes.size() + 1) / 2;
+            for (int i = 0; i < parents; i++) {
+                int left = 2 * i;
+                nodes.set(i, left + 1 < nodes.size() ? parent(nodes.get(left), nodes.get(left + 1)) : nodes.get(left));
+            }
+            nodes.subList(parents, nodes.size()).clear();
+        }
+        return nodes.get(0);
+    }
+
+    // Root of the leaves of the chunks in the list, e.g. one segment's chunks
+    public static Hash root(List<ChunkInfo> chunks, int from, int to) {
+        List<Hash> leaves = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            leaves.add(leaf(chunks.get(i)));
+        }
+        return root(leaves);
+    }
+
+    // Segment layer of the tree over all chunks
+    public static List<Hash> segmentRoots(List<ChunkInfo> chunks) {
+        int count = segmentCount(chunks.size());
+        List<Hash> roots = new ArrayList<>(count);
+        for (int segment = 0; segment < count; segment++) {
+            int from = segment * SEGMENT_CHUNKS;
+            roots.add(root(chunks, from, from + segmentSize(chunks.size(), segment)));
+        }
+        return roots;
+    }
+
+    private static void putHash(ByteBuffer buffer, Hash hash) {
+        for (int i = 0; i < 4; i++) {
+            buffer.putLong(hash.word(i));
+        }
+    }
+}
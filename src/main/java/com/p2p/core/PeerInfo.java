@@ -1,5 +1,6 @@
 package com.p2p.core;
 
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
@@ -12,6 +13,7 @@ import java.util.UUID;
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
+@JsonIgnoreProperties(ignoreUnknown = true)
 public class PeerInfo {
     private String peerId;                      // Unique peer identifier (UUID)
     private String host;                        // IP address or hostname
@@ -0,0 +1,350 @@
+package com.p2p.daemon;
+
+import com.p2p.core.Manifest;
+import com.p2p.network.PeerServer;
+import com.p2p.storage.FileIndexer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Seeds every file below a set of directories and keeps the shared set in sync with the filesystem.
+// Each file is its own download. Changes are picked up through a WatchService; a file is hashed once
+// it has been quiet for a moment, so files still being copied in are not hashed over and over.
+public class SeedDaemon implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(SeedDaemon.class);
+
+    // A file must go this long without further events before it is hashed
+    private static final long QUIET_MILLIS = 2000;
+
+    // Hash cache changes are written at most this often; a scan of many files would otherwise rewrite
+    // the whole cache once per file
+    private static final long CACHE_SAVE_MILLIS = 5000;
+
+    private final FileIndexer indexer;
+    private final PeerServer server;
+    private final List<Path> roots = new ArrayList<>();
+    private final List<Path> excluded = new ArrayList<>();
+    private final WatchService watcher;
+
+    // Hashing pool; its size bounds how many files are read at once
+    private final ScheduledThreadPoolExecutor hashers;
+
+    private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+    private final Map<Path, ScheduledFuture<?>> pending = new ConcurrentHashMap<>();
+
+    // Seeded path -> file ID; guarded by this. Identical files share one ID, which stays advertised
+    // while any of them exists.
+    private final Map<Path, String> seeded = new HashMap<>();
+
+    private final AtomicBoolean cacheSaveScheduled = new AtomicBoolean();
+
+    private volatile boolean running;
+    private Thread watchThread;
+
+    public SeedDaemon(FileIndexer indexer, PeerServer server, List<Path> directories, int hashThreads)
+            throws IOException {
+        for (Path directory : directories) {
+            if (!Files.isDirectory(directory)) {
+                throw new IOException("Not a directory: " + directory.toAbsolutePath());
+            }
+            roots.add(directory.toRealPath());
+        }
+        this.indexer = indexer;
+        this.server = server;
+        this.watcher = FileSystems.getDefault().newWatchService();
+        this.hashers = new ScheduledThreadPoolExecutor(hashThreads, runnable -> {
+            Thread thread = new Thread(runnable, "seed-hasher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.hashers.setRemoveOnCancelPolicy(true);
+    }
+
+    // Never seeds below this directory, e.g. the manifest store when it sits inside a watched tree;
+    // its own writes would otherwise be hashed again forever
+    public void exclude(Path directory) throws IOException {
+        if (Files.exists(directory)) {
+            excluded.add(directory.toRealPath());
+        }
+    }
+
+    // Registers watches, queues every existing file for indexing and starts following changes
+    public void start() throws IOException {
+        running = true;
+        for (Path root : roots) {
+            scan(root, 0);
+        }
+        logger.info("Watching {} director(ies), {} file(s) queued for indexing", roots.size(), pending.size());
+
+        watchThread = new Thread(this::watch, "seed-watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    // Number of files currently seeded
+    public synchronized int getSeededCount() {
+        return seeded.size();
+    }
+
+    private void watch() {
+        while (running) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                break;
+            }
+
+            Path directory = watchedDirectories.get(key);
+            if (directory != null) {
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    handle(directory, event);
+                }
+            }
+            if (!key.reset()) {
+                watchedDirectories.remove(key);
+            }
+        }
+    }
+
+    private void handle(Path directory, WatchEvent<?> event) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            logger.warn("Watch events were lost, rescanning");
+            rescan();
+            return;
+        }
+
+        Path path = directory.resolve((Path) event.context());
+        if (isIgnored(path)) {
+            return;
+        }
+        try {
+            if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                forget(path);
+            } else if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                // Files may have landed before the watch was registered, so walk the new directory
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                    scan(path, QUIET_MILLIS);
+                }
+            } else {
+                schedule(path, QUIET_MILLIS);
+            }
+        } catch (IOException e) {
+            logger.warn("Could not follow {}: {}", path, e.getMessage());
+        }
+    }
+
+    // Registers watches for a directory tree and queues its regular files
+    private void scan(Path directory, long delayMillis) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                if (!dir.equals(directory) && isIgnored(dir)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                watchedDirectories.put(key, dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (attributes.isRegularFile() && !isIgnored(file)) {
+                    schedule(file, delayMillis);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                logger.warn("Skipping {}: {}", file, e.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // Picks up whatever changed while events were dropped
+    private void rescan() {
+        List<Path> gone = new ArrayList<>();
+        synchronized (this) {
+            for (Path path : seeded.keySet()) {
+                if (!Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)) {
+                    gone.add(path);
+                }
+            }
+        }
+        for (Path path : gone) {
+            forget(path);
+        }
+        for (Path root : roots) {
+            try {
+                scan(root, QUIET_MILLIS);
+            } catch (IOException e) {
+                logger.warn("Could not rescan {}: {}", root, e.getMessage());
+            }
+        }
+    }
+
+    // (Re)starts the quiet period of a file; the indexer's hash cache makes unchanged files cheap
+    private void schedule(Path path, long delayMillis) {
+        pending.compute(path, (key, previous) -> {
+            if (previous != null) {
+                previous.cancel(false);
+            }
+            AtomicReference<ScheduledFuture<?>> self = new AtomicReference<>();
+            self.set(hashers.schedule(() -> index(path, self), delayMillis, TimeUnit.MILLISECONDS));
+            return self.get();
+        });
+    }
+
+    private void index(Path path, AtomicReference<ScheduledFuture<?>> self) {
+        try {
+            index(path);
+        } finally {
+            // A newer event may already have queued the path again; its entry must stay
+            pending.remove(path, self.get());
+        }
+    }
+
+    private void index(Path path) {
+        if (!running) {
+            return;
+        }
+        try {
+            if (!Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)) {
+                forget(path);
+                return;
+            }
+            Manifest manifest = indexer.index(path.toFile(), false);
+            cacheChanged();
+            update(path, manifest.getFileId());
+        } catch (IOException e) {
+            // Usually a file that changed or vanished mid-read; its next event queues it again
+            logger.warn("Could not index {}: {}", path, e.getMessage());
+        } catch (RuntimeException e) {
+            logger.error("Indexing {} failed", path, e);
+        }
+    }
+
+    private synchronized void update(Path path, String fileId) {
+        // The file may have been deleted while it was hashed; forget() has then already run, or will
+        // run once the delete event arrives, and must not be undone here
+        if (!Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)) {
+            indexer.getCache().remove(path.toString());
+            return;
+        }
+        String previous = seeded.put(path, fileId);
+        if (fileId.equals(previous)) {
+            return;
+        }
+        logger.info("Seeding {} as {}", path, fileId.substring(0, 8) + "...");
+        server.addAvailableFile(fileId);
+        if (previous != null) {
+            release(previous);
+        }
+    }
+
+    // Stops seeding a deleted file, or every file below a deleted directory
+    private void forget(Path path) {
+        pending.entrySet().removeIf(entry -> {
+            if (entry.getKey().startsWith(path)) {
+                entry.getValue().cancel(false);
+                return true;
+            }
+            return false;
+        });
+
+        boolean changed = false;
+        synchronized (this) {
+            Iterator<Map.Entry<Path, String>> entries = seeded.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<Path, String> entry = entries.next();
+                if (entry.getKey().startsWith(path)) {
+                    entries.remove();
+                    logger.info("Stopped seeding {}", entry.getKey());
+                    indexer.getCache().remove(entry.getKey().toString());
+                    release(entry.getValue());
+                    changed = true;
+                }
+            }
+        }
+        if (changed) {
+            cacheChanged();
+        }
+    }
+
+    // Schedules a save of the hash cache unless one is already due
+    private void cacheChanged() {
+        if (running && cacheSaveScheduled.compareAndSet(false, true)) {
+            hashers.schedule(this::saveCache, CACHE_SAVE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void saveCache() {
+        cacheSaveScheduled.set(false);
+        try {
+            indexer.getCache().save();
+        } catch (IOException e) {
+            logger.warn("Could not save hash cache: {}", e.getMessage());
+        }
+    }
+
+    // Withdraws a file ID once no seeded path has that content any more
+    private void release(String fileId) {
+        if (!seeded.containsValue(fileId)) {
+            server.removeAvailableFile(fileId);
+        }
+    }
+
+    // Dotfiles and dot-directories are editor swap files, partial downloads and the like
+    private boolean isIgnored(Path path) {
+        Path name = path.getFileName();
+        if (name != null && name.toString().startsWith(".")) {
+            return true;
+        }
+        for (Path directory : excluded) {
+            if (path.startsWith(directory)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        hashers.shutdownNow();
+        // Writes whatever the last scheduled save had not caught up with
+        saveCache();
+        watcher.close();
+        if (watchThread != null) {
+            watchThread.interrupt();
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.p2p.discovery;
 
+import com.p2p.core.Hash;
 import com.p2p.core.PeerInfo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,7 +13,9 @@ public class PeerRegistry {
     private static final Logger logger = LoggerFactory.getLogger(PeerRegistry.class);
 
     private final Map<String, PeerInfo> peers = new ConcurrentHashMap<>();
-    private final Map<String, Set<String>> fileProviders = new ConcurrentHashMap<>();
+
+    // Keyed by the parsed file ID: compact keys with cheap lookups on a busy bootstrap peer
+    private final Map<Hash, Set<String>> fileProviders = new ConcurrentHashMap<>();
 
     // Adds or updates a peer in the registry
     public void addPeer(PeerInfo peerInfo) {
@@ -26,11 +29,35 @@ public class PeerRegistry {
         }
 
         for (String fileId : peerInfo.getAvailableFiles()) {
-            fileProviders.computeIfAbsent(fileId, k -> ConcurrentHashMap.newKeySet())
-                    .add(peerInfo.getPeerId());
+            addProvider(fileId, peerInfo.getPeerId());
         }
     }
 
+    // Applies an ANNOUNCE from a known peer to its file list and the provider index
+    public void updateFiles(String peerId, Collection<String> added, Collection<String> removed) {
+        PeerInfo peer = peers.get(peerId);
+        if (peer == null) {
+            logger.debug("Ignoring file update from unknown peer: {}", peerId);
+            return;
+        }
+
+        Set<String> files = new LinkedHashSet<>(peer.getAvailableFiles());
+        files.addAll(added);
+        files.removeAll(removed);
+        peers.put(peerId, new PeerInfo(peer.getPeerId(), peer.getHost(), peer.getPort(), new ArrayList<>(files)));
+
+        for (String fileId : added) {
+            addProvider(fileId, peerId);
+        }
+        for (String fileId : removed) {
+            Set<String> providers = providersOf(fileId);
+            if (providers != null) {
+                providers.remove(peerId);
+            }
+        }
+        logger.debug("Peer {} now shares {} files (+{} -{})", peerId, files.size(), added.size(), removed.size());
+    }
+
     // Removes a peer from the registry
     public void removePeer(String peerId) {
         PeerInfo removed = peers.remove(peerId);
@@ -55,7 +82,7 @@ public class PeerRegistry {
 
     // Returns peers that have a specific file
     public List<PeerInfo> getPeersWithFile(String fileId) {
-        Set<String> providerIds = fileProviders.get(fileId);
+        Set<String> providerIds = providersOf(fileId);
         if (providerIds == null || providerIds.isEmpty()) {
             return Collections.emptyList();
         }
@@ -78,10 +105,23 @@ public class PeerRegistry {
 
     // Returns the number of peers that have a specific file
     public int getProviderCount(String fileId) {
-        Set<String> providers = fileProviders.get(fileId);
+        Set<String> providers = providersOf(fileId);
         return providers == null ? 0 : providers.size();
     }
 
+    // File IDs that are not digests cannot name a manifest and are not indexed
+    private void addProvider(String fileId, String peerId) {
+        Hash key = Hash.tryParse(fileId);
+        if (key != null) {
+            fileProviders.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(peerId);
+        }
+    }
+
+    private Set<String> providersOf(String fileId) {
+        Hash key = Hash.tryParse(fileId);
+        return key != null ? fileProviders.get(key) : null;
+    }
+
     // Clears all peers from the registry
     public void clear() {
         peers.clear();
@@ -0,0 +1,37 @@
+package com.p2p.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Chunk traffic in both directions for one peer or one file
+public class TrafficStats {
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder chunksReceived = new LongAdder();
+    private final LongAdder chunksSent = new LongAdder();
+
+    public void received(long bytes) {
+        bytesReceived.add(bytes);
+        chunksReceived.increment();
+    }
+
+    public void sent(long bytes) {
+        bytesSent.add(bytes);
+        chunksSent.increment();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    public long getChunksReceived() {
+        return chunksReceived.sum();
+    }
+
+    public long getChunksSent() {
+        return chunksSent.sum();
+    }
+}
@@ -0,0 +1,211 @@
+package com.p2p.metrics;
+
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+// Process-wide transfer instrumentation: chunk traffic per peer and per file, histograms of chunk
+// latency and where chunk time goes (verify, disk, encode), and gauges sampled when exported.
+// Exported as Prometheus text and as a JMX MBean; recording on the chunk path does not allocate.
+public class TransferMetrics {
+    private static final Logger logger = LoggerFactory.getLogger(TransferMetrics.class);
+
+    private static final String MBEAN_NAME = "com.p2p:type=TransferMetrics";
+
+    // Peers and files tracked individually; later ones are counted together so the series stay bounded
+    private static final int MAX_LABELLED = 1000;
+    private static final String OTHER = "other";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    // All durations in nanoseconds
+    @Getter
+    private final Histogram chunkLatency = new Histogram();    // Chunk request sent until its response arrived
+    @Getter
+    private final Histogram verifyTime = new Histogram();      // Hashing a received chunk
+    @Getter
+    private final Histogram diskWriteTime = new Histogram();   // Storing a received chunk and writing it out
+    @Getter
+    private final Histogram diskReadTime = new Histogram();    // Loading and checking a chunk to upload
+    @Getter
+    private final Histogram encodeTime = new Histogram();      // Serializing an outgoing message
+    @Getter
+    private final Histogram decodeTime = new Histogram();      // Parsing an incoming message
+
+    private final Map<String, TrafficStats> peers = new ConcurrentHashMap<>();
+    private final Map<String, TrafficStats> files = new ConcurrentHashMap<>();
+    private final Map<String, Gauge> gauges = new ConcurrentHashMap<>();
+
+    private ObjectName registeredName;
+
+    private static class Gauge {
+        private final String help;
+        private final LongSupplier value;
+
+        private Gauge(String help, LongSupplier value) {
+            this.help = help;
+            this.value = value;
+        }
+    }
+
+    // Receives the exported series, one family header followed by its samples
+    private interface Sink {
+        void family(String name, String type, String help);
+
+        void sample(String series, double value);
+    }
+
+    // Traffic of a peer, by its listening address; look it up once per connection, not per chunk
+    public TrafficStats peer(String address) {
+        return lookup(peers, address);
+    }
+
+    public TrafficStats file(String fileId) {
+        return lookup(files, fileId);
+    }
+
+    private static TrafficStats lookup(Map<String, TrafficStats> map, String key) {
+        TrafficStats stats = map.get(key);
+        if (stats != null) {
+            return stats;
+        }
+        return map.computeIfAbsent(map.size() >= MAX_LABELLED ? OTHER : key, k -> new TrafficStats());
+    }
+
+    // Registers a value read at export time, such as a queue depth; replaces a gauge of the same name
+    public void gauge(String name, String help, LongSupplier value) {
+        gauges.put(name, new Gauge(help, value));
+    }
+
+    // Prometheus text exposition format
+    public String toPrometheusText() {
+        StringBuilder out = new StringBuilder();
+        collect(new Sink() {
+            @Override
+            public void family(String name, String type, String help) {
+                out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+                out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+            }
+
+            @Override
+            public void sample(String series, double value) {
+                out.append(series).append(' ');
+                if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+                    out.append((long) value);
+                } else {
+                    out.append(value);
+                }
+                out.append('\n');
+            }
+        });
+        return out.toString();
+    }
+
+    // Every current series and its value, keyed like the Prometheus series
+    public Map<String, Double> snapshot() {
+        Map<String, Double> values = new LinkedHashMap<>();
+        collect(new Sink() {
+            @Override
+            public void family(String name, String type, String help) {
+            }
+
+            @Override
+            public void sample(String series, double value) {
+                values.put(series, value);
+            }
+        });
+        return values;
+    }
+
+    private void collect(Sink sink) {
+        traffic(sink, "p2p_peer", "peer", peers);
+        traffic(sink, "p2p_file", "file", files);
+
+        summary(sink, "p2p_chunk_latency_seconds", "Chunk request to response time", chunkLatency);
+        summary(sink, "p2p_chunk_verify_seconds", "Time hashing received chunks", verifyTime);
+        summary(sink, "p2p_chunk_disk_write_seconds", "Time storing and writing received chunks", diskWriteTime);
+        summary(sink, "p2p_chunk_disk_read_seconds", "Time loading chunks to upload", diskReadTime);
+        summary(sink, "p2p_message_encode_seconds", "Time serializing messages", encodeTime);
+        summary(sink, "p2p_message_decode_seconds", "Time parsing messages", decodeTime);
+
+        for (Map.Entry<String, Gauge> entry : new TreeMap<>(gauges).entrySet()) {
+            sink.family(entry.getKey(), "gauge", entry.getValue().help);
+            sink.sample(entry.getKey(), entry.getValue().value.getAsLong());
+        }
+    }
+
+    private static void traffic(Sink sink, String prefix, String label, Map<String, TrafficStats> stats) {
+        Map<String, TrafficStats> sorted = new TreeMap<>(stats);
+        sink.family(prefix + "_received_bytes_total", "counter", "Chunk bytes received by " + label);
+        sorted.forEach((key, value) -> sink.sample(series(prefix + "_received_bytes_total", label, key),
+                value.getBytesReceived()));
+        sink.family(prefix + "_sent_bytes_total", "counter", "Chunk bytes sent by " + label);
+        sorted.forEach((key, value) -> sink.sample(series(prefix + "_sent_bytes_total", label, key),
+                value.getBytesSent()));
+        sink.family(prefix + "_received_chunks_total", "counter", "Chunks received by " + label);
+        sorted.forEach((key, value) -> sink.sample(series(prefix + "_received_chunks_total", label, key),
+                value.getChunksReceived()));
+        sink.family(prefix + "_sent_chunks_total", "counter", "Chunks sent by " + label);
+        sorted.forEach((key, value) -> sink.sample(series(prefix + "_sent_chunks_total", label, key),
+                value.getChunksSent()));
+    }
+
+    private static void summary(Sink sink, String name, String help, Histogram histogram) {
+        sink.family(name, "summary", help);
+        for (double quantile : QUANTILES) {
+            sink.sample(series(name, "quantile", String.valueOf(quantile)), seconds(histogram.percentile(quantile * 100)));
+        }
+        sink.sample(name + "_sum", seconds(histogram.getSum()));
+        sink.sample(name + "_count", histogram.getCount());
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    private static String series(String name, String label, String value) {
+        String escaped = value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        return name + "{" + label + "=\"" + escaped + "\"}";
+    }
+
+    // Publishes the metrics as com.p2p:type=TransferMetrics on the platform MBean server
+    public synchronized void registerMBean() {
+        if (registeredName != null) {
+            return;
+        }
+        try {
+            ObjectName name = new ObjectName(MBEAN_NAME);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(this), name);
+            registeredName = name;
+        } catch (InstanceAlreadyExistsException e) {
+            // Several peers in one process, as in the swarm simulator; the first one is published
+            logger.debug("Metrics MBean already registered in this process");
+        } catch (JMException e) {
+            logger.warn("Could not register metrics MBean: {}", e.toString());
+        }
+    }
+
+    public synchronized void unregisterMBean() {
+        if (registeredName == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(registeredName);
+        } catch (JMException e) {
+            logger.debug("Could not unregister metrics MBean: {}", e.toString());
+        }
+        registeredName = null;
+    }
+}
@@ -0,0 +1,38 @@
+package com.p2p.metrics.events;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+// Flight Recorder event for one stage of a chunk's way between peers. Stages are timed with
+// begin() and finish(); while no recording enables them, begin/end/shouldCommit compile to
+// almost nothing and the fields are never filled in.
+@StackTrace(false)
+public abstract class ChunkEvent extends Event {
+
+    @Label("File ID")
+    String fileId;
+
+    @Label("Chunk Index")
+    int chunkIndex;
+
+    @Label("Peer")
+    String peer;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    // Ends the stage and commits it if a recording wants it; peer is only turned into a string then
+    public void finish(String fileId, int chunkIndex, Object peer, long bytes) {
+        end();
+        if (shouldCommit()) {
+            this.fileId = fileId;
+            this.chunkIndex = chunkIndex;
+            this.peer = String.valueOf(peer);
+            this.bytes = bytes;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.p2p.metrics.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.p2p.ChunkFetch")
+@Label("Chunk Fetch")
+@Category({"P2P", "Download"})
+@Description("A chunk request from sending it until its response was handled")
+public class ChunkFetchEvent extends ChunkEvent {
+
+    private static final EventType TYPE = EventType.getEventType(ChunkFetchEvent.class);
+
+    // Started event, or null while no recording enables it, so the span costs nothing when off
+    public static ChunkFetchEvent startIfEnabled() {
+        if (!TYPE.isEnabled()) {
+            return null;
+        }
+        ChunkFetchEvent event = new ChunkFetchEvent();
+        event.begin();
+        return event;
+    }
+}
@@ -0,0 +1,26 @@
+package com.p2p.metrics.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.p2p.ChunkUpload")
+@Label("Chunk Upload")
+@Category({"P2P", "Upload"})
+@Description("A chunk request from receipt until the response was flushed, including the wait for an upload slot")
+public class ChunkUploadEvent extends ChunkEvent {
+
+    private static final EventType TYPE = EventType.getEventType(ChunkUploadEvent.class);
+
+    // Started event, or null while no recording enables it, so the span costs nothing when off
+    public static ChunkUploadEvent startIfEnabled() {
+        if (!TYPE.isEnabled()) {
+            return null;
+        }
+        ChunkUploadEvent event = new ChunkUploadEvent();
+        event.begin();
+        return event;
+    }
+}
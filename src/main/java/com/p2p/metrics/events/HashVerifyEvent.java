@@ -0,0 +1,13 @@
+package com.p2p.metrics.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.p2p.HashVerify")
+@Label("Hash Verify")
+@Category({"P2P", "Chunk"})
+@Description("Checking chunk data against its SHA-256 hash")
+public class HashVerifyEvent extends ChunkEvent {
+}
@@ -0,0 +1,13 @@
+package com.p2p.metrics.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.p2p.ManifestLookup")
+@Label("Manifest Lookup")
+@Category({"P2P", "Upload"})
+@Description("Finding the manifest of a requested chunk")
+public class ManifestLookupEvent extends ChunkEvent {
+}
@@ -0,0 +1,24 @@
+package com.p2p.metrics.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// File ID and chunk index are only set for chunk requests and responses
+@Name("com.p2p.MessageEncode")
+@Label("Message Encode")
+@Category({"P2P", "Codec"})
+@Description("Serializing a message into its frame")
+public class MessageEncodeEvent extends ChunkEvent {
+
+    @Label("Message Type")
+    String type;
+
+    public void finish(Object type, String fileId, int chunkIndex, Object peer, long bytes) {
+        if (isEnabled()) {
+            this.type = String.valueOf(type);
+        }
+        finish(fileId, chunkIndex, peer, bytes);
+    }
+}
@@ -0,0 +1,13 @@
+package com.p2p.metrics.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.p2p.StorageRead")
+@Label("Storage Read")
+@Category({"P2P", "Upload"})
+@Description("Reading a chunk to upload from the chunk store")
+public class StorageReadEvent extends ChunkEvent {
+}
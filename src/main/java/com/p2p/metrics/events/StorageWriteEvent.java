@@ -0,0 +1,13 @@
+package com.p2p.metrics.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.p2p.StorageWrite")
+@Label("Storage Write")
+@Category({"P2P", "Download"})
+@Description("Storing a received chunk and writing it to the output file")
+public class StorageWriteEvent extends ChunkEvent {
+}
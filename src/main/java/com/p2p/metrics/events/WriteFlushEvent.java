@@ -0,0 +1,26 @@
+package com.p2p.metrics.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.p2p.WriteFlush")
+@Label("Write Flushed")
+@Category({"P2P", "Upload"})
+@Description("Writing a chunk response until the socket accepted all of it, including encoding")
+public class WriteFlushEvent extends ChunkEvent {
+
+    private static final EventType TYPE = EventType.getEventType(WriteFlushEvent.class);
+
+    // Started event, or null while no recording enables it, so the span costs nothing when off
+    public static WriteFlushEvent startIfEnabled() {
+        if (!TYPE.isEnabled()) {
+            return null;
+        }
+        WriteFlushEvent event = new WriteFlushEvent();
+        event.begin();
+        return event;
+    }
+}
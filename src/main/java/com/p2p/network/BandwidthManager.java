@@ -0,0 +1,232 @@
+package com.p2p.network;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Upload and download rate limits applied globally, per peer and per file.
+// All limits are in bytes per second (0 = unlimited) and can be changed while transfers are running.
+public class BandwidthManager {
+    private static final Logger logger = LoggerFactory.getLogger(BandwidthManager.class);
+
+    public enum Direction {
+        UPLOAD,
+        DOWNLOAD
+    }
+
+    private final Scope upload;
+    private final Scope download;
+
+    public BandwidthManager(NetworkConfig config) {
+        this.upload = new Scope(config.getUploadLimit(), config.getPeerUploadLimit(), config.getFileUploadLimit());
+        this.download = new Scope(config.getDownloadLimit(), config.getPeerDownloadLimit(), config.getFileDownloadLimit());
+    }
+
+    // Reserves upload bandwidth and returns how many nanoseconds to hold the data back
+    public long reserveUpload(String peerKey, String fileId, long bytes) {
+        return upload.reserve(peerKey, fileId, bytes);
+    }
+
+    // Reserves download bandwidth and returns how many nanoseconds to wait before asking for more
+    public long reserveDownload(String peerKey, String fileId, long bytes) {
+        return download.reserve(peerKey, fileId, bytes);
+    }
+
+    public void setGlobalLimit(Direction direction, long bytesPerSecond) {
+        scope(direction).global.setRate(bytesPerSecond);
+        logger.info("Global {} limit set to {}", direction, formatRate(bytesPerSecond));
+    }
+
+    // Sets the limit applied to each peer individually
+    public void setPeerLimit(Direction direction, long bytesPerSecond) {
+        Scope scope = scope(direction);
+        scope.defaultPeerLimit = bytesPerSecond;
+        scope.peers.values().forEach(bucket -> bucket.setRate(bytesPerSecond));
+        logger.info("Per-peer {} limit set to {}", direction, formatRate(bytesPerSecond));
+    }
+
+    // Sets the default limit for files without an explicit one
+    public void setDefaultFileLimit(Direction direction, long bytesPerSecond) {
+        Scope scope = scope(direction);
+        scope.defaultFileLimit = bytesPerSecond;
+        scope.files.forEach((fileId, bucket) -> {
+            if (!scope.explicitFiles.containsKey(fileId)) {
+                bucket.setRate(bytesPerSecond);
+            }
+        });
+        logger.info("Per-file {} limit set to {}", direction, formatRate(bytesPerSecond));
+    }
+
+    // Sets a limit for one file, overriding the default file limit
+    public void setFileLimit(Direction direction, String fileId, long bytesPerSecond) {
+        Scope scope = scope(direction);
+        scope.explicitFiles.put(fileId, bytesPerSecond);
+        scope.fileBucket(fileId).setRate(bytesPerSecond);
+        logger.info("{} limit for file {} set to {}", direction, fileId, formatRate(bytesPerSecond));
+    }
+
+    // Counts a connection to a peer; its bucket is kept until the last one closes, so reconnecting
+    // does not hand a peer a fresh, full bucket while its other connections are still transferring
+    public void register(Direction direction, String peerKey) {
+        if (peerKey == null) {
+            return;
+        }
+        Scope scope = scope(direction);
+        synchronized (scope) {
+            scope.connections.merge(peerKey, 1, Integer::sum);
+        }
+    }
+
+    // Drops a connection to a peer, and the peer's bucket with its last connection
+    public void unregister(Direction direction, String peerKey) {
+        if (peerKey == null) {
+            return;
+        }
+        Scope scope = scope(direction);
+        synchronized (scope) {
+            Integer left = scope.connections.computeIfPresent(peerKey, (key, count) -> count > 1 ? count - 1 : null);
+            if (left == null) {
+                scope.peers.remove(peerKey);
+            }
+        }
+    }
+
+    // Drops the bucket of a file that is no longer transferred in this direction; a limit set for the
+    // file itself is kept, and with it a bucket is created again when the file comes back
+    public void forgetFile(Direction direction, String fileId) {
+        Scope scope = scope(direction);
+        if (!scope.explicitFiles.containsKey(fileId)) {
+            scope.files.remove(fileId);
+        }
+    }
+
+    public long getGlobalLimit(Direction direction) {
+        return scope(direction).global.getRate();
+    }
+
+    public long getPeerLimit(Direction direction) {
+        return scope(direction).defaultPeerLimit;
+    }
+
+    public long getDefaultFileLimit(Direction direction) {
+        return scope(direction).defaultFileLimit;
+    }
+
+    // Limits set for single files, by file ID
+    public Map<String, Long> getFileLimits(Direction direction) {
+        return new TreeMap<>(scope(direction).explicitFiles);
+    }
+
+    // Bytes per second reserved in a direction since the previous call, for a gauge; kept apart from
+    // report() so scraping and logging do not shorten each other's interval
+    public long measuredRate(Direction direction) {
+        Scope scope = scope(direction);
+        synchronized (scope) {
+            long now = System.nanoTime();
+            long bytes = scope.global.getTotalBytes();
+            if (now > scope.gaugeSampledAt) {
+                scope.gaugeRate = (long) ((bytes - scope.gaugeSampledBytes) * 1e9 / (now - scope.gaugeSampledAt));
+            }
+            scope.gaugeSampledBytes = bytes;
+            scope.gaugeSampledAt = now;
+            return scope.gaugeRate;
+        }
+    }
+
+    public long getTotalBytes(Direction direction) {
+        return scope(direction).global.getTotalBytes();
+    }
+
+    // Reports actual versus configured rates; each call measures over the interval since the previous one
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        appendReport(sb, Direction.UPLOAD, upload);
+        sb.append("; ");
+        appendReport(sb, Direction.DOWNLOAD, download);
+        return sb.toString();
+    }
+
+    private void appendReport(StringBuilder sb, Direction direction, Scope scope) {
+        sb.append(direction.name().toLowerCase())
+                .append(" ").append(formatThroughput(scope.global.sampleRate()))
+                .append(" of ").append(formatRate(scope.global.getRate()));
+
+        for (Map.Entry<String, TokenBucket> file : scope.files.entrySet()) {
+            if (file.getValue().isLimited()) {
+                sb.append(", file ").append(abbreviate(file.getKey()))
+                        .append(" ").append(formatThroughput(file.getValue().sampleRate()))
+                        .append(" of ").append(formatRate(file.getValue().getRate()));
+            }
+        }
+        for (Map.Entry<String, TokenBucket> peer : scope.peers.entrySet()) {
+            if (peer.getValue().isLimited()) {
+                sb.append(", peer ").append(abbreviate(peer.getKey()))
+                        .append(" ").append(formatThroughput(peer.getValue().sampleRate()))
+                        .append(" of ").append(formatRate(peer.getValue().getRate()));
+            }
+        }
+    }
+
+    private Scope scope(Direction direction) {
+        return direction == Direction.UPLOAD ? upload : download;
+    }
+
+    private static String abbreviate(String id) {
+        return id.length() > 8 ? id.substring(0, 8) + "..." : id;
+    }
+
+    private static String formatRate(long bytesPerSecond) {
+        return bytesPerSecond <= 0 ? "unlimited" : formatThroughput(bytesPerSecond);
+    }
+
+    private static String formatThroughput(double bytesPerSecond) {
+        if (bytesPerSecond >= 1024 * 1024) {
+            return String.format("%.1f MiB/s", bytesPerSecond / (1024.0 * 1024));
+        }
+        return String.format("%.1f KiB/s", bytesPerSecond / 1024.0);
+    }
+
+    // Buckets for one direction
+    private static class Scope {
+        private final TokenBucket global;
+        private final Map<String, TokenBucket> peers = new ConcurrentHashMap<>();
+        private final Map<String, TokenBucket> files = new ConcurrentHashMap<>();
+        private final Map<String, Long> explicitFiles = new ConcurrentHashMap<>();
+        // Open connections per peer key; guarded by the scope
+        private final Map<String, Integer> connections = new HashMap<>();
+        private volatile long defaultPeerLimit;
+        private volatile long defaultFileLimit;
+
+        // Sampling state of measuredRate; guarded by the scope
+        private long gaugeSampledBytes;
+        private long gaugeSampledAt = System.nanoTime();
+        private long gaugeRate;
+
+        private Scope(long globalLimit, long peerLimit, long fileLimit) {
+            this.global = new TokenBucket(globalLimit);
+            this.defaultPeerLimit = peerLimit;
+            this.defaultFileLimit = fileLimit;
+        }
+
+        // The slowest of the applicable buckets decides the delay; unused scopes cost nothing
+        private long reserve(String peerKey, String fileId, long bytes) {
+            long wait = global.reserve(bytes);
+            if (peerKey != null && (defaultPeerLimit > 0 || !peers.isEmpty())) {
+                wait = Math.max(wait, peers.computeIfAbsent(peerKey, k -> new TokenBucket(defaultPeerLimit)).reserve(bytes));
+            }
+            if (fileId != null && (defaultFileLimit > 0 || !explicitFiles.isEmpty())) {
+                wait = Math.max(wait, fileBucket(fileId).reserve(bytes));
+            }
+            return wait;
+        }
+
+        private TokenBucket fileBucket(String fileId) {
+            return files.computeIfAbsent(fileId,
+                    k -> new TokenBucket(explicitFiles.getOrDefault(k, defaultFileLimit)));
+        }
+    }
+}
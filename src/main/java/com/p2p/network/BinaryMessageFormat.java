@@ -0,0 +1,475 @@
+package com.p2p.network;
+
+import com.p2p.core.ChunkInfo;
+import com.p2p.core.ChunkingMode;
+import com.p2p.core.FileEntry;
+import com.p2p.core.Hash;
+import com.p2p.core.Manifest;
+import com.p2p.core.ManifestOutline;
+import com.p2p.core.PeerInfo;
+import com.p2p.protocol.*;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Compact binary encoding of every message, written to and read from frame buffers field by field.
+// A frame starts with a zero marker byte, which no JSON frame does, and the message type's ordinal;
+// the fields follow in declaration order. Integers and lengths are unsigned LEB128 varints, strings
+// and lists are prefixed with their length plus one so 0 stands for null, hashes are 32 raw bytes and
+// chunk data is sent as it is rather than in Base64. There are no field names, so any change to a
+// message needs a new format name to negotiate.
+final class BinaryMessageFormat {
+
+    // First byte of every binary frame; JSON frames start with '{'
+    static final int MARKER = 0;
+
+    private static final MessageType[] TYPES = MessageType.values();
+    private static final ChunkingMode[] CHUNKING_MODES = ChunkingMode.values();
+    private static final ChunkRejectMessage.Reason[] REJECT_REASONS = ChunkRejectMessage.Reason.values();
+
+    private BinaryMessageFormat() {
+    }
+
+    static void write(Message message, ByteBuf out) throws IOException {
+        out.writeByte(MARKER);
+        out.writeByte(message.getType().ordinal());
+        switch (message.getType()) {
+            case HELLO: {
+                HelloMessage hello = (HelloMessage) message;
+                writeString(out, hello.getPeerId());
+                writeStrings(out, hello.getAvailableFiles());
+                writeVarInt(out, hello.getPort());
+                writeStrings(out, hello.getCompression());
+                writeStrings(out, hello.getFormats());
+                writeVarInt(out, hello.getBlockSize());
+                break;
+            }
+            case MANIFEST_REQUEST: {
+                ManifestRequestMessage request = (ManifestRequestMessage) message;
+                writeString(out, request.getFileId());
+                out.writeBoolean(request.isOutline());
+                break;
+            }
+            case MANIFEST_RESPONSE: {
+                ManifestResponseMessage response = (ManifestResponseMessage) message;
+                writeManifest(out, response.getManifest());
+                writeOutline(out, response.getOutline());
+                break;
+            }
+            case CHUNK_REQUEST: {
+                ChunkRequestMessage request = (ChunkRequestMessage) message;
+                writeString(out, request.getFileId());
+                writeVarInt(out, request.getChunkIndex());
+                break;
+            }
+            case CHUNK_RESPONSE: {
+                ChunkResponseMessage response = (ChunkResponseMessage) message;
+                writeString(out, response.getFileId());
+                writeVarInt(out, response.getChunkIndex());
+                writeBytes(out, response.getData());
+                writeHash(out, response.getHash());
+                writeString(out, response.getEncoding());
+                break;
+            }
+            case PEER_LIST_REQUEST:
+            case HEARTBEAT:
+                break;
+            case PEER_LIST_RESPONSE:
+                writePeers(out, ((PeerListResponseMessage) message).getPeers());
+                break;
+            case CHUNK_REJECT: {
+                ChunkRejectMessage reject = (ChunkRejectMessage) message;
+                writeString(out, reject.getFileId());
+                writeVarInt(out, reject.getChunkIndex());
+                out.writeByte(reject.getReason().ordinal());
+                writeVarLong(out, reject.getRetryAfterMillis());
+                break;
+            }
+            case ANNOUNCE: {
+                AnnounceMessage announce = (AnnounceMessage) message;
+                writeString(out, announce.getPeerId());
+                writeStrings(out, announce.getAdded());
+                writeStrings(out, announce.getRemoved());
+                break;
+            }
+            case MANIFEST_SEGMENT_REQUEST: {
+                ManifestSegmentRequestMessage request = (ManifestSegmentRequestMessage) message;
+                writeString(out, request.getFileId());
+                writeVarInt(out, request.getSegment());
+                break;
+            }
+            case MANIFEST_SEGMENT_RESPONSE: {
+                ManifestSegmentResponseMessage response = (ManifestSegmentResponseMessage) message;
+                writeString(out, response.getFileId());
+                writeVarInt(out, response.getSegment());
+                writeChunks(out, response.getChunks());
+                break;
+            }
+            case CHUNK_BLOCK: {
+                ChunkBlockMessage block = (ChunkBlockMessage) message;
+                writeString(out, block.getFileId());
+                writeVarInt(out, block.getChunkIndex());
+                writeVarLong(out, block.getOffset());
+                writeBytes(out, block.getData());
+                writeString(out, block.getEncoding());
+                break;
+            }
+            default:
+                throw new IOException("No binary encoding for " + message.getType());
+        }
+    }
+
+    static Message read(ByteBuf in) throws IOException {
+        try {
+            if (in.readUnsignedByte() != MARKER) {
+                throw new IOException("Not a binary frame");
+            }
+            MessageType type = readEnum(in, TYPES);
+            Message message;
+            switch (type) {
+                case HELLO:
+                    message = new HelloMessage(readString(in), readStrings(in), readVarInt(in), readStrings(in),
+                            readStrings(in), readVarInt(in));
+                    break;
+                case MANIFEST_REQUEST:
+                    message = new ManifestRequestMessage(readString(in), in.readBoolean());
+                    break;
+                case MANIFEST_RESPONSE:
+                    message = new ManifestResponseMessage(readManifest(in), readOutline(in));
+                    break;
+                case CHUNK_REQUEST:
+                    message = new ChunkRequestMessage(readString(in), readVarInt(in));
+                    break;
+                case CHUNK_RESPONSE:
+                    message = new ChunkResponseMessage(readString(in), readVarInt(in), readBytes(in), readHash(in),
+                            readString(in));
+                    break;
+                case PEER_LIST_REQUEST:
+                    message = new PeerListRequestMessage();
+                    break;
+                case PEER_LIST_RESPONSE:
+                    message = new PeerListResponseMessage(readPeers(in));
+                    break;
+                case HEARTBEAT:
+                    message = new HeartbeatMessage();
+                    break;
+                case CHUNK_REJECT:
+                    message = new ChunkRejectMessage(readString(in), readVarInt(in), readEnum(in, REJECT_REASONS),
+                            readVarLong(in));
+                    break;
+                case ANNOUNCE:
+                    message = new AnnounceMessage(readString(in), readStrings(in), readStrings(in));
+                    break;
+                case MANIFEST_SEGMENT_REQUEST:
+                    message = new ManifestSegmentRequestMessage(readString(in), readVarInt(in));
+                    break;
+                case MANIFEST_SEGMENT_RESPONSE:
+                    message = new ManifestSegmentResponseMessage(readString(in), readVarInt(in), readChunks(in));
+                    break;
+                case CHUNK_BLOCK:
+                    message = new ChunkBlockMessage(readString(in), readVarInt(in), readVarLong(in), readBytes(in),
+                            readString(in));
+                    break;
+                default:
+                    throw new IOException("No binary encoding for " + type);
+            }
+            if (in.isReadable()) {
+                throw new IOException(in.readableBytes() + " trailing bytes after " + type);
+            }
+            return message;
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Truncated binary frame", e);
+        }
+    }
+
+    private static void writeManifest(ByteBuf out, Manifest manifest) {
+        if (manifest == null) {
+            out.writeByte(0);
+            return;
+        }
+        out.writeByte(1);
+        writeString(out, manifest.getFileId());
+        writeString(out, manifest.getFilename());
+        writeVarLong(out, manifest.getFileSize());
+        writeVarInt(out, manifest.getChunkSize());
+        out.writeByte(manifest.getChunking().ordinal());
+        writeChunks(out, manifest.getChunks());
+        writeFiles(out, manifest.getFiles());
+        writeHash(out, manifest.getMerkleRoot());
+    }
+
+    private static Manifest readManifest(ByteBuf in) throws IOException {
+        if (in.readUnsignedByte() == 0) {
+            return null;
+        }
+        String fileId = readString(in);
+        String filename = readString(in);
+        long fileSize = readVarLong(in);
+        int chunkSize = readVarInt(in);
+        ChunkingMode chunking = readEnum(in, CHUNKING_MODES);
+        List<ChunkInfo> chunks = readChunks(in);
+        List<FileEntry> files = readFiles(in);
+        return new Manifest(fileId, filename, fileSize, chunkSize, chunking, chunks, files, readHash(in));
+    }
+
+    private static void writeOutline(ByteBuf out, ManifestOutline outline) {
+        if (outline == null) {
+            out.writeByte(0);
+            return;
+        }
+        out.writeByte(1);
+        writeString(out, outline.getFileId());
+        writeString(out, outline.getFilename());
+        writeVarLong(out, outline.getFileSize());
+        writeVarInt(out, outline.getChunkSize());
+        out.writeByte(outline.getChunking().ordinal());
+        writeVarInt(out, outline.getChunkCount());
+        writeHash(out, outline.getRoot());
+        List<Hash> segments = outline.getSegments();
+        writeVarInt(out, segments == null ? 0 : segments.size() + 1);
+        if (segments != null) {
+            for (Hash segment : segments) {
+                writeHash(out, segment);
+            }
+        }
+        writeFiles(out, outline.getFiles());
+    }
+
+    private static ManifestOutline readOutline(ByteBuf in) throws IOException {
+        if (in.readUnsignedByte() == 0) {
+            return null;
+        }
+        String fileId = readString(in);
+        String filename = readString(in);
+        long fileSize = readVarLong(in);
+        int chunkSize = readVarInt(in);
+        ChunkingMode chunking = readEnum(in, CHUNKING_MODES);
+        int chunkCount = readVarInt(in);
+        Hash root = readHash(in);
+        List<Hash> segments = null;
+        int segmentCount = readNullableCount(in, 1);
+        if (segmentCount >= 0) {
+            segments = new ArrayList<>(segmentCount);
+            for (int i = 0; i < segmentCount; i++) {
+                segments.add(readHash(in));
+            }
+        }
+        return new ManifestOutline(fileId, filename, fileSize, chunkSize, chunking, chunkCount, root, segments,
+                readFiles(in));
+    }
+
+    private static void writeChunks(ByteBuf out, List<ChunkInfo> chunks) {
+        writeVarInt(out, chunks == null ? 0 : chunks.size() + 1);
+        if (chunks != null) {
+            for (ChunkInfo chunk : chunks) {
+                writeVarInt(out, chunk.getIndex());
+                writeVarLong(out, chunk.getOffset());
+                writeHash(out, chunk.getHash());
+                out.writeInt(chunk.getWeakHash());
+                writeVarLong(out, chunk.getSize());
+            }
+        }
+    }
+
+    private static List<ChunkInfo> readChunks(ByteBuf in) throws IOException {
+        // Every chunk takes at least 40 bytes, which bounds the list a frame can claim
+        int count = readNullableCount(in, 40);
+        if (count < 0) {
+            return null;
+        }
+        List<ChunkInfo> chunks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            chunks.add(new ChunkInfo(readVarInt(in), readVarLong(in), readHash(in), in.readInt(), readVarLong(in)));
+        }
+        return chunks;
+    }
+
+    private static void writeFiles(ByteBuf out, List<FileEntry> files) {
+        writeVarInt(out, files == null ? 0 : files.size() + 1);
+        if (files != null) {
+            for (FileEntry file : files) {
+                writeString(out, file.getPath());
+                writeVarLong(out, file.getOffset());
+                writeVarLong(out, file.getSize());
+            }
+        }
+    }
+
+    private static List<FileEntry> readFiles(ByteBuf in) throws IOException {
+        int count = readNullableCount(in, 3);
+        if (count < 0) {
+            return null;
+        }
+        List<FileEntry> files = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            files.add(new FileEntry(readString(in), readVarLong(in), readVarLong(in)));
+        }
+        return files;
+    }
+
+    private static void writePeers(ByteBuf out, List<PeerInfo> peers) {
+        writeVarInt(out, peers == null ? 0 : peers.size() + 1);
+        if (peers != null) {
+            for (PeerInfo peer : peers) {
+                writeString(out, peer.getPeerId());
+                writeString(out, peer.getHost());
+                writeVarInt(out, peer.getPort());
+                writeVarLong(out, peer.getLastSeen());
+                writeStrings(out, peer.getAvailableFiles());
+            }
+        }
+    }
+
+    private static List<PeerInfo> readPeers(ByteBuf in) throws IOException {
+        int count = readNullableCount(in, 5);
+        if (count < 0) {
+            return null;
+        }
+        List<PeerInfo> peers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            peers.add(new PeerInfo(readString(in), readString(in), readVarInt(in), readVarLong(in),
+                    readStrings(in)));
+        }
+        return peers;
+    }
+
+    private static void writeString(ByteBuf out, String value) {
+        if (value == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        writeVarInt(out, ByteBufUtil.utf8Bytes(value) + 1);
+        out.writeCharSequence(value, StandardCharsets.UTF_8);
+    }
+
+    private static String readString(ByteBuf in) throws IOException {
+        int length = readVarInt(in);
+        if (length == 0) {
+            return null;
+        }
+        return in.readCharSequence(readable(in, length - 1), StandardCharsets.UTF_8).toString();
+    }
+
+    private static void writeStrings(ByteBuf out, List<String> values) {
+        writeVarInt(out, values == null ? 0 : values.size() + 1);
+        if (values != null) {
+            for (String value : values) {
+                writeString(out, value);
+            }
+        }
+    }
+
+    private static List<String> readStrings(ByteBuf in) throws IOException {
+        int count = readNullableCount(in, 1);
+        if (count < 0) {
+            return null;
+        }
+        List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(readString(in));
+        }
+        return values;
+    }
+
+    private static void writeBytes(ByteBuf out, byte[] data) {
+        if (data == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        writeVarInt(out, data.length + 1);
+        out.writeBytes(data);
+    }
+
+    private static byte[] readBytes(ByteBuf in) throws IOException {
+        int length = readVarInt(in);
+        if (length == 0) {
+            return null;
+        }
+        byte[] data = new byte[readable(in, length - 1)];
+        in.readBytes(data);
+        return data;
+    }
+
+    private static void writeHash(ByteBuf out, Hash hash) {
+        if (hash == null) {
+            out.writeByte(0);
+            return;
+        }
+        out.writeByte(1);
+        for (int i = 0; i < 4; i++) {
+            out.writeLong(hash.word(i));
+        }
+    }
+
+    private static Hash readHash(ByteBuf in) {
+        if (in.readUnsignedByte() == 0) {
+            return null;
+        }
+        return Hash.ofWords(in.readLong(), in.readLong(), in.readLong(), in.readLong());
+    }
+
+    private static <E extends Enum<E>> E readEnum(ByteBuf in, E[] values) throws IOException {
+        int ordinal = in.readUnsignedByte();
+        if (ordinal >= values.length) {
+            throw new IOException("Unknown " + values[0].getDeclaringClass().getSimpleName() + " " + ordinal);
+        }
+        return values[ordinal];
+    }
+
+    // Element count of a list written with its length plus one, or -1 for null
+    private static int readNullableCount(ByteBuf in, int minElementBytes) throws IOException {
+        int count = readVarInt(in);
+        return count == 0 ? -1 : readCount(in, count - 1, minElementBytes);
+    }
+
+    // Checks a list length against the rest of the frame, its elements taking at least the given bytes each
+    private static int readCount(ByteBuf in, int count, int minElementBytes) throws IOException {
+        if (count < 0 || (long) count * minElementBytes > in.readableBytes()) {
+            throw new IOException("List of " + count + " elements does not fit the frame");
+        }
+        return count;
+    }
+
+    private static int readable(ByteBuf in, int length) throws IOException {
+        if (length < 0 || length > in.readableBytes()) {
+            throw new IOException("Field of " + length + " bytes does not fit the frame");
+        }
+        return length;
+    }
+
+    private static void writeVarInt(ByteBuf out, int value) {
+        writeVarLong(out, value & 0xFFFFFFFFL);
+    }
+
+    private static int readVarInt(ByteBuf in) throws IOException {
+        long value = readVarLong(in);
+        if (value > 0xFFFFFFFFL) {
+            throw new IOException("Varint out of range: " + value);
+        }
+        return (int) value;
+    }
+
+    private static void writeVarLong(ByteBuf out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(ByteBuf in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint longer than 64 bits");
+    }
+}
@@ -0,0 +1,241 @@
+package com.p2p.network;
+
+import com.p2p.core.Hash;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Wire compression of uploaded chunks. Peers list the encodings they can decode in their HELLO, and a
+// chunk is compressed only for a peer that offered one, and only if a sample of it looks compressible:
+// media, archives and encrypted data cost a few microseconds instead of a deflate pass. The outcome for
+// recently sent chunks is cached, bounded in bytes, so a popular chunk is compressed once and later
+// served without reading it from disk, and a chunk found incompressible is not sampled again.
+public class ChunkCompression {
+
+    public static final String DEFLATE = "deflate";
+
+    // Encodings this peer can decode, in order of preference
+    private static final List<String> SUPPORTED = List.of(DEFLATE);
+
+    // Sampled data above this entropy is taken as already compressed or encrypted
+    private static final double MAX_SAMPLE_ENTROPY = 7.5;
+    private static final int SAMPLE_WINDOWS = 16;
+    private static final int SAMPLE_WINDOW_SIZE = 256;
+
+    // Compressed data must be at most this share of the chunk to be sent instead of it
+    private static final int MAX_RATIO_PERCENT = 90;
+
+    // Cached for chunks sent as they are
+    private static final byte[] INCOMPRESSIBLE = new byte[0];
+
+    // Cache bytes charged per entry besides its data, for the key and map entry
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private static final ThreadLocal<Deflater> deflaters =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    private final boolean enabled;
+    private final long cacheLimit;
+
+    // Compressed forms by chunk hash, least recently sent first; guarded by this
+    private final LinkedHashMap<Hash, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+
+    private final LongAdder compressedChunks = new LongAdder();
+    private final LongAdder skippedChunks = new LongAdder();
+    private final LongAdder savedBytes = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+
+    public ChunkCompression(NetworkConfig config) {
+        this.enabled = config.isCompression();
+        this.cacheLimit = config.getCompressionCacheSize();
+    }
+
+    // Encodings to offer in a HELLO; null when compression is off, as a peer without it sends nothing
+    public static List<String> encodings(NetworkConfig config) {
+        return config.isCompression() ? SUPPORTED : null;
+    }
+
+    public List<String> getEncodings() {
+        return enabled ? SUPPORTED : null;
+    }
+
+    // Encoding to send a peer with, from those it offered, or null to send chunks as they are
+    public String negotiate(List<String> offered) {
+        if (!enabled || offered == null) {
+            return null;
+        }
+        for (String encoding : SUPPORTED) {
+            if (offered.contains(encoding)) {
+                return encoding;
+            }
+        }
+        return null;
+    }
+
+    // Compressed form of a chunk sent before, or null if it is not cached or goes out as it is
+    public byte[] cached(Hash hash) {
+        byte[] compressed;
+        synchronized (this) {
+            compressed = cache.get(hash);
+        }
+        if (compressed == null || compressed == INCOMPRESSIBLE) {
+            return null;
+        }
+        cacheHits.increment();
+        return compressed;
+    }
+
+    // Compressed form of a verified chunk, or null if it is not worth sending compressed
+    public byte[] compress(Hash hash, byte[] data) {
+        synchronized (this) {
+            if (cache.get(hash) == INCOMPRESSIBLE) {
+                skippedChunks.increment();
+                return null;
+            }
+        }
+
+        byte[] compressed = compressBlock(data);
+        remember(hash, compressed != null ? compressed : INCOMPRESSIBLE);
+        return compressed;
+    }
+
+    // Compressed form of data sent once, such as one block of a streamed chunk, or null if it is not
+    // worth sending compressed; nothing is cached
+    public byte[] compressBlock(byte[] data) {
+        byte[] compressed = looksCompressible(data) ? deflate(data) : null;
+        if (compressed == null) {
+            skippedChunks.increment();
+        } else {
+            compressedChunks.increment();
+            savedBytes.add(data.length - compressed.length);
+        }
+        return compressed;
+    }
+
+    // Decodes a chunk received with the given encoding; it must come out at exactly the expected size
+    public static byte[] decompress(String encoding, byte[] data, int size) throws IOException {
+        if (!DEFLATE.equals(encoding)) {
+            throw new IOException("Unsupported chunk encoding: " + encoding);
+        }
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(data);
+        byte[] chunk = new byte[size];
+        try {
+            int length = 0;
+            while (!inflater.finished()) {
+                // Past the expected size, only the stream's trailer may be left
+                int inflated = length < size
+                        ? inflater.inflate(chunk, length, size - length)
+                        : inflater.inflate(new byte[1]);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != size || !inflater.finished()) {
+                throw new IOException("Compressed chunk does not decode to " + size + " bytes");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed chunk", e);
+        }
+        return chunk;
+    }
+
+    public long getCompressedChunks() {
+        return compressedChunks.sum();
+    }
+
+    public long getSkippedChunks() {
+        return skippedChunks.sum();
+    }
+
+    public long getSavedBytes() {
+        return savedBytes.sum();
+    }
+
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    // Deflate output that stays under the ratio limit, or null as soon as it would not
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] buffer = new byte[(int) ((long) data.length * MAX_RATIO_PERCENT / 100)];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == buffer.length) {
+                return null;
+            }
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+        byte[] compressed = new byte[length];
+        System.arraycopy(buffer, 0, compressed, 0, length);
+        return compressed;
+    }
+
+    // Whether windows spread evenly over the chunk have a low enough Shannon entropy, in bits per byte
+    static boolean looksCompressible(byte[] data) {
+        int[] counts = new int[256];
+        int sampled;
+        if (data.length <= SAMPLE_WINDOWS * SAMPLE_WINDOW_SIZE) {
+            for (byte b : data) {
+                counts[b & 0xff]++;
+            }
+            sampled = data.length;
+        } else {
+            long stride = (data.length - SAMPLE_WINDOW_SIZE) / (SAMPLE_WINDOWS - 1);
+            for (int w = 0; w < SAMPLE_WINDOWS; w++) {
+                int start = (int) (w * stride);
+                for (int i = start; i < start + SAMPLE_WINDOW_SIZE; i++) {
+                    counts[data[i] & 0xff]++;
+                }
+            }
+            sampled = SAMPLE_WINDOWS * SAMPLE_WINDOW_SIZE;
+        }
+        if (sampled == 0) {
+            return false;
+        }
+
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / sampled;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2) <= MAX_SAMPLE_ENTROPY;
+    }
+
+    private synchronized void remember(Hash hash, byte[] value) {
+        if (cacheLimit <= 0 || value.length + ENTRY_OVERHEAD > cacheLimit) {
+            return;
+        }
+        byte[] previous = cache.put(hash, value);
+        if (previous != null) {
+            cachedBytes -= previous.length + ENTRY_OVERHEAD;
+        }
+        cachedBytes += value.length + ENTRY_OVERHEAD;
+        Iterator<Map.Entry<Hash, byte[]>> eldest = cache.entrySet().iterator();
+        while (cachedBytes > cacheLimit && eldest.hasNext()) {
+            cachedBytes -= eldest.next().getValue().length + ENTRY_OVERHEAD;
+            eldest.remove();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.p2p.network;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters for connection lifecycle, heartbeats and idle reclamation
+public class ConnectionMetrics {
+    private final AtomicLong activeConnections = new AtomicLong();
+    private final LongAdder openedConnections = new LongAdder();
+    private final LongAdder idleClosedConnections = new LongAdder();
+    private final LongAdder reclaimedPendingBytes = new LongAdder();
+    private final LongAdder heartbeatsSent = new LongAdder();
+    private final LongAdder heartbeatsReceived = new LongAdder();
+
+    public void connectionOpened() {
+        openedConnections.increment();
+        activeConnections.incrementAndGet();
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    // Records a connection closed for being idle, with the outbound bytes it was still holding
+    public void idleConnectionClosed(long pendingBytes) {
+        idleClosedConnections.increment();
+        reclaimedPendingBytes.add(pendingBytes);
+    }
+
+    public void heartbeatSent() {
+        heartbeatsSent.increment();
+    }
+
+    public void heartbeatReceived() {
+        heartbeatsReceived.increment();
+    }
+
+    public long getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    public long getOpenedConnections() {
+        return openedConnections.sum();
+    }
+
+    public long getIdleClosedConnections() {
+        return idleClosedConnections.sum();
+    }
+
+    public long getReclaimedPendingBytes() {
+        return reclaimedPendingBytes.sum();
+    }
+
+    public long getHeartbeatsSent() {
+        return heartbeatsSent.sum();
+    }
+
+    public long getHeartbeatsReceived() {
+        return heartbeatsReceived.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("active=%d, opened=%d, idleClosed=%d, reclaimedBytes=%d, heartbeats(sent=%d, received=%d)",
+                getActiveConnections(), getOpenedConnections(), getIdleClosedConnections(),
+                getReclaimedPendingBytes(), getHeartbeatsSent(), getHeartbeatsReceived());
+    }
+}
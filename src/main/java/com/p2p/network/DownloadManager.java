@@ -1,159 +1,263 @@
 package com.p2p.network;
 
-import com.p2p.chunking.FileAssembler;
 import com.p2p.core.Manifest;
-import com.p2p.protocol.*;
+import com.p2p.metrics.TransferMetrics;
+import com.p2p.protocol.AnnounceMessage;
+import com.p2p.protocol.HelloMessage;
 import com.p2p.storage.ChunkStorage;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.Getter;
+import lombok.Setter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
-// Manages downloading a file from a peer
+// Downloads files from peers; owns the event loop and a pool of peer connections shared by all downloads
 public class DownloadManager {
     private static final Logger logger = LoggerFactory.getLogger(DownloadManager.class);
-    private static final int TIMEOUT_SECONDS = 120;
+    private static final int CONNECT_TIMEOUT_MILLIS = 10_000;
 
+    // Received chunks queued per verify thread; past that the download thread verifies them itself
+    private static final int VERIFY_QUEUE_PER_THREAD = 2;
+
+    @Getter
     private final String localPeerId;
+
+    @Getter
     private final int localPort;
+
+    @Getter
     private final ChunkStorage chunkStorage;
 
-    private final BlockingQueue<Manifest> manifestQueue = new LinkedBlockingQueue<>();
-    private final BlockingQueue<ChunkResponseMessage> chunkQueue = new LinkedBlockingQueue<>();
+    @Getter
+    private final NetworkConfig config;
+
+    @Getter
+    private final ConnectionMetrics connectionMetrics = new ConnectionMetrics();
+
+    // Local upload scheduler credited with bytes we download, so peers that serve us are served back
+    @Getter
+    @Setter
+    private UploadScheduler uploadScheduler;
+
+    // Limits shared with the local server; download budgets delay the next requests
+    @Getter
+    @Setter
+    private BandwidthManager bandwidthManager;
+
+    // Process-wide cap on chunk data in flight, shared with the local server
+    @Getter
+    @Setter
+    private MemoryBudget memoryBudget;
+
+    // Metrics of this process, usually the local server's
+    @Getter
+    private TransferMetrics transferMetrics;
+
+    // Guarded by this
+    private final Map<String, PeerConnection> connections = new HashMap<>();
+    private EventLoopGroup workerGroup;
+    private Bootstrap bootstrap;
+    private ExecutorService verifier;
 
     public DownloadManager(String localPeerId, int localPort, ChunkStorage chunkStorage) {
+        this(localPeerId, localPort, chunkStorage, new NetworkConfig());
+    }
+
+    public DownloadManager(String localPeerId, int localPort, ChunkStorage chunkStorage, NetworkConfig config) {
         this.localPeerId = localPeerId;
         this.localPort = localPort;
         this.chunkStorage = chunkStorage;
+        this.config = config;
+        this.memoryBudget = new MemoryBudget(config);
+        setTransferMetrics(new TransferMetrics());
+    }
+
+    public void setTransferMetrics(TransferMetrics transferMetrics) {
+        this.transferMetrics = transferMetrics;
+        transferMetrics.gauge("p2p_outbound_connections", "Pooled connections to other peers",
+                connectionMetrics::getActiveConnections);
     }
 
-    // Downloads a file from a peer and saves it to the specified output file
+    // Downloads a file and saves it to the specified output file, using the given peer for the
+    // manifest and to discover further providers
     public Manifest downloadFile(String fileId, String peerHost, int peerPort, File outputFile) throws Exception {
-        logger.info("Starting download of file: {} from {}:{}", fileId, peerHost, peerPort);
+        return newSession(fileId, peerHost, peerPort, outputFile).run();
+    }
 
-        EventLoopGroup workerGroup = new NioEventLoopGroup();
+    // Downloads a new version of a file, copying blocks it shares with an older local copy instead of fetching them
+    public Manifest downloadFile(String fileId, String peerHost, int peerPort, File outputFile, File basisFile)
+            throws Exception {
+        DownloadSession session = newSession(fileId, peerHost, peerPort, outputFile);
+        session.setBasisFile(basisFile);
+        return session.run();
+    }
 
-        try {
-            Bootstrap bootstrap = new Bootstrap();
-            bootstrap.group(workerGroup)
-                    .channel(NioSocketChannel.class)
-                    .handler(new ChannelInitializer<SocketChannel>() {
-                        @Override
-                        protected void initChannel(SocketChannel ch) {
-                            ChannelPipeline pipeline = ch.pipeline();
-                            // Frame decoder with 2MB max frame size (sufficient for 256KB chunks + overhead)
-                            pipeline.addLast(new LengthFieldBasedFrameDecoder(2 * 1024 * 1024, 0, 4, 0, 4));
-                            pipeline.addLast(new MessageCodec());
-                            pipeline.addLast(new DownloadHandler());
-                        }
-                    })
-                    .option(ChannelOption.SO_KEEPALIVE, true);
-
-            ChannelFuture future = bootstrap.connect(peerHost, peerPort).sync();
-            Channel channel = future.channel();
-
-            logger.info("Connected to peer at {}:{}", peerHost, peerPort);
-
-            HelloMessage hello = new HelloMessage(localPeerId, java.util.Collections.emptyList(), localPort);
-            channel.writeAndFlush(hello).sync();
-
-            logger.info("Requesting manifest for file: {}", fileId);
-            ManifestRequestMessage manifestRequest = new ManifestRequestMessage(fileId);
-            channel.writeAndFlush(manifestRequest).sync();
-
-            Manifest manifest = manifestQueue.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
-            if (manifest == null) {
-                throw new RuntimeException("Timeout waiting for manifest");
+    // Starts a download on its own thread and returns a stream that reads the file in order while it
+    // downloads. The file is also written to outputFile, and kept there once complete.
+    public DownloadStream stream(String fileId, String peerHost, int peerPort, File outputFile) {
+        DownloadSession session = newSession(fileId, peerHost, peerPort, outputFile);
+        Thread thread = new Thread(() -> {
+            try {
+                session.run();
+            } catch (Exception e) {
+                // Reported to the reader through the stream
+                logger.debug("Streaming download of {} ended: {}", fileId, e.toString());
             }
+        }, "stream-" + fileId.substring(0, Math.min(8, fileId.length())));
+        thread.setDaemon(true);
+        thread.start();
+        return new DownloadStream(session, outputFile);
+    }
 
-            logger.info("Received manifest: {} ({} chunks)", manifest.getFilename(), manifest.getChunkCount());
-
-            logger.info("Starting streaming download to: {}", outputFile.getAbsolutePath());
-
-            try (java.io.FileOutputStream fos = new java.io.FileOutputStream(outputFile)) {
-                for (int i = 0; i < manifest.getChunkCount(); i++) {
-                    logger.info("Requesting chunk {}/{}", i + 1, manifest.getChunkCount());
-
-                    ChunkRequestMessage chunkRequest = new ChunkRequestMessage(fileId, i);
-                    channel.writeAndFlush(chunkRequest).sync();
-
-                    ChunkResponseMessage chunkResponse = chunkQueue.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
-                    if (chunkResponse == null) {
-                        throw new RuntimeException("Timeout waiting for chunk " + i);
-                    }
-
-                    byte[] chunkData = chunkResponse.getDataBytes();
+    // Creates a download that is started by calling run() on the thread that should drive it
+    public DownloadSession newSession(String fileId, String peerHost, int peerPort, File outputFile) {
+        return new DownloadSession(this, fileId, peerHost, peerPort, outputFile);
+    }
 
-                    String expectedHash = manifest.getChunk(i).getHash();
-                    if (!chunkResponse.getHash().equals(expectedHash)) {
-                        throw new RuntimeException("Chunk " + i + " hash mismatch!");
-                    }
+    // Tells a peer which files we now serve, so it can point other downloaders at us
+    public void announce(String host, int port, List<String> availableFiles) throws Exception {
+        connect(host, port).send(new HelloMessage(localPeerId, availableFiles, localPort,
+                ChunkCompression.encodings(config), WireFormat.offered(config), config.getBlockSize()));
+        logger.info("Announced {} file(s) to {}:{}", availableFiles.size(), host, port);
+    }
 
-                    chunkStorage.storeChunk(chunkResponse.getHash(), chunkData);
+    // Sends a change in the locally available files to a peer that already knows about this one
+    public void announce(String host, int port, AnnounceMessage changes) throws Exception {
+        connect(host, port).send(changes);
+    }
 
-                    fos.write(chunkData);
-                    fos.flush();
+    // Returns a handshaken connection to a peer, reusing a pooled one when it is still open or being opened.
+    // The lock only covers the pool lookup: a slow or unreachable peer holds up just the callers asking for it.
+    PeerConnection connect(String host, int port) throws Exception {
+        String key = host + ":" + port;
+        PeerConnection connection;
+        boolean opening = false;
+        synchronized (this) {
+            connection = connections.get(key);
+            // A connection still opening has no channel yet and no outcome of its handshake
+            if (connection == null || (!connection.isActive() && connection.getHello().isDone())) {
+                connection = new PeerConnection(host, port, config);
+                connections.put(key, connection);
+                opening = true;
+            }
+        }
 
-                    logger.info("Received and wrote chunk {}/{} ({} bytes)",
-                            i + 1, manifest.getChunkCount(), chunkData.length);
+        if (opening) {
+            try {
+                open(connection);
+            } catch (Exception e) {
+                connection.failConnect(e);
+                synchronized (this) {
+                    connections.remove(key, connection);
                 }
+                throw e;
             }
+        }
 
-            channel.close().sync();
-
-            logger.info("Download complete: {}", outputFile.getName());
+        try {
+            connection.getHello().get(CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            connection.close();
+            throw new RuntimeException("Timeout waiting for HELLO from " + key, e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Handshake with " + key + " failed", e.getCause());
+        }
+        return connection;
+    }
 
-            return manifest;
+    // Pool that hashes and stores received chunks for every download, so verification overlaps the network
+    // and spreads across cores. Its queue is bounded: when it is full a download thread runs the job itself,
+    // which holds back its receiving until the pool catches up. Jobs offered after shutdown run the same way.
+    synchronized Executor getVerifier() {
+        if (verifier == null) {
+            int threads = config.getVerifyThreads() > 0
+                    ? config.getVerifyThreads() : Runtime.getRuntime().availableProcessors();
+            verifier = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(threads * VERIFY_QUEUE_PER_THREAD),
+                    new DefaultThreadFactory("chunk-verify", true), (job, executor) -> job.run());
+        }
+        return verifier;
+    }
 
-        } finally {
-            workerGroup.shutdownGracefully();
+    // Event loop and bootstrap for outbound connections, created with the first one
+    private synchronized Bootstrap bootstrap() {
+        if (workerGroup == null) {
+            Transport transport = Transport.select(config);
+            workerGroup = transport.newEventLoopGroup(config.getWorkerThreads());
+            bootstrap = new Bootstrap()
+                    .group(workerGroup)
+                    .channel(transport.socketChannelClass())
+                    .option(ChannelOption.SO_KEEPALIVE, true)
+                    .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, CONNECT_TIMEOUT_MILLIS);
+            transport.configure(bootstrap);
         }
+        return bootstrap;
     }
 
-    // Handler for download responses
-    private class DownloadHandler extends SimpleChannelInboundHandler<Message> {
+    // Connects a pooled connection and sends our HELLO
+    private void open(PeerConnection connection) throws InterruptedException {
+        String host = connection.getHost();
+        int port = connection.getPort();
+        Channel channel = bootstrap().clone()
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ChannelPipeline pipeline = ch.pipeline();
+                        // Frame decoder sized for chunks and large collection manifests
+                        pipeline.addLast(new LengthFieldBasedFrameDecoder(config.getMaxFrameLength(), 0, 4, 0, 4));
+                        pipeline.addLast(new MessageCodec(transferMetrics));
+                        IdleConnectionHandler.install(pipeline, config, connectionMetrics);
+                        LinkEmulationHandler.install(pipeline, config);
+                        pipeline.addLast(connection.newHandler());
+                    }
+                })
+                .connect(host, port).sync().channel();
+        connection.attach(channel);
+        // Download budgets are kept per peer ID for as long as any pooled connection to the peer is open
+        BandwidthManager bandwidth = bandwidthManager;
+        if (bandwidth != null) {
+            connection.getHello().thenAccept(hello -> {
+                String peerId = hello.getPeerId();
+                bandwidth.register(BandwidthManager.Direction.DOWNLOAD, peerId);
+                channel.closeFuture().addListener(future ->
+                        bandwidth.unregister(BandwidthManager.Direction.DOWNLOAD, peerId));
+            });
+        }
 
-        @Override
-        protected void channelRead0(ChannelHandlerContext ctx, Message msg) {
-            logger.debug("Received message: {}", msg.getType());
+        logger.info("Connected to peer at {}:{}", host, port);
+        channel.writeAndFlush(new HelloMessage(localPeerId, Collections.emptyList(), localPort,
+                ChunkCompression.encodings(config), WireFormat.offered(config), config.getBlockSize()));
+    }
 
-            try {
-                switch (msg.getType()) {
-                    case HELLO:
-                        logger.debug("Received HELLO response");
-                        break;
-
-                    case MANIFEST_RESPONSE:
-                        ManifestResponseMessage manifestResponse = (ManifestResponseMessage) msg;
-                        manifestQueue.offer(manifestResponse.getManifest());
-                        break;
-
-                    case CHUNK_RESPONSE:
-                        ChunkResponseMessage chunkResponse = (ChunkResponseMessage) msg;
-                        chunkQueue.offer(chunkResponse);
-                        break;
-
-                    default:
-                        logger.warn("Unexpected message type: {}", msg.getType());
-                }
-            } catch (Exception e) {
-                logger.error("Error handling message", e);
-            }
+    // Closes all pooled connections and stops the event loop
+    public synchronized void shutdown() {
+        logger.info("Shutting down download manager... (connections: {})", connectionMetrics);
+        connections.values().forEach(PeerConnection::close);
+        connections.clear();
+        if (workerGroup != null) {
+            workerGroup.shutdownGracefully();
+            workerGroup = null;
         }
-
-        @Override
-        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
-            logger.error("Error in download handler", cause);
-            ctx.close();
+        if (verifier != null) {
+            verifier.shutdown();
+            verifier = null;
         }
     }
 }
@@ -0,0 +1,1364 @@
+package com.p2p.network;
+
+import com.p2p.chunking.DeltaScanner;
+import com.p2p.core.ChunkInfo;
+import com.p2p.core.ChunkingMode;
+import com.p2p.core.Hash;
+import com.p2p.core.Manifest;
+import com.p2p.core.ManifestOutline;
+import com.p2p.core.MerkleTree;
+import com.p2p.metrics.TrafficStats;
+import com.p2p.metrics.TransferMetrics;
+import com.p2p.metrics.events.ChunkFetchEvent;
+import com.p2p.metrics.events.HashVerifyEvent;
+import com.p2p.metrics.events.StorageWriteEvent;
+import com.p2p.core.PeerInfo;
+import com.p2p.protocol.ChunkBlockMessage;
+import com.p2p.protocol.ChunkRejectMessage;
+import com.p2p.protocol.ChunkRequestMessage;
+import com.p2p.protocol.ChunkResponseMessage;
+import com.p2p.protocol.ManifestRequestMessage;
+import com.p2p.protocol.ManifestSegmentRequestMessage;
+import com.p2p.protocol.ManifestSegmentResponseMessage;
+import com.p2p.storage.ChunkStorage;
+import com.p2p.storage.MultiFileChannel;
+import lombok.Getter;
+import lombok.Setter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// One file download spread across every provider we can find. Runs as a single-threaded loop on the
+// calling thread: network callbacks only enqueue events, the loop hands out requests, enforces per-peer
+// adaptive timeouts, hedges slow requests and switches to endgame mode for the last few chunks.
+// For a Merkle manifest only its outline is fetched up front; the chunk list follows segment by segment,
+// nearest the playhead first, and chunks are requested as soon as their segment is verified.
+// Whole chunks are hashed and stored on the manager's verify pool while the loop keeps receiving, then
+// committed back on this thread; chunks larger than the block size arrive as blocks, each written out and
+// hashed as it comes in.
+public class DownloadSession {
+    private static final Logger logger = LoggerFactory.getLogger(DownloadSession.class);
+
+    // Upper bound on how long the loop sleeps waiting for events before rechecking timers
+    private static final long POLL_MILLIS = 10;
+
+    private static final long PEER_LIST_TIMEOUT_SECONDS = 5;
+
+    // Manifest segments fetched at once, ahead of the chunks being requested
+    private static final int SEGMENT_WINDOW = 4;
+
+    private enum RequestKind {
+        NORMAL,
+        HEDGE,
+        ENDGAME
+    }
+
+    // Work executed on the session thread
+    private interface Event {
+        void run() throws IOException;
+    }
+
+    private final DownloadManager manager;
+    private final NetworkConfig config;
+    private final TransferMetrics metrics;
+    private final Executor verifier;
+
+    @Getter
+    private final String fileId;
+
+    private final String bootstrapHost;
+    private final int bootstrapPort;
+    private final File outputFile;
+    private final TrafficStats fileTraffic;
+
+    // Older local copy of the file whose matching blocks are copied instead of fetched
+    @Getter
+    @Setter
+    private File basisFile;
+
+    @Getter
+    private final DownloadStats stats = new DownloadStats();
+
+    // Progress readable from other threads while the session runs
+    @Getter
+    private volatile int totalChunks;
+    @Getter
+    private volatile int completedChunks;
+    @Getter
+    private volatile long completedBytes;
+
+    private volatile boolean cancelled;
+
+    // First chunk a streaming reader still needs; requests go out from here onwards, then wrap around
+    private volatile int playhead;
+
+    // Chunks readable in the output file, for streaming readers; guarded by itself
+    private final BitSet available = new BitSet();
+    private boolean finished;
+    private String failure;
+
+    private final BlockingQueue<Event> events = new LinkedBlockingQueue<>();
+    private final CompletableFuture<Manifest> manifestFuture = new CompletableFuture<>();
+    private final Listener listener = new Listener();
+
+    private final List<PeerSlot> peers = new ArrayList<>();
+    private final Map<PeerConnection, PeerSlot> slots = new HashMap<>();
+    private final List<Request> inFlight = new ArrayList<>();
+    private final BitSet needed = new BitSet();
+
+    private volatile Manifest manifest;
+
+    // Outline of a Merkle manifest whose segments are fetched during the transfer; null for a full manifest
+    private volatile ManifestOutline outline;
+    private SegmentTask[] segments;
+    private final BitSet neededSegments = new BitSet();
+    private int segmentsInFlight;
+    private volatile int segmentsLeft;
+
+    private ChunkTask[] chunks;
+    private int remaining;
+    private MultiFileChannel output;
+    private long throttledUntil;
+    private long lastProgress;
+
+    // Memory budget held for chunks between receipt and commit
+    private long verifyingBytes;
+    private int nextPeer;
+
+    DownloadSession(DownloadManager manager, String fileId, String bootstrapHost, int bootstrapPort, File outputFile) {
+        this.manager = manager;
+        this.config = manager.getConfig();
+        this.metrics = manager.getTransferMetrics();
+        this.verifier = manager.getVerifier();
+        this.fileId = fileId;
+        this.bootstrapHost = bootstrapHost;
+        this.bootstrapPort = bootstrapPort;
+        this.outputFile = outputFile;
+        this.fileTraffic = metrics.file(fileId);
+    }
+
+    // Fetches the manifest, finds providers and transfers every chunk into the output file
+    public Manifest run() throws Exception {
+        logger.info("Starting download of file: {} from {}:{}", fileId, bootstrapHost, bootstrapPort);
+
+        String error = "Download stopped";
+        try {
+            PeerConnection bootstrap = manager.connect(bootstrapHost, bootstrapPort);
+            addPeer(bootstrap);
+
+            logger.info("Requesting manifest for file: {}", fileId);
+            bootstrap.send(new ManifestRequestMessage(fileId, true));
+            manifest = awaitManifest();
+            logger.info("Received {}: {} ({} chunks)", outline != null ? "manifest outline" : "manifest",
+                    manifest.getFilename(), manifest.getChunkCount());
+
+            discoverProviders(bootstrap);
+
+            logger.info("Starting download to: {} from {} peer(s)", outputFile.getAbsolutePath(), peers.size());
+            long start = System.nanoTime();
+            transfer();
+            stats.setElapsedMillis(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+            logger.info("Download complete: {} ({})", outputFile.getName(), stats);
+            error = null;
+            return manifest;
+
+        } catch (Exception e) {
+            if (!cancelled) {
+                error = "Download failed: " + (e.getMessage() != null ? e.getMessage() : e.toString());
+            }
+            throw e;
+        } finally {
+            synchronized (available) {
+                finished = true;
+                failure = error;
+                available.notifyAll();
+            }
+            for (PeerSlot slot : peers) {
+                slot.connection.unregister(fileId);
+            }
+            if (manager.getBandwidthManager() != null) {
+                manager.getBandwidthManager().forgetFile(BandwidthManager.Direction.DOWNLOAD, fileId);
+            }
+            for (Request request : new ArrayList<>(inFlight)) {
+                removeRequest(request);
+            }
+            // Chunks still in the verify pool may reach the chunk store but are never committed
+            if (verifyingBytes > 0) {
+                manager.getMemoryBudget().release(verifyingBytes);
+                verifyingBytes = 0;
+            }
+            if (output != null) {
+                output.close();
+            }
+        }
+    }
+
+    // Stops the download at the next loop iteration; run() then throws CancellationException.
+    // Chunks already fetched stay in the chunk store, so a later download of the file reuses them.
+    public void cancel() {
+        cancelled = true;
+        manifestFuture.completeExceptionally(new CancellationException("Download cancelled"));
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    // Manifest once it has been received, null before
+    public Manifest getManifest() {
+        return manifest;
+    }
+
+    // Moves the request order so chunks from the given index onwards are fetched first
+    public void setPlayhead(int chunkIndex) {
+        playhead = chunkIndex;
+    }
+
+    // Blocks until the manifest has arrived; throws if the download ended without one. Of a Merkle manifest,
+    // a fixed-size one is usable at once, its chunks filled in before they become available; content-defined
+    // boundaries are only known once every segment is in.
+    public Manifest waitForManifest() throws IOException, InterruptedException {
+        synchronized (available) {
+            while (manifest == null || chunks == null
+                    || (segmentsLeft > 0 && manifest.getChunking() != ChunkingMode.FIXED)) {
+                if (finished) {
+                    throw new IOException(failure != null ? failure : "Download stopped");
+                }
+                available.wait();
+            }
+            return manifest;
+        }
+    }
+
+    public boolean isChunkAvailable(int index) {
+        synchronized (available) {
+            return available.get(index);
+        }
+    }
+
+    // Blocks until a chunk has been verified and written to the output file
+    public void waitForChunk(int index) throws IOException, InterruptedException {
+        synchronized (available) {
+            while (!available.get(index)) {
+                if (finished) {
+                    throw new IOException(failure != null ? failure : "Download stopped");
+                }
+                available.wait();
+            }
+        }
+    }
+
+    private Manifest awaitManifest() throws Exception {
+        try {
+            Manifest received = manifestFuture.get(config.getInitialChunkTimeoutMillis(), TimeUnit.MILLISECONDS);
+            if (!fileId.equals(received.getFileId())) {
+                throw new IOException("Received manifest for a different file: " + received.getFileId());
+            }
+            if (outline == null && received.isMerkle()) {
+                // Sent in full, so the chunk list is hashed up to the root the file ID commits to
+                ManifestOutline.of(received).verify(fileId);
+            }
+            return received;
+        } catch (TimeoutException e) {
+            throw new IOException("Timeout waiting for manifest", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CancellationException) {
+                throw (CancellationException) e.getCause();
+            }
+            throw new IOException("Failed to get manifest: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    // Connects to the other peers the bootstrap peer knows to have this file
+    private void discoverProviders(PeerConnection bootstrap) {
+        if (config.getMaxPeersPerDownload() > 1) {
+            List<PeerInfo> known;
+            try {
+                known = bootstrap.requestPeerList().get(PEER_LIST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                logger.debug("Peer list unavailable from {}: {}", bootstrap, e.toString());
+                known = List.of();
+            }
+
+            for (PeerInfo info : known) {
+                if (peers.size() >= config.getMaxPeersPerDownload()) {
+                    break;
+                }
+                if (info.getPeerId().equals(manager.getLocalPeerId())
+                        || info.getPeerId().equals(bootstrap.getRemotePeerId())
+                        || !info.getAvailableFiles().contains(fileId)) {
+                    continue;
+                }
+                try {
+                    PeerConnection connection = manager.connect(info.getHost(), info.getPort());
+                    if (connection.getRemoteFiles().contains(fileId)) {
+                        addPeer(connection);
+                    }
+                } catch (Exception e) {
+                    logger.warn("Could not connect to provider {}: {}", info.getAddress(), e.toString());
+                }
+            }
+        }
+        stats.setPeersUsed(peers.size());
+    }
+
+    private void addPeer(PeerConnection connection) {
+        if (slots.containsKey(connection)) {
+            return;
+        }
+        PeerSlot slot = new PeerSlot(connection, metrics.peer(connection.getAddress()));
+        slots.put(connection, slot);
+        peers.add(slot);
+        connection.register(fileId, listener);
+    }
+
+    // Main loop: keeps every peer's request window full until all chunks are written
+    private void transfer() throws Exception {
+        int count = manifest.getChunkCount();
+        // Chunks of a Merkle manifest become needed as their segments arrive
+        if (outline != null) {
+            segments = new SegmentTask[MerkleTree.segmentCount(count)];
+            for (int i = 0; i < segments.length; i++) {
+                segments[i] = new SegmentTask(i);
+            }
+            neededSegments.set(0, segments.length);
+            segmentsLeft = segments.length;
+        }
+        chunks = new ChunkTask[count];
+        for (int i = 0; i < count; i++) {
+            chunks[i] = new ChunkTask(i);
+        }
+        if (outline == null) {
+            needed.set(0, count);
+        }
+        remaining = count;
+        totalChunks = count;
+        synchronized (available) {
+            available.notifyAll();
+        }
+
+        // A collection is written below outputFile as a directory, chunks spanning file boundaries
+        output = MultiFileChannel.open(outputFile.toPath(), manifest, true);
+
+        lastProgress = System.nanoTime();
+        if (segments == null) {
+            reuseLocalChunks(lastProgress);
+        }
+        if (basisFile != null && manifest.isCollection()) {
+            logger.warn("Ignoring basis file {}: delta transfer only applies to single files", basisFile);
+        } else if (basisFile != null && remaining > 0) {
+            // The scan looks for every chunk at once, so it needs the whole chunk list
+            loadAllSegments();
+            reuseBasisChunks(lastProgress);
+        }
+
+        while (remaining > 0) {
+            checkProgress();
+            requestSegments(System.nanoTime());
+            dispatch(System.nanoTime());
+            runEvents();
+            checkOutstanding(System.nanoTime());
+            checkSegments(System.nanoTime());
+        }
+
+        output.finish();
+    }
+
+    private void checkProgress() throws IOException {
+        if (cancelled) {
+            throw new CancellationException("Download cancelled");
+        }
+        if (peers.isEmpty()) {
+            throw new IOException("No providers left for file " + fileId);
+        }
+        if (System.nanoTime() - lastProgress > TimeUnit.MILLISECONDS.toNanos(config.getMaxChunkTimeoutMillis())) {
+            throw new IOException("No progress for " + config.getMaxChunkTimeoutMillis() + " ms");
+        }
+    }
+
+    // Runs the queued events, waiting up to POLL_MILLIS for the first
+    private void runEvents() throws IOException, InterruptedException {
+        Event event = events.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        while (event != null) {
+            event.run();
+            event = events.poll();
+        }
+    }
+
+    // Fetches every segment of a Merkle manifest not yet in before any chunk is requested
+    private void loadAllSegments() throws IOException, InterruptedException {
+        while (segmentsLeft > 0) {
+            checkProgress();
+            requestSegments(System.nanoTime());
+            runEvents();
+            checkSegments(System.nanoTime());
+        }
+    }
+
+    // Keeps SEGMENT_WINDOW segment fetches in flight, from the playhead's segment onwards (wrapping around),
+    // each on the peer with the fewest that has not failed it
+    private void requestSegments(long now) {
+        if (segments == null || chunks.length == 0) {
+            return;
+        }
+        int start = Math.min(playhead, chunks.length - 1) / MerkleTree.SEGMENT_CHUNKS;
+        int segment = neededSegments.nextSetBit(start);
+        if (segment < 0) {
+            segment = neededSegments.nextSetBit(0);
+        }
+        while (segment >= 0 && segmentsInFlight < SEGMENT_WINDOW) {
+            SegmentTask task = segments[segment];
+            PeerSlot slot = segmentPeer(task, now);
+            if (slot == null) {
+                return;
+            }
+            task.slot = slot;
+            task.sentAt = now;
+            slot.segmentsInFlight++;
+            segmentsInFlight++;
+            neededSegments.clear(segment);
+            slot.connection.send(new ManifestSegmentRequestMessage(fileId, segment));
+
+            int next = neededSegments.nextSetBit(segment + 1);
+            segment = next >= 0 ? next : neededSegments.nextSetBit(0);
+        }
+    }
+
+    private PeerSlot segmentPeer(SegmentTask task, long now) {
+        if (task.failedOn.size() >= peers.size()) {
+            task.failedOn.clear();
+        }
+        PeerSlot best = null;
+        for (PeerSlot slot : peers) {
+            if (task.failedOn.contains(slot) || !slot.connection.isActive() || now < slot.chokedUntil) {
+                continue;
+            }
+            if (best == null || slot.segmentsInFlight < best.segmentsInFlight) {
+                best = slot;
+            }
+        }
+        return best;
+    }
+
+    // Abandons segment fetches past their peer's adaptive timeout and asks another peer
+    private void checkSegments(long now) throws IOException {
+        if (segments == null || segmentsInFlight == 0) {
+            return;
+        }
+        for (SegmentTask task : segments) {
+            if (task.slot == null) {
+                continue;
+            }
+            long elapsed = now - task.sentAt;
+            if (elapsed > task.slot.connection.getLatency().timeoutNanos()) {
+                logger.warn("Manifest segment {} timed out on {} after {} ms",
+                        task.index, task.slot.connection, TimeUnit.NANOSECONDS.toMillis(elapsed));
+                stats.setTimeouts(stats.getTimeouts() + 1);
+                task.failedOn.add(task.slot);
+                settleSegment(task);
+                requeueSegment(task, true);
+            }
+        }
+    }
+
+    // Fills in a verified segment of the chunk list and queues its chunks, building those already stored locally
+    private void handleSegment(PeerConnection connection, ManifestSegmentResponseMessage response) throws IOException {
+        int index = response.getSegment();
+        if (segments == null || index < 0 || index >= segments.length || segments[index].loaded) {
+            return;
+        }
+        SegmentTask task = segments[index];
+        PeerSlot slot = slots.get(connection);
+        if (task.slot == slot) {
+            settleSegment(task);
+        }
+
+        List<ChunkInfo> received = response.getChunks();
+        if (!outline.isValidSegment(index, received)) {
+            logger.warn("Manifest segment {} from {} failed verification, requesting it elsewhere", index, connection);
+            if (slot != null) {
+                task.failedOn.add(slot);
+            }
+            requeueSegment(task, true);
+            return;
+        }
+
+        settleSegment(task);
+        task.loaded = true;
+        segmentsLeft--;
+        long now = System.nanoTime();
+        lastProgress = now;
+        stats.setManifestSegments(stats.getManifestSegments() + 1);
+
+        int first = index * MerkleTree.SEGMENT_CHUNKS;
+        List<ChunkInfo> list = manifest.getChunks();
+        for (int i = 0; i < received.size(); i++) {
+            list.set(first + i, received.get(i));
+        }
+        synchronized (available) {
+            available.notifyAll();
+        }
+        for (int i = first; i < first + received.size(); i++) {
+            if (!reuseLocalChunk(chunks[i], now)) {
+                needed.set(i);
+            }
+        }
+        logger.debug("Received manifest segment {}/{} from {}", index + 1, segments.length, connection);
+    }
+
+    // Ends the segment's fetch in flight, if any
+    private void settleSegment(SegmentTask task) {
+        if (task.slot != null) {
+            task.slot.segmentsInFlight--;
+            task.slot = null;
+            segmentsInFlight--;
+        }
+    }
+
+    private void requeueSegment(SegmentTask task, boolean countAttempt) throws IOException {
+        if (task.loaded || task.slot != null) {
+            return;
+        }
+        if (countAttempt && ++task.attempts >= config.getMaxChunkAttempts()) {
+            throw new IOException("Manifest segment " + task.index + " failed after " + task.attempts + " attempts");
+        }
+        neededSegments.set(task.index);
+    }
+
+    // Builds every chunk the content-addressed store already holds, e.g. from an earlier version of the file
+    private void reuseLocalChunks(long now) throws IOException {
+        for (int i = needed.nextSetBit(0); i >= 0; i = needed.nextSetBit(i + 1)) {
+            reuseLocalChunk(chunks[i], now);
+        }
+        if (stats.getLocalChunks() > 0) {
+            logger.info("Reusing {}/{} chunks ({} bytes) already in local storage",
+                    stats.getLocalChunks(), chunks.length, stats.getLocalBytes());
+        }
+    }
+
+    // Copies the blocks an older version of the file shares with the new manifest, wherever they moved to
+    private void reuseBasisChunks(long now) throws IOException {
+        Map<Integer, Long> matches;
+        try {
+            matches = new DeltaScanner().findMatches(manifest, basisFile, needed);
+        } catch (IOException e) {
+            logger.warn("Could not scan basis file {}, fetching every chunk: {}", basisFile, e.getMessage());
+            return;
+        }
+
+        try (FileChannel basis = FileChannel.open(basisFile.toPath(), StandardOpenOption.READ)) {
+            for (Map.Entry<Integer, Long> match : matches.entrySet()) {
+                ChunkTask task = chunks[match.getKey()];
+                ChunkInfo chunkInfo = manifest.getChunk(task.index);
+                byte[] data = new byte[(int) chunkInfo.getSize()];
+
+                // Verified again, then stored so the block can be served to other peers
+                if (!read(basis, data, match.getValue()) || !verify(chunkInfo, data, basisFile)) {
+                    logger.warn("Basis block for chunk {} changed while copying, fetching it instead", task.index);
+                    continue;
+                }
+                try {
+                    store(chunkInfo, data);
+                } catch (IOException e) {
+                    throw storeFailed(task.index, e);
+                }
+                write(data, manifest.getChunkOffset(task.index));
+                completeChunk(task, data.length, now);
+                stats.setBasisChunks(stats.getBasisChunks() + 1);
+                stats.setBasisBytes(stats.getBasisBytes() + data.length);
+            }
+        }
+
+        logger.info("Reusing {}/{} chunks ({} bytes) from basis file {}",
+                stats.getBasisChunks(), chunks.length, stats.getBasisBytes(), basisFile.getName());
+    }
+
+    // Copies a chunk from local storage into the output file; false if it has to come from the network
+    private boolean reuseLocalChunk(ChunkTask task, long now) throws IOException {
+        ChunkInfo chunkInfo = manifest.getChunk(task.index);
+        if (task.localFailed || !manager.getChunkStorage().hasChunk(chunkInfo.getHash())) {
+            return false;
+        }
+
+        byte[] data;
+        try {
+            data = manager.getChunkStorage().retrieveChunk(chunkInfo.getHash());
+        } catch (IOException e) {
+            logger.warn("Local copy of chunk {} is unusable, fetching it instead: {}", task.index, e.getMessage());
+            task.localFailed = true;
+            return false;
+        }
+
+        write(data, manifest.getChunkOffset(task.index));
+        completeChunk(task, data.length, now);
+        stats.setLocalChunks(stats.getLocalChunks() + 1);
+        stats.setLocalBytes(stats.getLocalBytes() + data.length);
+        return true;
+    }
+
+    // Hands out requests round-robin, one per peer per pass, so windows fill evenly.
+    // Chunks that reached the store meanwhile (repeated content, concurrent downloads) are built locally.
+    // Windows shrink as the process memory budget fills; once it is spent, requests wait for a release.
+    private void dispatch(long now) throws IOException {
+        if (now < throttledUntil) {
+            return;
+        }
+
+        int window = manager.getMemoryBudget().scaleWindow(config.getRequestsPerPeer());
+        int peerCount = peers.size();
+        boolean sent = true;
+        while (sent) {
+            sent = false;
+            for (int k = 0; k < peerCount; k++) {
+                PeerSlot slot = peers.get((nextPeer + k) % peerCount);
+                if (!slot.canRequest(now, window)) {
+                    continue;
+                }
+                int index = nextChunkFor(slot);
+                if (index >= 0 && reuseLocalChunk(chunks[index], now)) {
+                    sent = true;
+                } else if (index >= 0) {
+                    if (!sendRequest(slot, chunks[index], now, RequestKind.NORMAL)) {
+                        sent = false;
+                        break;
+                    }
+                    sent = true;
+                }
+            }
+        }
+        nextPeer = (nextPeer + 1) % peerCount;
+
+        if (needed.isEmpty() && remaining <= config.getEndgameChunks() && peerCount > 1) {
+            requestEndgame(now);
+        }
+    }
+
+    // First needed chunk at or after the playhead (wrapping around) this peer has not already failed,
+    // unless every peer has failed it. Without a streaming reader the playhead stays 0: lowest index first.
+    private int nextChunkFor(PeerSlot slot) {
+        int start = Math.min(playhead, chunks.length);
+        int found = nextChunkFor(slot, start, chunks.length);
+        return found >= 0 || start == 0 ? found : nextChunkFor(slot, 0, start);
+    }
+
+    private int nextChunkFor(PeerSlot slot, int from, int to) {
+        for (int i = needed.nextSetBit(from); i >= 0 && i < to; i = needed.nextSetBit(i + 1)) {
+            ChunkTask task = chunks[i];
+            if (!task.failedOn.contains(slot)) {
+                return i;
+            }
+            if (task.failedOn.size() >= peers.size()) {
+                task.failedOn.clear();
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Asks every other peer for the chunks still outstanding so a single straggler cannot hold up completion
+    private void requestEndgame(long now) {
+        int window = config.getRequestsPerPeer() + config.getEndgameChunks();
+        for (Request request : new ArrayList<>(inFlight)) {
+            ChunkTask task = request.task;
+            if (task.done || task.verifying) {
+                continue;
+            }
+            for (PeerSlot slot : peers) {
+                if (slot.canRequest(now, window) && task.requestOn(slot) == null && !task.failedOn.contains(slot)
+                        && sendRequest(slot, task, now, RequestKind.ENDGAME)) {
+                    stats.setEndgameRequests(stats.getEndgameRequests() + 1);
+                }
+            }
+        }
+    }
+
+    // Reserves room for the response in the memory budget first; returns false if there is none.
+    // A session with nothing in flight always gets its one request, so it cannot starve.
+    private boolean sendRequest(PeerSlot slot, ChunkTask task, long now, RequestKind kind) {
+        MemoryBudget budget = manager.getMemoryBudget();
+        long size = manifest.getChunk(task.index).getSize();
+        long footprint = MemoryBudget.chunkFootprint(isStreamed(slot, size) ? config.getBlockSize() : size);
+        if (!budget.tryReserve(footprint)) {
+            if (!inFlight.isEmpty() || kind != RequestKind.NORMAL) {
+                stats.setMemoryWaits(stats.getMemoryWaits() + 1);
+                return false;
+            }
+            budget.forceReserve(footprint);
+        }
+
+        Request request = new Request(slot, task, now, kind, footprint);
+        task.outstanding.add(request);
+        inFlight.add(request);
+        slot.inFlight++;
+        needed.clear(task.index);
+
+        slot.connection.send(new ChunkRequestMessage(fileId, task.index));
+        stats.setRequestsSent(stats.getRequestsSent() + 1);
+        return true;
+    }
+
+    // Whether the peer sends a chunk of this size in blocks, so only one block is held at a time
+    private boolean isStreamed(PeerSlot slot, long size) {
+        int blockSize = config.getBlockSize();
+        return blockSize >= NetworkConfig.MIN_BLOCK_SIZE && blockSize <= NetworkConfig.MAX_BLOCK_SIZE
+                && slot.connection.getRemoteBlockSize() > 0 && size > blockSize;
+    }
+
+    // Abandons requests past their peer's adaptive timeout and hedges those slower than the peer's p95.
+    // A streamed chunk is timed from its last block, and is not hedged once blocks are arriving.
+    private void checkOutstanding(long now) throws IOException {
+        for (Request request : new ArrayList<>(inFlight)) {
+            if (!request.isOutstanding()) {
+                continue;
+            }
+            ChunkTask task = request.task;
+            LatencyTracker latency = request.slot.connection.getLatency();
+            long elapsed = now - request.sentAt;
+
+            if (elapsed > latency.timeoutNanos()) {
+                logger.warn("Chunk {} timed out on {} after {} ms",
+                        task.index, request.slot.connection, TimeUnit.NANOSECONDS.toMillis(elapsed));
+                stats.setTimeouts(stats.getTimeouts() + 1);
+                removeRequest(request);
+                task.failedOn.add(request.slot);
+                requeue(task, true);
+                continue;
+            }
+
+            if (request.kind == RequestKind.NORMAL && request.received == 0 && !task.verifying
+                    && task.outstanding.size() == 1 && hedgeBudgetLeft()) {
+                long hedgeDelay = latency.hedgeDelayNanos();
+                if (hedgeDelay > 0 && elapsed > hedgeDelay) {
+                    PeerSlot alternative = leastLoadedPeer(now, task, request.slot);
+                    if (alternative != null && sendRequest(alternative, task, now, RequestKind.HEDGE)) {
+                        logger.debug("Hedging chunk {} on {} after {} ms on {}", task.index,
+                                alternative.connection, TimeUnit.NANOSECONDS.toMillis(elapsed), request.slot.connection);
+                        stats.setHedgedRequests(stats.getHedgedRequests() + 1);
+                    }
+                }
+            }
+        }
+    }
+
+    // Hedges are capped at a percentage of requests so a slow swarm is not flooded with duplicates
+    private boolean hedgeBudgetLeft() {
+        long budget = Math.max(1, stats.getRequestsSent() * config.getHedgeBudgetPercent() / 100);
+        return stats.getHedgedRequests() < budget;
+    }
+
+    // Peer with spare capacity (one request over its window) and the fewest requests in flight
+    private PeerSlot leastLoadedPeer(long now, ChunkTask task, PeerSlot exclude) {
+        PeerSlot best = null;
+        for (PeerSlot slot : peers) {
+            if (slot == exclude || task.failedOn.contains(slot) || !slot.canRequest(now, config.getRequestsPerPeer() + 1)) {
+                continue;
+            }
+            if (best == null || slot.inFlight < best.inFlight) {
+                best = slot;
+            }
+        }
+        return best;
+    }
+
+    private void handleChunk(PeerConnection connection, ChunkResponseMessage response) throws IOException {
+        int index = response.getChunkIndex();
+        if (index < 0 || index >= chunks.length) {
+            logger.warn("Ignoring chunk with invalid index {} from {}", index, connection);
+            return;
+        }
+
+        if (manifest.getChunk(index) == null) {
+            logger.warn("Ignoring chunk {} from {} before its manifest segment", index, connection);
+            return;
+        }
+
+        long now = System.nanoTime();
+        PeerSlot slot = slots.get(connection);
+        ChunkTask task = chunks[index];
+        Request request = task.requestOn(slot);
+        if (request != null) {
+            removeRequest(request);
+            connection.getLatency().record(now - request.sentAt);
+            metrics.getChunkLatency().record(now - request.sentAt);
+        }
+
+        byte[] data = response.getData();
+        if (request != null && request.fetch != null) {
+            request.fetch.finish(fileId, index, connection.getAddress(), data.length);
+        }
+        if (task.done || task.verifying) {
+            stats.setDuplicateBytes(stats.getDuplicateBytes() + data.length);
+            return;
+        }
+
+        ChunkInfo chunkInfo = manifest.getChunk(index);
+        if (!chunkInfo.getHash().equals(response.getHash())) {
+            rejectData(task, slot, connection);
+            return;
+        }
+
+        // The chunk stays in the memory budget until committed, as the request that brought it is settled
+        long reserved = MemoryBudget.chunkFootprint(chunkInfo.getSize());
+        manager.getMemoryBudget().forceReserve(reserved);
+        verifyingBytes += reserved;
+        task.verifying = true;
+        Received received = new Received(task, request, slot, connection, response, chunkInfo, reserved);
+        verifier.execute(() -> verifyChunk(received));
+    }
+
+    // Verify and persist stages, on the verify pool: decodes, hashes and stores a received chunk, then hands
+    // it back to the session thread to commit. Touches nothing but the chunk store and thread-safe metrics.
+    private void verifyChunk(Received received) {
+        ChunkInfo chunkInfo = received.chunkInfo;
+        String source = received.connection.getAddress();
+        byte[] data = received.response.getData();
+        if (received.response.getEncoding() != null) {
+            try {
+                data = ChunkCompression.decompress(received.response.getEncoding(), data, (int) chunkInfo.getSize());
+            } catch (IOException e) {
+                logger.warn("Chunk {} from {} did not decompress: {}", chunkInfo.getIndex(), source, e.getMessage());
+                data = null;
+            }
+        }
+        received.data = data;
+        received.valid = data != null && verify(chunkInfo, data, source);
+        if (received.valid) {
+            long storeStart = System.nanoTime();
+            StorageWriteEvent storeEvent = new StorageWriteEvent();
+            storeEvent.begin();
+            try {
+                store(chunkInfo, data);
+            } catch (IOException e) {
+                received.storeError = e;
+            }
+            storeEvent.finish(fileId, chunkInfo.getIndex(), source, data.length);
+            received.storeNanos = System.nanoTime() - storeStart;
+        }
+        events.add(() -> commitChunk(received));
+    }
+
+    // Commit stage, back on the session thread: writes a verified chunk to the output and completes it,
+    // or asks other peers for a chunk that did not check out. A chunk the store could not take ends the
+    // download instead, as asking other peers would not help and should not count against this one.
+    private void commitChunk(Received received) throws IOException {
+        ChunkTask task = received.task;
+        task.verifying = false;
+        manager.getMemoryBudget().release(received.reserved);
+        verifyingBytes -= received.reserved;
+
+        byte[] data = received.data;
+        if (data != null && received.response.getEncoding() != null) {
+            stats.setCompressedChunks(stats.getCompressedChunks() + 1);
+            stats.setCompressedBytes(stats.getCompressedBytes() + received.response.getData().length);
+        }
+        if (!received.valid) {
+            rejectData(task, received.slot, received.connection);
+            return;
+        }
+        if (received.storeError != null) {
+            throw storeFailed(task.index, received.storeError);
+        }
+
+        long diskStart = System.nanoTime();
+        write(data, manifest.getChunkOffset(task.index));
+        metrics.getDiskWriteTime().record(received.storeNanos + System.nanoTime() - diskStart);
+        long now = System.nanoTime();
+        countReceived(received.slot, received.connection, data.length, now);
+        completeFetch(task, received.request, received.connection, data.length, now);
+
+        logger.debug("Received chunk {}/{} from {} ({} bytes)", task.index + 1, chunks.length, received.connection,
+                data.length);
+    }
+
+    // Writes one block of a streamed chunk to the output file and a pending chunk in the store, hashing it
+    // on the way; the block that reaches the chunk's size completes it if the hash matches. The output may
+    // hold unverified data meanwhile, but the chunk is only marked available once verified, and a retry
+    // overwrites it. Blocks of one chunk arrive in order on a connection, so the first request a block
+    // arrives on writes the chunk and blocks of its hedge or endgame duplicates are dropped. Errors of the
+    // chunk store are local and end the download, as in commitChunk.
+    private void handleBlock(PeerConnection connection, ChunkBlockMessage block) throws IOException {
+        int index = block.getChunkIndex();
+        if (index < 0 || index >= chunks.length) {
+            logger.warn("Ignoring chunk block with invalid index {} from {}", index, connection);
+            return;
+        }
+
+        ChunkInfo chunkInfo = manifest.getChunk(index);
+        if (chunkInfo == null) {
+            logger.warn("Ignoring chunk block {} from {} before its manifest segment", index, connection);
+            return;
+        }
+
+        long now = System.nanoTime();
+        PeerSlot slot = slots.get(connection);
+        ChunkTask task = chunks[index];
+        Request request = task.requestOn(slot);
+        byte[] data = block.getData();
+        if (task.done || task.verifying || request == null || (task.streamer != null && task.streamer != request)) {
+            stats.setDuplicateBytes(stats.getDuplicateBytes() + data.length);
+            return;
+        }
+        if (block.getOffset() != request.received) {
+            // Blocks before this one went to a stream that failed; this one cannot pick up from here
+            logger.debug("Chunk {} block at {} from {} is out of sequence, requesting it again",
+                    index, block.getOffset(), connection);
+            stats.setDuplicateBytes(stats.getDuplicateBytes() + data.length);
+            removeRequest(request);
+            requeue(task, false);
+            return;
+        }
+
+        if (request.received == 0) {
+            task.streamer = request;
+            connection.getLatency().record(now - request.sentAt);
+            metrics.getChunkLatency().record(now - request.sentAt);
+            request.digest = Hash.newDigest();
+            try {
+                request.writer = manager.getChunkStorage().beginChunk(chunkInfo.getHash());
+            } catch (IOException e) {
+                removeRequest(request);
+                throw storeFailed(index, e);
+            }
+        }
+
+        int length = (int) Math.min(config.getBlockSize(), chunkInfo.getSize() - request.received);
+        if (block.getEncoding() != null) {
+            data = decompress(block.getEncoding(), data, length, index, connection);
+        }
+        boolean valid = data != null && data.length == length;
+        if (valid) {
+            long hashStart = System.nanoTime();
+            request.digest.update(data);
+            request.hashNanos += System.nanoTime() - hashStart;
+
+            long diskStart = System.nanoTime();
+            write(data, manifest.getChunkOffset(index) + request.received);
+            try {
+                request.writer.write(data);
+            } catch (IOException e) {
+                removeRequest(request);
+                throw storeFailed(index, e);
+            }
+            metrics.getDiskWriteTime().record(System.nanoTime() - diskStart);
+        }
+        if (!valid) {
+            removeRequest(request);
+            rejectData(task, slot, connection);
+            return;
+        }
+
+        // A stream making progress is not timed out, however long the whole chunk takes
+        request.received += length;
+        request.sentAt = now;
+        lastProgress = now;
+        countReceived(slot, connection, length, now);
+        if (request.received < chunkInfo.getSize()) {
+            return;
+        }
+
+        long verifyStart = System.nanoTime();
+        HashVerifyEvent event = new HashVerifyEvent();
+        event.begin();
+        valid = Hash.of(request.digest.digest()).equals(chunkInfo.getHash());
+        event.finish(fileId, index, connection.getAddress(), chunkInfo.getSize());
+        metrics.getVerifyTime().record(request.hashNanos + System.nanoTime() - verifyStart);
+        if (valid) {
+            try {
+                request.writer.commit();
+            } catch (IOException e) {
+                removeRequest(request);
+                throw storeFailed(index, e);
+            }
+        }
+        if (!valid) {
+            removeRequest(request);
+            rejectData(task, slot, connection);
+            return;
+        }
+
+        removeRequest(request);
+        if (request.fetch != null) {
+            request.fetch.finish(fileId, index, connection.getAddress(), chunkInfo.getSize());
+        }
+        stats.setStreamedChunks(stats.getStreamedChunks() + 1);
+        completeFetch(task, request, connection, chunkInfo.getSize(), now);
+
+        logger.debug("Received chunk {}/{} from {} ({} bytes in blocks)", index + 1, chunks.length, connection,
+                chunkInfo.getSize());
+    }
+
+    // Asks other peers for a chunk whose data from this one did not check out
+    private void rejectData(ChunkTask task, PeerSlot slot, PeerConnection connection) throws IOException {
+        logger.warn("Chunk {} from {} failed verification, requesting it elsewhere", task.index, connection);
+        stats.setCorruptChunks(stats.getCorruptChunks() + 1);
+        if (slot != null) {
+            task.failedOn.add(slot);
+        }
+        requeue(task, true);
+    }
+
+    // Counts bytes received from a peer and holds back new requests while the download limit catches up
+    private void countReceived(PeerSlot slot, PeerConnection connection, long bytes, long now) {
+        if (slot != null) {
+            slot.traffic.received(bytes);
+        }
+        fileTraffic.received(bytes);
+        if (manager.getBandwidthManager() != null) {
+            long delayNanos = manager.getBandwidthManager()
+                    .reserveDownload(connection.getRemotePeerId(), fileId, bytes);
+            if (delayNanos > 0) {
+                throttledUntil = Math.max(throttledUntil, now + delayNanos);
+            }
+        }
+    }
+
+    // Completes a chunk fetched from a peer and credits the peer for it
+    private void completeFetch(ChunkTask task, Request request, PeerConnection connection, long bytes, long now) {
+        completeChunk(task, bytes, now);
+        stats.setChunksFetched(stats.getChunksFetched() + 1);
+        stats.setBytesFetched(stats.getBytesFetched() + bytes);
+        if (request != null && request.kind == RequestKind.HEDGE) {
+            stats.setHedgeWins(stats.getHedgeWins() + 1);
+        }
+
+        if (manager.getUploadScheduler() != null) {
+            manager.getUploadScheduler().recordReceived(connection.getRemotePeerId(), bytes);
+        }
+    }
+
+    // Marks a chunk written and drops duplicate requests for it; their late responses are discarded
+    private void completeChunk(ChunkTask task, long bytes, long now) {
+        task.done = true;
+        remaining--;
+        lastProgress = now;
+        completedChunks = chunks.length - remaining;
+        completedBytes += bytes;
+        synchronized (available) {
+            available.set(task.index);
+            available.notifyAll();
+        }
+        needed.clear(task.index);
+        for (Request other : new ArrayList<>(task.outstanding)) {
+            removeRequest(other);
+        }
+
+        int done = chunks.length - remaining;
+        if (done == chunks.length || done % Math.max(1, chunks.length / 10) == 0) {
+            logger.info("Downloaded {}/{} chunks", done, chunks.length);
+        }
+    }
+
+    // Data of a compressed block, or null if it does not decode to its size, which counts as corrupt
+    private byte[] decompress(String encoding, byte[] compressed, int size, int index, PeerConnection connection) {
+        try {
+            byte[] data = ChunkCompression.decompress(encoding, compressed, size);
+            stats.setCompressedChunks(stats.getCompressedChunks() + 1);
+            stats.setCompressedBytes(stats.getCompressedBytes() + compressed.length);
+            return data;
+        } catch (IOException e) {
+            logger.warn("Chunk {} from {} did not decompress: {}", index, connection, e.getMessage());
+            return null;
+        }
+    }
+
+    // The source, a peer address or the basis file, only labels the flight recorder event
+    private boolean verify(ChunkInfo chunkInfo, byte[] data, Object source) {
+        long start = System.nanoTime();
+        HashVerifyEvent event = new HashVerifyEvent();
+        event.begin();
+        boolean valid = Hash.sha256(data).equals(chunkInfo.getHash());
+        event.finish(fileId, chunkInfo.getIndex(), source, data.length);
+        metrics.getVerifyTime().record(System.nanoTime() - start);
+        return valid;
+    }
+
+    // Stores a verified chunk so later downloads and uploads can use it
+    private void store(ChunkInfo chunkInfo, byte[] data) throws IOException {
+        manager.getChunkStorage().storeVerifiedChunk(chunkInfo.getHash(), data);
+    }
+
+    // A local storage error such as a full disk; the peer's data was fine, so it is not blamed for it
+    private IOException storeFailed(int index, IOException cause) {
+        logger.warn("Could not store chunk {}: {}", index, cause.getMessage());
+        return new IOException("Could not store chunk " + index + ": " + cause.getMessage(), cause);
+    }
+
+    // Fills data from the channel at the given offset; false if the file ended first
+    private static boolean read(FileChannel channel, byte[] data, long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void write(byte[] data, long offset) throws IOException {
+        output.write(data, offset);
+    }
+
+    private void handleReject(PeerConnection connection, ChunkRejectMessage reject) throws IOException {
+        PeerSlot slot = slots.get(connection);
+        int index = reject.getChunkIndex();
+        if (slot == null || index < 0 || index >= chunks.length) {
+            return;
+        }
+
+        stats.setRejections(stats.getRejections() + 1);
+        slot.chokedUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(50, reject.getRetryAfterMillis()));
+        logger.debug("Chunk {} rejected by {} ({}), retrying in {} ms",
+                index, connection, reject.getReason(), reject.getRetryAfterMillis());
+
+        ChunkTask task = chunks[index];
+        Request request = task.requestOn(slot);
+        if (request != null) {
+            removeRequest(request);
+            requeue(task, false);
+        }
+    }
+
+    private void handleDisconnect(PeerConnection connection) throws IOException {
+        PeerSlot slot = slots.remove(connection);
+        if (slot == null) {
+            return;
+        }
+        peers.remove(slot);
+        connection.unregister(fileId);
+        logger.warn("Lost provider {} with {} request(s) in flight", connection, slot.inFlight);
+
+        for (Request request : new ArrayList<>(inFlight)) {
+            if (request.slot == slot) {
+                removeRequest(request);
+                requeue(request.task, false);
+            }
+        }
+        if (segments != null && slot.segmentsInFlight > 0) {
+            for (SegmentTask task : segments) {
+                if (task.slot == slot) {
+                    settleSegment(task);
+                    requeueSegment(task, false);
+                }
+            }
+        }
+    }
+
+    private void removeRequest(Request request) {
+        if (request.task.outstanding.remove(request)) {
+            inFlight.remove(request);
+            request.slot.inFlight--;
+            manager.getMemoryBudget().release(request.reserved);
+            if (request.task.streamer == request) {
+                request.task.streamer = null;
+            }
+            if (request.writer != null) {
+                try {
+                    request.writer.close();
+                } catch (IOException e) {
+                    logger.debug("Failed to discard partial chunk {}: {}", request.task.index, e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Puts a chunk with nothing in flight back into the needed set
+    private void requeue(ChunkTask task, boolean countAttempt) throws IOException {
+        if (task.done || task.verifying || !task.outstanding.isEmpty()) {
+            return;
+        }
+        if (countAttempt && ++task.attempts >= config.getMaxChunkAttempts()) {
+            throw new IOException("Chunk " + task.index + " failed after " + task.attempts + " attempts");
+        }
+        needed.set(task.index);
+        stats.setRetries(stats.getRetries() + 1);
+    }
+
+    // Per-session view of one provider
+    private static class PeerSlot {
+        private final PeerConnection connection;
+        private final TrafficStats traffic;
+        private int inFlight;
+        private int segmentsInFlight;
+        private long chokedUntil;
+
+        private PeerSlot(PeerConnection connection, TrafficStats traffic) {
+            this.connection = connection;
+            this.traffic = traffic;
+        }
+
+        private boolean canRequest(long now, int window) {
+            return inFlight < window && now >= chokedUntil && connection.isActive();
+        }
+    }
+
+    private static class ChunkTask {
+        private final int index;
+        private final List<Request> outstanding = new ArrayList<>(2);
+        private final Set<PeerSlot> failedOn = new HashSet<>();
+        private int attempts;
+        private boolean done;
+        private boolean localFailed;
+
+        // Request whose blocks are being written, while the chunk is streamed
+        private Request streamer;
+
+        // Received whole and not yet through the verify pool; neither needed nor requested again meanwhile
+        private boolean verifying;
+
+        private ChunkTask(int index) {
+            this.index = index;
+        }
+
+        private Request requestOn(PeerSlot slot) {
+            for (Request request : outstanding) {
+                if (request.slot == slot) {
+                    return request;
+                }
+            }
+            return null;
+        }
+    }
+
+    // One segment of a Merkle manifest's chunk list, fetched from one peer at a time
+    private static class SegmentTask {
+        private final int index;
+        private final Set<PeerSlot> failedOn = new HashSet<>();
+        private PeerSlot slot;
+        private long sentAt;
+        private int attempts;
+        private boolean loaded;
+
+        private SegmentTask(int index) {
+            this.index = index;
+        }
+    }
+
+    // A chunk response on its way through the verify pool; the outcome is filled in before it is committed
+    private static class Received {
+        private final ChunkTask task;
+        private final Request request;
+        private final PeerSlot slot;
+        private final PeerConnection connection;
+        private final ChunkResponseMessage response;
+        private final ChunkInfo chunkInfo;
+        private final long reserved;
+        private byte[] data;
+        private boolean valid;
+        private IOException storeError;
+        private long storeNanos;
+
+        private Received(ChunkTask task, Request request, PeerSlot slot, PeerConnection connection,
+                         ChunkResponseMessage response, ChunkInfo chunkInfo, long reserved) {
+            this.task = task;
+            this.request = request;
+            this.slot = slot;
+            this.connection = connection;
+            this.response = response;
+            this.chunkInfo = chunkInfo;
+            this.reserved = reserved;
+        }
+    }
+
+    private static class Request {
+        private final PeerSlot slot;
+        private final ChunkTask task;
+        private long sentAt;              // When sent, or when the last block of a streamed chunk arrived
+        private final RequestKind kind;
+
+        // Memory budget held for the response until the request is settled
+        private final long reserved;
+
+        // Request to response span, only while a flight recording enables it
+        private final ChunkFetchEvent fetch = ChunkFetchEvent.startIfEnabled();
+
+        // Progress of a streamed chunk: bytes written so far, their running hash and the pending store entry
+        private long received;
+        private MessageDigest digest;
+        private long hashNanos;
+        private ChunkStorage.ChunkWriter writer;
+
+        private Request(PeerSlot slot, ChunkTask task, long sentAt, RequestKind kind, long reserved) {
+            this.slot = slot;
+            this.task = task;
+            this.sentAt = sentAt;
+            this.kind = kind;
+            this.reserved = reserved;
+        }
+
+        private boolean isOutstanding() {
+            return task.outstanding.contains(this);
+        }
+    }
+
+    // Moves network callbacks onto the session thread
+    private class Listener implements PeerConnection.Listener {
+
+        @Override
+        public void onManifest(PeerConnection connection, Manifest received) {
+            manifestFuture.complete(received);
+        }
+
+        @Override
+        public void onManifestOutline(PeerConnection connection, ManifestOutline received) {
+            if (manifestFuture.isDone()) {
+                return;
+            }
+            // Checked before the manifest is sized from it
+            try {
+                received.verify(fileId);
+                outline = received;
+                manifestFuture.complete(received.toManifest());
+            } catch (IOException e) {
+                manifestFuture.completeExceptionally(e);
+            }
+        }
+
+        @Override
+        public void onManifestSegment(PeerConnection connection, ManifestSegmentResponseMessage response) {
+            events.add(() -> handleSegment(connection, response));
+        }
+
+        @Override
+        public void onChunk(PeerConnection connection, ChunkResponseMessage response) {
+            events.add(() -> handleChunk(connection, response));
+        }
+
+        @Override
+        public void onChunkBlock(PeerConnection connection, ChunkBlockMessage block) {
+            events.add(() -> handleBlock(connection, block));
+        }
+
+        @Override
+        public void onReject(PeerConnection connection, ChunkRejectMessage reject) {
+            events.add(() -> handleReject(connection, reject));
+        }
+
+        @Override
+        public void onDisconnect(PeerConnection connection) {
+            manifestFuture.completeExceptionally(new IOException("Connection to " + connection + " closed"));
+            events.add(() -> handleDisconnect(connection));
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.p2p.network;
+
+import lombok.Data;
+
+// Counters describing how a single download went
+@Data
+public class DownloadStats {
+    private long chunksFetched;       // Chunks received from peers and accepted
+    private long bytesFetched;        // Payload bytes of accepted chunks
+    private long localChunks;         // Chunks built from the local chunk store instead of fetched
+    private long localBytes;          // Bytes those local chunks saved from the network
+    private long basisChunks;         // Chunks copied from an older local version of the file
+    private long basisBytes;          // Bytes those basis chunks saved from the network
+    private long duplicateBytes;      // Bytes received for chunks that were already complete
+    private long compressedChunks;    // Chunks, or blocks of streamed chunks, that arrived compressed and decoded
+    private long compressedBytes;     // Wire bytes of those chunks and blocks, before decompression
+    private long streamedChunks;      // Chunks received in blocks, hashed and written as they arrived
+    private long manifestSegments;    // Segments of a Merkle manifest's chunk list fetched and verified
+    private long requestsSent;        // All chunk requests, including retries and hedges
+    private long retries;             // Chunks re-requested after a timeout, rejection of data or disconnect
+    private long timeouts;            // Requests abandoned after the adaptive timeout
+    private long rejections;          // CHUNK_REJECT responses (choked or busy)
+    private long corruptChunks;       // Chunks whose data did not match the manifest hash
+    private long hedgedRequests;      // Duplicate requests sent for slow chunks
+    private long hedgeWins;           // Hedged requests that answered first
+    private long endgameRequests;     // Duplicate requests sent in endgame mode
+    private long memoryWaits;         // Times requests were held back because the memory budget was spent
+    private int peersUsed;            // Providers the download was spread across
+    private long elapsedMillis;       // Wall-clock time of the chunk transfer phase
+
+    @Override
+    public String toString() {
+        return String.format("%d chunks (%d bytes) in %d ms from %d peer(s); requests=%d, retries=%d, timeouts=%d, "
+                        + "rejections=%d, corrupt=%d, hedged=%d (won %d), endgame=%d, duplicateBytes=%d, memoryWaits=%d; "
+                        + "reused %d local chunks, saving %d bytes; %d basis chunks, saving %d bytes; "
+                        + "%d chunks arrived compressed in %d bytes; %d streamed in blocks; %d manifest segments",
+                chunksFetched, bytesFetched, elapsedMillis, peersUsed, requestsSent, retries, timeouts,
+                rejections, corruptChunks, hedgedRequests, hedgeWins, endgameRequests, duplicateBytes, memoryWaits,
+                localChunks, localBytes, basisChunks, basisBytes, compressedChunks, compressedBytes, streamedChunks,
+                manifestSegments);
+    }
+}
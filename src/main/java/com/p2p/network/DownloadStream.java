@@ -0,0 +1,170 @@
+package com.p2p.network;
+
+import com.p2p.core.ChunkInfo;
+import com.p2p.core.Manifest;
+import com.p2p.storage.MultiFileChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.NoSuchFileException;
+import java.util.function.Supplier;
+
+// Reads a file in order while it is still downloading. Bytes are returned as soon as the chunk holding
+// them is verified and written; the reader's position steers which chunks the session requests first,
+// so the first bytes arrive after a few chunks instead of after the whole file.
+// Chunks that arrive out of order wait in the output file, so memory use does not grow with the file.
+public class DownloadStream extends InputStream {
+
+    // Null when reading a download that already completed
+    private final DownloadSession session;
+
+    // Where the output currently is; looked up again if it moves once complete
+    private final Supplier<File> location;
+
+    private Manifest manifest;
+    private MultiFileChannel input;
+    private long position;
+    private int lastPlayhead = -1;
+
+    // Stream over a running session writing to outputFile
+    public DownloadStream(DownloadSession session, File outputFile) {
+        this(session, () -> outputFile);
+    }
+
+    public DownloadStream(DownloadSession session, Supplier<File> location) {
+        this.session = session;
+        this.location = location;
+    }
+
+    // Stream over a finished download (a file, or a collection's top-level directory)
+    public DownloadStream(Manifest manifest, File outputFile) {
+        this.session = null;
+        this.location = () -> outputFile;
+        this.manifest = manifest;
+    }
+
+    // Total length; blocks until the manifest has arrived
+    public long size() throws IOException {
+        return manifest().getFileSize();
+    }
+
+    public long position() {
+        return position;
+    }
+
+    // Moves the read position; the session starts fetching from there
+    public void seek(long newPosition) throws IOException {
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position: " + newPosition);
+        }
+        position = newPosition;
+        if (position < size()) {
+            steer(manifest.chunkIndexAt(position));
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (position >= size()) {
+            return -1;
+        }
+
+        int index = manifest.chunkIndexAt(position);
+        if (session != null) {
+            steer(index);
+            try {
+                session.waitForChunk(index);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for chunk " + index);
+            }
+        }
+
+        ChunkInfo chunk = manifest.getChunk(index);
+        long chunkEnd = manifest.getChunkOffset(index) + chunk.getSize();
+        int count = (int) Math.min(length, chunkEnd - position);
+        boolean complete;
+        try {
+            complete = channel().read(buffer, offset, count, position);
+        } catch (NoSuchFileException e) {
+            // Moved to its final name meanwhile
+            close();
+            complete = channel().read(buffer, offset, count, position);
+        }
+        if (!complete) {
+            throw new IOException("Output file is shorter than chunk " + index);
+        }
+        position += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        long target = Math.min(size(), position + n);
+        long skipped = target - position;
+        seek(target);
+        return skipped;
+    }
+
+    // Bytes readable without waiting for the network
+    @Override
+    public int available() throws IOException {
+        if (manifest == null || position >= manifest.getFileSize()) {
+            return 0;
+        }
+        int index = manifest.chunkIndexAt(position);
+        if (session != null && !session.isChunkAvailable(index)) {
+            return 0;
+        }
+        long chunkEnd = manifest.getChunkOffset(index) + manifest.getChunk(index).getSize();
+        return (int) (chunkEnd - position);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (input != null) {
+            input.close();
+            input = null;
+        }
+    }
+
+    private void steer(int index) {
+        if (session != null && index != lastPlayhead) {
+            session.setPlayhead(index);
+            lastPlayhead = index;
+        }
+    }
+
+    private Manifest manifest() throws IOException {
+        if (manifest == null) {
+            try {
+                manifest = session.waitForManifest();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the manifest");
+            }
+        }
+        return manifest;
+    }
+
+    private MultiFileChannel channel() throws IOException {
+        if (input == null) {
+            input = MultiFileChannel.open(location.get().toPath(), manifest, false);
+        }
+        return input;
+    }
+}
@@ -0,0 +1,77 @@
+package com.p2p.network;
+
+import com.p2p.protocol.HeartbeatMessage;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+// Sends heartbeats on write-idle connections and closes connections that stay read-idle
+public class IdleConnectionHandler extends ChannelDuplexHandler {
+    private static final Logger logger = LoggerFactory.getLogger(IdleConnectionHandler.class);
+
+    private final ConnectionMetrics metrics;
+
+    public IdleConnectionHandler(ConnectionMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // Adds the idle detector to the front of the pipeline and this handler after the message codec
+    public static void install(ChannelPipeline pipeline, NetworkConfig config, ConnectionMetrics metrics) {
+        pipeline.addFirst("idleState", new IdleStateHandler(
+                config.getReadIdleSeconds(), config.getWriteIdleSeconds(), 0, TimeUnit.SECONDS));
+        pipeline.addLast("idleConnection", new IdleConnectionHandler(metrics));
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        metrics.connectionOpened();
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        metrics.connectionClosed();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HeartbeatMessage) {
+            metrics.heartbeatReceived();
+            return;
+        }
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (!(evt instanceof IdleStateEvent)) {
+            super.userEventTriggered(ctx, evt);
+            return;
+        }
+
+        IdleState state = ((IdleStateEvent) evt).state();
+        if (state == IdleState.WRITER_IDLE) {
+            ctx.writeAndFlush(new HeartbeatMessage());
+            metrics.heartbeatSent();
+        } else if (state == IdleState.READER_IDLE) {
+            ChannelOutboundBuffer outbound = ctx.channel().unsafe().outboundBuffer();
+            long pendingBytes = outbound != null ? outbound.totalPendingWriteBytes() : 0;
+
+            logger.info("Closing idle connection: {} ({} pending bytes)", ctx.channel().remoteAddress(), pendingBytes);
+            metrics.idleConnectionClosed(pendingBytes);
+
+            // Let downstream handlers deregister the peer before the channel goes away
+            ctx.fireUserEventTriggered(evt);
+            ctx.close();
+        }
+    }
+}
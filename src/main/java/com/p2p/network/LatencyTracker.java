@@ -0,0 +1,72 @@
+package com.p2p.network;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+// Sliding window of recent chunk response times for one peer, used to derive adaptive timeouts and hedge delays
+public class LatencyTracker {
+    private static final int WINDOW = 128;
+
+    // Percentiles are not trusted until this many responses were observed
+    private static final int MIN_SAMPLES = 8;
+
+    // Timeout is this multiple of the p99 response time
+    private static final int TIMEOUT_MULTIPLIER = 3;
+
+    private final long initialTimeoutNanos;
+    private final long minTimeoutNanos;
+    private final long maxTimeoutNanos;
+
+    private final long[] samples = new long[WINDOW];
+    private final long[] sorted = new long[WINDOW];
+    private int count;
+    private int next;
+    private boolean dirty;
+
+    public LatencyTracker(NetworkConfig config) {
+        this.initialTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getInitialChunkTimeoutMillis());
+        this.minTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getMinChunkTimeoutMillis());
+        this.maxTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getMaxChunkTimeoutMillis());
+    }
+
+    public synchronized void record(long latencyNanos) {
+        samples[next] = latencyNanos;
+        next = (next + 1) % WINDOW;
+        if (count < WINDOW) {
+            count++;
+        }
+        dirty = true;
+    }
+
+    // Returns the given percentile (0-100) of recent samples, or -1 without enough data
+    public synchronized long percentile(double percentile) {
+        if (count < MIN_SAMPLES) {
+            return -1;
+        }
+        if (dirty) {
+            System.arraycopy(samples, 0, sorted, 0, count);
+            Arrays.sort(sorted, 0, count);
+            dirty = false;
+        }
+        int rank = (int) Math.ceil(percentile / 100.0 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, rank))];
+    }
+
+    // How long to wait for a response before giving up on this peer for that request
+    public long timeoutNanos() {
+        long p99 = percentile(99);
+        if (p99 < 0) {
+            return initialTimeoutNanos;
+        }
+        return Math.max(minTimeoutNanos, Math.min(maxTimeoutNanos, p99 * TIMEOUT_MULTIPLIER));
+    }
+
+    // How long a request may be outstanding before a duplicate is sent elsewhere, or -1 if unknown
+    public long hedgeDelayNanos() {
+        return percentile(95);
+    }
+
+    public synchronized int getSampleCount() {
+        return count;
+    }
+}
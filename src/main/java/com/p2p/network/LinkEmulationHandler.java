@@ -0,0 +1,118 @@
+package com.p2p.network;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Emulates a slower network link for benchmarks on one machine: holds back everything this peer sends
+// by a one-way latency plus jitter, paces it to a bandwidth cap and, for each lost segment, stalls the
+// link as a TCP retransmission would. Data leaves in order, and a close waits for data still held back.
+// Only the sending side is delayed, so both ends install it to emulate a link in both directions.
+// A write completes once it has left the emulated link, not when it arrives, as with a socket send buffer;
+// otherwise senders waiting on write completion would only keep one write in flight per latency.
+// Random draws are seeded per connection, in order of creation, so runs with the same settings repeat.
+public class LinkEmulationHandler extends ChannelDuplexHandler {
+
+    // Payload of one TCP segment, the unit that is lost
+    private static final int SEGMENT_SIZE = 1448;
+
+    private static final AtomicLong connections = new AtomicLong();
+
+    private final long latencyNanos;
+    private final long jitterNanos;
+    private final long bytesPerSecond;
+    private final double lossRate;
+    private final long stallNanos;
+    private final Random random;
+
+    // When the link finishes sending what it already holds, and when the last of it arrives
+    private long linkFreeAt;
+    private long lastDeliveryAt;
+
+    public LinkEmulationHandler(NetworkConfig config) {
+        this.latencyNanos = TimeUnit.MILLISECONDS.toNanos(config.getEmulatedLatencyMillis());
+        this.jitterNanos = TimeUnit.MILLISECONDS.toNanos(config.getEmulatedJitterMillis());
+        this.bytesPerSecond = config.getEmulatedBandwidth();
+        this.lossRate = config.getEmulatedLossPercent() / 100;
+        this.stallNanos = TimeUnit.MILLISECONDS.toNanos(config.getEmulatedStallMillis());
+        this.random = new Random(config.getEmulationSeed() + connections.getAndIncrement());
+    }
+
+    // Adds the emulator next to the socket if any link condition is configured
+    public static void install(ChannelPipeline pipeline, NetworkConfig config) {
+        if (isEnabled(config)) {
+            pipeline.addFirst("linkEmulation", new LinkEmulationHandler(config));
+        }
+    }
+
+    public static boolean isEnabled(NetworkConfig config) {
+        return config.getEmulatedLatencyMillis() > 0 || config.getEmulatedJitterMillis() > 0
+                || config.getEmulatedBandwidth() > 0 || config.getEmulatedLossPercent() > 0;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        long now = System.nanoTime();
+        int bytes = msg instanceof ByteBuf ? ((ByteBuf) msg).readableBytes() : 0;
+
+        // Serialized onto the link at the capped rate, then in flight for the latency
+        long sendAt = Math.max(now, linkFreeAt);
+        long transmitNanos = bytesPerSecond > 0 ? bytes * 1_000_000_000L / bytesPerSecond : 0;
+        linkFreeAt = sendAt + transmitNanos + lostSegments(bytes) * stallNanos;
+
+        long delay = latencyNanos + (jitterNanos > 0 ? (long) (random.nextDouble() * jitterNanos) : 0);
+        long deliverAt = Math.max(linkFreeAt + delay, lastDeliveryAt);
+        lastDeliveryAt = deliverAt;
+
+        long sentAt = linkFreeAt;
+        ctx.executor().schedule(() -> {
+            promise.trySuccess();
+        }, sentAt - now, TimeUnit.NANOSECONDS);
+        ctx.executor().schedule(() -> {
+            ctx.write(msg).addListener(future -> {
+                if (!future.isSuccess()) {
+                    promise.tryFailure(future.cause());
+                }
+            });
+            ctx.flush();
+        }, deliverAt - now, TimeUnit.NANOSECONDS);
+    }
+
+    // Writes are flushed when they leave the emulated link
+    @Override
+    public void flush(ChannelHandlerContext ctx) {
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) {
+        long wait = lastDeliveryAt - System.nanoTime();
+        if (wait <= 0) {
+            ctx.close(promise);
+        } else {
+            ctx.executor().schedule(() -> {
+                ctx.close(promise);
+            }, wait, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // Number of the write's segments that are lost; each one stalls the link for a retransmission timeout
+    private int lostSegments(int bytes) {
+        if (lossRate <= 0) {
+            return 0;
+        }
+        int segments = Math.max(1, (bytes + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        int lost = 0;
+        for (int i = 0; i < segments; i++) {
+            if (random.nextDouble() < lossRate) {
+                lost++;
+            }
+        }
+        return lost;
+    }
+}
@@ -0,0 +1,155 @@
+package com.p2p.network;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Process-wide limit on chunk payload held in memory by uploads and downloads. Every chunk buffer is
+// reserved before it is created and released once written or discarded. Near the limit, download
+// request windows shrink; at the limit, new requests wait and servers stop reading until usage
+// falls back below the resume mark.
+public class MemoryBudget {
+    private static final Logger logger = LoggerFactory.getLogger(MemoryBudget.class);
+
+    // Request windows start shrinking above this share of the limit
+    private static final int SOFT_PERCENT = 50;
+
+    // Paused readers resume below this share of the limit
+    private static final int RESUME_PERCENT = 75;
+
+    private final long limit;
+
+    // Guarded by this
+    private long used;
+    private long peak;
+    private long denied;
+    private long overdrafts;
+    private long readPauses;
+    private final List<Runnable> waiting = new ArrayList<>();
+
+    public MemoryBudget(NetworkConfig config) {
+        this(config.getMemoryBudget());
+    }
+
+    public MemoryBudget(long limit) {
+        this.limit = limit > 0 ? limit : Long.MAX_VALUE;
+    }
+
+    // Bytes a chunk of the given size occupies in flight: the raw payload plus its Base64 JSON frame
+    public static long chunkFootprint(long chunkSize) {
+        return chunkSize + (chunkSize + 2) / 3 * 4 + 512;
+    }
+
+    // Reserves bytes if they fit in the budget. With nothing reserved, a buffer larger than the whole
+    // limit is still granted, so a budget below one chunk slows transfers down instead of stopping them.
+    public synchronized boolean tryReserve(long bytes) {
+        if (used + bytes > limit) {
+            if (used > 0) {
+                denied++;
+                return false;
+            }
+            overdrafts++;
+        }
+        add(bytes);
+        return true;
+    }
+
+    // Reserves bytes even past the limit; for the one buffer a transfer needs to make progress at all
+    public synchronized void forceReserve(long bytes) {
+        if (used + bytes > limit) {
+            overdrafts++;
+        }
+        add(bytes);
+    }
+
+    public void release(long bytes) {
+        List<Runnable> resumed = null;
+        synchronized (this) {
+            used -= bytes;
+            if (used < 0) {
+                logger.warn("Memory budget released more than was reserved");
+                used = 0;
+            }
+            if (!waiting.isEmpty() && used <= resumeMark()) {
+                resumed = new ArrayList<>(waiting);
+                waiting.clear();
+            }
+        }
+        if (resumed != null) {
+            resumed.forEach(Runnable::run);
+        }
+    }
+
+    // True once usage reached the limit; readers should pause
+    public synchronized boolean isExhausted() {
+        return used >= limit;
+    }
+
+    // Runs the action once usage drops below the resume mark, immediately if it already is
+    public void whenAvailable(Runnable action) {
+        synchronized (this) {
+            if (used > resumeMark()) {
+                waiting.add(action);
+                readPauses++;
+                return;
+            }
+        }
+        action.run();
+    }
+
+    // Scales a request window down linearly from the soft mark to a single request at the limit
+    public synchronized int scaleWindow(int window) {
+        long soft = limit / 100 * SOFT_PERCENT;
+        if (used <= soft || window <= 1) {
+            return window;
+        }
+        long headroom = Math.max(0, limit - used);
+        return (int) Math.max(1, window * headroom / (limit - soft));
+    }
+
+    private void add(long bytes) {
+        used += bytes;
+        peak = Math.max(peak, used);
+    }
+
+    private long resumeMark() {
+        return limit / 100 * RESUME_PERCENT;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    public synchronized long getPeak() {
+        return peak;
+    }
+
+    public synchronized long getDenied() {
+        return denied;
+    }
+
+    public synchronized long getOverdrafts() {
+        return overdrafts;
+    }
+
+    public synchronized long getReadPauses() {
+        return readPauses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("used=%s, peak=%s, limit=%s, denied=%d, overdrafts=%d, readPauses=%d",
+                formatBytes(used), formatBytes(peak), limit == Long.MAX_VALUE ? "unlimited" : formatBytes(limit),
+                denied, overdrafts, readPauses);
+    }
+
+    private static String formatBytes(long bytes) {
+        return String.format("%.1f MiB", bytes / (1024.0 * 1024));
+    }
+}
@@ -1,6 +1,11 @@
 package com.p2p.network;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.p2p.metrics.TransferMetrics;
+import com.p2p.metrics.events.MessageDecodeEvent;
+import com.p2p.metrics.events.MessageEncodeEvent;
+import com.p2p.protocol.ChunkRequestMessage;
+import com.p2p.protocol.ChunkResponseMessage;
+import com.p2p.protocol.HelloMessage;
 import com.p2p.protocol.Message;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
@@ -8,43 +13,100 @@ import io.netty.handler.codec.MessageToMessageCodec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.nio.charset.StandardCharsets;
 import java.util.List;
 
-// Codec for encoding/decoding messages to/from JSON over the network
+// Codec for encoding/decoding messages to/from frames over the network.
+// Messages are streamed straight into and out of the frame buffers, so a chunk payload is not copied
+// through intermediate strings or arrays. Outgoing messages use JSON until this connection has sent
+// and received a HELLO listing the same faster format; incoming frames may be in either.
 public class MessageCodec extends MessageToMessageCodec<ByteBuf, Message> {
     private static final Logger logger = LoggerFactory.getLogger(MessageCodec.class);
-    private static final ObjectMapper objectMapper = new ObjectMapper();
 
-    // Encodes a Message object to JSON bytes with a 4-byte length prefix
+    // Receives encode and decode times; null when not measured
+    private final TransferMetrics metrics;
+
+    // Format of outgoing messages, and the formats listed in the last HELLO sent and received
+    private WireFormat format = WireFormat.JSON;
+    private List<String> sentFormats;
+    private List<String> receivedFormats;
+
+    // Set when the format was chosen up front instead of negotiated
+    private final boolean fixedFormat;
+
+    public MessageCodec() {
+        this(null);
+    }
+
+    public MessageCodec(TransferMetrics metrics) {
+        this.metrics = metrics;
+        this.fixedFormat = false;
+    }
+
+    // Always encodes in the given format, as benchmarks do to measure one without a handshake
+    public MessageCodec(TransferMetrics metrics, WireFormat format) {
+        this.metrics = metrics;
+        this.format = format;
+        this.fixedFormat = true;
+    }
+
+    public WireFormat getFormat() {
+        return format;
+    }
+
+    // Encodes a Message object in the connection's format with a 4-byte length prefix
     @Override
     protected void encode(ChannelHandlerContext ctx, Message msg, List<Object> out) throws Exception {
+        long start = System.nanoTime();
+        MessageEncodeEvent event = new MessageEncodeEvent();
+        event.begin();
+        ByteBuf buffer = ctx.alloc().buffer();
         try {
-            String json = objectMapper.writeValueAsString(msg);
-            byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
-
-            ByteBuf buffer = ctx.alloc().buffer(4 + bytes.length);
-            buffer.writeInt(bytes.length);
-            buffer.writeBytes(bytes);
+            buffer.writeInt(0);
+            WireFormat used = format;
+            used.write(msg, buffer);
+            int length = buffer.readableBytes() - 4;
+            buffer.setInt(0, length);
             out.add(buffer);
+            if (metrics != null) {
+                metrics.getEncodeTime().record(System.nanoTime() - start);
+            }
+            if (event.isEnabled()) {
+                event.finish(msg.getType(), fileIdOf(msg), chunkIndexOf(msg), ctx.channel().remoteAddress(), length);
+            }
 
-            logger.debug("Encoded message: {} ({} bytes)", msg.getType(), bytes.length);
+            logger.debug("Encoded message: {} ({} bytes, {})", msg.getType(), length, used.getName());
+            if (msg instanceof HelloMessage) {
+                sentFormats = ((HelloMessage) msg).getFormats();
+                negotiate(ctx);
+            }
         } catch (Exception e) {
+            buffer.release();
             logger.error("Failed to encode message", e);
             throw e;
         }
     }
 
-    // Decodes JSON bytes to a Message object (length prefix already removed by frame decoder)
+    // Decodes a frame to a Message object (length prefix already removed by frame decoder)
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf msg, List<Object> out) throws Exception {
+        long start = System.nanoTime();
+        MessageDecodeEvent event = new MessageDecodeEvent();
+        event.begin();
+        int length = msg.readableBytes();
         try {
-            byte[] bytes = new byte[msg.readableBytes()];
-            msg.readBytes(bytes);
-            String json = new String(bytes, StandardCharsets.UTF_8);
-
-            Message message = objectMapper.readValue(json, Message.class);
+            Message message = WireFormat.of(msg).read(msg);
+            if (message instanceof HelloMessage) {
+                receivedFormats = ((HelloMessage) message).getFormats();
+                negotiate(ctx);
+            }
             out.add(message);
+            if (metrics != null) {
+                metrics.getDecodeTime().record(System.nanoTime() - start);
+            }
+            if (event.isEnabled()) {
+                event.finish(message.getType(), fileIdOf(message), chunkIndexOf(message),
+                        ctx.channel().remoteAddress(), length);
+            }
 
             logger.debug("Decoded message: {}", message.getType());
         } catch (Exception e) {
@@ -52,4 +114,32 @@ public class MessageCodec extends MessageToMessageCodec<ByteBuf, Message> {
             throw e;
         }
     }
+
+    private void negotiate(ChannelHandlerContext ctx) {
+        WireFormat agreed = WireFormat.negotiate(sentFormats, receivedFormats);
+        if (!fixedFormat && agreed != format) {
+            logger.debug("Sending {} messages to {}", agreed.getName(), ctx.channel().remoteAddress());
+            format = agreed;
+        }
+    }
+
+    private static String fileIdOf(Message msg) {
+        if (msg instanceof ChunkRequestMessage) {
+            return ((ChunkRequestMessage) msg).getFileId();
+        }
+        if (msg instanceof ChunkResponseMessage) {
+            return ((ChunkResponseMessage) msg).getFileId();
+        }
+        return null;
+    }
+
+    private static int chunkIndexOf(Message msg) {
+        if (msg instanceof ChunkRequestMessage) {
+            return ((ChunkRequestMessage) msg).getChunkIndex();
+        }
+        if (msg instanceof ChunkResponseMessage) {
+            return ((ChunkResponseMessage) msg).getChunkIndex();
+        }
+        return -1;
+    }
 }
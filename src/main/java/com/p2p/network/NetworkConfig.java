@@ -0,0 +1,113 @@
+package com.p2p.network;
+
+import lombok.Data;
+
+// Tunable settings shared by the server and download pipelines
+@Data
+public class NetworkConfig {
+    // Block sizes a peer may ask chunks to be streamed in; a peer asking for any other gets whole chunks
+    public static final int MIN_BLOCK_SIZE = 16 * 1024;
+    public static final int MAX_BLOCK_SIZE = 16 * 1024 * 1024;
+
+    // Close a connection after this long without inbound traffic (0 disables)
+    private int readIdleSeconds = 60;
+
+    // Send a heartbeat after this long without outbound traffic (0 disables)
+    private int writeIdleSeconds = 15;
+
+    // Largest frame accepted from a peer; collection manifests listing many files need more than a chunk
+    private int maxFrameLength = 32 * 1024 * 1024;
+
+    // Netty transport; AUTO prefers native epoll on Linux
+    private Transport.Type transport = Transport.Type.AUTO;
+
+    // Acceptor threads; with epoll each gets its own SO_REUSEPORT listener
+    private int bossThreads = 1;
+
+    // I/O worker threads (0 = Netty default of 2 * cores)
+    private int workerThreads = 0;
+
+    // Threads hashing and storing received chunks off the download threads (0 = one per core)
+    private int verifyThreads = 0;
+
+    // Bind one listener per boss thread with SO_REUSEPORT (epoll only)
+    private boolean reusePort = true;
+
+    // SO_SNDBUF / SO_RCVBUF in bytes (0 = OS default / autotuning)
+    private int sendBufferSize = 0;
+    private int receiveBufferSize = 0;
+
+    // TCP_NOTSENT_LOWAT in bytes, limits unsent data queued in the kernel (0 = off, epoll only)
+    private int notSentLowat = 0;
+
+    // Chunk uploads served concurrently across all peers
+    private int uploadSlots = 4;
+
+    // Chunk requests a single peer may have waiting for a slot before it is told BUSY
+    private int maxQueuedUploadsPerPeer = 16;
+
+    // How often choke/unchoke decisions are recomputed
+    private int rechokeIntervalSeconds = 10;
+
+    // Bandwidth limits in bytes per second (0 = unlimited), adjustable later through BandwidthManager
+    private long uploadLimit = 0;
+    private long downloadLimit = 0;
+    private long peerUploadLimit = 0;
+    private long peerDownloadLimit = 0;
+    private long fileUploadLimit = 0;
+    private long fileDownloadLimit = 0;
+
+    // Port of the Prometheus /metrics endpoint on 127.0.0.1 (0 = off)
+    private int metricsPort = 0;
+
+    // Chunk payload bytes held in memory at once by all transfers of the process (0 = unlimited)
+    private long memoryBudget = 256L * 1024 * 1024;
+
+    // Providers a single download is spread across
+    private int maxPeersPerDownload = 8;
+
+    // Chunk requests kept in flight per provider
+    private int requestsPerPeer = 4;
+
+    // Chunk timeout before a peer has enough samples for an adaptive one
+    private long initialChunkTimeoutMillis = 30_000;
+
+    // Bounds for the adaptive timeout (3 x the peer's p99 response time); the maximum also
+    // limits how long a download may go without completing any chunk
+    private long minChunkTimeoutMillis = 1_000;
+    private long maxChunkTimeoutMillis = 120_000;
+
+    // Attempts (timeouts or corrupt data) before a chunk fails the download
+    private int maxChunkAttempts = 5;
+
+    // Once this few chunks remain, outstanding ones are requested from every provider
+    private int endgameChunks = 4;
+
+    // Hedged duplicate requests allowed, as a percentage of all requests
+    private int hedgeBudgetPercent = 5;
+
+    // Offer the binary message format to peers; without it every message is JSON, e.g. for debugging
+    private boolean binaryMessages = true;
+
+    // Offer compressed chunk transfers to peers that support them
+    private boolean compression = true;
+
+    // Compressed forms of recently uploaded chunks kept in memory, in bytes (0 = none)
+    private long compressionCacheSize = 32L * 1024 * 1024;
+
+    // Chunks larger than this travel as blocks of this size, each written to disk and hashed as it arrives,
+    // between peers that both set it (0 = whole chunks in one frame)
+    private int blockSize = 1024 * 1024;
+
+    // Emulated link conditions for local benchmarks, applied to all data this peer sends (0 = off):
+    // one-way latency, extra random delay up to the jitter, a bandwidth cap in bytes per second per
+    // connection, and a share of lost segments that each stall the link for the stall time
+    private long emulatedLatencyMillis = 0;
+    private long emulatedJitterMillis = 0;
+    private long emulatedBandwidth = 0;
+    private double emulatedLossPercent = 0;
+    private long emulatedStallMillis = 200;
+
+    // Seed of the emulated jitter and losses
+    private long emulationSeed = 1;
+}
@@ -2,9 +2,7 @@ package com.p2p.network;
 
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import lombok.Getter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,6 +20,8 @@ public class PeerClient {
     @Getter
     private final int localPort;
 
+    private final NetworkConfig config;
+
     private EventLoopGroup workerGroup;
     private Channel channel;
 
@@ -29,18 +29,24 @@ public class PeerClient {
     private final List<String> availableFiles = new ArrayList<>();
 
     public PeerClient(String localPeerId, int localPort) {
+        this(localPeerId, localPort, new NetworkConfig());
+    }
+
+    public PeerClient(String localPeerId, int localPort, NetworkConfig config) {
         this.localPeerId = localPeerId;
         this.localPort = localPort;
+        this.config = config;
     }
 
     // Connects to a remote peer at the specified host and port
     public void connect(String host, int port) throws InterruptedException {
-        workerGroup = new NioEventLoopGroup();
+        Transport transport = Transport.select(config);
+        workerGroup = transport.newEventLoopGroup(config.getWorkerThreads());
 
         try {
             Bootstrap bootstrap = new Bootstrap();
             bootstrap.group(workerGroup)
-                    .channel(NioSocketChannel.class)
+                    .channel(transport.socketChannelClass())
                     .handler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         protected void initChannel(SocketChannel ch) {
@@ -50,6 +56,7 @@ public class PeerClient {
                         }
                     })
                     .option(ChannelOption.SO_KEEPALIVE, true);
+            transport.configure(bootstrap);
 
             ChannelFuture future = bootstrap.connect(host, port).sync();
             channel = future.channel();
@@ -0,0 +1,259 @@
+package com.p2p.network;
+
+import com.p2p.core.Manifest;
+import com.p2p.core.ManifestOutline;
+import com.p2p.core.PeerInfo;
+import com.p2p.protocol.*;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Client connection to one providing peer, shared by every download that uses it.
+// Responses are routed to the listener registered for their file ID.
+public class PeerConnection {
+    private static final Logger logger = LoggerFactory.getLogger(PeerConnection.class);
+
+    // Callbacks for one download; invoked on the connection's event loop
+    public interface Listener {
+        void onManifest(PeerConnection connection, Manifest manifest);
+
+        void onManifestOutline(PeerConnection connection, ManifestOutline outline);
+
+        void onManifestSegment(PeerConnection connection, ManifestSegmentResponseMessage segment);
+
+        void onChunk(PeerConnection connection, ChunkResponseMessage response);
+
+        void onChunkBlock(PeerConnection connection, ChunkBlockMessage block);
+
+        void onReject(PeerConnection connection, ChunkRejectMessage reject);
+
+        void onDisconnect(PeerConnection connection);
+    }
+
+    @Getter
+    private final String host;
+
+    @Getter
+    private final int port;
+
+    @Getter
+    private final LatencyTracker latency;
+
+    private final Map<String, Listener> listeners = new ConcurrentHashMap<>();
+    private final CompletableFuture<HelloMessage> hello = new CompletableFuture<>();
+    private final Set<String> remoteFiles = ConcurrentHashMap.newKeySet();
+    // Peer list requests awaiting an answer; sessions sharing this connection each ask, and any answer serves all
+    private final Queue<CompletableFuture<List<PeerInfo>>> peerLists = new ConcurrentLinkedQueue<>();
+    private volatile Channel channel;
+
+    public PeerConnection(String host, int port, NetworkConfig config) {
+        this.host = host;
+        this.port = port;
+        this.latency = new LatencyTracker(config);
+    }
+
+    // Binds the connection to its connected channel
+    void attach(Channel channel) {
+        this.channel = channel;
+    }
+
+    // Handler to place at the end of the channel pipeline
+    SimpleChannelInboundHandler<Message> newHandler() {
+        return new Handler();
+    }
+
+    public void register(String fileId, Listener listener) {
+        listeners.put(fileId, listener);
+    }
+
+    public void unregister(String fileId) {
+        listeners.remove(fileId);
+    }
+
+    public boolean hasListeners() {
+        return !listeners.isEmpty();
+    }
+
+    public void send(Message message) {
+        channel.writeAndFlush(message);
+    }
+
+    public boolean isActive() {
+        return channel != null && channel.isActive();
+    }
+
+    public void close() {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    public CompletableFuture<HelloMessage> getHello() {
+        return hello;
+    }
+
+    // Asks the peer for the peers it knows about; the next answer completes every request still waiting
+    public CompletableFuture<List<PeerInfo>> requestPeerList() {
+        CompletableFuture<List<PeerInfo>> future = new CompletableFuture<>();
+        peerLists.add(future);
+        if (!isActive()) {
+            failPeerLists(new IllegalStateException("Connection to " + getAddress() + " closed"));
+            return future;
+        }
+        send(new PeerListRequestMessage());
+        return future;
+    }
+
+    // Peer ID announced in the remote HELLO, or null before the handshake completed
+    public String getRemotePeerId() {
+        HelloMessage message = hello.getNow(null);
+        return message != null ? message.getPeerId() : null;
+    }
+
+    // Block size the remote peer streams large chunks in, 0 if it sends them whole or has not said HELLO
+    public int getRemoteBlockSize() {
+        HelloMessage message = hello.getNow(null);
+        return message != null ? message.getBlockSize() : 0;
+    }
+
+    // File IDs the remote peer advertised in its HELLO and later ANNOUNCE messages
+    public Set<String> getRemoteFiles() {
+        return Collections.unmodifiableSet(remoteFiles);
+    }
+
+    // Fails the handshake of a connection that could not be opened, so callers waiting on it stop
+    void failConnect(Throwable cause) {
+        hello.completeExceptionally(cause);
+    }
+
+    private void failPeerLists(Throwable cause) {
+        for (CompletableFuture<List<PeerInfo>> future = peerLists.poll(); future != null; future = peerLists.poll()) {
+            future.completeExceptionally(cause);
+        }
+    }
+
+    public String getAddress() {
+        return host + ":" + port;
+    }
+
+    @Override
+    public String toString() {
+        return getAddress();
+    }
+
+    // Routes inbound messages to the waiting futures and per-file listeners
+    private class Handler extends SimpleChannelInboundHandler<Message> {
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, Message msg) {
+            switch (msg.getType()) {
+                case HELLO:
+                    HelloMessage helloMessage = (HelloMessage) msg;
+                    if (helloMessage.getAvailableFiles() != null) {
+                        remoteFiles.addAll(helloMessage.getAvailableFiles());
+                    }
+                    hello.complete(helloMessage);
+                    break;
+
+                case ANNOUNCE:
+                    AnnounceMessage announce = (AnnounceMessage) msg;
+                    remoteFiles.removeAll(announce.getRemoved());
+                    remoteFiles.addAll(announce.getAdded());
+                    logger.debug("{} now offers {} file(s)", getAddress(), remoteFiles.size());
+                    break;
+
+                case PEER_LIST_RESPONSE:
+                    List<PeerInfo> peers = ((PeerListResponseMessage) msg).getPeers();
+                    for (CompletableFuture<List<PeerInfo>> future = peerLists.poll(); future != null;
+                         future = peerLists.poll()) {
+                        future.complete(peers);
+                    }
+                    break;
+
+                case MANIFEST_RESPONSE:
+                    ManifestResponseMessage manifestResponse = (ManifestResponseMessage) msg;
+                    Manifest manifest = manifestResponse.getManifest();
+                    ManifestOutline outline = manifestResponse.getOutline();
+                    if (manifest == null && outline == null) {
+                        logger.warn("Empty MANIFEST_RESPONSE from {}", getAddress());
+                        break;
+                    }
+                    Listener manifestListener =
+                            listeners.get(manifest != null ? manifest.getFileId() : outline.getFileId());
+                    if (manifestListener == null) {
+                        break;
+                    }
+                    if (manifest != null) {
+                        manifestListener.onManifest(PeerConnection.this, manifest);
+                    } else {
+                        manifestListener.onManifestOutline(PeerConnection.this, outline);
+                    }
+                    break;
+
+                case MANIFEST_SEGMENT_RESPONSE:
+                    ManifestSegmentResponseMessage segment = (ManifestSegmentResponseMessage) msg;
+                    Listener segmentListener = listeners.get(segment.getFileId());
+                    if (segmentListener != null) {
+                        segmentListener.onManifestSegment(PeerConnection.this, segment);
+                    }
+                    break;
+
+                case CHUNK_RESPONSE:
+                    ChunkResponseMessage response = (ChunkResponseMessage) msg;
+                    Listener chunkListener = listeners.get(response.getFileId());
+                    if (chunkListener != null) {
+                        chunkListener.onChunk(PeerConnection.this, response);
+                    }
+                    break;
+
+                case CHUNK_BLOCK:
+                    ChunkBlockMessage block = (ChunkBlockMessage) msg;
+                    Listener blockListener = listeners.get(block.getFileId());
+                    if (blockListener != null) {
+                        blockListener.onChunkBlock(PeerConnection.this, block);
+                    }
+                    break;
+
+                case CHUNK_REJECT:
+                    ChunkRejectMessage reject = (ChunkRejectMessage) msg;
+                    Listener rejectListener = listeners.get(reject.getFileId());
+                    if (rejectListener != null) {
+                        rejectListener.onReject(PeerConnection.this, reject);
+                    }
+                    break;
+
+                default:
+                    logger.warn("Unexpected message type from {}: {}", getAddress(), msg.getType());
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            logger.info("Disconnected from peer: {}", getAddress());
+            RuntimeException closed = new IllegalStateException("Connection to " + getAddress() + " closed");
+            hello.completeExceptionally(closed);
+            failPeerLists(closed);
+            for (Listener listener : listeners.values()) {
+                listener.onDisconnect(PeerConnection.this);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            logger.error("Error in connection to {}", getAddress(), cause);
+            ctx.close();
+        }
+    }
+}
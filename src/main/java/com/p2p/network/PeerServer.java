@@ -1,26 +1,43 @@
 package com.p2p.network;
 
+import com.p2p.core.Manifest;
+import com.p2p.core.ManifestOutline;
 import com.p2p.discovery.PeerRegistry;
+import com.p2p.metrics.MetricsServer;
+import com.p2p.metrics.TransferMetrics;
 import com.p2p.storage.ChunkStorage;
 import com.p2p.storage.ManifestStorage;
 import io.netty.bootstrap.ServerBootstrap;
+import com.p2p.protocol.AnnounceMessage;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.util.concurrent.GlobalEventExecutor;
 import lombok.Getter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 // Netty-based TCP server that listens for incoming peer connections
 public class PeerServer {
     private static final Logger logger = LoggerFactory.getLogger(PeerServer.class);
 
+    // File set changes within this window are sent to peers as one ANNOUNCE
+    private static final long ANNOUNCE_DELAY_MILLIS = 500;
+
     @Getter
     private final String peerId;
 
@@ -36,65 +53,169 @@ public class PeerServer {
     @Getter
     private final PeerRegistry peerRegistry;
 
+    @Getter
+    private final NetworkConfig config;
+
+    @Getter
+    private final ConnectionMetrics connectionMetrics = new ConnectionMetrics();
+
+    @Getter
+    private final UploadScheduler uploadScheduler;
+
+    @Getter
+    private final BandwidthManager bandwidthManager;
+
+    // Chunk data held by uploads, and by downloads sharing this process
+    @Getter
+    private final MemoryBudget memoryBudget;
+
+    // Traffic, latency and timing metrics of this process, shared with its downloads
+    @Getter
+    private final TransferMetrics transferMetrics = new TransferMetrics();
+
+    // Negotiated compression of uploads and the cache of compressed chunks
+    @Getter
+    private final ChunkCompression chunkCompression;
+
+    private MetricsServer metricsServer;
+
     private EventLoopGroup bossGroup;
     private EventLoopGroup workerGroup;
-    private Channel serverChannel;
+    private final List<Channel> serverChannels = new ArrayList<>();
+
+    // File IDs this peer shares; updated by downloads and the seed daemon while connections read it
+    private final Set<String> availableFiles = ConcurrentHashMap.newKeySet();
+
+    // Outlines of shared Merkle manifests, computed on the first request for each
+    private final Map<String, ManifestOutline> outlines = new ConcurrentHashMap<>();
+
+    // Connections that completed a HELLO and receive ANNOUNCE updates
+    private final ChannelGroup announceGroup = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+
+    // Changes not yet announced; guarded by this
+    private final Set<String> pendingAdded = new LinkedHashSet<>();
+    private final Set<String> pendingRemoved = new LinkedHashSet<>();
+    private boolean announceScheduled;
 
-    // Temporary storage for available file IDs (TODO: Replace with proper storage layer)
-    private final List<String> availableFiles = new ArrayList<>();
+    // Also told about every ANNOUNCE, e.g. to forward it to a bootstrap peer this one connected to
+    private final List<Consumer<AnnounceMessage>> announceListeners = new CopyOnWriteArrayList<>();
 
     public PeerServer(int port) {
-        this.peerId = UUID.randomUUID().toString();
-        this.port = port;
-        this.manifestStorage = new ManifestStorage();
-        this.chunkStorage = new ChunkStorage();
-        this.peerRegistry = new PeerRegistry();
+        this(port, new ManifestStorage(), new ChunkStorage());
     }
 
     public PeerServer(int port, ManifestStorage manifestStorage, ChunkStorage chunkStorage) {
+        this(port, manifestStorage, chunkStorage, new NetworkConfig());
+    }
+
+    public PeerServer(int port, ManifestStorage manifestStorage, ChunkStorage chunkStorage, NetworkConfig config) {
         this.peerId = UUID.randomUUID().toString();
         this.port = port;
         this.manifestStorage = manifestStorage;
         this.chunkStorage = chunkStorage;
         this.peerRegistry = new PeerRegistry();
+        this.config = config;
+        this.uploadScheduler = new UploadScheduler(config);
+        this.bandwidthManager = new BandwidthManager(config);
+        this.memoryBudget = new MemoryBudget(config);
+        this.chunkCompression = new ChunkCompression(config);
+
+        transferMetrics.gauge("p2p_inbound_connections", "Open connections accepted by this peer",
+                connectionMetrics::getActiveConnections);
+        transferMetrics.gauge("p2p_upload_queue_depth", "Chunk uploads waiting for a slot",
+                uploadScheduler::getQueuedUploads);
+        transferMetrics.gauge("p2p_upload_slots_busy", "Upload slots in use", uploadScheduler::getBusySlots);
+        transferMetrics.gauge("p2p_memory_used_bytes", "Chunk data held in memory", memoryBudget::getUsed);
+        transferMetrics.gauge("p2p_memory_peak_bytes", "Most chunk data held in memory at once", memoryBudget::getPeak);
+        transferMetrics.gauge("p2p_available_files", "Files this peer serves", availableFiles::size);
+        transferMetrics.gauge("p2p_compressed_chunks", "Uploaded chunks sent compressed",
+                chunkCompression::getCompressedChunks);
+        transferMetrics.gauge("p2p_compression_skipped_chunks", "Uploaded chunks sent as they are for a peer "
+                + "that accepts compression", chunkCompression::getSkippedChunks);
+        transferMetrics.gauge("p2p_compression_saved_bytes", "Upload bytes saved by compression",
+                chunkCompression::getSavedBytes);
+        transferMetrics.gauge("p2p_compression_cache_bytes", "Compressed chunks cached in memory",
+                chunkCompression::getCachedBytes);
+        transferMetrics.gauge("p2p_compression_cache_hits", "Uploads served from the compressed chunk cache",
+                chunkCompression::getCacheHits);
+        for (BandwidthManager.Direction direction : BandwidthManager.Direction.values()) {
+            String name = direction.name().toLowerCase();
+            transferMetrics.gauge("p2p_" + name + "_limit_bytes_per_second",
+                    "Configured global " + name + " limit (0 = unlimited)",
+                    () -> bandwidthManager.getGlobalLimit(direction));
+            transferMetrics.gauge("p2p_" + name + "_rate_bytes_per_second",
+                    "Actual " + name + " rate since the previous scrape", () -> bandwidthManager.measuredRate(direction));
+        }
     }
 
     // Starts the server and begins listening for connections
     public void start() throws InterruptedException {
-        bossGroup = new NioEventLoopGroup(1);
-        workerGroup = new NioEventLoopGroup();
+        startMetrics();
+        Transport transport = Transport.select(config);
+        bossGroup = transport.newEventLoopGroup(Math.max(1, config.getBossThreads()));
+        workerGroup = transport.newEventLoopGroup(config.getWorkerThreads());
 
         try {
             ServerBootstrap bootstrap = new ServerBootstrap();
             bootstrap.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
+                    .channel(transport.serverChannelClass())
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         protected void initChannel(SocketChannel ch) {
                             ChannelPipeline pipeline = ch.pipeline();
-                            // Frame decoder with 2MB max frame size (sufficient for 256KB chunks + overhead)
-                            pipeline.addLast(new LengthFieldBasedFrameDecoder(2 * 1024 * 1024, 0, 4, 0, 4));
-                            pipeline.addLast(new MessageCodec());
+                            // Frame decoder sized for chunks and large collection manifests
+                            pipeline.addLast(new LengthFieldBasedFrameDecoder(config.getMaxFrameLength(), 0, 4, 0, 4));
+                            pipeline.addLast(new MessageCodec(transferMetrics));
+                            IdleConnectionHandler.install(pipeline, config, connectionMetrics);
+                            LinkEmulationHandler.install(pipeline, config);
                             pipeline.addLast(new PeerServerHandler(PeerServer.this));
                         }
                     })
                     .option(ChannelOption.SO_BACKLOG, 128)
                     .childOption(ChannelOption.SO_KEEPALIVE, true);
+            transport.configure(bootstrap);
 
-            ChannelFuture future = bootstrap.bind(port).sync();
-            serverChannel = future.channel();
+            // Each bind lands on the next boss loop, so SO_REUSEPORT listeners accept in parallel
+            for (int i = 0; i < transport.acceptorCount(); i++) {
+                ChannelFuture future = bootstrap.bind(port).sync();
+                serverChannels.add(future.channel());
+            }
 
-            logger.info("Peer server started on port {} with ID: {}", port, peerId);
+            logger.info("Peer server started on port {} with ID: {} ({} transport, {} acceptor(s))",
+                    port, peerId, transport.getName(), serverChannels.size());
 
-            serverChannel.closeFuture().sync();
+            for (Channel serverChannel : serverChannels) {
+                serverChannel.closeFuture().sync();
+            }
         } finally {
             shutdown();
         }
     }
 
+    private void startMetrics() {
+        transferMetrics.registerMBean();
+        if (config.getMetricsPort() > 0) {
+            try {
+                metricsServer = new MetricsServer(config.getMetricsPort(), transferMetrics);
+                metricsServer.start();
+            } catch (IOException e) {
+                logger.error("Could not serve metrics on port {}: {}", config.getMetricsPort(), e.getMessage());
+            }
+        }
+    }
+
     // Shuts down the server gracefully
     public void shutdown() {
-        logger.info("Shutting down peer server...");
+        logger.info("Shutting down peer server... (connections: {}; uploads: {}; bandwidth: {}; memory: {})",
+                connectionMetrics, uploadScheduler, bandwidthManager.report(), memoryBudget);
+        uploadScheduler.shutdown();
+        transferMetrics.unregisterMBean();
+        synchronized (this) {
+            if (metricsServer != null) {
+                metricsServer.close();
+                metricsServer = null;
+            }
+        }
         if (workerGroup != null) {
             workerGroup.shutdownGracefully();
         }
@@ -108,9 +229,80 @@ public class PeerServer {
         return new ArrayList<>(availableFiles);
     }
 
-    // Adds a file ID to the available files list
+    // Adds a file ID to the available files list and announces it to connected peers
     public void addAvailableFile(String fileId) {
-        availableFiles.add(fileId);
-        logger.info("Added file to available list: {}", fileId);
+        if (availableFiles.add(fileId)) {
+            logger.info("Added file to available list: {}", fileId);
+            queueAnnouncement(fileId, true);
+        }
+    }
+
+    // Stops advertising a file ID and announces the removal to connected peers
+    public void removeAvailableFile(String fileId) {
+        if (availableFiles.remove(fileId)) {
+            outlines.remove(fileId);
+            bandwidthManager.forgetFile(BandwidthManager.Direction.UPLOAD, fileId);
+            logger.info("Removed file from available list: {}", fileId);
+            queueAnnouncement(fileId, false);
+        }
+    }
+
+    public boolean hasAvailableFile(String fileId) {
+        return availableFiles.contains(fileId);
+    }
+
+    // Outline sent for a Merkle manifest; a file ID names one manifest, so it is computed once
+    public ManifestOutline getOutline(Manifest manifest) {
+        return outlines.computeIfAbsent(manifest.getFileId(), id -> ManifestOutline.of(manifest));
+    }
+
+    public void addAnnounceListener(Consumer<AnnounceMessage> listener) {
+        announceListeners.add(listener);
+    }
+
+    // Subscribes a connection to ANNOUNCE updates once its peer said HELLO
+    void addAnnounceTarget(Channel channel) {
+        announceGroup.add(channel);
+    }
+
+    // Collects changes briefly so a directory scan results in a few ANNOUNCE messages, not one per file
+    private synchronized void queueAnnouncement(String fileId, boolean added) {
+        if (added) {
+            pendingRemoved.remove(fileId);
+            pendingAdded.add(fileId);
+        } else {
+            pendingAdded.remove(fileId);
+            pendingRemoved.add(fileId);
+        }
+        if (!announceScheduled) {
+            announceScheduled = true;
+            // Not on the worker group: files can be added before the server has started
+            GlobalEventExecutor.INSTANCE.schedule(this::flushAnnouncements, ANNOUNCE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flushAnnouncements() {
+        AnnounceMessage message;
+        synchronized (this) {
+            announceScheduled = false;
+            if (pendingAdded.isEmpty() && pendingRemoved.isEmpty()) {
+                return;
+            }
+            message = new AnnounceMessage(peerId, new ArrayList<>(pendingAdded), new ArrayList<>(pendingRemoved));
+            pendingAdded.clear();
+            pendingRemoved.clear();
+        }
+        if (!announceGroup.isEmpty()) {
+            logger.info("Announcing {} added and {} removed file(s) to {} peer(s)",
+                    message.getAdded().size(), message.getRemoved().size(), announceGroup.size());
+            announceGroup.writeAndFlush(message);
+        }
+        for (Consumer<AnnounceMessage> listener : announceListeners) {
+            try {
+                listener.accept(message);
+            } catch (RuntimeException e) {
+                logger.warn("Announce listener failed: {}", e.toString());
+            }
+        }
     }
 }
@@ -1,19 +1,58 @@
 package com.p2p.network;
 
+import com.p2p.core.ChunkInfo;
+import com.p2p.core.Hash;
+import com.p2p.core.MerkleTree;
 import com.p2p.core.PeerInfo;
+import com.p2p.metrics.TrafficStats;
+import com.p2p.metrics.TransferMetrics;
+import com.p2p.metrics.events.ChunkUploadEvent;
+import com.p2p.metrics.events.HashVerifyEvent;
+import com.p2p.metrics.events.ManifestLookupEvent;
+import com.p2p.metrics.events.StorageReadEvent;
+import com.p2p.metrics.events.WriteFlushEvent;
 import com.p2p.protocol.*;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
 
 // Handles incoming messages from other peers
 public class PeerServerHandler extends SimpleChannelInboundHandler<Message> {
     private static final Logger logger = LoggerFactory.getLogger(PeerServerHandler.class);
+
+    // Retry delay suggested to peers while the memory budget is spent
+    private static final long MEMORY_RETRY_MILLIS = 200;
+
     private final PeerServer server;
 
+    // Peer ID announced in this connection's HELLO, if any
+    private String remotePeerId;
+
+    // Key under which this connection is known to the upload scheduler
+    private String uploadKey;
+
+    // Upload traffic of the remote peer, by its listening address once known. Before HELLO it goes to
+    // stats of this connection that are never exported: labelling them by the ephemeral source port
+    // would leave one dead series per connection and use up the label limit.
+    private TrafficStats peerTraffic = new TrafficStats();
+
+    // Encoding chunks are compressed with for this peer, null to send them as they are
+    private String chunkEncoding;
+
+    // Block size larger chunks are streamed to this peer in, 0 to send them whole
+    private int blockSize;
+
     public PeerServerHandler(PeerServer server) {
         this.server = server;
     }
@@ -21,6 +60,11 @@ public class PeerServerHandler extends SimpleChannelInboundHandler<Message> {
     @Override
     public void channelActive(ChannelHandlerContext ctx) {
         logger.info("New connection from: {}", ctx.channel().remoteAddress());
+
+        // Until the peer says HELLO it is scheduled by address
+        uploadKey = String.valueOf(ctx.channel().remoteAddress());
+        server.getUploadScheduler().register(uploadKey);
+        server.getBandwidthManager().register(BandwidthManager.Direction.UPLOAD, uploadKey);
     }
 
     @Override
@@ -36,6 +80,10 @@ public class PeerServerHandler extends SimpleChannelInboundHandler<Message> {
                 handleManifestRequest(ctx, (ManifestRequestMessage) msg);
                 break;
 
+            case MANIFEST_SEGMENT_REQUEST:
+                handleManifestSegmentRequest(ctx, (ManifestSegmentRequestMessage) msg);
+                break;
+
             case CHUNK_REQUEST:
                 handleChunkRequest(ctx, (ChunkRequestMessage) msg);
                 break;
@@ -48,6 +96,10 @@ public class PeerServerHandler extends SimpleChannelInboundHandler<Message> {
                 handlePeerListResponse(ctx, (PeerListResponseMessage) msg);
                 break;
 
+            case ANNOUNCE:
+                handleAnnounce((AnnounceMessage) msg);
+                break;
+
             default:
                 logger.warn("Unexpected message type: {}", msg.getType());
         }
@@ -68,14 +120,30 @@ public class PeerServerHandler extends SimpleChannelInboundHandler<Message> {
                 msg.getAvailableFiles()
         );
         server.getPeerRegistry().addPeer(peerInfo);
+        remotePeerId = msg.getPeerId();
+
+        // Schedule uploads by peer ID from now on so reciprocation is credited to this connection
+        server.getUploadScheduler().unregister(uploadKey);
+        server.getBandwidthManager().unregister(BandwidthManager.Direction.UPLOAD, uploadKey);
+        uploadKey = remotePeerId;
+        server.getUploadScheduler().register(uploadKey);
+        server.getBandwidthManager().register(BandwidthManager.Direction.UPLOAD, uploadKey);
+        peerTraffic = server.getTransferMetrics().peer(host + ":" + msg.getPort());
+        chunkEncoding = server.getChunkCompression().negotiate(msg.getCompression());
+        blockSize = server.getConfig().getBlockSize() > 0 && msg.getBlockSize() >= NetworkConfig.MIN_BLOCK_SIZE
+                && msg.getBlockSize() <= NetworkConfig.MAX_BLOCK_SIZE ? msg.getBlockSize() : 0;
 
         // Send back our own HELLO
         HelloMessage response = new HelloMessage(
                 server.getPeerId(),
                 server.getAvailableFiles(),
-                server.getPort()
+                server.getPort(),
+                server.getChunkCompression().getEncodings(),
+                WireFormat.offered(server.getConfig()),
+                server.getConfig().getBlockSize()
         );
         ctx.writeAndFlush(response);
+        server.addAnnounceTarget(ctx.channel());
 
         logger.info("Registered peer {} at {}:{}", msg.getPeerId(), host, msg.getPort());
     }
@@ -93,10 +161,13 @@ public class PeerServerHandler extends SimpleChannelInboundHandler<Message> {
                 return;
             }
 
-            // Send manifest response
-            ManifestResponseMessage response = new ManifestResponseMessage(manifest);
+            // Send manifest response; a peer that fetches segments itself only gets the outline of a Merkle manifest
+            ManifestResponseMessage response = msg.isOutline() && manifest.isMerkle()
+                    ? new ManifestResponseMessage(null, server.getOutline(manifest))
+                    : new ManifestResponseMessage(manifest);
             ctx.writeAndFlush(response);
-            logger.info("Sent MANIFEST_RESPONSE for file: {}", manifest.getFilename());
+            logger.info("Sent MANIFEST_RESPONSE for file: {}{}", manifest.getFilename(),
+                    response.getOutline() != null ? " (outline)" : "");
 
         } catch (Exception e) {
             logger.error("Failed to handle manifest request", e);
@@ -104,13 +175,47 @@ public class PeerServerHandler extends SimpleChannelInboundHandler<Message> {
         }
     }
 
+    private void handleManifestSegmentRequest(ChannelHandlerContext ctx, ManifestSegmentRequestMessage msg) {
+        logger.debug("Received MANIFEST_SEGMENT_REQUEST for file: {}, segment: {}", msg.getFileId(), msg.getSegment());
+
+        try {
+            var manifest = server.getManifestStorage().retrieveManifest(msg.getFileId());
+
+            if (manifest == null || !manifest.isMerkle()) {
+                logger.warn("Merkle manifest not found for file: {}", msg.getFileId());
+                ctx.close();
+                return;
+            }
+
+            int segment = msg.getSegment();
+            if (segment < 0 || segment >= MerkleTree.segmentCount(manifest.getChunkCount())) {
+                logger.warn("Invalid manifest segment: {}", segment);
+                ctx.close();
+                return;
+            }
+
+            int from = segment * MerkleTree.SEGMENT_CHUNKS;
+            int to = from + MerkleTree.segmentSize(manifest.getChunkCount(), segment);
+            ctx.writeAndFlush(new ManifestSegmentResponseMessage(msg.getFileId(), segment,
+                    manifest.getChunks().subList(from, to)));
+
+        } catch (Exception e) {
+            logger.error("Failed to handle manifest segment request", e);
+            ctx.close();
+        }
+    }
+
     private void handleChunkRequest(ChannelHandlerContext ctx, ChunkRequestMessage msg) {
-        logger.info("Received CHUNK_REQUEST for file: {}, chunk: {}",
+        logger.debug("Received CHUNK_REQUEST for file: {}, chunk: {}",
                 msg.getFileId(), msg.getChunkIndex());
+        ChunkUploadEvent upload = ChunkUploadEvent.startIfEnabled();
 
         try {
             // Get manifest to find chunk hash
+            ManifestLookupEvent lookup = new ManifestLookupEvent();
+            lookup.begin();
             var manifest = server.getManifestStorage().retrieveManifest(msg.getFileId());
+            lookup.finish(msg.getFileId(), msg.getChunkIndex(), uploadKey, 0);
 
             if (manifest == null) {
                 logger.warn("Manifest not found for file: {}", msg.getFileId());
@@ -127,27 +232,260 @@ public class PeerServerHandler extends SimpleChannelInboundHandler<Message> {
             // Get chunk info
             var chunkInfo = manifest.getChunk(msg.getChunkIndex());
 
-            // Load chunk data
-            byte[] chunkData = server.getChunkStorage().retrieveChunk(chunkInfo.getHash());
+            // Wait for an upload slot; choked or over-queued peers are told to retry
+            server.getUploadScheduler().submit(uploadKey, chunkInfo.getSize(), new UploadScheduler.UploadTask() {
+                @Override
+                public void start(Runnable release) {
+                    // Hold the slot (but not the data) while the bandwidth limits catch up
+                    long delayNanos = server.getBandwidthManager()
+                            .reserveUpload(uploadKey, msg.getFileId(), chunkInfo.getSize());
+                    if (delayNanos > 0) {
+                        ctx.executor().schedule(() -> sendChunk(ctx, msg, chunkInfo, release, upload),
+                                delayNanos, TimeUnit.NANOSECONDS);
+                    } else {
+                        ctx.executor().execute(() -> sendChunk(ctx, msg, chunkInfo, release, upload));
+                    }
+                }
+
+                @Override
+                public void reject(UploadScheduler.Rejection reason, long retryAfterMillis) {
+                    logger.debug("Rejecting CHUNK_REQUEST for file: {}, chunk: {} ({})",
+                            msg.getFileId(), msg.getChunkIndex(), reason);
+                    ctx.writeAndFlush(new ChunkRejectMessage(msg.getFileId(), msg.getChunkIndex(),
+                            ChunkRejectMessage.Reason.valueOf(reason.name()), retryAfterMillis));
+                }
+            });
+
+        } catch (Exception e) {
+            logger.error("Failed to handle chunk request", e);
+            ctx.close();
+        }
+    }
+
+    // Reads and sends a chunk once an upload slot was granted, releasing the slot when the write completes.
+    // The chunk is only loaded if the memory budget has room; otherwise the peer is asked to retry and
+    // this connection stops reading requests until memory is released. For a peer that accepts compression,
+    // a chunk already in the compression cache is sent from there without reading it again. The upload
+    // event, if a recording is on, is committed once the response has been flushed. A chunk larger than the
+    // peer's block size is streamed instead, with only one block in memory at a time.
+    private void sendChunk(ChannelHandlerContext ctx, ChunkRequestMessage msg, ChunkInfo chunkInfo, Runnable release,
+                           ChunkUploadEvent upload) {
+        if (!ctx.channel().isActive()) {
+            release.run();
+            return;
+        }
+
+        int streamBlock = blockSize > 0 && chunkInfo.getSize() > blockSize ? blockSize : 0;
+        MemoryBudget budget = server.getMemoryBudget();
+        long footprint = MemoryBudget.chunkFootprint(streamBlock > 0 ? streamBlock : chunkInfo.getSize());
+        if (!budget.tryReserve(footprint)) {
+            release.run();
+            logger.debug("Out of memory budget, rejecting CHUNK_REQUEST for file: {}, chunk: {}",
+                    msg.getFileId(), msg.getChunkIndex());
+            ctx.writeAndFlush(new ChunkRejectMessage(msg.getFileId(), msg.getChunkIndex(),
+                    ChunkRejectMessage.Reason.BUSY, MEMORY_RETRY_MILLIS));
+            pauseReads(ctx.channel(), budget);
+            return;
+        }
+        Runnable releaseAll = () -> {
+            budget.release(footprint);
+            release.run();
+        };
+
+        if (streamBlock > 0) {
+            try {
+                new BlockStream(ctx, msg, chunkInfo, streamBlock, releaseAll, upload).sendNext(0);
+            } catch (IOException e) {
+                releaseAll.run();
+                logger.error("Failed to stream chunk", e);
+                ctx.close();
+            }
+            return;
+        }
+
+        try {
+            TransferMetrics metrics = server.getTransferMetrics();
+            ChunkCompression compression = server.getChunkCompression();
+            String encoding = chunkEncoding;
+            byte[] payload = encoding != null ? compression.cached(chunkInfo.getHash()) : null;
+            if (payload == null) {
+                // Load chunk data
+                long readStart = System.nanoTime();
+                StorageReadEvent read = new StorageReadEvent();
+                read.begin();
+                byte[] chunkData = server.getChunkStorage().readChunk(chunkInfo.getHash());
+                read.finish(msg.getFileId(), msg.getChunkIndex(), uploadKey, chunkData.length);
+
+                HashVerifyEvent verify = new HashVerifyEvent();
+                verify.begin();
+                boolean intact = Hash.sha256(chunkData).equals(chunkInfo.getHash());
+                verify.finish(msg.getFileId(), msg.getChunkIndex(), uploadKey, chunkData.length);
+                if (!intact) {
+                    logger.error("Chunk integrity check failed: {}", chunkInfo.getHash());
+                    throw new IOException("Chunk corrupted: hash mismatch");
+                }
+                metrics.getDiskReadTime().record(System.nanoTime() - readStart);
+
+                payload = encoding != null ? compression.compress(chunkInfo.getHash(), chunkData) : null;
+                if (payload == null) {
+                    payload = chunkData;
+                    encoding = null;
+                }
+            }
 
             // Send chunk response
             ChunkResponseMessage response = new ChunkResponseMessage(
                     msg.getFileId(),
                     msg.getChunkIndex(),
-                    chunkData,
-                    chunkInfo.getHash()
+                    payload,
+                    chunkInfo.getHash(),
+                    encoding
             );
 
-            ctx.writeAndFlush(response);
-            logger.info("Sent CHUNK_RESPONSE for file: {}, chunk: {} ({} bytes)",
-                    msg.getFileId(), msg.getChunkIndex(), chunkData.length);
+            // Traffic is counted in chunk bytes whether or not they were compressed
+            int chunkSize = (int) chunkInfo.getSize();
+            TrafficStats traffic = peerTraffic;
+            String peer = uploadKey;
+            WriteFlushEvent flush = WriteFlushEvent.startIfEnabled();
+            ctx.writeAndFlush(response).addListener(future -> {
+                releaseAll.run();
+                if (future.isSuccess()) {
+                    traffic.sent(chunkSize);
+                    metrics.file(msg.getFileId()).sent(chunkSize);
+                    if (flush != null) {
+                        flush.finish(msg.getFileId(), msg.getChunkIndex(), peer, chunkSize);
+                    }
+                    if (upload != null) {
+                        upload.finish(msg.getFileId(), msg.getChunkIndex(), peer, chunkSize);
+                    }
+                }
+            });
+            logger.debug("Sent CHUNK_RESPONSE for file: {}, chunk: {} ({} bytes{})", msg.getFileId(),
+                    msg.getChunkIndex(), payload.length, encoding != null ? ", " + encoding : "");
 
         } catch (Exception e) {
-            logger.error("Failed to handle chunk request", e);
+            releaseAll.run();
+            logger.error("Failed to send chunk", e);
             ctx.close();
         }
     }
 
+    // A chunk on its way to the peer as CHUNK_BLOCK messages. The next block is read once the previous one
+    // has been written, so a slow peer holds up its own stream rather than filling memory. The chunk is
+    // hashed as it is read and the last block only goes out if the hash matches.
+    private final class BlockStream {
+        private final ChannelHandlerContext ctx;
+        private final ChunkRequestMessage msg;
+        private final ChunkInfo chunkInfo;
+        private final int blockSize;
+        private final Runnable release;
+        private final ChunkUploadEvent upload;
+        private final FileChannel channel;
+        private final MessageDigest digest = Hash.newDigest();
+        private final String encoding = chunkEncoding;
+        private final TrafficStats traffic = peerTraffic;
+        private final String peer = uploadKey;
+        private long readNanos;
+
+        private BlockStream(ChannelHandlerContext ctx, ChunkRequestMessage msg, ChunkInfo chunkInfo, int blockSize,
+                            Runnable release, ChunkUploadEvent upload) throws IOException {
+            this.ctx = ctx;
+            this.msg = msg;
+            this.chunkInfo = chunkInfo;
+            this.blockSize = blockSize;
+            this.release = release;
+            this.upload = upload;
+            this.channel = server.getChunkStorage().openChunk(chunkInfo.getHash());
+        }
+
+        private void sendNext(long offset) {
+            if (!ctx.channel().isActive()) {
+                finish();
+                return;
+            }
+
+            try {
+                TransferMetrics metrics = server.getTransferMetrics();
+                int length = (int) Math.min(blockSize, chunkInfo.getSize() - offset);
+                long readStart = System.nanoTime();
+                StorageReadEvent read = new StorageReadEvent();
+                read.begin();
+                byte[] data = new byte[length];
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, offset + buffer.position()) < 0) {
+                        throw new IOException("Chunk truncated: " + chunkInfo.getHash());
+                    }
+                }
+                read.finish(msg.getFileId(), msg.getChunkIndex(), peer, length);
+
+                digest.update(data);
+                readNanos += System.nanoTime() - readStart;
+                boolean last = offset + length == chunkInfo.getSize();
+                if (last) {
+                    if (!Hash.of(digest.digest()).equals(chunkInfo.getHash())) {
+                        logger.error("Chunk integrity check failed: {}", chunkInfo.getHash());
+                        throw new IOException("Chunk corrupted: hash mismatch");
+                    }
+                    metrics.getDiskReadTime().record(readNanos);
+                }
+
+                byte[] payload = encoding != null ? server.getChunkCompression().compressBlock(data) : null;
+                ChunkBlockMessage block = new ChunkBlockMessage(msg.getFileId(), msg.getChunkIndex(), offset,
+                        payload != null ? payload : data, payload != null ? encoding : null);
+
+                // Traffic is counted in chunk bytes whether or not they were compressed
+                WriteFlushEvent flush = last ? WriteFlushEvent.startIfEnabled() : null;
+                ctx.writeAndFlush(block).addListener(future -> {
+                    if (!future.isSuccess()) {
+                        finish();
+                        return;
+                    }
+                    traffic.sent(length);
+                    metrics.file(msg.getFileId()).sent(length);
+                    if (!last) {
+                        sendNext(offset + length);
+                        return;
+                    }
+                    finish();
+                    int chunkSize = (int) chunkInfo.getSize();
+                    if (flush != null) {
+                        flush.finish(msg.getFileId(), msg.getChunkIndex(), peer, chunkSize);
+                    }
+                    if (upload != null) {
+                        upload.finish(msg.getFileId(), msg.getChunkIndex(), peer, chunkSize);
+                    }
+                });
+                if (last) {
+                    logger.debug("Sent CHUNK_BLOCKs for file: {}, chunk: {} ({} bytes in blocks of {})",
+                            msg.getFileId(), msg.getChunkIndex(), chunkInfo.getSize(), blockSize);
+                }
+
+            } catch (Exception e) {
+                finish();
+                logger.error("Failed to stream chunk", e);
+                ctx.close();
+            }
+        }
+
+        private void finish() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.debug("Failed to close chunk {}: {}", chunkInfo.getHash(), e.getMessage());
+            }
+            release.run();
+        }
+    }
+
+    private void pauseReads(Channel channel, MemoryBudget budget) {
+        if (!channel.config().isAutoRead()) {
+            return;
+        }
+        channel.config().setAutoRead(false);
+        budget.whenAvailable(() -> channel.eventLoop().execute(() -> channel.config().setAutoRead(true)));
+    }
+
     private void handlePeerListRequest(ChannelHandlerContext ctx, PeerListRequestMessage msg) {
         logger.info("Received PEER_LIST_REQUEST");
 
@@ -176,6 +514,27 @@ public class PeerServerHandler extends SimpleChannelInboundHandler<Message> {
                 msg.getPeers().size(), server.getPeerRegistry().getPeerCount());
     }
 
+    private void handleAnnounce(AnnounceMessage msg) {
+        if (remotePeerId == null || !remotePeerId.equals(msg.getPeerId())) {
+            logger.warn("Ignoring ANNOUNCE for {} on a connection without its HELLO", msg.getPeerId());
+            return;
+        }
+        logger.info("Peer {} announced {} added and {} removed file(s)",
+                msg.getPeerId(), msg.getAdded().size(), msg.getRemoved().size());
+        server.getPeerRegistry().updateFiles(msg.getPeerId(), msg.getAdded(), msg.getRemoved());
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        // A silent peer is assumed gone: stop advertising it to others
+        if (evt instanceof IdleStateEvent && ((IdleStateEvent) evt).state() == IdleState.READER_IDLE
+                && remotePeerId != null) {
+            logger.info("Deregistering idle peer: {}", remotePeerId);
+            server.getPeerRegistry().removePeer(remotePeerId);
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         logger.error("Error in server handler", cause);
@@ -185,5 +544,7 @@ public class PeerServerHandler extends SimpleChannelInboundHandler<Message> {
     @Override
     public void channelInactive(ChannelHandlerContext ctx) {
         logger.info("Connection closed: {}", ctx.channel().remoteAddress());
+        server.getUploadScheduler().unregister(uploadKey);
+        server.getBandwidthManager().unregister(BandwidthManager.Direction.UPLOAD, uploadKey);
     }
 }
@@ -0,0 +1,87 @@
+package com.p2p.network;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Lock-free token bucket in GCRA form: callers reserve bytes and are told how long to wait before sending them
+public class TokenBucket {
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    // Smallest burst allowed, so a limit below one chunk per second still lets chunks through
+    private static final long MIN_BURST_BYTES = 64 * 1024;
+
+    private volatile long bytesPerSecond;
+    private volatile long burstNanos;
+
+    // Theoretical arrival time: when the bucket would be full again if nothing else is sent
+    private final AtomicLong theoreticalArrival = new AtomicLong(System.nanoTime());
+
+    private final LongAdder totalBytes = new LongAdder();
+    private long sampledBytes;
+    private long sampledAt = System.nanoTime();
+    private double measuredRate;
+
+    public TokenBucket(long bytesPerSecond) {
+        setRate(bytesPerSecond);
+    }
+
+    // Changes the rate at runtime; 0 or less means unlimited
+    public void setRate(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        if (bytesPerSecond > 0) {
+            long burstBytes = Math.max(bytesPerSecond / 4, MIN_BURST_BYTES);
+            this.burstNanos = costNanos(burstBytes, bytesPerSecond);
+        }
+    }
+
+    public long getRate() {
+        return bytesPerSecond;
+    }
+
+    public boolean isLimited() {
+        return bytesPerSecond > 0;
+    }
+
+    // Accounts for bytes about to be transferred and returns the nanoseconds to delay them
+    public long reserve(long bytes) {
+        totalBytes.add(bytes);
+
+        long rate = bytesPerSecond;
+        if (rate <= 0) {
+            return 0;
+        }
+
+        long cost = costNanos(bytes, rate);
+        long now = System.nanoTime();
+        while (true) {
+            long tat = theoreticalArrival.get();
+            long start = Math.max(tat, now);
+            long next = start + cost;
+            if (theoreticalArrival.compareAndSet(tat, next)) {
+                return Math.max(0, next - now - burstNanos);
+            }
+        }
+    }
+
+    // Bytes per second actually reserved since the previous call
+    public synchronized double sampleRate() {
+        long now = System.nanoTime();
+        long bytes = totalBytes.sum();
+        long elapsed = now - sampledAt;
+        if (elapsed > 0) {
+            measuredRate = (bytes - sampledBytes) * (double) NANOS_PER_SECOND / elapsed;
+        }
+        sampledBytes = bytes;
+        sampledAt = now;
+        return measuredRate;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes.sum();
+    }
+
+    private static long costNanos(long bytes, long bytesPerSecond) {
+        return (long) (bytes * (double) NANOS_PER_SECOND / bytesPerSecond);
+    }
+}
@@ -0,0 +1,112 @@
+package com.p2p.network;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Selects the Netty transport (native epoll or NIO) and applies socket options for it
+public final class Transport {
+    private static final Logger logger = LoggerFactory.getLogger(Transport.class);
+
+    public enum Type {
+        AUTO,   // epoll when the native library loads, NIO otherwise
+        NIO,
+        EPOLL
+    }
+
+    private final boolean epoll;
+    private final NetworkConfig config;
+
+    private Transport(boolean epoll, NetworkConfig config) {
+        this.epoll = epoll;
+        this.config = config;
+    }
+
+    // Resolves the configured transport type, falling back to NIO when epoll is unavailable
+    public static Transport select(NetworkConfig config) {
+        Type requested = config.getTransport();
+        boolean useEpoll = false;
+
+        if (requested != Type.NIO) {
+            if (Epoll.isAvailable()) {
+                useEpoll = true;
+            } else if (requested == Type.EPOLL) {
+                logger.warn("Epoll transport requested but unavailable, falling back to NIO: {}",
+                        Epoll.unavailabilityCause().getMessage());
+            } else {
+                logger.debug("Epoll unavailable, using NIO transport");
+            }
+        }
+
+        return new Transport(useEpoll, config);
+    }
+
+    public boolean isEpoll() {
+        return epoll;
+    }
+
+    public String getName() {
+        return epoll ? "epoll" : "nio";
+    }
+
+    // Creates an event loop group; 0 threads means Netty's default (2 * cores)
+    public EventLoopGroup newEventLoopGroup(int threads) {
+        return epoll ? new EpollEventLoopGroup(threads) : new NioEventLoopGroup(threads);
+    }
+
+    public Class<? extends ServerChannel> serverChannelClass() {
+        return epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+    }
+
+    public Class<? extends SocketChannel> socketChannelClass() {
+        return epoll ? EpollSocketChannel.class : NioSocketChannel.class;
+    }
+
+    // With SO_REUSEPORT every boss thread can own its own listening socket on the same port
+    public int acceptorCount() {
+        return epoll && config.isReusePort() ? Math.max(1, config.getBossThreads()) : 1;
+    }
+
+    // Applies listener and accepted-socket options for the server side
+    public void configure(ServerBootstrap bootstrap) {
+        if (epoll && config.isReusePort()) {
+            bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+        }
+        if (config.getReceiveBufferSize() > 0) {
+            // Set on the listener so the window scale is negotiated before accept
+            bootstrap.option(ChannelOption.SO_RCVBUF, config.getReceiveBufferSize());
+        }
+        if (config.getSendBufferSize() > 0) {
+            bootstrap.childOption(ChannelOption.SO_SNDBUF, config.getSendBufferSize());
+        }
+        if (epoll && config.getNotSentLowat() > 0) {
+            bootstrap.childOption(EpollChannelOption.TCP_NOTSENT_LOWAT, (long) config.getNotSentLowat());
+        }
+    }
+
+    // Applies socket options for outgoing connections
+    public void configure(Bootstrap bootstrap) {
+        if (config.getReceiveBufferSize() > 0) {
+            bootstrap.option(ChannelOption.SO_RCVBUF, config.getReceiveBufferSize());
+        }
+        if (config.getSendBufferSize() > 0) {
+            bootstrap.option(ChannelOption.SO_SNDBUF, config.getSendBufferSize());
+        }
+        if (epoll && config.getNotSentLowat() > 0) {
+            bootstrap.option(EpollChannelOption.TCP_NOTSENT_LOWAT, (long) config.getNotSentLowat());
+        }
+    }
+}
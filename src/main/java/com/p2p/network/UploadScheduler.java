@@ -0,0 +1,333 @@
+package com.p2p.network;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+// Grants a fixed number of concurrent upload slots, shared between peers by deficit round robin.
+// Under contention peers are choked/unchoked tit-for-tat: those that upload back to us keep their slots,
+// plus one rotating optimistic unchoke so newcomers get a chance to reciprocate.
+public class UploadScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(UploadScheduler.class);
+
+    // Bytes credited to a peer per round-robin visit (times its weight)
+    private static final long QUANTUM_BYTES = 256 * 1024;
+
+    // The optimistic unchoke is rotated every this many rechoke rounds
+    private static final int OPTIMISTIC_UNCHOKE_ROUNDS = 3;
+
+    private static final long BUSY_RETRY_MILLIS = 250;
+
+    public enum Rejection {
+        CHOKED,  // Peer is not currently unchoked
+        BUSY     // Peer already has its maximum number of queued requests
+    }
+
+    // Work waiting for an upload slot; start() must eventually invoke release exactly once
+    public interface UploadTask {
+        void start(Runnable release);
+
+        void reject(Rejection reason, long retryAfterMillis);
+    }
+
+    private final int slots;
+    private final int maxQueuedPerPeer;
+    private final long rechokeIntervalMillis;
+
+    // Guarded by this
+    private final Map<String, PeerState> peers = new HashMap<>();
+    private final ArrayDeque<PeerState> activeRing = new ArrayDeque<>();
+    private int busySlots;
+    private int rechokeRound;
+    private String optimisticPeer;
+    private long nextRechokeAt;
+
+    // Bytes we downloaded from each peer, the currency for tit-for-tat
+    private final Map<String, LongAdder> receivedFrom = new ConcurrentHashMap<>();
+
+    private final Random random = new Random();
+    private final ScheduledExecutorService rechokeExecutor;
+
+    private final LongAdder uploadsServed = new LongAdder();
+    private final LongAdder bytesScheduled = new LongAdder();
+    private final LongAdder rejectedChoked = new LongAdder();
+    private final LongAdder rejectedBusy = new LongAdder();
+
+    public UploadScheduler(NetworkConfig config) {
+        this.slots = Math.max(1, config.getUploadSlots());
+        this.maxQueuedPerPeer = Math.max(1, config.getMaxQueuedUploadsPerPeer());
+        this.rechokeIntervalMillis = TimeUnit.SECONDS.toMillis(Math.max(1, config.getRechokeIntervalSeconds()));
+        this.nextRechokeAt = System.currentTimeMillis() + rechokeIntervalMillis;
+
+        this.rechokeExecutor = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("upload-rechoke", true));
+        rechokeExecutor.scheduleAtFixedRate(this::rechoke, rechokeIntervalMillis, rechokeIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Registers a connection for the given peer
+    public synchronized void register(String peerKey) {
+        peers.computeIfAbsent(peerKey, PeerState::new).connections++;
+    }
+
+    // Drops a connection for the given peer; queued work is discarded once its last connection is gone
+    public synchronized void unregister(String peerKey) {
+        PeerState peer = peers.get(peerKey);
+        if (peer == null || --peer.connections > 0) {
+            return;
+        }
+        peers.remove(peerKey);
+        activeRing.remove(peer);
+        peer.queue.clear();
+    }
+
+    // Queues an upload of roughly the given size; the task is either started when a slot frees up or rejected
+    public void submit(String peerKey, long bytes, UploadTask task) {
+        List<Runnable> actions = new ArrayList<>();
+
+        synchronized (this) {
+            PeerState peer = peers.computeIfAbsent(peerKey, PeerState::new);
+            peer.interested = true;
+
+            if (peer.choked) {
+                rejectedChoked.increment();
+                long retryAfter = Math.max(0, nextRechokeAt - System.currentTimeMillis());
+                actions.add(() -> task.reject(Rejection.CHOKED, retryAfter));
+            } else if (peer.queue.size() >= maxQueuedPerPeer) {
+                rejectedBusy.increment();
+                actions.add(() -> task.reject(Rejection.BUSY, BUSY_RETRY_MILLIS));
+            } else {
+                peer.queue.addLast(new PendingUpload(task, bytes));
+                if (peer.queue.size() == 1) {
+                    activeRing.addLast(peer);
+                }
+                dispatchLocked(actions);
+            }
+        }
+
+        actions.forEach(Runnable::run);
+    }
+
+    // Records bytes downloaded from a peer so it is favoured when we choose whom to upload to
+    public void recordReceived(String peerKey, long bytes) {
+        if (peerKey != null) {
+            receivedFrom.computeIfAbsent(peerKey, k -> new LongAdder()).add(bytes);
+        }
+    }
+
+    // Starts queued uploads while slots are free, visiting peers in deficit round robin order
+    private void dispatchLocked(List<Runnable> actions) {
+        while (busySlots < slots && !activeRing.isEmpty()) {
+            PeerState peer = activeRing.peekFirst();
+            PendingUpload next = peer.queue.peekFirst();
+
+            if (peer.deficit < next.bytes) {
+                peer.deficit += QUANTUM_BYTES * peer.weight;
+                activeRing.addLast(activeRing.pollFirst());
+                continue;
+            }
+
+            peer.queue.pollFirst();
+            peer.deficit -= next.bytes;
+            peer.uploadedBytes += next.bytes;
+            if (peer.queue.isEmpty()) {
+                activeRing.pollFirst();
+                peer.deficit = 0;
+            }
+
+            busySlots++;
+            uploadsServed.increment();
+            bytesScheduled.add(next.bytes);
+            actions.add(() -> next.task.start(newRelease()));
+        }
+    }
+
+    // Creates an idempotent callback that returns one slot and dispatches waiting work
+    private Runnable newRelease() {
+        AtomicBoolean released = new AtomicBoolean();
+        return () -> {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            List<Runnable> actions = new ArrayList<>();
+            synchronized (this) {
+                busySlots--;
+                dispatchLocked(actions);
+            }
+            actions.forEach(Runnable::run);
+        };
+    }
+
+    // Periodically recomputes which peers are unchoked
+    private void rechoke() {
+        List<Runnable> actions = new ArrayList<>();
+
+        try {
+            synchronized (this) {
+                rechokeRound++;
+                nextRechokeAt = System.currentTimeMillis() + rechokeIntervalMillis;
+
+                List<PeerState> interested = new ArrayList<>();
+                for (PeerState peer : peers.values()) {
+                    LongAdder received = receivedFrom.get(peer.key);
+                    long receivedTotal = received != null ? received.sum() : 0;
+                    peer.receivedRecently = receivedTotal - peer.receivedAtLastRechoke;
+                    peer.receivedAtLastRechoke = receivedTotal;
+                    peer.uploadedRecently = peer.uploadedBytes - peer.uploadedAtLastRechoke;
+                    peer.uploadedAtLastRechoke = peer.uploadedBytes;
+                    peer.weight = peer.receivedRecently > 0 ? 2 : 1;
+
+                    if (peer.interested || !peer.queue.isEmpty()) {
+                        interested.add(peer);
+                    }
+                    peer.interested = false;
+                }
+
+                // Without contention nobody needs to be choked
+                if (interested.size() <= slots) {
+                    peers.values().forEach(peer -> peer.choked = false);
+                    optimisticPeer = null;
+                    return;
+                }
+
+                // Reciprocating peers first; among equals favour those we have served least recently
+                interested.sort(Comparator.comparingLong((PeerState p) -> -p.receivedRecently)
+                        .thenComparingLong(p -> p.uploadedRecently));
+
+                List<PeerState> unchoked = new ArrayList<>(interested.subList(0, slots - 1));
+                List<PeerState> candidates = interested.subList(slots - 1, interested.size());
+
+                PeerState optimistic = peers.get(optimisticPeer);
+                if (optimistic == null || !candidates.contains(optimistic)
+                        || rechokeRound % OPTIMISTIC_UNCHOKE_ROUNDS == 0) {
+                    optimistic = candidates.get(random.nextInt(candidates.size()));
+                }
+                optimisticPeer = optimistic.key;
+                unchoked.add(optimistic);
+
+                for (PeerState peer : peers.values()) {
+                    boolean choke = !unchoked.contains(peer);
+                    if (choke && !peer.choked) {
+                        rejectQueuedLocked(peer, actions);
+                    }
+                    peer.choked = choke;
+                }
+
+                logger.debug("Rechoke round {}: {} interested, {} unchoked (optimistic: {})",
+                        rechokeRound, interested.size(), unchoked.size(), optimisticPeer);
+            }
+        } catch (RuntimeException e) {
+            logger.error("Rechoke failed", e);
+        }
+
+        actions.forEach(Runnable::run);
+    }
+
+    // Rejects everything a newly choked peer still has queued
+    private void rejectQueuedLocked(PeerState peer, List<Runnable> actions) {
+        activeRing.remove(peer);
+        peer.deficit = 0;
+        long retryAfter = rechokeIntervalMillis;
+        for (PendingUpload pending : peer.queue) {
+            rejectedChoked.increment();
+            actions.add(() -> pending.task.reject(Rejection.CHOKED, retryAfter));
+        }
+        peer.queue.clear();
+    }
+
+    // Stops the rechoke timer
+    public void shutdown() {
+        rechokeExecutor.shutdownNow();
+    }
+
+    public int getSlots() {
+        return slots;
+    }
+
+    public synchronized int getBusySlots() {
+        return busySlots;
+    }
+
+    public synchronized int getQueuedUploads() {
+        int queued = 0;
+        for (PeerState peer : peers.values()) {
+            queued += peer.queue.size();
+        }
+        return queued;
+    }
+
+    public synchronized int getChokedPeerCount() {
+        int choked = 0;
+        for (PeerState peer : peers.values()) {
+            if (peer.choked) {
+                choked++;
+            }
+        }
+        return choked;
+    }
+
+    public long getUploadsServed() {
+        return uploadsServed.sum();
+    }
+
+    public long getBytesScheduled() {
+        return bytesScheduled.sum();
+    }
+
+    public long getRejectedChoked() {
+        return rejectedChoked.sum();
+    }
+
+    public long getRejectedBusy() {
+        return rejectedBusy.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("slots=%d/%d, queued=%d, choked=%d, served=%d, rejected(choked=%d, busy=%d)",
+                getBusySlots(), slots, getQueuedUploads(), getChokedPeerCount(),
+                getUploadsServed(), getRejectedChoked(), getRejectedBusy());
+    }
+
+    // Scheduling state for one remote peer
+    private static class PeerState {
+        private final String key;
+        private final ArrayDeque<PendingUpload> queue = new ArrayDeque<>();
+        private int connections;
+        private boolean choked;
+        private boolean interested;
+        private int weight = 1;
+        private long deficit;
+        private long uploadedBytes;
+        private long uploadedAtLastRechoke;
+        private long uploadedRecently;
+        private long receivedAtLastRechoke;
+        private long receivedRecently;
+
+        private PeerState(String key) {
+            this.key = key;
+        }
+    }
+
+    private static class PendingUpload {
+        private final UploadTask task;
+        private final long bytes;
+
+        private PendingUpload(UploadTask task, long bytes) {
+            this.task = task;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.p2p.network;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.p2p.protocol.Message;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+// How messages are encoded inside a frame. Every connection starts with JSON, which all peers speak and
+// which stays readable for debugging; a faster format is used once both peers listed it in their HELLO.
+// A frame shows which format it is in, so either is decoded at any time.
+public enum WireFormat {
+    JSON("json") {
+        @Override
+        void write(Message message, ByteBuf out) throws IOException {
+            try (OutputStream stream = new ByteBufOutputStream(out)) {
+                objectMapper.writeValue(stream, message);
+            }
+        }
+
+        @Override
+        Message read(ByteBuf in) throws IOException {
+            try (InputStream stream = new ByteBufInputStream(in)) {
+                return objectMapper.readValue(stream, Message.class);
+            }
+        }
+    },
+
+    BINARY("binary-v3") {
+        @Override
+        void write(Message message, ByteBuf out) throws IOException {
+            BinaryMessageFormat.write(message, out);
+        }
+
+        @Override
+        Message read(ByteBuf in) throws IOException {
+            return BinaryMessageFormat.read(in);
+        }
+    };
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    // Formats other than JSON, in order of preference
+    private static final List<WireFormat> NEGOTIATED = List.of(BINARY);
+
+    // Name used in HELLO messages
+    private final String name;
+
+    WireFormat(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // Streams a message into the buffer, or a frame's message out of it
+    abstract void write(Message message, ByteBuf out) throws IOException;
+
+    abstract Message read(ByteBuf in) throws IOException;
+
+    // Formats to offer in a HELLO; null when this peer sticks to JSON
+    public static List<String> offered(NetworkConfig config) {
+        return config.isBinaryMessages() ? List.of(BINARY.name) : null;
+    }
+
+    // Preferred format listed by both HELLOs of a connection, or JSON
+    public static WireFormat negotiate(List<String> sent, List<String> received) {
+        if (sent == null || received == null) {
+            return JSON;
+        }
+        for (WireFormat format : NEGOTIATED) {
+            if (sent.contains(format.name) && received.contains(format.name)) {
+                return format;
+            }
+        }
+        return JSON;
+    }
+
+    // Format a received frame is in
+    static WireFormat of(ByteBuf frame) {
+        return frame.isReadable() && frame.getUnsignedByte(frame.readerIndex()) == BinaryMessageFormat.MARKER
+                ? BINARY : JSON;
+    }
+}
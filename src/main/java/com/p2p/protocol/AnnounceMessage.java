@@ -0,0 +1,34 @@
+package com.p2p.protocol;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+import java.util.List;
+
+// Incremental update of the files a peer shares, sent after the HELLO whenever its file set changes
+@Data
+@EqualsAndHashCode(callSuper = false)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class AnnounceMessage extends Message {
+    private final String peerId;          // Sender's peer ID
+    private final List<String> added;     // File IDs now available
+    private final List<String> removed;   // File IDs no longer available
+
+    @JsonCreator
+    public AnnounceMessage(
+            @JsonProperty("peerId") String peerId,
+            @JsonProperty("added") List<String> added,
+            @JsonProperty("removed") List<String> removed) {
+        this.peerId = peerId;
+        this.added = added != null ? added : List.of();
+        this.removed = removed != null ? removed : List.of();
+    }
+
+    @Override
+    public MessageType getType() {
+        return MessageType.ANNOUNCE;
+    }
+}
@@ -0,0 +1,41 @@
+package com.p2p.protocol;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+// One block of a chunk streamed in place of a CHUNK_RESPONSE; blocks arrive in order and the one
+// reaching the chunk's size from the manifest completes it
+@Data
+@EqualsAndHashCode(callSuper = false)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class ChunkBlockMessage extends Message {
+    private final String fileId;      // File the chunk belongs to
+    private final int chunkIndex;     // Chunk index
+    private final long offset;        // Offset of the block within the chunk
+    private final byte[] data;        // Block data (Base64 in the JSON frame)
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private final String encoding;    // Compression of the data, null if sent as it is
+
+    @JsonCreator
+    public ChunkBlockMessage(
+            @JsonProperty("fileId") String fileId,
+            @JsonProperty("chunkIndex") int chunkIndex,
+            @JsonProperty("offset") long offset,
+            @JsonProperty("data") byte[] data,
+            @JsonProperty("encoding") String encoding) {
+        this.fileId = fileId;
+        this.chunkIndex = chunkIndex;
+        this.offset = offset;
+        this.data = data;
+        this.encoding = encoding;
+    }
+
+    @Override
+    public MessageType getType() {
+        return MessageType.CHUNK_BLOCK;
+    }
+}
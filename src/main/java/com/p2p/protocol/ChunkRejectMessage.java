@@ -0,0 +1,40 @@
+package com.p2p.protocol;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+// Explicit refusal of a chunk request so the requester can retry later or elsewhere
+@Data
+@EqualsAndHashCode(callSuper = false)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class ChunkRejectMessage extends Message {
+    private final String fileId;          // File containing the chunk
+    private final int chunkIndex;         // Chunk that was refused
+    private final Reason reason;          // Why the request was refused
+    private final long retryAfterMillis;  // Suggested wait before asking this peer again
+
+    public enum Reason {
+        CHOKED,  // Requester is not currently granted upload slots
+        BUSY     // Requester already has too many requests queued, or the server is short of memory
+    }
+
+    @JsonCreator
+    public ChunkRejectMessage(
+            @JsonProperty("fileId") String fileId,
+            @JsonProperty("chunkIndex") int chunkIndex,
+            @JsonProperty("reason") Reason reason,
+            @JsonProperty("retryAfterMillis") long retryAfterMillis) {
+        this.fileId = fileId;
+        this.chunkIndex = chunkIndex;
+        this.reason = reason;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    @Override
+    public MessageType getType() {
+        return MessageType.CHUNK_REJECT;
+    }
+}
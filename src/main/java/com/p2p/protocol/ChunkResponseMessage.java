@@ -2,45 +2,40 @@ package com.p2p.protocol;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.p2p.core.Hash;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 
-import java.util.Base64;
-
-// Response containing chunk data (Base64 encoded)
+// Response containing chunk data (Base64 encoded on the wire), compressed if an encoding is named
 @Data
 @EqualsAndHashCode(callSuper = false)
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class ChunkResponseMessage extends Message {
     private final String fileId;      // File this chunk belongs to
     private final int chunkIndex;     // Chunk index
-    private final String data;        // Base64-encoded chunk data
-    private final String hash;        // SHA-256 hash for verification
+    private final byte[] data;        // Chunk data (Base64 in the JSON frame)
+    private final Hash hash;          // SHA-256 hash for verification
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private final String encoding;    // Compression of the data, null if sent as it is
+
+    public ChunkResponseMessage(String fileId, int chunkIndex, byte[] data, Hash hash) {
+        this(fileId, chunkIndex, data, hash, null);
+    }
 
     @JsonCreator
     public ChunkResponseMessage(
             @JsonProperty("fileId") String fileId,
             @JsonProperty("chunkIndex") int chunkIndex,
-            @JsonProperty("data") String data,
-            @JsonProperty("hash") String hash) {
+            @JsonProperty("data") byte[] data,
+            @JsonProperty("hash") Hash hash,
+            @JsonProperty("encoding") String encoding) {
         this.fileId = fileId;
         this.chunkIndex = chunkIndex;
         this.data = data;
         this.hash = hash;
-    }
-
-    // Constructor accepting raw bytes (encodes to Base64)
-    public ChunkResponseMessage(String fileId, int chunkIndex, byte[] rawData, String hash) {
-        this.fileId = fileId;
-        this.chunkIndex = chunkIndex;
-        this.data = Base64.getEncoder().encodeToString(rawData);
-        this.hash = hash;
-    }
-
-    // Decodes Base64 data back to raw bytes
-    public byte[] getDataBytes() {
-        return Base64.getDecoder().decode(data);
+        this.encoding = encoding;
     }
 
     @Override
@@ -0,0 +1,19 @@
+package com.p2p.protocol;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.NoArgsConstructor;
+
+// Keep-alive sent when a connection has been write-idle (carries no payload)
+@Data
+@EqualsAndHashCode(callSuper = false)
+@NoArgsConstructor
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class HeartbeatMessage extends Message {
+
+    @Override
+    public MessageType getType() {
+        return MessageType.HEARTBEAT;
+    }
+}
@@ -2,13 +2,16 @@ package com.p2p.protocol;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 
 import java.util.List;
 
-// HELLO message for peer handshake (contains peer ID, available files, port)
+// HELLO message for peer handshake (contains peer ID, available files, port, the chunk encodings and
+// message formats the sender can decode and the block size it streams large chunks in; peers without
+// them leave those out)
 @Data
 @EqualsAndHashCode(callSuper = false)
 @JsonIgnoreProperties(ignoreUnknown = true)
@@ -16,15 +19,31 @@ public class HelloMessage extends Message {
     private final String peerId;           // Sender's peer ID
     private final List<String> availableFiles;  // File IDs available for sharing
     private final int port;                // Listening port
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private final List<String> compression;     // Chunk encodings the sender decodes, or null
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private final List<String> formats;         // Message formats besides JSON the sender decodes, or null
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    private final int blockSize;           // Size of the blocks the sender streams chunks in, 0 for whole chunks
+
+    public HelloMessage(String peerId, List<String> availableFiles, int port) {
+        this(peerId, availableFiles, port, null, null, 0);
+    }
 
     @JsonCreator
     public HelloMessage(
             @JsonProperty("peerId") String peerId,
             @JsonProperty("availableFiles") List<String> availableFiles,
-            @JsonProperty("port") int port) {
+            @JsonProperty("port") int port,
+            @JsonProperty("compression") List<String> compression,
+            @JsonProperty("formats") List<String> formats,
+            @JsonProperty("blockSize") int blockSize) {
         this.peerId = peerId;
         this.availableFiles = availableFiles;
         this.port = port;
+        this.compression = compression;
+        this.formats = formats;
+        this.blockSize = blockSize;
     }
 
     @Override
@@ -2,6 +2,7 @@ package com.p2p.protocol;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
@@ -13,9 +14,20 @@ import lombok.EqualsAndHashCode;
 public class ManifestRequestMessage extends Message {
     private final String fileId;  // Requested file ID
 
+    // Whether the requester takes an outline of a Merkle manifest and fetches its segments itself
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    private final boolean outline;
+
+    public ManifestRequestMessage(String fileId) {
+        this(fileId, false);
+    }
+
     @JsonCreator
-    public ManifestRequestMessage(@JsonProperty("fileId") String fileId) {
+    public ManifestRequestMessage(
+            @JsonProperty("fileId") String fileId,
+            @JsonProperty("outline") boolean outline) {
         this.fileId = fileId;
+        this.outline = outline;
     }
 
     @Override
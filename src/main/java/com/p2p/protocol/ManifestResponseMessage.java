@@ -2,8 +2,10 @@ package com.p2p.protocol;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.p2p.core.Manifest;
+import com.p2p.core.ManifestOutline;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 
@@ -14,9 +16,20 @@ import lombok.EqualsAndHashCode;
 public class ManifestResponseMessage extends Message {
     private final Manifest manifest;  // File manifest with chunk details
 
+    // Sent instead of the manifest for a Merkle manifest when the requester asked for an outline
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private final ManifestOutline outline;
+
+    public ManifestResponseMessage(Manifest manifest) {
+        this(manifest, null);
+    }
+
     @JsonCreator
-    public ManifestResponseMessage(@JsonProperty("manifest") Manifest manifest) {
+    public ManifestResponseMessage(
+            @JsonProperty("manifest") Manifest manifest,
+            @JsonProperty("outline") ManifestOutline outline) {
         this.manifest = manifest;
+        this.outline = outline;
     }
 
     @Override
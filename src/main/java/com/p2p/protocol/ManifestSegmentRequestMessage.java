@@ -0,0 +1,29 @@
+package com.p2p.protocol;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+// Request for one segment of a Merkle manifest's chunk list
+@Data
+@EqualsAndHashCode(callSuper = false)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class ManifestSegmentRequestMessage extends Message {
+    private final String fileId;  // File whose manifest is being fetched
+    private final int segment;    // Segment index, covering chunks from segment * 1024
+
+    @JsonCreator
+    public ManifestSegmentRequestMessage(
+            @JsonProperty("fileId") String fileId,
+            @JsonProperty("segment") int segment) {
+        this.fileId = fileId;
+        this.segment = segment;
+    }
+
+    @Override
+    public MessageType getType() {
+        return MessageType.MANIFEST_SEGMENT_REQUEST;
+    }
+}
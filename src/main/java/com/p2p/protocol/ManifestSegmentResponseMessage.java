@@ -0,0 +1,35 @@
+package com.p2p.protocol;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.p2p.core.ChunkInfo;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+import java.util.List;
+
+// One segment of a Merkle manifest's chunk list, checked by the requester against the outline
+@Data
+@EqualsAndHashCode(callSuper = false)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class ManifestSegmentResponseMessage extends Message {
+    private final String fileId;            // File whose manifest is being fetched
+    private final int segment;              // Segment index
+    private final List<ChunkInfo> chunks;   // The segment's chunks in order
+
+    @JsonCreator
+    public ManifestSegmentResponseMessage(
+            @JsonProperty("fileId") String fileId,
+            @JsonProperty("segment") int segment,
+            @JsonProperty("chunks") List<ChunkInfo> chunks) {
+        this.fileId = fileId;
+        this.segment = segment;
+        this.chunks = chunks;
+    }
+
+    @Override
+    public MessageType getType() {
+        return MessageType.MANIFEST_SEGMENT_RESPONSE;
+    }
+}
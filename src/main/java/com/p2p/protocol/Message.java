@@ -16,7 +16,13 @@ import com.fasterxml.jackson.annotation.JsonTypeInfo;
     @JsonSubTypes.Type(value = ChunkRequestMessage.class, name = "CHUNK_REQUEST"),
     @JsonSubTypes.Type(value = ChunkResponseMessage.class, name = "CHUNK_RESPONSE"),
     @JsonSubTypes.Type(value = PeerListRequestMessage.class, name = "PEER_LIST_REQUEST"),
-    @JsonSubTypes.Type(value = PeerListResponseMessage.class, name = "PEER_LIST_RESPONSE")
+    @JsonSubTypes.Type(value = PeerListResponseMessage.class, name = "PEER_LIST_RESPONSE"),
+    @JsonSubTypes.Type(value = HeartbeatMessage.class, name = "HEARTBEAT"),
+    @JsonSubTypes.Type(value = ChunkRejectMessage.class, name = "CHUNK_REJECT"),
+    @JsonSubTypes.Type(value = AnnounceMessage.class, name = "ANNOUNCE"),
+    @JsonSubTypes.Type(value = ManifestSegmentRequestMessage.class, name = "MANIFEST_SEGMENT_REQUEST"),
+    @JsonSubTypes.Type(value = ManifestSegmentResponseMessage.class, name = "MANIFEST_SEGMENT_RESPONSE"),
+    @JsonSubTypes.Type(value = ChunkBlockMessage.class, name = "CHUNK_BLOCK")
 })
 public abstract class Message {
     // Returns the type of this message
@@ -8,5 +8,11 @@ public enum MessageType {
     CHUNK_REQUEST,        // Request file chunk
     CHUNK_RESPONSE,       // Send file chunk
     PEER_LIST_REQUEST,    // Request known peers
-    PEER_LIST_RESPONSE    // Send known peers
+    PEER_LIST_RESPONSE,   // Send known peers
+    HEARTBEAT,            // Keep-alive on idle connections
+    CHUNK_REJECT,         // Refuse a chunk request (choked or busy)
+    ANNOUNCE,             // Files added to or removed from the sender's shared set
+    MANIFEST_SEGMENT_REQUEST,   // Request a segment of a Merkle manifest's chunk list
+    MANIFEST_SEGMENT_RESPONSE,  // Send a segment of a Merkle manifest's chunk list
+    CHUNK_BLOCK                 // Send one block of a chunk streamed in blocks
 }
@@ -1,16 +1,20 @@
 package com.p2p.storage;
 
 import com.p2p.core.ChunkInfo;
+import com.p2p.core.Hash;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
 // Manages storage and retrieval of file chunks
 public class ChunkStorage {
@@ -30,67 +34,98 @@ public class ChunkStorage {
     }
 
     // Stores a chunk with the given hash using two-level directory structure
-    public void storeChunk(String hash, byte[] data) throws IOException {
-        if (hash == null || hash.length() < 2) {
+    public void storeChunk(Hash hash, byte[] data) throws IOException {
+        if (hash == null) {
             throw new IllegalArgumentException("Invalid hash");
         }
 
-        String actualHash = calculateHash(data);
-        if (!actualHash.equals(hash)) {
+        if (!Hash.sha256(data).equals(hash)) {
             throw new IOException("Data hash doesn't match expected hash");
         }
+        storeVerifiedChunk(hash, data);
+    }
 
-        String subdir = hash.substring(0, 2);
-        Path subdirPath = storageRoot.resolve(subdir);
+    // Stores a chunk the caller has already checked against its hash, skipping a second SHA-256 pass
+    public void storeVerifiedChunk(Hash hash, byte[] data) throws IOException {
+        Path chunkPath = getChunkPath(hash);
+        Path subdirPath = chunkPath.getParent();
         Files.createDirectories(subdirPath);
 
-        Path chunkPath = subdirPath.resolve(hash);
-        Files.write(chunkPath, data);
+        // Written aside and moved into place so a concurrent reader never sees a partial chunk
+        Path tempPath = Files.createTempFile(subdirPath, chunkPath.getFileName().toString(), ".tmp");
+        try {
+            Files.write(tempPath, data);
+            Files.move(tempPath, chunkPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
 
-        logger.debug("Stored chunk: {} ({} bytes)", hash.substring(0, 8) + "...", data.length);
+        logger.debug("Stored chunk: {} ({} bytes)", hash.toShortHex() + "...", data.length);
     }
 
     // Retrieves a chunk by its hash
-    public byte[] retrieveChunk(String hash) throws IOException {
+    public byte[] retrieveChunk(Hash hash) throws IOException {
+        byte[] data = readChunk(hash);
+
+        if (!Hash.sha256(data).equals(hash)) {
+            logger.error("Chunk integrity check failed: {}", hash);
+            throw new IOException("Chunk corrupted: hash mismatch");
+        }
+
+        logger.debug("Retrieved chunk: {} ({} bytes)", hash.toShortHex() + "...", data.length);
+        return data;
+    }
+
+    // Reads a chunk's stored bytes without checking them; callers must verify the hash themselves
+    public byte[] readChunk(Hash hash) throws IOException {
         Path chunkPath = getChunkPath(hash);
 
         if (!Files.exists(chunkPath)) {
             throw new IOException("Chunk not found: " + hash);
         }
 
-        byte[] data = Files.readAllBytes(chunkPath);
+        return Files.readAllBytes(chunkPath);
+    }
 
-        String actualHash = calculateHash(data);
-        if (!actualHash.equals(hash)) {
-            logger.error("Chunk integrity check failed: {}", hash);
-            throw new IOException("Chunk corrupted: hash mismatch");
+    // Opens a chunk's stored bytes for reading in parts without checking them; callers must verify the hash
+    public FileChannel openChunk(Hash hash) throws IOException {
+        Path chunkPath = getChunkPath(hash);
+
+        if (!Files.exists(chunkPath)) {
+            throw new IOException("Chunk not found: " + hash);
         }
 
-        logger.debug("Retrieved chunk: {} ({} bytes)", hash.substring(0, 8) + "...", data.length);
-        return data;
+        return FileChannel.open(chunkPath, StandardOpenOption.READ);
+    }
+
+    // Starts storing a chunk that arrives in parts; it only appears in storage once committed
+    public ChunkWriter beginChunk(Hash hash) throws IOException {
+        Path chunkPath = getChunkPath(hash);
+        Files.createDirectories(chunkPath.getParent());
+        return new ChunkWriter(hash, chunkPath);
     }
 
     // Checks if a chunk with the given hash exists in storage
-    public boolean hasChunk(String hash) {
+    public boolean hasChunk(Hash hash) {
         return Files.exists(getChunkPath(hash));
     }
 
     // Deletes a chunk from storage
-    public void deleteChunk(String hash) throws IOException {
+    public void deleteChunk(Hash hash) throws IOException {
         Path chunkPath = getChunkPath(hash);
         if (Files.exists(chunkPath)) {
             Files.delete(chunkPath);
-            logger.debug("Deleted chunk: {}", hash.substring(0, 8) + "...");
+            logger.debug("Deleted chunk: {}", hash.toShortHex() + "...");
         }
     }
 
     // Gets the file path for a chunk with the given hash
-    private Path getChunkPath(String hash) {
-        if (hash == null || hash.length() < 2) {
+    private Path getChunkPath(Hash hash) {
+        if (hash == null) {
             throw new IllegalArgumentException("Invalid hash");
         }
-        String subdir = hash.substring(0, 2);
-        return storageRoot.resolve(subdir).resolve(hash);
+        String name = hash.toHex();
+        return storageRoot.resolve(name.substring(0, 2)).resolve(name);
     }
 
     // Ensures the storage root directory exists
@@ -104,28 +139,47 @@ public class ChunkStorage {
         }
     }
 
-    // Calculates SHA-256 hash of data
-    private String calculateHash(byte[] data) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] hash = digest.digest(data);
-            return bytesToHex(hash);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("SHA-256 not available", e);
-        }
+    // Returns the storage root path
+    public Path getStorageRoot() {
+        return storageRoot;
     }
 
-    // Converts bytes to hexadecimal string
-    private String bytesToHex(byte[] bytes) {
-        StringBuilder sb = new StringBuilder();
-        for (byte b : bytes) {
-            sb.append(String.format("%02x", b));
+    // Chunk written part by part to a temporary file beside its final path, as storeVerifiedChunk does at once
+    public static final class ChunkWriter implements Closeable {
+        private final Hash hash;
+        private final Path chunkPath;
+        private final Path tempPath;
+        private final OutputStream out;
+        private long size;
+        private boolean committed;
+
+        private ChunkWriter(Hash hash, Path chunkPath) throws IOException {
+            this.hash = hash;
+            this.chunkPath = chunkPath;
+            this.tempPath = Files.createTempFile(chunkPath.getParent(), chunkPath.getFileName().toString(), ".tmp");
+            this.out = Files.newOutputStream(tempPath);
         }
-        return sb.toString();
-    }
 
-    // Returns the storage root path
-    public Path getStorageRoot() {
-        return storageRoot;
+        public void write(byte[] data) throws IOException {
+            out.write(data);
+            size += data.length;
+        }
+
+        // Moves the chunk into place; the caller has checked everything written against the hash
+        public void commit() throws IOException {
+            out.close();
+            Files.move(tempPath, chunkPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+            logger.debug("Stored chunk: {} ({} bytes)", hash.toShortHex() + "...", size);
+        }
+
+        // Discards the chunk unless it was committed
+        @Override
+        public void close() throws IOException {
+            out.close();
+            if (!committed) {
+                Files.deleteIfExists(tempPath);
+            }
+        }
     }
 }
@@ -0,0 +1,175 @@
+package com.p2p.storage;
+
+import com.p2p.chunking.Chunker;
+import com.p2p.chunking.ManifestGenerator;
+import com.p2p.core.ChunkInfo;
+import com.p2p.core.Hash;
+import com.p2p.core.Manifest;
+import lombok.Getter;
+import lombok.Setter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+// Prepares local files for seeding. Unchanged files reuse their cached manifest without being read,
+// files that only grew are hashed from their old last chunk onwards, anything else is fully rehashed.
+public class FileIndexer {
+    private static final Logger logger = LoggerFactory.getLogger(FileIndexer.class);
+
+    private final ManifestGenerator generator;
+    private final ChunkStorage chunkStorage;
+    private final ManifestStorage manifestStorage;
+
+    @Getter
+    private final HashCache cache;
+
+    // Ignore cached manifests and hash every file again
+    @Getter
+    @Setter
+    private boolean rehash;
+
+    public FileIndexer(ManifestGenerator generator, ChunkStorage chunkStorage, ManifestStorage manifestStorage) {
+        this.generator = generator;
+        this.chunkStorage = chunkStorage;
+        this.manifestStorage = manifestStorage;
+        this.cache = new HashCache(manifestStorage);
+    }
+
+    // Returns the manifest for a file or directory, with its chunks in the chunk store. Safe to call
+    // from several threads for different files.
+    public Manifest index(File file) throws IOException {
+        return index(file, true);
+    }
+
+    // Every save rewrites the whole hash cache, so callers indexing many files pass false and save it
+    // themselves once in a while
+    public Manifest index(File file, boolean saveCache) throws IOException {
+        if (file.isDirectory()) {
+            // Collections are always rehashed; checking every file would cost about as much as hashing small ones
+            Manifest manifest = generator.generateCollectionManifest(file);
+            manifestStorage.storeManifest(manifest);
+            storeChunks(file, manifest, 0);
+            return manifest;
+        }
+
+        Path path = file.toPath().toRealPath();
+        String key = path.toString();
+        // Read before hashing so a write during hashing makes the next run rehash
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+
+        HashCache.Entry cached = rehash ? null : cache.get(key);
+        Manifest previous = null;
+        // A file whose size now calls for another chunk size is hashed again
+        Chunker chunker = generator.chunkerFor(attributes.size());
+        if (cached != null && cached.getChunking() == chunker.getMode()
+                && cached.getChunkSize() == chunker.getChunkSize()) {
+            previous = manifestStorage.retrieveManifest(cached.getFileId());
+            // A manifest of the other kind has a different file ID, so it is not reused
+            if (previous != null && previous.isMerkle() != generator.isMerkle()) {
+                previous = null;
+            }
+        }
+
+        Manifest manifest;
+        int firstNewChunk = 0;
+        if (previous != null && isUnchanged(cached, attributes) && chunksPresent(previous)) {
+            logger.info("{} unchanged since last hashed, reusing manifest {}", file.getName(),
+                    previous.getFileId().substring(0, 8) + "...");
+            return previous;
+        } else if (previous != null && isAppended(cached, attributes, previous, file)) {
+            manifest = generator.extendManifest(file, previous);
+            firstNewChunk = previous.getChunkCount() - 1;
+        } else {
+            manifest = generator.generateManifest(file);
+        }
+
+        manifestStorage.storeManifest(manifest);
+        storeChunks(file, manifest, firstNewChunk);
+
+        cache.put(key, new HashCache.Entry(attributes.size(), modifiedNanos(attributes), fileKey(attributes),
+                manifest.getFileId(), manifest.getChunking(), manifest.getChunkSize()));
+        if (saveCache) {
+            cache.save();
+        }
+        return manifest;
+    }
+
+    private boolean isUnchanged(HashCache.Entry cached, BasicFileAttributes attributes) {
+        return cached.getSize() == attributes.size()
+                && cached.getModifiedNanos() == modifiedNanos(attributes)
+                && Objects.equals(cached.getFileKey(), fileKey(attributes));
+    }
+
+    // Cheap guard against a chunk store that was wiped while the cache survived
+    private boolean chunksPresent(Manifest manifest) {
+        return manifest.getChunkCount() == 0 || chunkStorage.hasChunk(manifest.getChunk(0).getHash());
+    }
+
+    // Same inode and larger: treated as appended to if every chunk that will be kept still hashes the same.
+    // A grown file may also have been rewritten anywhere before its old end, and the daemon re-indexes edited
+    // files through here, so the whole kept prefix is read again; only storing it and hashing the tail's
+    // chunk boundaries are saved.
+    private boolean isAppended(HashCache.Entry cached, BasicFileAttributes attributes, Manifest previous, File file)
+            throws IOException {
+        if (cached.getFileKey() == null || !cached.getFileKey().equals(fileKey(attributes))
+                || attributes.size() <= cached.getSize() || previous.getChunkCount() < 2) {
+            return false;
+        }
+        return keptChunksMatch(file, previous);
+    }
+
+    // Hashes every chunk but the last against the previous manifest, putting back any the store lost
+    private boolean keptChunksMatch(File file, Manifest previous) throws IOException {
+        int kept = previous.getChunkCount() - 1;
+        try (MultiFileChannel source = MultiFileChannel.open(file.toPath(), previous, false)) {
+            for (int i = 0; i < kept; i++) {
+                ChunkInfo chunk = previous.getChunk(i);
+                byte[] data = new byte[(int) chunk.getSize()];
+                if (!source.read(data, previous.getChunkOffset(i)) || !chunk.getHash().equals(Hash.sha256(data))) {
+                    logger.info("{} changed before its old end at chunk {}, hashing it again", file.getName(), i);
+                    return false;
+                }
+                if (!chunkStorage.hasChunk(chunk.getHash())) {
+                    chunkStorage.storeChunk(chunk.getHash(), data);
+                }
+            }
+        }
+        return true;
+    }
+
+    private void storeChunks(File file, Manifest manifest, int firstChunk) throws IOException {
+        int count = manifest.getChunkCount();
+        logger.info("Storing {} chunks...", count - firstChunk);
+        try (MultiFileChannel source = MultiFileChannel.open(file.toPath(), manifest, false)) {
+            for (int i = firstChunk; i < count; i++) {
+                ChunkInfo chunk = manifest.getChunk(i);
+                byte[] chunkData = new byte[(int) chunk.getSize()];
+                if (!source.read(chunkData, manifest.getChunkOffset(i))) {
+                    throw new IOException("File shrank while storing chunks: " + file);
+                }
+                chunkStorage.storeChunk(chunk.getHash(), chunkData);
+
+                if ((i + 1) % 10 == 0 || i == count - 1) {
+                    logger.info("Stored {}/{} chunks", i + 1, count);
+                }
+            }
+        }
+    }
+
+    private static long modifiedNanos(BasicFileAttributes attributes) {
+        return attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+    }
+
+    // Device and inode on POSIX filesystems, null where the platform has no stable file key
+    private static String fileKey(BasicFileAttributes attributes) {
+        Object key = attributes.fileKey();
+        return key != null ? key.toString() : null;
+    }
+}
@@ -0,0 +1,88 @@
+package com.p2p.storage;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.p2p.core.ChunkingMode;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Persistent map from a seeded file's identity (canonical path, size, mtime, inode) to the manifest
+// generated for it, so unchanged files are not rehashed when a seeder restarts
+public class HashCache {
+    private static final Logger logger = LoggerFactory.getLogger(HashCache.class);
+
+    private static final String FILENAME = "hash-cache.json";
+
+    // What the file looked like when its manifest was generated
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Entry {
+        private long size;
+        private long modifiedNanos;
+        private String fileKey;           // Device and inode where the filesystem exposes them
+        private String fileId;
+        private ChunkingMode chunking;
+        private int chunkSize;
+    }
+
+    private final Path cacheFile;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    // Keeps the cache next to the manifests it points at
+    public HashCache(ManifestStorage manifestStorage) {
+        this(manifestStorage.getStorageRoot().resolve(FILENAME));
+    }
+
+    public HashCache(Path cacheFile) {
+        this.cacheFile = cacheFile;
+        load();
+    }
+
+    public Entry get(String canonicalPath) {
+        return entries.get(canonicalPath);
+    }
+
+    public void put(String canonicalPath, Entry entry) {
+        entries.put(canonicalPath, entry);
+    }
+
+    public void remove(String canonicalPath) {
+        entries.remove(canonicalPath);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    // Writes the cache to a temporary file and renames it so a crash never leaves a torn cache
+    public synchronized void save() throws IOException {
+        Path temp = cacheFile.resolveSibling(FILENAME + ".tmp");
+        objectMapper.writeValue(temp.toFile(), entries);
+        Files.move(temp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // A missing or unreadable cache only costs a rehash, so errors are not fatal
+    private void load() {
+        if (!Files.exists(cacheFile)) {
+            return;
+        }
+        try {
+            entries.putAll(objectMapper.readValue(cacheFile.toFile(), new TypeReference<Map<String, Entry>>() { }));
+            logger.debug("Loaded {} hash cache entries from {}", entries.size(), cacheFile);
+        } catch (IOException e) {
+            logger.warn("Ignoring unreadable hash cache {}: {}", cacheFile, e.getMessage());
+        }
+    }
+}
@@ -11,6 +11,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 // Manages storage and retrieval of file manifests
 public class ManifestStorage {
@@ -29,7 +30,8 @@ public class ManifestStorage {
     public ManifestStorage(Path storageRoot) {
         this.storageRoot = storageRoot;
         this.objectMapper = new ObjectMapper();
-        this.manifestCache = new HashMap<>();
+        // Shared by the server, downloads and the seed daemon's hashing threads
+        this.manifestCache = new ConcurrentHashMap<>();
         ensureStorageExists();
     }
 
@@ -0,0 +1,187 @@
+package com.p2p.storage;
+
+import com.p2p.core.FileEntry;
+import com.p2p.core.Manifest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Positional reads and writes over a sequence of files treated as one contiguous byte range, so chunks
+// of a collection can span file boundaries. A single file is the one-entry case.
+public class MultiFileChannel implements Closeable {
+
+    // Open file handles kept at once; collections can hold far more files than the process may open
+    private static final int MAX_OPEN_FILES = 64;
+
+    private final Path root;
+    private final List<FileEntry> files;
+    private final boolean writable;
+    private final Map<Integer, FileChannel> open = new LinkedHashMap<>(16, 0.75f, true);
+
+    // Files truncated by this writer already; reopening them after eviction must keep their data
+    private final BitSet initialized = new BitSet();
+
+    private MultiFileChannel(Path root, List<FileEntry> files, boolean writable) throws IOException {
+        this.root = root.toAbsolutePath().normalize();
+        this.files = files;
+        this.writable = writable;
+        for (FileEntry entry : files) {
+            resolve(entry);
+        }
+    }
+
+    // Channel over the file or collection described by a manifest; root is the file itself or the
+    // collection's top-level directory
+    public static MultiFileChannel open(Path root, Manifest manifest, boolean writable) throws IOException {
+        if (manifest.isCollection()) {
+            return open(root, manifest.getFiles(), writable);
+        }
+        Path file = root.toAbsolutePath().normalize();
+        return open(file.getParent(),
+                List.of(new FileEntry(file.getFileName().toString(), 0, manifest.getFileSize())), writable);
+    }
+
+    // Channel over files below root, laid out back to back in the given order
+    public static MultiFileChannel open(Path root, List<FileEntry> files, boolean writable) throws IOException {
+        return new MultiFileChannel(root, files, writable);
+    }
+
+    // Total length of the combined byte range
+    public long size() {
+        if (files.isEmpty()) {
+            return 0;
+        }
+        FileEntry last = files.get(files.size() - 1);
+        return last.getOffset() + last.getSize();
+    }
+
+    // Writes data at the given offset of the combined byte range
+    public void write(byte[] data, long offset) throws IOException {
+        if (!transfer(data, 0, data.length, offset, true)) {
+            throw new IOException("Write at " + offset + " runs past the end of " + root);
+        }
+    }
+
+    // Fills data from the given offset of the combined byte range; false if the files are shorter
+    public boolean read(byte[] data, long offset) throws IOException {
+        return transfer(data, 0, data.length, offset, false);
+    }
+
+    // Fills data[start, start + length) from the given offset; false if the files are shorter
+    public boolean read(byte[] data, int start, int length, long offset) throws IOException {
+        return transfer(data, start, length, offset, false);
+    }
+
+    // Splits a range at file boundaries and reads or writes each piece
+    private boolean transfer(byte[] data, int start, int total, long offset, boolean write) throws IOException {
+        int position = 0;
+        for (int i = fileAt(offset); position < total; i++) {
+            if (i >= files.size()) {
+                return false;
+            }
+            FileEntry entry = files.get(i);
+            long fileOffset = offset + position - entry.getOffset();
+            if (fileOffset >= entry.getSize()) {
+                continue;
+            }
+            int length = (int) Math.min(total - position, entry.getSize() - fileOffset);
+
+            ByteBuffer buffer = ByteBuffer.wrap(data, start + position, length);
+            FileChannel channel = channel(i);
+            while (buffer.hasRemaining()) {
+                long filePosition = fileOffset + buffer.position() - start - position;
+                if (write) {
+                    channel.write(buffer, filePosition);
+                } else if (channel.read(buffer, filePosition) < 0) {
+                    return false;
+                }
+            }
+            position += length;
+        }
+        return true;
+    }
+
+    // Gives every file its final size, creating files no chunk wrote to (empty files)
+    public void finish() throws IOException {
+        for (int i = 0; i < files.size(); i++) {
+            channel(i).truncate(files.get(i).getSize());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (FileChannel channel : open.values()) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        open.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // Index of the last file starting at or before the offset (binary search over file offsets)
+    private int fileAt(long offset) {
+        int low = 0;
+        int high = files.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (files.get(mid).getOffset() <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private FileChannel channel(int index) throws IOException {
+        FileChannel channel = open.get(index);
+        if (channel != null) {
+            return channel;
+        }
+
+        Path path = resolve(files.get(index));
+        if (writable) {
+            Files.createDirectories(path.getParent());
+            channel = initialized.get(index)
+                    ? FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)
+                    : FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                            StandardOpenOption.TRUNCATE_EXISTING);
+            initialized.set(index);
+        } else {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+        }
+
+        open.put(index, channel);
+        if (open.size() > MAX_OPEN_FILES) {
+            Iterator<FileChannel> eldest = open.values().iterator();
+            eldest.next().close();
+            eldest.remove();
+        }
+        return channel;
+    }
+
+    // Maps a manifest path below the root, rejecting paths that would escape it
+    private Path resolve(FileEntry entry) throws IOException {
+        Path path = root.resolve(entry.getPath()).normalize();
+        if (entry.getPath().isEmpty() || !path.startsWith(root) || path.equals(root)) {
+            throw new IOException("Invalid path in manifest: " + entry.getPath());
+        }
+        return path;
+    }
+}
@@ -0,0 +1,107 @@
+package com.p2p.chunking;
+
+import com.p2p.core.ChunkInfo;
+import com.p2p.core.Manifest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// Finding the chunks of an edited file inside its older copy after bytes were inserted
+class DeltaScannerTest {
+
+    private static final int CHUNK_SIZE = 1024;
+
+    // A short last chunk, so both window sizes are scanned
+    private static final int OLD_SIZE = 20 * CHUNK_SIZE + 500;
+
+    // Not a multiple of the chunk size, so every block after the insert sits at an unaligned offset
+    private static final int INSERTED = 333;
+
+    @TempDir
+    Path directory;
+
+    private final byte[] old = bytes(OLD_SIZE, 1);
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, OLD_SIZE / 2 + 17, OLD_SIZE})
+    void findsShiftedBlocksAfterInsert(int position) throws IOException {
+        byte[] updated = insert(old, position, bytes(INSERTED, 2));
+        Manifest manifest = manifest(updated);
+        BitSet wanted = new BitSet();
+        wanted.set(0, manifest.getChunkCount());
+
+        Map<Integer, Long> matches = new DeltaScanner().findMatches(manifest, write("old.bin", old), wanted);
+
+        for (ChunkInfo chunk : manifest.getChunks()) {
+            long start = chunk.getOffset();
+            long end = start + chunk.getSize();
+            if (end <= position) {
+                assertEquals(start, matches.get(chunk.getIndex()), "chunk " + chunk.getIndex());
+            } else if (start >= position + INSERTED) {
+                assertEquals(start - INSERTED, matches.get(chunk.getIndex()), "chunk " + chunk.getIndex());
+            }
+        }
+        assertMatchesHold(manifest, updated, matches);
+    }
+
+    @Test
+    void findsOnlyWantedChunks() throws IOException {
+        byte[] updated = insert(old, 0, bytes(INSERTED, 2));
+        Manifest manifest = manifest(updated);
+        BitSet wanted = new BitSet();
+        wanted.set(3);
+        wanted.set(7);
+
+        Map<Integer, Long> matches = new DeltaScanner().findMatches(manifest, write("old.bin", old), wanted);
+
+        assertEquals(Map.of(3, manifest.getChunkOffset(3) - INSERTED, 7, manifest.getChunkOffset(7) - INSERTED),
+                matches);
+    }
+
+    // Every reported offset points at the chunk's bytes in the old file
+    private void assertMatchesHold(Manifest manifest, byte[] updated, Map<Integer, Long> matches) {
+        for (Map.Entry<Integer, Long> match : matches.entrySet()) {
+            ChunkInfo chunk = manifest.getChunk(match.getKey());
+            int from = (int) chunk.getOffset();
+            int to = from + (int) chunk.getSize();
+            int oldFrom = match.getValue().intValue();
+            assertArrayEquals(Arrays.copyOfRange(updated, from, to),
+                    Arrays.copyOfRange(old, oldFrom, oldFrom + (to - from)), "chunk " + match.getKey());
+        }
+    }
+
+    private Manifest manifest(byte[] content) throws IOException {
+        return new ManifestGenerator(new FileChunker(CHUNK_SIZE)).generateManifest(write("new.bin", content));
+    }
+
+    private File write(String name, byte[] content) throws IOException {
+        return Files.write(directory.resolve(name), content).toFile();
+    }
+
+    private static byte[] insert(byte[] data, int position, byte[] inserted) {
+        byte[] result = new byte[data.length + inserted.length];
+        System.arraycopy(data, 0, result, 0, position);
+        System.arraycopy(inserted, 0, result, position, inserted.length);
+        System.arraycopy(data, position, result, position + inserted.length, data.length - position);
+        return result;
+    }
+
+    private static byte[] bytes(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,48 @@
+package com.p2p.chunking;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class RollingChecksumTest {
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 7, 64, 1000, 4096})
+    void rollMatchesChecksumFromScratchAtEveryOffset(int window) {
+        byte[] data = new byte[3 * window + 500];
+        new Random(window).nextBytes(data);
+
+        RollingChecksum checksum = new RollingChecksum(window);
+        checksum.reset(data, 0);
+        for (int offset = 0; ; offset++) {
+            assertEquals(RollingChecksum.of(data, offset, window), checksum.value(), "offset " + offset);
+            if (offset + window == data.length) {
+                break;
+            }
+            checksum.roll(data[offset], data[offset + window]);
+        }
+    }
+
+    // High bytes must not sign-extend, and the 16-bit sums must wrap the same way in both paths
+    @Test
+    void rollMatchesOverHighBytesPastSumOverflow() {
+        int window = 1 << 12;
+        byte[] data = new byte[2 * window];
+        Arrays.fill(data, (byte) 0xFF);
+        for (int i = 0; i < data.length; i += 3) {
+            data[i] = (byte) 0x80;
+        }
+
+        RollingChecksum checksum = new RollingChecksum(window);
+        checksum.reset(data, 0);
+        for (int offset = 0; offset + window < data.length; offset++) {
+            checksum.roll(data[offset], data[offset + window]);
+            assertEquals(RollingChecksum.of(data, offset + 1, window), checksum.value(), "offset " + (offset + 1));
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.p2p.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ManifestOutlineTest {
+
+    private static final int SEGMENT = MerkleTree.SEGMENT_CHUNKS;
+
+    // Three segments, the last one partial
+    private static final int CHUNK_COUNT = 2 * SEGMENT + 452;
+
+    private final List<ChunkInfo> chunks = MerkleTreeTest.chunks(CHUNK_COUNT);
+    private final Manifest manifest = merkleManifest(chunks);
+    private final ManifestOutline outline = ManifestOutline.of(manifest);
+
+    @Test
+    void outlineOfManifestVerifies() {
+        assertDoesNotThrow(() -> outline.verify(manifest.getFileId()));
+    }
+
+    @Test
+    void everySegmentVerifies() {
+        for (int segment = 0; segment < MerkleTree.segmentCount(CHUNK_COUNT); segment++) {
+            assertTrue(outline.isValidSegment(segment, segment(chunks, segment)), "segment " + segment);
+        }
+    }
+
+    @Test
+    void rejectsTamperedChunkHash() {
+        for (int segment : new int[]{0, 2}) {
+            List<ChunkInfo> tampered = segment(chunks, segment);
+            ChunkInfo chunk = tampered.get(5);
+            tampered.set(5, new ChunkInfo(chunk.getIndex(), chunk.getOffset(), MerkleTreeTest.hash(-1),
+                    chunk.getWeakHash(), chunk.getSize()));
+            assertFalse(outline.isValidSegment(segment, tampered), "segment " + segment);
+        }
+    }
+
+    @Test
+    void rejectsTamperedChunkOffset() {
+        for (int segment : new int[]{0, 2}) {
+            List<ChunkInfo> tampered = segment(chunks, segment);
+            ChunkInfo chunk = tampered.get(5);
+            tampered.set(5, new ChunkInfo(chunk.getIndex(), chunk.getOffset() + 1, chunk.getHash(),
+                    chunk.getWeakHash(), chunk.getSize()));
+            assertFalse(outline.isValidSegment(segment, tampered), "segment " + segment);
+        }
+    }
+
+    @Test
+    void rejectsTamperedChunkSize() {
+        for (int segment : new int[]{0, 2}) {
+            List<ChunkInfo> tampered = segment(chunks, segment);
+            ChunkInfo chunk = tampered.get(5);
+            tampered.set(5, new ChunkInfo(chunk.getIndex(), chunk.getOffset(), chunk.getHash(),
+                    chunk.getWeakHash(), chunk.getSize() - 1));
+            assertFalse(outline.isValidSegment(segment, tampered), "segment " + segment);
+        }
+    }
+
+    @Test
+    void rejectsChunkReachingPastEndOfFile() {
+        List<ChunkInfo> tampered = segment(chunks, 2);
+        ChunkInfo last = tampered.get(tampered.size() - 1);
+        tampered.set(tampered.size() - 1, new ChunkInfo(last.getIndex(), manifest.getFileSize(), last.getHash(),
+                last.getWeakHash(), last.getSize()));
+        assertFalse(outline.isValidSegment(2, tampered));
+    }
+
+    @Test
+    void rejectsSegmentAtWrongPositionOrOfWrongLength() {
+        assertFalse(outline.isValidSegment(1, segment(chunks, 0)));
+        assertFalse(outline.isValidSegment(3, segment(chunks, 2)));
+        assertFalse(outline.isValidSegment(-1, segment(chunks, 0)));
+        assertFalse(outline.isValidSegment(2, segment(chunks, 2).subList(0, 451)));
+        assertFalse(outline.isValidSegment(0, null));
+    }
+
+    @Test
+    void rejectsWrongFileId() {
+        assertThrows(IOException.class, () -> outline.verify(MerkleTreeTest.hash(-1).toHex()));
+    }
+
+    @Test
+    void rejectsMissingOrExtraSegment() {
+        List<Hash> missing = new ArrayList<>(outline.getSegments());
+        missing.remove(missing.size() - 1);
+        assertThrows(IOException.class, () -> withSegments(missing).verify(manifest.getFileId()));
+
+        List<Hash> extra = new ArrayList<>(outline.getSegments());
+        extra.add(MerkleTreeTest.hash(-1));
+        assertThrows(IOException.class, () -> withSegments(extra).verify(manifest.getFileId()));
+    }
+
+    @Test
+    void rejectsTamperedSegmentHash() {
+        List<Hash> tampered = new ArrayList<>(outline.getSegments());
+        tampered.set(1, MerkleTreeTest.hash(-1));
+        assertThrows(IOException.class, () -> withSegments(tampered).verify(manifest.getFileId()));
+    }
+
+    @Test
+    void rejectsTamperedChunkCount() {
+        // One chunk fewer still needs three segments, so only the file ID catches it
+        ManifestOutline tampered = new ManifestOutline(outline.getFileId(), outline.getFilename(),
+                outline.getFileSize(), outline.getChunkSize(), outline.getChunking(), CHUNK_COUNT - 1,
+                outline.getRoot(), outline.getSegments(), outline.getFiles());
+        assertThrows(IOException.class, () -> tampered.verify(manifest.getFileId()));
+    }
+
+    @Test
+    void rejectsTamperedMetadata() {
+        ManifestOutline tampered = new ManifestOutline(outline.getFileId(), outline.getFilename(),
+                outline.getFileSize() + 1, outline.getChunkSize(), outline.getChunking(), CHUNK_COUNT,
+                outline.getRoot(), outline.getSegments(), outline.getFiles());
+        assertThrows(IOException.class, () -> tampered.verify(manifest.getFileId()));
+    }
+
+    private ManifestOutline withSegments(List<Hash> segments) {
+        return new ManifestOutline(outline.getFileId(), outline.getFilename(), outline.getFileSize(),
+                outline.getChunkSize(), outline.getChunking(), outline.getChunkCount(), outline.getRoot(), segments,
+                outline.getFiles());
+    }
+
+    private static List<ChunkInfo> segment(List<ChunkInfo> chunks, int segment) {
+        int from = segment * SEGMENT;
+        return new ArrayList<>(chunks.subList(from, from + MerkleTree.segmentSize(chunks.size(), segment)));
+    }
+
+    private static Manifest merkleManifest(List<ChunkInfo> chunks) {
+        long fileSize = 0;
+        for (ChunkInfo chunk : chunks) {
+            fileSize += chunk.getSize();
+        }
+        Hash root = MerkleTree.root(MerkleTree.segmentRoots(chunks));
+        String fileId = ManifestOutline.fileId("data.bin", fileSize, 1000, ChunkingMode.FIXED, chunks.size(), root,
+                null);
+        return new Manifest(fileId, "data.bin", fileSize, 1000, ChunkingMode.FIXED, chunks, null, root);
+    }
+}
@@ -0,0 +1,91 @@
+package com.p2p.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class MerkleTreeTest {
+
+    private static final int SEGMENT = MerkleTree.SEGMENT_CHUNKS;
+
+    // Full, partial and single-chunk last segments, and trees whose layers have odd nodes
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 3, 5, SEGMENT - 1, SEGMENT, SEGMENT + 1, 2 * SEGMENT, 2 * SEGMENT + 452,
+            3 * SEGMENT + 1, 5 * SEGMENT})
+    void rootOverSegmentRootsEqualsRootOverAllLeaves(int chunkCount) {
+        List<ChunkInfo> chunks = chunks(chunkCount);
+
+        List<Hash> segments = MerkleTree.segmentRoots(chunks);
+
+        assertEquals(MerkleTree.segmentCount(chunkCount), segments.size());
+        assertEquals(MerkleTree.root(chunks, 0, chunkCount), MerkleTree.root(segments));
+    }
+
+    @Test
+    void segmentSizesCoverEveryChunk() {
+        int chunkCount = 2 * SEGMENT + 452;
+
+        assertEquals(3, MerkleTree.segmentCount(chunkCount));
+        assertEquals(SEGMENT, MerkleTree.segmentSize(chunkCount, 0));
+        assertEquals(SEGMENT, MerkleTree.segmentSize(chunkCount, 1));
+        assertEquals(452, MerkleTree.segmentSize(chunkCount, 2));
+        assertEquals(1, MerkleTree.segmentCount(SEGMENT));
+        assertEquals(0, MerkleTree.segmentCount(0));
+    }
+
+    @Test
+    void oddNodeMovesUpUnchanged() {
+        List<ChunkInfo> chunks = chunks(3);
+        Hash a = MerkleTree.leaf(chunks.get(0));
+        Hash b = MerkleTree.leaf(chunks.get(1));
+        Hash c = MerkleTree.leaf(chunks.get(2));
+
+        assertEquals(MerkleTree.parent(MerkleTree.parent(a, b), c), MerkleTree.root(chunks, 0, 3));
+        assertEquals(a, MerkleTree.root(List.of(a)));
+    }
+
+    @Test
+    void rootOfNothingIsHashOfNothing() {
+        assertEquals(Hash.sha256(new byte[0]), MerkleTree.root(List.of()));
+    }
+
+    @Test
+    void leafCommitsToEveryChunkField() {
+        ChunkInfo chunk = new ChunkInfo(0, 4096, hash(1), 77, 1000);
+        Hash leaf = MerkleTree.leaf(chunk);
+
+        assertNotEquals(leaf, MerkleTree.leaf(new ChunkInfo(0, 4096, hash(2), 77, 1000)));
+        assertNotEquals(leaf, MerkleTree.leaf(new ChunkInfo(0, 4097, hash(1), 77, 1000)));
+        assertNotEquals(leaf, MerkleTree.leaf(new ChunkInfo(0, 4096, hash(1), 78, 1000)));
+        assertNotEquals(leaf, MerkleTree.leaf(new ChunkInfo(0, 4096, hash(1), 77, 999)));
+    }
+
+    @Test
+    void leafAndParentDoNotCollide() {
+        Hash a = hash(1);
+        Hash b = hash(2);
+
+        assertNotEquals(MerkleTree.parent(a, b), MerkleTree.parent(b, a));
+        assertNotEquals(MerkleTree.leaf(new ChunkInfo(0, 0, a, 0, 0)), MerkleTree.parent(a, Hash.sha256(new byte[0])));
+    }
+
+    // Chunks of 1000 bytes with a shorter last one
+    static List<ChunkInfo> chunks(int count) {
+        List<ChunkInfo> chunks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long size = i == count - 1 ? 600 : 1000;
+            chunks.add(new ChunkInfo(i, i * 1000L, hash(i), i * 31, size));
+        }
+        return chunks;
+    }
+
+    static Hash hash(int seed) {
+        return Hash.sha256(Integer.toString(seed).getBytes());
+    }
+}
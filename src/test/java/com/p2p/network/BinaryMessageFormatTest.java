@@ -0,0 +1,276 @@
+package com.p2p.network;
+
+import com.p2p.core.ChunkInfo;
+import com.p2p.core.ChunkingMode;
+import com.p2p.core.FileEntry;
+import com.p2p.core.Hash;
+import com.p2p.core.Manifest;
+import com.p2p.core.ManifestOutline;
+import com.p2p.core.PeerInfo;
+import com.p2p.protocol.AnnounceMessage;
+import com.p2p.protocol.ChunkBlockMessage;
+import com.p2p.protocol.ChunkRejectMessage;
+import com.p2p.protocol.ChunkRequestMessage;
+import com.p2p.protocol.ChunkResponseMessage;
+import com.p2p.protocol.HeartbeatMessage;
+import com.p2p.protocol.HelloMessage;
+import com.p2p.protocol.ManifestRequestMessage;
+import com.p2p.protocol.ManifestResponseMessage;
+import com.p2p.protocol.ManifestSegmentRequestMessage;
+import com.p2p.protocol.ManifestSegmentResponseMessage;
+import com.p2p.protocol.Message;
+import com.p2p.protocol.MessageType;
+import com.p2p.protocol.PeerListRequestMessage;
+import com.p2p.protocol.PeerListResponseMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Round trips of every message type through both wire formats, and malformed binary frames
+class BinaryMessageFormatTest {
+
+    private static final String FILE_ID = hash(1).toHex();
+
+    @ParameterizedTest
+    @EnumSource(MessageType.class)
+    void roundTripsEveryTypeInEveryFormat(MessageType type) throws IOException {
+        for (Message message : samples(type)) {
+            for (WireFormat format : WireFormat.values()) {
+                ByteBuf frame = encode(format, message);
+                try {
+                    assertEquals(format, WireFormat.of(frame));
+                    assertEquals(message, format.read(frame), type + " in " + format);
+                } finally {
+                    frame.release();
+                }
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(MessageType.class)
+    void rejectsTruncatedFrames(MessageType type) throws IOException {
+        for (Message message : samples(type)) {
+            ByteBuf frame = encode(WireFormat.BINARY, message);
+            try {
+                for (int length = 0; length < frame.readableBytes(); length++) {
+                    ByteBuf truncated = frame.slice(0, length);
+                    assertThrows(IOException.class, () -> BinaryMessageFormat.read(truncated),
+                            type + " cut to " + length + " bytes");
+                }
+            } finally {
+                frame.release();
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(MessageType.class)
+    void rejectsTrailingBytes(MessageType type) throws IOException {
+        for (Message message : samples(type)) {
+            ByteBuf frame = encode(WireFormat.BINARY, message);
+            frame.writeByte(0);
+            try {
+                assertThrows(IOException.class, () -> BinaryMessageFormat.read(frame));
+            } finally {
+                frame.release();
+            }
+        }
+    }
+
+    @Test
+    void rejectsStringLongerThanFrame() {
+        ByteBuf frame = header(MessageType.CHUNK_REQUEST);
+        writeVarLong(frame, 1_000_000 + 1);
+        frame.writeBytes("abc".getBytes());
+        assertRejected(frame, "does not fit");
+    }
+
+    @Test
+    void rejectsChunkDataLongerThanFrame() {
+        ByteBuf frame = header(MessageType.CHUNK_RESPONSE);
+        writeVarLong(frame, 0);
+        writeVarLong(frame, 7);
+        writeVarLong(frame, Integer.MAX_VALUE);
+        frame.writeZero(16);
+        assertRejected(frame, "does not fit");
+    }
+
+    @Test
+    void rejectsListLongerThanFrame() {
+        ByteBuf frame = header(MessageType.MANIFEST_SEGMENT_RESPONSE);
+        writeVarLong(frame, 0);
+        writeVarLong(frame, 0);
+        // Claims 100 chunks of at least 40 bytes each in a few bytes
+        writeVarLong(frame, 100 + 1);
+        frame.writeZero(41);
+        assertRejected(frame, "does not fit");
+    }
+
+    @Test
+    void rejectsVarIntOutOfRange() {
+        ByteBuf frame = header(MessageType.CHUNK_REQUEST);
+        writeVarLong(frame, 0);
+        writeVarLong(frame, 1L << 32);
+        assertRejected(frame, "out of range");
+    }
+
+    @Test
+    void rejectsVarIntLongerThan64Bits() {
+        ByteBuf frame = header(MessageType.CHUNK_REQUEST);
+        writeVarLong(frame, 0);
+        for (int i = 0; i < 10; i++) {
+            frame.writeByte(0x80);
+        }
+        frame.writeByte(0);
+        assertRejected(frame, "longer than 64 bits");
+    }
+
+    @Test
+    void rejectsUnknownMessageType() {
+        ByteBuf frame = Unpooled.buffer();
+        frame.writeByte(BinaryMessageFormat.MARKER);
+        frame.writeByte(MessageType.values().length);
+        assertRejected(frame, "Unknown MessageType");
+    }
+
+    @Test
+    void rejectsUnknownRejectReason() {
+        ByteBuf frame = header(MessageType.CHUNK_REJECT);
+        writeVarLong(frame, 0);
+        writeVarLong(frame, 3);
+        frame.writeByte(ChunkRejectMessage.Reason.values().length);
+        writeVarLong(frame, 0);
+        assertRejected(frame, "Unknown Reason");
+    }
+
+    private static void assertRejected(ByteBuf frame, String reason) {
+        try {
+            IOException e = assertThrows(IOException.class, () -> BinaryMessageFormat.read(frame));
+            assertTrue(e.getMessage().contains(reason), e.getMessage());
+        } finally {
+            frame.release();
+        }
+    }
+
+    private static ByteBuf encode(WireFormat format, Message message) throws IOException {
+        ByteBuf frame = Unpooled.buffer();
+        format.write(message, frame);
+        return frame;
+    }
+
+    private static ByteBuf header(MessageType type) {
+        ByteBuf frame = Unpooled.buffer();
+        frame.writeByte(BinaryMessageFormat.MARKER);
+        frame.writeByte(type.ordinal());
+        return frame;
+    }
+
+    private static void writeVarLong(ByteBuf out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    // Messages of a type with optional fields both set and left out, kept small so every prefix can be tried
+    private static List<Message> samples(MessageType type) {
+        List<Message> samples = new ArrayList<>();
+        switch (type) {
+            case HELLO:
+                samples.add(new HelloMessage("peer-1", List.of(FILE_ID), 6881));
+                samples.add(new HelloMessage("peer-1", List.of(), 6881, List.of("deflate"), List.of("binary-v3"),
+                        256 * 1024));
+                break;
+            case MANIFEST_REQUEST:
+                samples.add(new ManifestRequestMessage(FILE_ID));
+                samples.add(new ManifestRequestMessage(FILE_ID, true));
+                break;
+            case MANIFEST_RESPONSE:
+                samples.add(new ManifestResponseMessage(manifest()));
+                samples.add(new ManifestResponseMessage(collection()));
+                samples.add(new ManifestResponseMessage(null, outline()));
+                break;
+            case CHUNK_REQUEST:
+                samples.add(new ChunkRequestMessage(FILE_ID, 300));
+                break;
+            case CHUNK_RESPONSE:
+                samples.add(new ChunkResponseMessage(FILE_ID, 2, data(48), hash(2)));
+                samples.add(new ChunkResponseMessage(FILE_ID, 2, data(16), hash(2), "deflate"));
+                break;
+            case PEER_LIST_REQUEST:
+                samples.add(new PeerListRequestMessage());
+                break;
+            case PEER_LIST_RESPONSE:
+                samples.add(new PeerListResponseMessage(List.of(
+                        new PeerInfo("peer-1", "10.0.0.1", 6881, List.of(FILE_ID)),
+                        new PeerInfo("peer-2", "example.org", 65535, List.of()))));
+                break;
+            case HEARTBEAT:
+                samples.add(new HeartbeatMessage());
+                break;
+            case CHUNK_REJECT:
+                samples.add(new ChunkRejectMessage(FILE_ID, 5, ChunkRejectMessage.Reason.BUSY, 200));
+                samples.add(new ChunkRejectMessage(FILE_ID, 5, ChunkRejectMessage.Reason.CHOKED, 0));
+                break;
+            case ANNOUNCE:
+                samples.add(new AnnounceMessage("peer-1", List.of(FILE_ID, hash(3).toHex()), List.of()));
+                break;
+            case MANIFEST_SEGMENT_REQUEST:
+                samples.add(new ManifestSegmentRequestMessage(FILE_ID, 3));
+                break;
+            case MANIFEST_SEGMENT_RESPONSE:
+                samples.add(new ManifestSegmentResponseMessage(FILE_ID, 0, manifest().getChunks()));
+                break;
+            case CHUNK_BLOCK:
+                samples.add(new ChunkBlockMessage(FILE_ID, 4, 1L << 33, data(32), null));
+                samples.add(new ChunkBlockMessage(FILE_ID, 4, 0, data(8), "deflate"));
+                break;
+            default:
+                throw new IllegalArgumentException("No sample for " + type);
+        }
+        return samples;
+    }
+
+    private static Manifest manifest() {
+        List<ChunkInfo> chunks = new ArrayList<>();
+        chunks.add(new ChunkInfo(0, 0, hash(10), -1, 1000));
+        chunks.add(new ChunkInfo(1, 1000, hash(11), 42, 1000));
+        chunks.add(new ChunkInfo(2, 2000, hash(12), Integer.MIN_VALUE, 500));
+        return new Manifest(FILE_ID, "données.bin", 2500, 1000, ChunkingMode.FIXED, chunks, null, hash(13));
+    }
+
+    private static Manifest collection() {
+        List<ChunkInfo> chunks = List.of(new ChunkInfo(0, 0, hash(20), 7, 30));
+        List<FileEntry> files = List.of(new FileEntry("a.txt", 0, 10), new FileEntry("dir/b.txt", 10, 20));
+        return new Manifest(FILE_ID, "photos", 30, 1024, ChunkingMode.FASTCDC, chunks, files, null);
+    }
+
+    private static ManifestOutline outline() {
+        return new ManifestOutline(FILE_ID, "data.bin", 1L << 40, 1 << 20, ChunkingMode.FIXED, 1 << 20, hash(30),
+                List.of(hash(31), hash(32)), null);
+    }
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        return data;
+    }
+
+    private static Hash hash(int seed) {
+        return Hash.sha256(new byte[]{(byte) seed});
+    }
+}
@@ -0,0 +1,100 @@
+package com.p2p.storage;
+
+import com.p2p.chunking.FileChunker;
+import com.p2p.chunking.ManifestGenerator;
+import com.p2p.core.Hash;
+import com.p2p.core.Manifest;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Reuse of cached manifests for files that grew in place
+class FileIndexerTest {
+
+    private static final int CHUNK_SIZE = 1024;
+
+    @TempDir
+    Path directory;
+
+    private ManifestGenerator generator;
+    private ChunkStorage chunkStorage;
+    private FileIndexer indexer;
+    private File file;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        generator = new ManifestGenerator(new FileChunker(CHUNK_SIZE));
+        chunkStorage = new ChunkStorage(directory.resolve("chunks"));
+        indexer = new FileIndexer(generator, chunkStorage, new ManifestStorage(directory.resolve("manifests")));
+        file = directory.resolve("data.bin").toFile();
+        Files.write(file.toPath(), bytes(10 * CHUNK_SIZE + 300, 1));
+    }
+
+    @Test
+    void appendedFileKeepsItsPrefix() throws IOException {
+        Manifest before = indexer.index(file);
+
+        append(bytes(2000, 2));
+        Manifest after = indexer.index(file);
+
+        assertEquals(generator.generateManifest(file).getFileId(), after.getFileId());
+        assertEquals(before.getChunks().subList(0, 9), after.getChunks().subList(0, 9));
+        assertStored(after);
+    }
+
+    @Test
+    void middleRewriteOfGrownFileIsHashedAgain() throws IOException {
+        Manifest before = indexer.index(file);
+
+        // Same inode: one middle chunk rewritten, then the file grows
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.seek(4 * CHUNK_SIZE + 10);
+            out.write(bytes(100, 3));
+        }
+        append(bytes(2000, 2));
+        Manifest after = indexer.index(file);
+
+        Manifest expected = generator.generateManifest(file);
+        assertEquals(expected.getFileId(), after.getFileId());
+        assertNotEquals(before.getChunk(4).getHash(), after.getChunk(4).getHash());
+        assertStored(after);
+    }
+
+    // Every chunk the manifest lists is in the store with the file's current bytes
+    private void assertStored(Manifest manifest) throws IOException {
+        byte[] content = Files.readAllBytes(file.toPath());
+        for (int i = 0; i < manifest.getChunkCount(); i++) {
+            Hash hash = manifest.getChunk(i).getHash();
+            assertTrue(chunkStorage.hasChunk(hash), "chunk " + i);
+            int offset = (int) manifest.getChunkOffset(i);
+            byte[] expected = Arrays.copyOfRange(content, offset, offset + (int) manifest.getChunk(i).getSize());
+            assertArrayEquals(expected, chunkStorage.retrieveChunk(hash), "chunk " + i);
+        }
+    }
+
+    private void append(byte[] data) throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.seek(out.length());
+            out.write(data);
+        }
+    }
+
+    private static byte[] bytes(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}